@@ -1,9 +1,35 @@
+import java.nio.file.Path;
+
 import presentation.Application;
+import service.HttpService;
 
 public class Main {
 
-    public static void main(String[] args) {
-        
+    /** Starts the application with a window, or, given {@code --headless [port]}, as a local HTTP service.
+     * A service can also be given {@code --lead=directory} or {@code --follow=directory}, to share one catalog between several services,
+     * and {@code --mapped-users}, to look the users up in a memory-mapped directory when they are needed, rather than load them all.
+     * @see HttpService
+     */
+    public static void main(String[] args) throws Exception {
+
+        if(args.length > 0 && args[0].equals("--headless")) {
+            int port = HttpService.DEFAULT_PORT;
+            Path replicationDirectory = null;
+            boolean isLeader = false;
+            boolean isUserDirectoryMapped = false;
+            for(int i = 1; i < args.length; i++) {
+                if(args[i].equals("--mapped-users"))
+                    isUserDirectoryMapped = true;
+                else if(args[i].startsWith("--lead=") || args[i].startsWith("--follow=")) {
+                    isLeader = args[i].startsWith("--lead=");
+                    replicationDirectory = Path.of(args[i].substring(args[i].indexOf('=') + 1));
+                }
+                else port = Integer.parseInt(args[i]);
+            }
+            HttpService.run(port, replicationDirectory, isLeader, isUserDirectoryMapped);
+            return;
+        }
+
         @SuppressWarnings("unused")
         Application app = new Application();
 
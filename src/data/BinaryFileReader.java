@@ -0,0 +1,150 @@
+package data;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/** Reads primitive values from a file through a buffered {@link FileChannel}.
+ * <p> Reads the values in the same format as they are written by {@link BinaryFileWriter}.
+ * Files that were compressed are decompressed as they are read, one block at a time. See {@link CompressedInputStream}.
+ * @see BinaryFileWriter
+ */
+public class BinaryFileReader implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel fileChannel;
+    /** The channel that the buffer is filled from. Is the file channel, unless the file is compressed. */
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** Creates a reader that reads the given file from the start.
+     * @param filePath The path of the file to read from.
+     * @throws IOException If the file could not be opened.
+     */
+    public BinaryFileReader(Path filePath) throws IOException {
+        fileChannel = FileChannel.open(filePath, StandardOpenOption.READ);
+        try {
+            // Read the start of the file, to see if it is compressed.
+            while(buffer.position() < Integer.BYTES && fileChannel.read(buffer) != -1);
+            buffer.flip();
+            if(buffer.remaining() < Integer.BYTES || buffer.getInt(0) != CompressedOutputStream.MAGIC) {
+                channel = fileChannel;
+                return;
+            }
+
+            fileChannel.position(0);
+            buffer.limit(0);
+            channel = Channels.newChannel(new CompressedInputStream(Channels.newInputStream(fileChannel)));
+        } catch (IOException e) {
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+    /** Returns whether the file starts with the given bytes, without moving the reading position.
+     * Can be used to tell different file formats apart.
+     * @param filePath The path of the file to check.
+     * @param magic The bytes the file should start with.
+     * @return Whether the file starts with the given bytes.
+     * @throws IOException If the file could not be read.
+     */
+    public static boolean startsWith(Path filePath, byte[] magic) throws IOException {
+        try(FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            ByteBuffer start = ByteBuffer.allocate(magic.length);
+            while(start.hasRemaining() && channel.read(start) != -1);
+            return !start.hasRemaining() && start.flip().equals(ByteBuffer.wrap(magic));
+        }
+    }
+
+    public int readByte() throws IOException {
+        require(1);
+        return buffer.get();
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public int readInt() throws IOException {
+        require(Integer.BYTES);
+        return buffer.getInt();
+    }
+
+    public long readLong() throws IOException {
+        require(Long.BYTES);
+        return buffer.getLong();
+    }
+
+    public float readFloat() throws IOException {
+        require(Float.BYTES);
+        return buffer.getFloat();
+    }
+
+    /** Reads a non-negative integer written by {@link BinaryFileWriter#writeVarInt(int)}.
+     * @return The integer.
+     * @throws IOException If an I/O error occurs, or the integer is malformed.
+     */
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                if(value < 0) throw new IOException("Malformed variable length integer.");
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer.");
+    }
+
+    /** Reads a string written by {@link BinaryFileWriter#writeString(String)}.
+     * @return The string.
+     * @throws IOException If an I/O error occurs.
+     */
+    public String readString() throws IOException {
+        return new String(readBytes(readVarInt()), StandardCharsets.UTF_8);
+    }
+
+    public byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while(offset < length) {
+            if(!buffer.hasRemaining()) fill();
+            int count = Math.min(buffer.remaining(), length - offset);
+            buffer.get(bytes, offset, count);
+            offset += count;
+        }
+        return bytes;
+    }
+
+    public void close() throws IOException {
+        try {
+            channel.close();
+        }
+        finally {
+            fileChannel.close();
+        }
+    }
+
+    /** Makes sure that the buffer contains at least the given number of bytes. */
+    private void require(int bytes) throws IOException {
+        while(buffer.remaining() < bytes) fill();
+    }
+
+    /** Reads more of the file into the buffer, keeping the bytes that haven't been read yet. */
+    private void fill() throws IOException {
+        buffer.compact();
+        int read = channel.read(buffer);
+        buffer.flip();
+        if(read == -1)
+            throw new EOFException("Reached the end of the file unexpectedly.");
+    }
+
+}
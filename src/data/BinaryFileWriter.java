@@ -0,0 +1,160 @@
+package data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/** Writes primitive values to a file through a buffered {@link FileChannel}.
+ * <p> Used for hand-written binary file formats, which are much smaller and faster than
+ * Java serialization, because only the values are written, not the classes describing them.
+ * <p> Integers can be written as variable length integers with {@link #writeVarInt(int)},
+ * which take up 1 byte for values below 128, 2 bytes for values below 16384, and so on.
+ * <p> The file can be compressed with a {@link BlockCompression}, in which case it is written
+ * through a {@link CompressedOutputStream}. {@link BinaryFileReader} notices this by itself.
+ * @see BinaryFileReader
+ */
+public class BinaryFileWriter implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel fileChannel;
+    /** The channel that the buffer is written to. Is the file channel, unless the file is compressed. */
+    private final WritableByteChannel channel;
+    /** The stream that compresses the file. <p><b>May be null.</b> */
+    private final CompressedOutputStream compressedOut;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** Creates a writer that replaces the contents of the given file, without compressing it.
+     * @param filePath The path of the file to write to.
+     * @throws IOException If the file could not be opened.
+     */
+    public BinaryFileWriter(Path filePath) throws IOException {
+        this(filePath, BlockCompression.NONE);
+    }
+
+    /** Creates a writer that replaces the contents of the given file, compressing it with the given compression.
+     * @param filePath The path of the file to write to.
+     * @param compression The compression to use. Is not used if it is {@link BlockCompression#NONE}.
+     * @throws IOException If the file could not be opened.
+     */
+    public BinaryFileWriter(Path filePath, BlockCompression compression) throws IOException {
+        fileChannel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        if(compression == BlockCompression.NONE) {
+            compressedOut = null;
+            channel = fileChannel;
+            return;
+        }
+
+        try {
+            compressedOut = new CompressedOutputStream(Channels.newOutputStream(fileChannel), compression);
+        } catch (IOException e) {
+            fileChannel.close();
+            throw e;
+        }
+        channel = Channels.newChannel(compressedOut);
+    }
+
+    public void writeByte(int value) throws IOException {
+        ensureSpace(1);
+        buffer.put((byte) value);
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        writeByte(value ? 1 : 0);
+    }
+
+    public void writeInt(int value) throws IOException {
+        ensureSpace(Integer.BYTES);
+        buffer.putInt(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        ensureSpace(Long.BYTES);
+        buffer.putLong(value);
+    }
+
+    public void writeFloat(float value) throws IOException {
+        ensureSpace(Float.BYTES);
+        buffer.putFloat(value);
+    }
+
+    /** Writes a non-negative integer using as few bytes as possible.
+     * Each byte holds 7 bits of the value, and the highest bit tells whether another byte follows.
+     * @param value The value to write. Must not be negative.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void writeVarInt(int value) throws IOException {
+        if(value < 0)
+            throw new IllegalArgumentException("Variable length integers cannot be negative: " + value);
+
+        ensureSpace(5);
+        while((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /** Writes a string as its length in bytes followed by the bytes in {@code UTF-8}.
+     * @param value The string to write.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        writeBytes(bytes);
+    }
+
+    public void writeBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while(offset < bytes.length) {
+            if(!buffer.hasRemaining()) flush();
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    /** Writes everything in the buffer to the file. */
+    public void flush() throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /** Writes everything to the file, and forces it onto the storage device.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void sync() throws IOException {
+        flush();
+        if(compressedOut != null) compressedOut.flush();
+        fileChannel.force(true);
+    }
+
+    /** Writes the rest of the buffer, and closes the file. */
+    public void close() throws IOException {
+        try {
+            flush();
+        }
+        finally {
+            // Closing a compressed channel writes the end of the compressed stream, and closes the file channel too.
+            try {
+                channel.close();
+            }
+            finally {
+                fileChannel.close();
+            }
+        }
+    }
+
+    private void ensureSpace(int bytes) throws IOException {
+        if(buffer.remaining() < bytes) flush();
+    }
+
+}
@@ -0,0 +1,134 @@
+package data;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** A way of compressing a block of bytes, used by {@link CompressedOutputStream}.
+ * <p> Use {@link #NONE} to not compress, {@link #FAST} for a fast LZ77 codec written in Java,
+ * which only finds matches of 4 bytes or more, and {@link #deflate(int)} for {@link Deflater}
+ * at the given level, which compresses better but is slower.
+ * <p> Each way has an id, which is saved in the compressed files, so they can be read without knowing how they were written.
+ */
+public abstract class BlockCompression {
+
+    private static final int ID_NONE = 0;
+    private static final int ID_FAST = 1;
+    private static final int ID_DEFLATE = 2;
+
+    /** Does not compress the blocks. */
+    public static final BlockCompression NONE = new BlockCompression(ID_NONE, 0) {
+        int compress(byte[] source, int length, byte[] destination) {
+            return -1;
+        }
+        void decompress(byte[] source, int sourceLength, byte[] destination, int length) throws IOException {
+            throw new IOException("Blocks that are not compressed cannot be decompressed.");
+        }
+    };
+
+    /** A fast LZ77 codec, in the style of LZ4. See {@link FastCodec}. */
+    public static final BlockCompression FAST = new BlockCompression(ID_FAST, 0) {
+        int compress(byte[] source, int length, byte[] destination) {
+            return FastCodec.compress(source, length, destination);
+        }
+        void decompress(byte[] source, int sourceLength, byte[] destination, int length) throws IOException {
+            FastCodec.decompress(source, sourceLength, destination, length);
+        }
+    };
+
+    private final int id;
+    private final int level;
+
+    private BlockCompression(int id, int level) {
+        this.id = id;
+        this.level = level;
+    }
+
+    /** Returns a compression that uses {@link Deflater} at the given level.
+     * @param level The level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}.
+     * @return The compression.
+     */
+    public static BlockCompression deflate(int level) {
+        if(level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("The level must be between 1 and 9.");
+
+        return new BlockCompression(ID_DEFLATE, level) {
+            int compress(byte[] source, int length, byte[] destination) {
+                Deflater deflater = new Deflater(level, true);
+                try {
+                    deflater.setInput(source, 0, length);
+                    deflater.finish();
+                    int compressedLength = deflater.deflate(destination);
+                    return deflater.finished() ? compressedLength : -1;
+                }
+                finally {
+                    deflater.end();
+                }
+            }
+            void decompress(byte[] source, int sourceLength, byte[] destination, int length) throws IOException {
+                Inflater inflater = new Inflater(true);
+                try {
+                    inflater.setInput(source, 0, sourceLength);
+                    if(inflater.inflate(destination, 0, length) != length)
+                        throw new IOException("A compressed block is shorter than it should be.");
+                } catch (DataFormatException e) {
+                    throw new IOException("A compressed block is malformed.", e);
+                }
+                finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /** Returns the compression with the given id and level, as saved by {@link #getId()} and {@link #getLevel()}.
+     * @param id The id.
+     * @param level The level.
+     * @return The compression.
+     * @throws IOException If there is no compression with the id.
+     */
+    static BlockCompression of(int id, int level) throws IOException {
+        return switch(id) {
+            case ID_NONE -> NONE;
+            case ID_FAST -> FAST;
+            case ID_DEFLATE -> deflate(level);
+            default -> throw new IOException("Unknown compression " + id + ".");
+        };
+    }
+
+    int getId() {
+        return id;
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    /** Compresses the source into the destination.
+     * @param source The bytes to compress.
+     * @param length The number of bytes to compress.
+     * @param destination The array to compress into.
+     * @return The compressed length, or -1 if it would not fit in the destination,
+     * in which case the block should be stored without compression.
+     */
+    abstract int compress(byte[] source, int length, byte[] destination);
+
+    /** Decompresses the source into the destination.
+     * @param source The compressed bytes.
+     * @param sourceLength The number of compressed bytes.
+     * @param destination The array to decompress into.
+     * @param length The length of the decompressed block.
+     * @throws IOException If the block is malformed.
+     */
+    abstract void decompress(byte[] source, int sourceLength, byte[] destination, int length) throws IOException;
+
+    public String toString() {
+        return switch(id) {
+            case ID_NONE -> "None";
+            case ID_FAST -> "Fast";
+            default -> "Deflate " + level;
+        };
+    }
+
+}
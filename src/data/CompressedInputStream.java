@@ -0,0 +1,125 @@
+package data;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/** Reads a stream written by {@link CompressedOutputStream}, decompressing one block at a time.
+ * <p> Only one block is kept in memory, so files of any size can be read.
+ * The checksum of every block is checked when the block is decompressed,
+ * and a stream that ends before its end marker is reported as an error.
+ * @see CompressedOutputStream
+ */
+public class CompressedInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private final BlockCompression compression;
+    private final byte[] block;
+    private final byte[] compressed;
+    private final CRC32 checksum = new CRC32();
+    private int position = 0;
+    private int length = 0;
+    private boolean isFinished = false;
+
+    /** Creates a stream that reads the header of the compressed stream right away.
+     * @param in The compressed stream.
+     * @throws IOException If the header could not be read, or is not a compressed stream.
+     */
+    public CompressedInputStream(InputStream in) throws IOException {
+        this.in = new DataInputStream(in);
+
+        if(this.in.readInt() != CompressedOutputStream.MAGIC)
+            throw new IOException("The stream is not compressed.");
+        int id = this.in.readUnsignedByte();
+        int level = this.in.readUnsignedByte();
+        compression = BlockCompression.of(id, level);
+
+        int blockSize = this.in.readInt();
+        if(blockSize <= 0)
+            throw new IOException("The block size " + blockSize + " of the compressed stream is not valid.");
+        block = new byte[blockSize];
+        compressed = new byte[blockSize];
+    }
+
+    /** Returns whether the given file was written by a {@link CompressedOutputStream}.
+     * @param filePath The path of the file to check.
+     * @return Whether the file is compressed.
+     * @throws IOException If the file could not be read.
+     */
+    public static boolean isCompressed(Path filePath) throws IOException {
+        return BinaryFileReader.startsWith(filePath, ByteBuffer.allocate(Integer.BYTES).putInt(CompressedOutputStream.MAGIC).array());
+    }
+
+    /** Returns the compression that the stream was written with.
+     * @return The compression.
+     */
+    public BlockCompression getCompression() {
+        return compression;
+    }
+
+    public int read() throws IOException {
+        if(position == length && !readBlock()) return -1;
+        return block[position++] & 0xFF;
+    }
+
+    public int read(byte[] bytes, int offset, int count) throws IOException {
+        if(count == 0) return 0;
+        if(position == length && !readBlock()) return -1;
+
+        int copied = Math.min(count, length - position);
+        System.arraycopy(block, position, bytes, offset, copied);
+        position += copied;
+        return copied;
+    }
+
+    public int available() {
+        return length - position;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /** Reads and decompresses the next block.
+     * @return Whether there was another block, i.e. false at the end marker.
+     */
+    private boolean readBlock() throws IOException {
+        if(isFinished) return false;
+
+        try {
+            int newLength = in.readInt();
+            if(newLength == 0) {
+                isFinished = true;
+                return false;
+            }
+
+            int compressedLength = in.readInt();
+            int expectedChecksum = in.readInt();
+            if(newLength < 0 || newLength > block.length || compressedLength < 0 || compressedLength >= newLength)
+                throw new IOException("A block of the compressed stream has an invalid length.");
+
+            if(compressedLength == 0) {
+                in.readFully(block, 0, newLength);
+            } else {
+                in.readFully(compressed, 0, compressedLength);
+                compression.decompress(compressed, compressedLength, block, newLength);
+            }
+
+            checksum.reset();
+            checksum.update(block, 0, newLength);
+            if((int) checksum.getValue() != expectedChecksum)
+                throw new IOException("A block of the compressed stream is corrupted.");
+
+            position = 0;
+            length = newLength;
+            return true;
+        } catch (EOFException e) {
+            throw new EOFException("The compressed stream ends before its last block.");
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package data;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/** Compresses everything written to it in blocks, and writes the blocks to another stream.
+ * <p> The stream is: <ul>
+ * <li> {@code int} magic number, {@code byte} compression id, {@code byte} compression level, {@code int} block size.
+ * <li> The blocks. Each block is {@code int} length, {@code int} compressed length, {@code int} CRC32 checksum
+ * of the uncompressed bytes, followed by the compressed bytes. If the compressed length is 0,
+ * the block was stored uncompressed, because compressing it didn't make it smaller.
+ * <li> {@code int} 0, which marks the end, so that a file that was cut short can be told apart from a complete one. </ul>
+ * <p> Since every block is compressed on its own, it can be decompressed on its own, as it is read.
+ * See {@link CompressedInputStream}.
+ * @see BlockCompression
+ */
+public class CompressedOutputStream extends OutputStream {
+
+    /** The first four bytes of a compressed stream. Is "BLKZ" in ASCII. */
+    static final int MAGIC = 0x424C4B5A;
+
+    /** The default number of uncompressed bytes in each block. */
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private final DataOutputStream out;
+    private final BlockCompression compression;
+    private final byte[] block;
+    private final byte[] compressed;
+    private final CRC32 checksum = new CRC32();
+    private int length = 0;
+    private boolean isClosed = false;
+
+    /** Creates a stream with blocks of {@link #DEFAULT_BLOCK_SIZE}.
+     * @param out The stream to write the compressed blocks to.
+     * @param compression The compression to use.
+     * @throws IOException If the header could not be written.
+     */
+    public CompressedOutputStream(OutputStream out, BlockCompression compression) throws IOException {
+        this(out, compression, DEFAULT_BLOCK_SIZE);
+    }
+
+    /** Creates a stream with blocks of the given size.
+     * Larger blocks compress better, but take more memory to write and read.
+     * @param out The stream to write the compressed blocks to.
+     * @param compression The compression to use.
+     * @param blockSize The number of uncompressed bytes in each block.
+     * @throws IOException If the header could not be written.
+     */
+    public CompressedOutputStream(OutputStream out, BlockCompression compression, int blockSize) throws IOException {
+        if(blockSize <= 0)
+            throw new IllegalArgumentException("The block size must be positive.");
+
+        this.out = new DataOutputStream(out);
+        this.compression = compression;
+        this.block = new byte[blockSize];
+        this.compressed = new byte[blockSize];
+
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(compression.getId());
+        this.out.writeByte(compression.getLevel());
+        this.out.writeInt(blockSize);
+    }
+
+    public void write(int b) throws IOException {
+        if(length == block.length) writeBlock();
+        block[length++] = (byte) b;
+    }
+
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+        while(count > 0) {
+            if(length == block.length) writeBlock();
+            int copied = Math.min(count, block.length - length);
+            System.arraycopy(bytes, offset, block, length, copied);
+            length += copied;
+            offset += copied;
+            count -= copied;
+        }
+    }
+
+    /** Writes the bytes written so far as a block, even if it isn't full, and flushes the underlying stream. */
+    public void flush() throws IOException {
+        if(length > 0) writeBlock();
+        out.flush();
+    }
+
+    /** Writes the last block and the end marker, and closes the underlying stream. */
+    public void close() throws IOException {
+        if(isClosed) return;
+        isClosed = true;
+        try {
+            if(length > 0) writeBlock();
+            out.writeInt(0);
+            out.flush();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        checksum.reset();
+        checksum.update(block, 0, length);
+
+        // A block that doesn't get smaller is stored as it is, so a block is never larger than its header plus its bytes.
+        int compressedLength = compression.compress(block, length, compressed);
+        boolean isStored = compressedLength < 0 || compressedLength >= length;
+
+        out.writeInt(length);
+        out.writeInt(isStored ? 0 : compressedLength);
+        out.writeInt((int) checksum.getValue());
+        if(isStored) out.write(block, 0, length);
+        else out.write(compressed, 0, compressedLength);
+        length = 0;
+    }
+
+}
@@ -0,0 +1,174 @@
+package data;
+
+import java.io.IOException;
+
+/** A fast LZ77 codec, which writes blocks in the format of LZ4.
+ * <p> A compressed block is a list of sequences. Each sequence is some literal bytes,
+ * which are copied as they are, followed by a match, which copies bytes that were decompressed earlier.
+ * A sequence is: <ul>
+ * <li> A token, whose upper 4 bits are the number of literals, and whose lower 4 bits are the length of the match minus 4.
+ * If either is 15, the rest of it follows as bytes of 255 ending with a byte below 255.
+ * <li> The literals.
+ * <li> The distance back to the start of the match, as 2 bytes in little endian order.
+ * <li> The rest of the length of the match, if it didn't fit in the token. </ul>
+ * The last sequence only has literals, and always has at least 5, so it ends the block.
+ * <p> Matches are found with a hash table of the positions of 4-byte sequences,
+ * so only the most recent position of each is remembered. This compresses worse than {@link java.util.zip.Deflater},
+ * but is several times faster, especially when decompressing.
+ */
+final class FastCodec {
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+
+    /** The last bytes of a block are always literals. */
+    private static final int LAST_LITERALS = 5;
+
+    /** No match starts in the last bytes of a block, so a match can always be followed by the last literals. */
+    private static final int MATCH_START_LIMIT = 12;
+
+    private static final int HASH_LOG = 14;
+
+    private FastCodec() {}
+
+    /** Compresses the source into the destination.
+     * @param source The bytes to compress.
+     * @param length The number of bytes to compress.
+     * @param destination The array to compress into.
+     * @return The compressed length, or -1 if it didn't fit in the destination.
+     */
+    static int compress(byte[] source, int length, byte[] destination) {
+        // The position of the last 4-byte sequence with each hash, plus 1, so that 0 means none.
+        int[] table = new int[1 << HASH_LOG];
+        int anchor = 0;
+        int out = 0;
+
+        int matchStartLimit = length - MATCH_START_LIMIT;
+        int matchEndLimit = length - LAST_LITERALS;
+        int index = 0;
+        while(index < matchStartLimit) {
+            int sequence = readInt(source, index);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            int match = table[hash] - 1;
+            table[hash] = index + 1;
+
+            if(match < 0 || index - match > MAX_OFFSET || readInt(source, match) != sequence) {
+                index++;
+                continue;
+            }
+
+            // Extend the match backwards into the literals, and forwards as far as it goes.
+            while(index > anchor && match > 0 && source[index - 1] == source[match - 1]) {
+                index--;
+                match--;
+            }
+            int matchEnd = index + MIN_MATCH;
+            for(int other = match + MIN_MATCH; matchEnd < matchEndLimit && source[matchEnd] == source[other]; other++)
+                matchEnd++;
+
+            out = writeSequence(source, anchor, index - anchor, index - match, matchEnd - index - MIN_MATCH, destination, out);
+            if(out < 0) return -1;
+
+            index = matchEnd;
+            anchor = index;
+        }
+
+        return writeSequence(source, anchor, length - anchor, 0, -1, destination, out);
+    }
+
+    /** Decompresses the source into the destination.
+     * @param source The compressed bytes.
+     * @param sourceLength The number of compressed bytes.
+     * @param destination The array to decompress into.
+     * @param length The length of the decompressed block.
+     * @throws IOException If the block is malformed, or doesn't decompress to the given length.
+     */
+    static void decompress(byte[] source, int sourceLength, byte[] destination, int length) throws IOException {
+        try {
+            int in = 0;
+            int out = 0;
+            while(true) {
+                int token = source[in++] & 0xFF;
+
+                int literals = token >>> 4;
+                if(literals == 15) {
+                    int b;
+                    do {
+                        b = source[in++] & 0xFF;
+                        literals += b;
+                    } while(b == 255);
+                }
+                if(in + literals > sourceLength || out + literals > length)
+                    throw new IOException("A compressed block has more literals than it should.");
+                System.arraycopy(source, in, destination, out, literals);
+                in += literals;
+                out += literals;
+
+                if(in == sourceLength) {
+                    if(out != length)
+                        throw new IOException("A compressed block is shorter than it should be.");
+                    return;
+                }
+
+                int offset = (source[in] & 0xFF) | (source[in + 1] & 0xFF) << 8;
+                in += 2;
+                if(offset == 0 || offset > out)
+                    throw new IOException("A compressed block refers to bytes before its start.");
+
+                int matchLength = token & 0x0F;
+                if(matchLength == 15) {
+                    int b;
+                    do {
+                        b = source[in++] & 0xFF;
+                        matchLength += b;
+                    } while(b == 255);
+                }
+                matchLength += MIN_MATCH;
+                if(out + matchLength > length)
+                    throw new IOException("A compressed block is longer than it should be.");
+
+                // The match may overlap the bytes it produces, so it is copied one byte at a time.
+                for(int from = out - offset, end = out + matchLength; out < end; )
+                    destination[out++] = destination[from++];
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("A compressed block ends unexpectedly.", e);
+        }
+    }
+
+    /** Writes a sequence, or only literals if the match length is -1.
+     * @return The position after the sequence, or -1 if it didn't fit.
+     */
+    private static int writeSequence(byte[] source, int literalStart, int literals, int offset, int matchLength, byte[] destination, int out) {
+        int needed = 1 + literals / 255 + 1 + literals + (matchLength < 0 ? 0 : 2 + matchLength / 255 + 1);
+        if(out + needed > destination.length) return -1;
+
+        int token = Math.min(literals, 15) << 4 | (matchLength < 0 ? 0 : Math.min(matchLength, 15));
+        destination[out++] = (byte) token;
+        if(literals >= 15) out = writeLength(literals - 15, destination, out);
+
+        System.arraycopy(source, literalStart, destination, out, literals);
+        out += literals;
+        if(matchLength < 0) return out;
+
+        destination[out++] = (byte) offset;
+        destination[out++] = (byte) (offset >>> 8);
+        if(matchLength >= 15) out = writeLength(matchLength - 15, destination, out);
+        return out;
+    }
+
+    private static int writeLength(int length, byte[] destination, int out) {
+        for(; length >= 255; length -= 255)
+            destination[out++] = (byte) 255;
+        destination[out++] = (byte) length;
+        return out;
+    }
+
+    private static int readInt(byte[] bytes, int index) {
+        return (bytes[index] & 0xFF)
+             | (bytes[index + 1] & 0xFF) << 8
+             | (bytes[index + 2] & 0xFF) << 16
+             | (bytes[index + 3] & 0xFF) << 24;
+    }
+
+}
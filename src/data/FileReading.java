@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.stream.Stream;
 
 /** Finds a file in the resources folder, and returns its contents as a String array.
  * The file is assumed to be encoded in ISO-8859-1.
@@ -24,4 +25,18 @@ public class FileReading {
         return string.split("\n");
     }
 
+    /** Finds a file in the resources folder, and returns a lazy stream of its lines.
+     * Unlike {@link #readLinesFromFile(String)}, the file is only read as the stream is consumed,
+     * so the first lines can be used before the rest of the file has been read.
+     * The file is assumed to be encoded in {@code ISO-8859-1}.
+     * <p><i>The stream holds the file open, so it should be closed after use, fx. with try-with-resources.
+     * I/O errors while consuming the stream are thrown as {@link java.io.UncheckedIOException}.</i>
+     * @param filePath The name of the text file to be read.
+     * @return A lazily populated stream of the lines in the file.
+     * @throws IOException If an I/O error occurs trying to open the file.
+     */
+    public static Stream<String> streamLinesFromFile(String filePath) throws IOException {
+        return Files.lines(Path.of(filePath), StandardCharsets.ISO_8859_1);
+    }
+
 }
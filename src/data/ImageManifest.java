@@ -0,0 +1,186 @@
+package data;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/** A manifest of the images in some folders, made by scanning the folders.
+ * <p> For each image it records the size, dimensions and time of last modification,
+ * so that whether an image exists can be looked up without touching the file system.
+ * <p> Use {@link #scanFolders(String...)} to create a manifest, and {@link #rescan()} to make a new one
+ * when the images may have changed, which only reads the images that did.
+ */
+public class ImageManifest {
+
+    /** The file extensions that are considered images. */
+    private static final String[] IMAGE_EXTENSIONS = { ".jpg", ".jpeg", ".png", ".gif" };
+
+    /** Information about a single image file.
+     * @param path The normalized absolute path of the image.
+     * @param size The size of the file in bytes.
+     * @param lastModified The time the file was last modified, in milliseconds since the epoch.
+     * @param width The width of the image in pixels, or -1 if it could not be read.
+     * @param height The height of the image in pixels, or -1 if it could not be read.
+     */
+    public static record ImageInfo(String path, long size, long lastModified, int width, int height) {
+
+        /** Returns whether the dimensions of the image could be read.
+         * @return Whether the dimensions are known.
+         */
+        public boolean hasDimensions() {
+            return width > 0 && height > 0;
+        }
+    }
+
+    /** Maps from normalized absolute paths to the information about the image. */
+    private final Map<String, ImageInfo> images;
+
+    /** The folders that were scanned. */
+    private final String[] folderPaths;
+
+    private ImageManifest(Map<String, ImageInfo> images, String[] folderPaths) {
+        this.images = Collections.unmodifiableMap(images);
+        this.folderPaths = folderPaths;
+    }
+
+    /** Creates a manifest of the images directly inside the given folders.
+     * Each folder is only listed once, and only the header of each image is read, to find its dimensions.
+     * <p><i>Folders that do not exist are simply skipped.</i>
+     * @param folderPaths The paths of the folders to scan.
+     * @return The manifest of the images in the folders.
+     * @throws IOException If an I/O error occurs trying to list a folder.
+     */
+    public static ImageManifest scanFolders(String... folderPaths) throws IOException {
+        return scan(folderPaths.clone(), Map.of());
+    }
+
+    /** Creates a manifest of the images in the same folders as this manifest, as they are now.
+     * The images whose size and time of last modification are the same as in this manifest keep their information,
+     * so only the headers of the images that are new or have changed are read.
+     * @return The new manifest.
+     * @throws IOException If an I/O error occurs trying to list a folder.
+     */
+    public ImageManifest rescan() throws IOException {
+        return scan(folderPaths, images);
+    }
+
+    private static ImageManifest scan(String[] folderPaths, Map<String, ImageInfo> previous) throws IOException {
+        Map<String, ImageInfo> images = new HashMap<>();
+
+        for(String folderPath : folderPaths) {
+            Path folder = Path.of(folderPath);
+            if(!Files.isDirectory(folder)) continue;
+
+            // Walking the folder gives the file attributes together with the listing.
+            Files.walkFileTree(folder, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if(attributes.isRegularFile() && isImage(file)) {
+                        String key = normalize(file);
+                        long lastModified = attributes.lastModifiedTime().toMillis();
+                        ImageInfo old = previous.get(key);
+                        if(old != null && old.size() == attributes.size() && old.lastModified() == lastModified) {
+                            images.put(key, old);
+                            return FileVisitResult.CONTINUE;
+                        }
+                        int[] dimensions = readDimensions(file);
+                        images.put(key, new ImageInfo(key, attributes.size(), lastModified, dimensions[0], dimensions[1]));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        return new ImageManifest(images, folderPaths);
+    }
+
+    /** Returns the information about the image at the given path.
+     * @param imagePath The path of the image. Does not have to be normalized.
+     * @return An optional containing the information, which is empty if the image did not exist when scanned.
+     */
+    public Optional<ImageInfo> get(String imagePath) {
+        if(imagePath == null) return Optional.empty();
+        try {
+            return Optional.ofNullable(images.get(normalize(Path.of(imagePath))));
+        }
+        // The path can't exist if it can't even be represented on this file system.
+        catch (InvalidPathException e) {
+            return Optional.empty();
+        }
+    }
+
+    /** Returns whether the image at the given path existed when scanned.
+     * @param imagePath The path of the image. Does not have to be normalized.
+     * @return Whether the image exists.
+     */
+    public boolean contains(String imagePath) {
+        return get(imagePath).isPresent();
+    }
+
+    /** Returns the information about all the images in the manifest.
+     * @return An unmodifiable collection of the information about all images.
+     */
+    public Collection<ImageInfo> getAll() {
+        return images.values();
+    }
+
+    /** Returns the number of images in the manifest.
+     * @return The number of images.
+     */
+    public int size() {
+        return images.size();
+    }
+
+    private static String normalize(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    private static boolean isImage(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        for(String extension : IMAGE_EXTENSIONS)
+            if(name.endsWith(extension))
+                return true;
+        return false;
+    }
+
+    /** Reads the width and height of the image from its header, without decoding the image.
+     * @param file The image file.
+     * @return An array of the width and height, which are -1 if they could not be read.
+     */
+    private static int[] readDimensions(Path file) {
+        try(ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            if(in == null) return new int[] {-1, -1};
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if(!readers.hasNext()) return new int[] {-1, -1};
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new int[] {reader.getWidth(0), reader.getHeight(0)};
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+        catch (IOException e) {
+            return new int[] {-1, -1};
+        }
+    }
+
+}
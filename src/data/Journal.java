@@ -0,0 +1,248 @@
+package data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/** An append-only file of records, where each record is written with its length and a checksum.
+ * <p> Records are appended without waiting for them to be written.
+ * A background thread writes all the records that have been appended since it last wrote,
+ * in a single write followed by a single sync, so a burst of records only costs one sync.
+ * <p> Use {@link #readRecords(Path, Consumer)} to read the records again.
+ * If the application crashed while a record was being written, the records before it can still be read.
+ * <p> Each record is written as: {@code int} length, {@code int} CRC32 checksum of the data, followed by the data.
+ * <p> If a write fails, the file is cut back to the end of the last records that were written, so no torn record
+ * is left in it, and no more records are written. Records appended after that are dropped.
+ */
+public class Journal implements AutoCloseable {
+
+    /** Records longer than this are considered corrupt when read. */
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    private static final int HEADER_LENGTH = 2 * Integer.BYTES;
+
+    /** Tells the writer thread to stop. Compared by identity. */
+    private static final byte[] CLOSE = new byte[0];
+
+    private final Path filePath;
+    private final FileChannel channel;
+    private final LinkedBlockingQueue<byte[]> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    /** Is given the exception when a write fails. Is called on the writer thread. <p><b>May be null.</b> */
+    private final Consumer<IOException> writeErrorHandler;
+
+    /** The first exception thrown by the writer thread. Is thrown again by {@link #close()}.
+     * No records are written after it has been set.
+     */
+    private volatile IOException writeException;
+
+    private volatile boolean isClosed = false;
+
+    /** Opens the journal at the given path, creating it if it doesn't exist.
+     * New records are added to the end of the file.
+     * @param filePath The path of the journal file.
+     * @throws IOException If the file could not be opened.
+     */
+    public Journal(Path filePath) throws IOException {
+        this(filePath, null);
+    }
+
+    /** Opens the journal at the given path, creating it if it doesn't exist.
+     * New records are added to the end of the file.
+     * @param filePath The path of the journal file.
+     * @param writeErrorHandler Is given the exception if a write fails, after which no more records are written.
+     *        Is called on the writer thread. <p><b>May be null.</b>
+     * @throws IOException If the file could not be opened.
+     */
+    public Journal(Path filePath, Consumer<IOException> writeErrorHandler) throws IOException {
+        this.filePath = filePath;
+        this.writeErrorHandler = writeErrorHandler;
+        channel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        writer = new Thread(this::writeRecords, "Journal writer " + filePath.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Returns the path of the journal file.
+     * @return The path of the journal file.
+     */
+    public Path getFilePath() {
+        return filePath;
+    }
+
+    /** Appends a record to the journal. Returns without waiting for it to be written.
+     * If a write has failed, the record is dropped.
+     * @param data The data of the record. Must not be changed afterwards.
+     * @throws IllegalStateException If the journal has been closed.
+     */
+    public void append(byte[] data) {
+        if(isClosed)
+            throw new IllegalStateException("The journal has been closed.");
+        if(data.length == 0 || data.length > MAX_RECORD_LENGTH)
+            throw new IllegalArgumentException("Records must be between 1 and " + MAX_RECORD_LENGTH + " bytes long.");
+        pending.add(data);
+    }
+
+    /** Writes all appended records, and closes the file.
+     * @throws IOException If some records could not be written.
+     */
+    public void close() throws IOException {
+        if(isClosed) return;
+        isClosed = true;
+
+        pending.add(CLOSE);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the journal.", e);
+        }
+        finally {
+            channel.close();
+        }
+
+        if(writeException != null) throw writeException;
+    }
+
+    /** Runs on the writer thread. Writes the pending records in groups, until the journal is closed. */
+    private void writeRecords() {
+        List<byte[]> group = new ArrayList<>();
+        boolean isClosing = false;
+
+        while(!isClosing) {
+            try {
+                // Wait for a record, and then take every other record that is waiting too.
+                group.add(pending.take());
+                pending.drainTo(group);
+            } catch (InterruptedException e) {
+                isClosing = true;
+            }
+
+            isClosing |= group.remove(CLOSE);
+            if(group.isEmpty() || writeException != null) {
+                group.clear();
+                continue;
+            }
+
+            try {
+                writeGroup(group);
+            } catch (IOException e) {
+                writeException = e;
+                if(writeErrorHandler != null) writeErrorHandler.accept(e);
+            }
+            group.clear();
+        }
+    }
+
+    /** Writes the group of records. If it fails, the file is cut back to where the group started. */
+    private void writeGroup(List<byte[]> group) throws IOException {
+        int length = 0;
+        for(byte[] data : group)
+            length += HEADER_LENGTH + data.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        CRC32 checksum = new CRC32();
+        for(byte[] data : group) {
+            checksum.reset();
+            checksum.update(data);
+            buffer.putInt(data.length);
+            buffer.putInt((int) checksum.getValue());
+            buffer.put(data);
+        }
+        buffer.flip();
+
+        long start = channel.size();
+        try {
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(false);
+        } catch (IOException e) {
+            try {
+                channel.truncate(start);
+            } catch (IOException truncateException) {
+                // The records before the torn one can still be read, since reading stops at it.
+                e.addSuppressed(truncateException);
+            }
+            throw e;
+        }
+    }
+
+    /** Reads the records of the journal at the given path, in the order they were appended.
+     * <p> Reading stops at the first record that is incomplete or doesn't match its checksum,
+     * which happens if the application crashed while it was being written.
+     * @param filePath The path of the journal file.
+     * @param recordConsumer Is given the data of each record.
+     * @return The number of records read.
+     * @throws IOException If the file could not be read.
+     */
+    public static int readRecords(Path filePath, Consumer<byte[]> recordConsumer) throws IOException {
+        if(!Files.exists(filePath)) return 0;
+
+        int[] count = {0};
+        readRecords(ByteBuffer.wrap(Files.readAllBytes(filePath)), data -> {
+            recordConsumer.accept(data);
+            count[0]++;
+        });
+        return count[0];
+    }
+
+    /** Reads the records of the journal at the given path, that start at or after the given position, in the order they were appended.
+     * Only the bytes after the position are read, so a journal that is still being appended to can be followed,
+     * by reading again from the position that was returned, which is after the last complete record.
+     * <p> Reading stops at the first record that is incomplete or doesn't match its checksum,
+     * which happens if the record is still being written.
+     * @param filePath The path of the journal file.
+     * @param position The position of the first record to read, which must be 0 or a position returned before.
+     * @param recordConsumer Is given the data of each record.
+     * @return The position after the last record that was read.
+     * @throws IOException If the file could not be read.
+     */
+    public static long readRecords(Path filePath, long position, Consumer<byte[]> recordConsumer) throws IOException {
+        try(FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long size = file.size();
+            if(size - position < HEADER_LENGTH) return position;
+
+            ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(size - position, Integer.MAX_VALUE - 8));
+            while(bytes.hasRemaining() && file.read(bytes, position + bytes.position()) >= 0);
+            bytes.flip();
+            return position + readRecords(bytes, recordConsumer);
+        }
+    }
+
+    /** Reads the complete records in the buffer, and returns the number of bytes they took. */
+    private static int readRecords(ByteBuffer file, Consumer<byte[]> recordConsumer) {
+        CRC32 checksum = new CRC32();
+        int end = file.position();
+
+        while(file.remaining() >= HEADER_LENGTH) {
+            int length = file.getInt();
+            int expectedChecksum = file.getInt();
+            if(length <= 0 || length > MAX_RECORD_LENGTH || length > file.remaining())
+                break;
+
+            byte[] data = new byte[length];
+            file.get(data);
+
+            checksum.reset();
+            checksum.update(data);
+            if((int) checksum.getValue() != expectedChecksum)
+                break;
+
+            recordConsumer.accept(data);
+            end = file.position();
+        }
+
+        return end;
+    }
+
+}
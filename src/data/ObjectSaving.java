@@ -1,13 +1,21 @@
 package data;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 /** A class for saving and loading objects to and from files. */
 public class ObjectSaving {
@@ -24,18 +32,77 @@ public class ObjectSaving {
         }
     }
 
+    /** The compression that saved files are written with.
+     * Files are always read the way they were written, so this can be changed at any time. */
+    private static volatile BlockCompression compression = BlockCompression.NONE;
+
     // Prevent instantiation.
     private ObjectSaving() {}
 
+    /** Sets the compression that saved files are written with, both by {@link #saveToFile(Serializable, String)}
+     * and by classes that save themselves in their own format.
+     * Compressing uses more CPU, but writes and reads fewer bytes, which is faster on slow storage devices.
+     * Is {@link BlockCompression#NONE} by default.
+     * @param newCompression The compression to use.
+     */
+    public static void setCompression(BlockCompression newCompression) {
+        compression = newCompression;
+    }
+
+    public static BlockCompression getCompression() {
+        return compression;
+    }
+
     /** Saves the given object to the file {@code FOLDER + fileName + getFileExtension(object.getClass())}.
+     * The file is compressed with {@link #getCompression()}.
      * @param object The object to save.
      * @param fileName The name of the folder to save the object to.
      * @throws IOException If the file could not be written to.
      */
     public static void saveToFile(Serializable object, String fileName) throws IOException {
-        String filePath = FOLDER + fileName + getFileExtension(object.getClass());
-        try(ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(filePath))) {
-            out.writeObject(object);
+        BlockCompression fileCompression = compression;
+        writeAtomically(getFilePath(object.getClass(), fileName), tempFilePath -> {
+            OutputStream fileOut = new FileOutputStream(tempFilePath.toFile());
+            if(fileCompression != BlockCompression.NONE)
+                fileOut = new CompressedOutputStream(fileOut, fileCompression);
+            try(ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(fileOut))) {
+                out.writeObject(object);
+            }
+        });
+    }
+
+    /** Writes a file. */
+    @FunctionalInterface
+    public static interface FileWriting {
+        public void writeTo(Path filePath) throws IOException;
+    }
+
+    /** Replaces the file at the given path, such that it either contains the old or the new contents,
+     * even if the application crashes while writing.
+     * <p> The new contents are written to a temporary file next to it, which is forced onto the storage device,
+     * and then moved to the given path in a single step.
+     * @param filePath The path of the file to replace.
+     * @param writing Writes the new contents to the path it is given.
+     * @throws IOException If the file could not be written.
+     */
+    public static void writeAtomically(Path filePath, FileWriting writing) throws IOException {
+        Path tempFilePath = filePath.resolveSibling(filePath.getFileName() + ".tmp");
+        try {
+            writing.writeTo(tempFilePath);
+
+            // Make sure the contents are on the storage device, before the file replaces the old one.
+            try(FileChannel channel = FileChannel.open(tempFilePath, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+
+            try {
+                Files.move(tempFilePath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFilePath, filePath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(tempFilePath);
         }
     }
 
@@ -49,8 +116,8 @@ public class ObjectSaving {
      * @throws ClassCastException If the object is not of the given class.
      */
     public static <T> T loadFromFile(Class<T> clazz, String fileName) throws IOException, ClassNotFoundException {
-        String filePath = FOLDER + fileName + getFileExtension(clazz);
-        try(ObjectInputStream in = new ObjectInputStream(new FileInputStream(filePath))) {
+        Path filePath = getFilePath(clazz, fileName);
+        try(ObjectInputStream in = new ObjectInputStream(openFile(filePath))) {
             Object object = in.readObject();
             if(clazz.isInstance(object))
                 return clazz.cast(object);
@@ -58,6 +125,49 @@ public class ObjectSaving {
         }
     }
 
+    /** Gets the path of the file that an object of the given class is saved to.
+     * The file path is {@code FOLDER + fileName + getFileExtension(clazz)}.
+     * Can be used by classes that save themselves in their own format.
+     * @param clazz The class of the object.
+     * @param fileName The name of the file, without extension.
+     * @return The path of the file.
+     */
+    public static Path getFilePath(Class<?> clazz, String fileName) {
+        return Path.of(FOLDER + fileName + getFileExtension(clazz));
+    }
+
+    /** Returns whether the given file was written by {@link #saveToFile(Serializable, String)}.
+     * Java serialization always starts with the same two bytes, which are looked for after decompressing the file.
+     * @param filePath The path of the file to check.
+     * @return Whether the file contains a serialized object.
+     * @throws IOException If the file could not be read.
+     */
+    public static boolean isSerializedObjectFile(Path filePath) throws IOException {
+        if(!CompressedInputStream.isCompressed(filePath))
+            return BinaryFileReader.startsWith(filePath, new byte[] {(byte) 0xAC, (byte) 0xED});
+
+        try(InputStream in = openFile(filePath)) {
+            return in.read() == 0xAC && in.read() == 0xED;
+        }
+    }
+
+    /** Opens the given file for reading, decompressing it if it is compressed.
+     * @param filePath The path of the file to open.
+     * @return A buffered stream of the file's contents.
+     * @throws IOException If the file could not be opened.
+     */
+    private static InputStream openFile(Path filePath) throws IOException {
+        InputStream in = new FileInputStream(filePath.toFile());
+        try {
+            if(CompressedInputStream.isCompressed(filePath))
+                in = new CompressedInputStream(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new BufferedInputStream(in);
+    }
+
     /** Gets the file extension for the given class.
      * The file extension is the class name, with the first letter in lower case.
      * @param clazz The class to get the file extension for.
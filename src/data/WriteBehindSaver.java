@@ -0,0 +1,103 @@
+package data;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/** Saves something on a background thread, some time after it has been changed.
+ * <p> Call {@link #markDirty()} whenever the data changes. The data is then saved after a short delay,
+ * so that a burst of changes only results in a single save, and the caller never waits for the save.
+ * Changes made while saving result in another save afterwards.
+ * <p> Call {@link #shutdown(long)} before exiting, to save the last changes.
+ */
+public class WriteBehindSaver {
+
+    /** Saves the data. */
+    @FunctionalInterface
+    public static interface Saving {
+        public void save() throws IOException;
+    }
+
+    private final Saving saving;
+    private final long delayMillis;
+    private final Consumer<IOException> errorHandler;
+
+    /** Runs the saves. Has only one thread, so that saves never overlap. */
+    private final ScheduledThreadPoolExecutor executor;
+
+    /** Whether the data has changed since it was last saved. */
+    private final AtomicBoolean isDirty = new AtomicBoolean(false);
+
+    /** Whether a save has been scheduled, but not started yet. */
+    private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+
+    private volatile boolean isShutdown = false;
+
+    /** Creates a saver.
+     * @param name The name of the background thread.
+     * @param saving The function that saves the data.
+     * @param delayMillis How long to wait after a change before saving, so more changes can be saved at once.
+     * @param errorHandler Is given the exceptions thrown when saving. Is called on the background thread.
+     */
+    public WriteBehindSaver(String name, Saving saving, long delayMillis, Consumer<IOException> errorHandler) {
+        this.saving = saving;
+        this.delayMillis = delayMillis;
+        this.errorHandler = errorHandler;
+
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, name);
+            // Shouldn't keep the application running. Use shutdown() to save before exiting.
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Delayed saves are replaced by the final save in shutdown().
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /** Marks the data as changed, and schedules a save if one isn't already scheduled.
+     * Returns immediately.
+     */
+    public void markDirty() {
+        isDirty.set(true);
+        if(!isShutdown && isScheduled.compareAndSet(false, true))
+            executor.schedule(this::saveIfDirty, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Returns whether there are changes that haven't been saved yet.
+     * @return Whether there are unsaved changes.
+     */
+    public boolean isDirty() {
+        return isDirty.get();
+    }
+
+    /** Stops saving in the background, after saving any unsaved changes.
+     * Waits at most the given time for the save to finish.
+     * @param timeoutMillis The maximum time to wait.
+     * @return Whether all changes were saved within the time.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        isShutdown = true;
+        executor.execute(this::saveIfDirty);
+        executor.shutdown();
+        return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS) && !isDirty.get();
+    }
+
+    private void saveIfDirty() {
+        isScheduled.set(false);
+
+        // Cleared before saving, so changes made while saving cause another save.
+        if(!isDirty.getAndSet(false)) return;
+
+        try {
+            saving.save();
+        } catch (IOException e) {
+            // The changes weren't saved, so they should be saved next time.
+            isDirty.set(true);
+            errorHandler.accept(e);
+        }
+    }
+
+}
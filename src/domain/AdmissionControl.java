@@ -0,0 +1,220 @@
+package domain;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/** Limits how many expensive tasks, such as searches, run at the same time, so that they cannot use up every thread
+ * and every core, and cheap tasks, which are not limited, keep getting through when there are many expensive ones.
+ * <p> A task that is over the limit waits in a queue, in the order it came, until a task finishes or its deadline passes.
+ * The queue is bounded, so when it is full, more tasks are turned away right away with a {@link BusyException},
+ * instead of waiting for a deadline that they would most likely miss anyway.
+ * <p> The limit adapts to how long the tasks take. The shortest average time of a window of tasks is remembered as what the
+ * tasks take without having to share the cores. When tasks take much longer than that, too many are sharing, so the limit
+ * is lowered. When they don't, and the limit was reached, the limit is raised by one. The shortest time is slowly forgotten,
+ * so that the limit can also adapt to tasks that have become slower for other reasons, such as a larger catalog.
+ * <i>Is thread safe.</i>
+ */
+public class AdmissionControl {
+
+    /** How many times longer than the shortest time tasks may take, before the limit is lowered. */
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    /** How much of the limit is kept when it is lowered. */
+    private static final double DECREASE_FACTOR = 0.9;
+
+    /** How much the shortest time grows for each window, so that it is slowly forgotten. */
+    private static final double BASELINE_DRIFT = 1.01;
+
+    /** The fewest tasks in a window, so that a low limit doesn't adapt to the time of a single task. */
+    private static final int MIN_WINDOW = 8;
+
+    /** Is thrown when a task is turned away, because too many tasks are running and waiting. */
+    public static class BusyException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public BusyException(String message) {
+            super(message);
+        }
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueued;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition released = lock.newCondition();
+
+    // Are guarded by the lock.
+    private int limit;
+    private int running;
+    private int queued;
+    private long rejected;
+
+    // The current window of finished tasks, and the shortest average time of a window. Are guarded by the lock.
+    private int windowCount;
+    private long windowNanos;
+    private boolean windowReachedLimit;
+    private double baselineNanos = Double.NaN;
+
+    /** Creates an admission control, which starts at the highest limit and lowers it if the tasks get slow.
+     * @param minLimit The lowest number of tasks that may always run at the same time. Must be at least 1.
+     * @param maxLimit The highest number of tasks that may run at the same time.
+     * @param maxQueued The highest number of tasks that may wait to run.
+     */
+    public AdmissionControl(int minLimit, int maxLimit, int maxQueued) {
+        if(minLimit < 1 || maxLimit < minLimit || maxQueued < 0)
+            throw new IllegalArgumentException("The limits must be 1 <= minLimit <= maxLimit, and maxQueued must not be negative.");
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueued = maxQueued;
+        this.limit = maxLimit;
+    }
+
+    /** Runs the task when there is room for it, or throws an exception if there isn't before the deadline.
+     * @param task The task to run, on the calling thread.
+     * @param timeout How long the task may wait to be run.
+     * @param unit The unit of the timeout.
+     * @return The result of the task.
+     * @throws BusyException If the queue is full, or the task has waited until the deadline.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public <T> T call(Supplier<T> task, long timeout, TimeUnit unit) throws BusyException, InterruptedException {
+        acquire(System.nanoTime() + unit.toNanos(timeout));
+        return run(task);
+    }
+
+    /** Runs the task when there is room for it, however long that takes, and even if the queue is full.
+     * Is for tasks that someone is waiting for, who can't be told to try again, such as a user of the window.
+     * @param task The task to run, on the calling thread.
+     * @return The result of the task.
+     */
+    public <T> T callWithoutDeadline(Supplier<T> task) {
+        lock.lock();
+        try {
+            while(running >= limit)
+                released.awaitUninterruptibly();
+            running++;
+        } finally {
+            lock.unlock();
+        }
+        return run(task);
+    }
+
+    private void acquire(long deadline) throws BusyException, InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            // Tasks that are already queued go first, so a task that comes later may only run right away if none are waiting.
+            if(running < limit && queued == 0) {
+                running++;
+                return;
+            }
+            if(queued >= maxQueued) {
+                rejected++;
+                throw new BusyException("Too many searches are running. Try again later.");
+            }
+
+            queued++;
+            try {
+                while(running >= limit) {
+                    long remaining = deadline - System.nanoTime();
+                    if(remaining <= 0) {
+                        rejected++;
+                        throw new BusyException("The search waited too long to run. Try again later.");
+                    }
+                    released.awaitNanos(remaining);
+                }
+                running++;
+            } finally {
+                queued--;
+                // Another waiting task may have been woken instead of this one, if this one gave up.
+                if(running < limit) released.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private <T> T run(Supplier<T> task) {
+        long start = System.nanoTime();
+        try {
+            return task.get();
+        } finally {
+            release(System.nanoTime() - start);
+        }
+    }
+
+    private void release(long nanos) {
+        lock.lock();
+        try {
+            if(running >= limit) windowReachedLimit = true;
+            running--;
+            windowCount++;
+            windowNanos += nanos;
+            if(windowCount >= Math.max(MIN_WINDOW, limit))
+                adaptLimit();
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adapts the limit to the average time of the window that has just ended, and starts a new window. */
+    private void adaptLimit() {
+        double average = (double) windowNanos / windowCount;
+        if(Double.isNaN(baselineNanos) || average < baselineNanos)
+            baselineNanos = average;
+
+        if(average > LATENCY_TOLERANCE * baselineNanos)
+            limit = Math.max(minLimit, (int) (limit * DECREASE_FACTOR));
+        else if(windowReachedLimit && limit < maxLimit) {
+            limit++;
+            released.signal();
+        }
+
+        baselineNanos *= BASELINE_DRIFT;
+        windowCount = 0;
+        windowNanos = 0;
+        windowReachedLimit = false;
+    }
+
+    /** Returns the number of tasks that may run at the same time now. */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of tasks that have been turned away since the admission control was created. */
+    public long getRejected() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -1,8 +1,18 @@
 package domain;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
+import data.ImageManifest;
+import data.WriteBehindSaver;
+import data.ImageManifest.ImageInfo;
 import domain.MediaParsing.InvalidStringFormatException;
 import domain.User.InvalidImagePathException;
 import domain.User.InvalidPasswordException;
@@ -10,6 +20,11 @@ import domain.User.InvalidUsernameException;
 import domain.UserSet.UserAlreadyExistsException;
 import domain.UserSet.UserDoesNotExistException;
 
+/** The data of the application, shared by every session that uses it.
+ * <p> Can be used by many threads at the same time. The catalog is read from immutable snapshots without locks,
+ * see {@link MediaLibrary.Snapshot}, the users are kept in a concurrent {@link UserSet},
+ * and logging in and out is synchronized per user with striped locks.
+ */
 public class ApplicationData {
 
     private static final String FILE_PATH_MOVIES = "./Data/film.txt";
@@ -18,24 +33,177 @@ public class ApplicationData {
     private static final String FILE_PATH_SERIES_IMAGES = "./Data/serieforsider/";
 
     private static final String FILE_NAME_USERSET = "allUsers";
+
+    private static final int MEDIA_BATCH_SIZE = 20;
+
+    /** How long to wait after a change to the users, before compacting their journal.
+     * The changes are saved in the journal right away, so this only limits how long the journal grows.
+     */
+    private static final long USER_COMPACTION_DELAY_MILLIS = 30_000;
+
+    /** How long to wait for the last changes to be saved, when the application is closed. */
+    private static final long USER_FLUSH_TIMEOUT_MILLIS = 5000;
+
+    /** How long a session lasts after it was last used. See {@link #startSession}. */
+    private static final long SESSION_TIME_TO_LIVE_MILLIS = 30 * 60 * 1000;
+
+    /** The most sessions there may be at once. */
+    private static final int MAX_SESSIONS = 100_000;
+
+    /** The time between scanning the poster folders for changes. See {@link #startReadingPosters}. */
+    private static final long POSTER_RESCAN_MILLIS = 10_000;
+
+    /** The number of locks that logging in and out is synchronized with. See {@link #sessionLocks}. */
+    private static final int SESSION_LOCK_STRIPES = 64;
     
     private final UserSet users;
     private final MediaLibrary allMedia;
 
+    /** Saves every change to the users as soon as it is made. */
+    private final UserJournal userJournal;
+
+    /** Compacts the user journal in the background when the users change.
+     * Is null unless {@link #startSavingUsersAutomatically} has been called.
+     */
+    private volatile WriteBehindSaver userSaver;
+
+    /** Is given the exceptions thrown when saving the users in the background, such as when a session ends.
+     * Rethrows them until {@link #startSavingUsersAutomatically} has been called.
+     */
+    private volatile Consumer<IOException> userErrorHandler = e -> { throw new UncheckedIOException(e); };
+
+    /** The manifest of all posters. Is null until {@link #readPosters()} has been called, and is replaced when they are read again. */
+    private volatile ImageManifest posters;
+
+    /** The number of sessions each user is logged in to, by username.
+     * A user's favorites are kept in memory while the user is logged in to at least one session.
+     */
+    private final ConcurrentHashMap<String, Integer> sessionCounts = new ConcurrentHashMap<>();
+
+    /** The locks that logging in and out is synchronized with, chosen by a hash of the username.
+     * A user's sessions are counted, and its favorites loaded and evicted, while holding its lock,
+     * so a user can log in and out of several sessions at the same time,
+     * while different users rarely have to wait for each other.
+     */
+    private final Object[] sessionLocks = new Object[SESSION_LOCK_STRIPES];
+
+    /** The sessions of logged in users, by token. Logs the user out of a session when it ends. */
+    private final SessionCache sessions = new SessionCache(SESSION_TIME_TO_LIVE_MILLIS, MAX_SESSIONS, user -> {
+        try {
+            logout(user);
+        } catch (IOException e) {
+            userErrorHandler.accept(new IOException("Failed to save the favorites of " + user.getUsername() + ": " + e.getMessage(), e));
+        }
+    });
+
+    /** Saves the catalog and its changes for other processes, or applies the catalog saved by another process.
+     * At most one of them is used, and both are null unless the catalog is replicated. Are guarded by this.
+     * See {@link CatalogReplication}.
+     */
+    private CatalogReplication.Leader catalogLeader;
+    private CatalogReplication.Follower catalogFollower;
+
+    /** The times the media files were last modified, when they were last read. See {@link #readMediaIfChanged()}. */
+    private volatile long[] mediaFilesModified = new long[2];
+
+    /** Searches the catalog split into a partition for each core. Is created by the first search,
+     * so that only applications that search the catalog start its threads. Is guarded by this.
+     * Do not access directly;
+     * use {@link #getPartitionedSearch()}.
+     */
+    private volatile PartitionedSearch partitionedSearch;
+
+    /** Whether the catalog is searched in partitions. Is false if there is only one core,
+     * since the partitions would then be searched one after the other anyway, and after {@link #stopPartitionedSearch()}.
+     */
+    private volatile boolean isSearchPartitioned = Runtime.getRuntime().availableProcessors() > 1;
+
+    /** Limits how many searches run at the same time. Is shared by everything that searches, so they share the limit. */
+    private final AdmissionControl searchAdmission = new AdmissionControl(1, Math.max(2, 2 * Runtime.getRuntime().availableProcessors()), 64);
+
     public ApplicationData() {
-        users = new UserSet();
+        for(int i = 0; i < SESSION_LOCK_STRIPES; i++)
+            sessionLocks[i] = new Object();
+
         allMedia = new MediaLibrary();
+        // The favorites are stored as the ids of the catalog, so that they can be sent by the same ids as the catalog.
+        users = new UserSet(allMedia.getMediaIds());
+        userJournal = new UserJournal(FILE_NAME_USERSET, () -> {
+            WriteBehindSaver saver = userSaver;
+            if(saver != null) saver.markDirty();
+        });
+    }
+
+    /** Sets whether the user directory is saved in a memory-mapped table, which suits very many users,
+     * rather than in a single file that is rewritten whenever the users are saved.
+     * Must be called before the users are loaded or saved. See {@link MappedUserDirectory}.
+     * @param isUserDirectoryMapped Whether the user directory is mapped.
+     */
+    public void setUserDirectoryMapped(boolean isUserDirectoryMapped) {
+        users.setUserDirectoryMapped(isUserDirectoryMapped);
     }
 
-    public void loadUsers() throws IOException, ClassNotFoundException {
-        users.loadUsersAndAdd(FILE_NAME_USERSET);
+    /** Loads the saved users, and then the changes saved in the user journal since.
+     * @param skippedRecordHandler Is given an exception for each change in the journal that is skipped,
+     *        because it is malformed, or was written by a newer version of the application.
+     * @see UserJournal
+     */
+    public void loadUsers(Consumer<IOException> skippedRecordHandler) throws IOException, ClassNotFoundException {
+        try {
+            users.loadUsersAndAdd(FILE_NAME_USERSET);
+        }
+        finally {
+            // The journal is replayed even if the snapshot couldn't be loaded, so the latest changes aren't lost.
+            userJournal.replayInto(users, skippedRecordHandler);
+        }
     }
 
     public void saveUsers() throws IOException {
         users.saveToFile(FILE_NAME_USERSET);
     }
 
+    /** Starts saving every change to the users in the user journal, as soon as it is made.
+     * Appending to the journal never waits for the disk, and the journal is compacted into
+     * the saved users on a background thread, some time after the users were changed.
+     * <p> Use {@link #flushUsers()} before exiting, to save the last changes.
+     * @param errorHandler Is given the exceptions thrown when compacting or writing the journal, and when saving the favorites of a user
+     * whose session ended. Is called on the background thread, or on the thread that ended the session.
+     * @throws IOException If the journal could not be opened.
+     * @see UserJournal
+     */
+    public synchronized void startSavingUsersAutomatically(Consumer<IOException> errorHandler) throws IOException {
+        if(userSaver != null) return;
+        userJournal.open(errorHandler);
+        userErrorHandler = errorHandler;
+        userSaver = new WriteBehindSaver("User journal compactor", () -> userJournal.compact(users),
+                                         USER_COMPACTION_DELAY_MILLIS, errorHandler);
+        users.setChangeListener(userJournal);
+    }
+
+    /** Saves any changes to the users that haven't been saved yet.
+     * If the users are saved automatically, this stops it, compacts the journal,
+     * and waits a limited time for it to finish. Otherwise the users are simply saved.
+     * @throws IOException If the users could not be saved, or not in time.
+     * @throws InterruptedException If interrupted while waiting for the last save.
+     */
+    public synchronized void flushUsers() throws IOException, InterruptedException {
+        if(userSaver == null) {
+            saveUsers();
+            return;
+        }
+
+        users.setChangeListener(null);
+        boolean isSaved = userSaver.shutdown(USER_FLUSH_TIMEOUT_MILLIS);
+        userSaver = null;
+        // Writes the last records, so the changes are saved even if compacting didn't finish.
+        userJournal.close();
+
+        if(!isSaved)
+            throw new IOException("Could not save the users in time.");
+    }
+
     public void readMedia() throws IOException, InvalidStringFormatException {
+        mediaFilesModified = getMediaFilesModified();
         try {
             allMedia.readMediaFromFiles(FILE_PATH_MOVIES, FILE_PATH_SERIES, FILE_PATH_MOVIES_IMAGES, FILE_PATH_SERIES_IMAGES);
         }
@@ -44,29 +212,309 @@ public class ApplicationData {
         }
     }
 
+    /** Reads the media files again, if they have been modified since they were last read.
+     * Only the media that changed are changed in the catalog, and so in the replicated catalog. See {@link #leadCatalog}.
+     * @return Whether the files were read.
+     */
+    public boolean readMediaIfChanged() throws IOException, InvalidStringFormatException {
+        if(Arrays.equals(mediaFilesModified, getMediaFilesModified())) return false;
+        readMedia();
+        return true;
+    }
+
+    private static long[] getMediaFilesModified() throws IOException {
+        return new long[] {
+            Files.getLastModifiedTime(Path.of(FILE_PATH_MOVIES)).toMillis(),
+            Files.getLastModifiedTime(Path.of(FILE_PATH_SERIES)).toMillis()
+        };
+    }
+
+    /** Reads the media files, and shares the catalog with other processes, which follow it with {@link #followCatalog},
+     * through the given directory. Saves a snapshot of the catalog now, and every change to it afterwards,
+     * until {@link #stopReplicatingCatalog()} is called.
+     * <p> Takes over from any process that led the catalog in the directory before, and keeps the ids it gave the media.
+     * So it should be called instead of {@link #readMedia()}, before the media and users are read.
+     * @param directory The directory that is shared with the followers.
+     * @param errorHandler Is given the exceptions thrown when saving a snapshot, and an {@link IllegalStateException}
+     *        when another process has taken over the catalog. Is called on the thread that changed the catalog.
+     * @throws IOException If the directory could not be written, or the media files could not be read.
+     * @throws IllegalStateException If this has followed a catalog, or has given media other ids than the leader before.
+     */
+    public synchronized void leadCatalog(Path directory, Consumer<Exception> errorHandler) throws IOException, InvalidStringFormatException {
+        stopReplicatingCatalog();
+        CatalogReplication.adoptIds(allMedia, directory);
+        readMedia();
+        catalogLeader = new CatalogReplication.Leader(allMedia, directory, errorHandler);
+    }
+
+    /** Replaces the catalog with the catalog that another process leads with {@link #leadCatalog}, through the given directory,
+     * and keeps applying its changes in the background, until {@link #stopReplicatingCatalog()} is called.
+     * The catalog is applied before this returns, if the leader has saved it. The media files are not read.
+     * <p> Must be called before the media and users are read, so that the media are given the ids of the leader.
+     * @param directory The directory that is shared with the leader.
+     * @param errorHandler Is given the exceptions thrown when reading the directory in the background,
+     *        and the malformed changes that are skipped. Is called on the background thread.
+     * @throws IOException If the directory could not be read.
+     * @throws IllegalStateException If media have already been given ids.
+     */
+    public synchronized void followCatalog(Path directory, Consumer<Exception> errorHandler) throws IOException {
+        stopReplicatingCatalog();
+        catalogFollower = new CatalogReplication.Follower(allMedia, directory, null, errorHandler);
+        catalogFollower.poll();
+        catalogFollower.start();
+    }
+
+    /** Stops leading or following a replicated catalog. The catalog is kept as it is. */
+    public synchronized void stopReplicatingCatalog() throws IOException {
+        if(catalogFollower != null) catalogFollower.close();
+        catalogFollower = null;
+        if(catalogLeader != null) catalogLeader.close();
+        catalogLeader = null;
+    }
+
+    /** Reads the media in batches, so the first media can be shown before all media has been read.
+     * Each batch is added to the media library before it is given to the consumer.
+     * @param batchConsumer The consumer that is given each batch of media.
+     */
+    public void readMediaInBatches(Consumer<List<Media>> batchConsumer) throws IOException, InvalidStringFormatException {
+        mediaFilesModified = getMediaFilesModified();
+        try {
+            allMedia.readMediaFromFilesInBatches(FILE_PATH_MOVIES, FILE_PATH_SERIES, FILE_PATH_MOVIES_IMAGES, FILE_PATH_SERIES_IMAGES,
+                                                 MEDIA_BATCH_SIZE, batchConsumer);
+        }
+        catch(InvalidStringFormatException e) {
+            throw new InvalidStringFormatException(e.errorDescription, e.invalidStrings[0]);
+        }
+    }
+
+    /** Scans the poster folders, so that it is known which posters exist
+     * without having to look for them every time a poster is shown.
+     * If they have been scanned before, only the posters that have changed since are read again.
+     * @throws IOException If the poster folders could not be listed.
+     */
+    public void readPosters() throws IOException {
+        ImageManifest current = posters;
+        posters = current == null ? ImageManifest.scanFolders(FILE_PATH_MOVIES_IMAGES, FILE_PATH_SERIES_IMAGES)
+                                  : current.rescan();
+    }
+
+    /** Scans the poster folders on a background thread, and scans them again every {@link #POSTER_RESCAN_MILLIS},
+     * so that posters that are added or changed while the application runs are shown.
+     * Until the first scan has finished, no posters are known. See {@link #readPosters()}.
+     * @param errorHandler Is given the exceptions thrown when scanning. Is called on the background thread.
+     */
+    public void startReadingPosters(Consumer<IOException> errorHandler) {
+        Thread scanner = new Thread(() -> {
+            while(true) {
+                try {
+                    readPosters();
+                } catch (IOException e) {
+                    errorHandler.accept(e);
+                }
+                try {
+                    Thread.sleep(POSTER_RESCAN_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "Poster scanner");
+        scanner.setDaemon(true);
+        scanner.start();
+    }
+
+    /** Returns the information about the poster of the given media.
+     * @param media The media to get the poster for.
+     * @return An optional containing the information about the poster,
+     * which is empty if the poster does not exist, or the posters haven't been read.
+     */
+    public Optional<ImageInfo> getPosterInfo(Media media) {
+        ImageManifest manifest = posters;
+        if(manifest == null) return Optional.empty();
+        return manifest.get(media.imagePath);
+    }
+
+    /** Returns all users, sorted by name.
+     * @return An unmodifiable list of all users, sorted by name.
+     */
     public List<User> getUsers() {
-        return users.getUsers();
+        return users.getSortedUsers();
     }
 
     public User getUser(String username) throws UserDoesNotExistException {
         return users.getUser(username);
     }
 
+    /** Logs in the user with the given name, if the password is correct, and loads the user's favorites.
+     * @param username The name of the user.
+     * @param password The password of the user.
+     * @return An optional containing the user, which is empty if the password is incorrect.
+     * @throws UserDoesNotExistException If no user has the name.
+     * @throws IOException If the favorites could not be loaded.
+     * @see #logout(User)
+     */
+    public Optional<User> login(String username, String password) throws UserDoesNotExistException, IOException {
+        User user = users.getUser(username);
+        if(!user.checkPassword(password))
+            return Optional.empty();
+        loadFavorites(user);
+        return Optional.of(user);
+    }
+
+    /** Logs out one session of the given user, which was logged in with {@link #login(String, String)}.
+     * @param user The user who logs out.
+     * @throws IOException If the changed favorites could not be saved.
+     */
+    public void logout(User user) throws IOException {
+        evictFavorites(user);
+    }
+
+    /** Logs the user in to a new session, which is found again by its token, without the password.
+     * The session lasts until {@link #endSession} is called, the user is removed,
+     * or it hasn't been used for a while. See {@link SessionCache}.
+     * @param username The name of the user.
+     * @param password The password of the user.
+     * @return An optional containing the token of the session, which is empty if the password is incorrect.
+     * @throws UserDoesNotExistException If the user doesn't exist.
+     * @throws IOException If the favorites of the user could not be loaded.
+     */
+    public Optional<String> startSession(String username, String password) throws UserDoesNotExistException, IOException {
+        Optional<String> token;
+        // Is started while holding the lock of the user, so that it can't be started while the user is being removed.
+        synchronized(getSessionLock(username)) {
+            Optional<User> user = login(username, password);
+            token = user.map(sessions::start);
+        }
+        // The sessions of other users are ended after the lock is released, since ending them takes their locks.
+        sessions.sweep();
+        return token;
+    }
+
+    /** Returns the user of the session with the token, and keeps the session from expiring for a while longer.
+     * @param token The token of the session. <p><b>May be null.</b>
+     * @return An optional containing the user, which is empty if the session has ended.
+     */
+    public Optional<User> getSessionUser(String token) {
+        return sessions.get(token);
+    }
+
+    /** Logs the user out of the session with the token.
+     * @param token The token of the session.
+     * @return Whether there was such a session.
+     */
+    public boolean endSession(String token) {
+        return sessions.end(token);
+    }
+
+    /** Loads the favorites of the given user. Should be called when the user logs in.
+     * At startup only the user directory is loaded, so that only the favorites of users who log in are kept in memory.
+     * <p> Counts the sessions the user is logged in to, so each call should be matched by {@link #evictFavorites(User)}.
+     * @param user The user who logs in.
+     * @throws IOException If the favorites could not be loaded.
+     */
+    public void loadFavorites(User user) throws IOException {
+        synchronized(getSessionLock(user)) {
+            users.loadFavorites(user);
+            sessionCounts.merge(user.getUsername(), 1, Integer::sum);
+        }
+    }
+
+    /** Frees the favorites of the given user from memory. Should be called when the user logs out.
+     * The favorites are kept while the user is still logged in to other sessions.
+     * @param user The user who logs out.
+     * @throws IOException If the changed favorites could not be saved first.
+     */
+    public void evictFavorites(User user) throws IOException {
+        synchronized(getSessionLock(user)) {
+            Integer sessions = sessionCounts.computeIfPresent(user.getUsername(), (name, count) -> count == 1 ? null : count - 1);
+            if(sessions == null)
+                users.evictFavorites(user);
+        }
+    }
+
+    private Object getSessionLock(User user) {
+        return getSessionLock(user.getUsername());
+    }
+
+    private Object getSessionLock(String username) {
+        return sessionLocks[Math.floorMod(username.hashCode(), SESSION_LOCK_STRIPES)];
+    }
+
     public void addUser(String username, String password, String imagePath)
     throws InvalidUsernameException, InvalidPasswordException, InvalidImagePathException, UserAlreadyExistsException {
         users.addUser(new User(username, password, imagePath));
     }
 
     public boolean removeUser(String username) throws UserDoesNotExistException {
-        return users.removeUser(username);
+        // The sessions of the user end before it is removed, so none of them can be used afterwards,
+        // and no session can be started in between, since that holds the same lock.
+        synchronized(getSessionLock(username)) {
+            sessions.endAll(username);
+            return users.removeUser(username);
+        }
+    }
+
+    /** Returns the catalog as it is now. The snapshot never changes, so it can be used for several reads
+     * that must agree with each other, even if the catalog is changed meanwhile.
+     * @return The current snapshot of the catalog.
+     */
+    public MediaLibrary.Snapshot getCatalog() {
+        return allMedia.getSnapshot();
     }
 
     public List<Media> getAllMedia() {
-        return allMedia.getSortedBy(MediaSorting.SortBy.DEFAULT, MediaSorting.SortOrder.DEFAULT);
+        return allMedia.getSortedByDefault();
     }
 
+    /** Searches the catalog. Waits for room among the other searches, but is never turned away. See {@link #getSearchAdmission()}. */
     public List<Media> searchAllMedia(String query) {
-        return allMedia.getSortedBySearch(query, true, true);
+        return searchAdmission.callWithoutDeadline(() -> allMedia.getSortedBySearch(query, true, true));
+    }
+
+    /** Returns the media of the catalog sorted by how well they match the given search string.
+     * If there are several cores, the partitions of the catalog are searched at the same time. See {@link PartitionedSearch}.
+     * The search is not limited by the admission control of searches, which the caller should use.
+     * @param catalog The snapshot of the catalog to search.
+     * @param query The search string.
+     * @param count The maximum number of results. Best results are returned first.
+     * @return The sorted list of media.
+     */
+    public List<Media> searchCatalog(MediaLibrary.Snapshot catalog, String query, int count) {
+        PartitionedSearch search = getPartitionedSearch();
+        if(search == null) return catalog.getSortedBySearch(query, count, true, false);
+        return search.search(catalog, query, count, true);
+    }
+
+    /** Returns the partitioned search, creating it if needed.
+     * @return The partitioned search, or null if the catalog isn't searched in partitions.
+     */
+    private PartitionedSearch getPartitionedSearch() {
+        PartitionedSearch search = partitionedSearch;
+        if(search != null || !isSearchPartitioned) return search;
+        synchronized(this) {
+            if(partitionedSearch == null && isSearchPartitioned)
+                partitionedSearch = new PartitionedSearch(Runtime.getRuntime().availableProcessors());
+            return partitionedSearch;
+        }
+    }
+
+    /** Stops the threads that search the partitions of the catalog, if they have been started.
+     * Searches after this search the catalog on the calling thread. Should be called when the application stops,
+     * after the searches have finished.
+     */
+    public synchronized void stopPartitionedSearch() {
+        isSearchPartitioned = false;
+        if(partitionedSearch != null) {
+            partitionedSearch.close();
+            partitionedSearch = null;
+        }
+    }
+
+    /** Returns the admission control that every search of the catalog should be run with, so that searches,
+     * which go through the whole catalog, can't crowd out everything else when there are many of them.
+     * @return The admission control of searches.
+     */
+    public AdmissionControl getSearchAdmission() {
+        return searchAdmission;
     }
 
     public List<Media> sortAllMedia(MediaSorting.SortBy sortBy) {
@@ -0,0 +1,590 @@
+package domain;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import data.Journal;
+import data.ObjectSaving;
+
+/** Shares one catalog between several processes, through a shared directory, so that only one of them reads the media files.
+ * <p> The {@link Leader} owns the catalog. It saves a snapshot of all media, and then appends every change to the catalog,
+ * as the media that were removed and added by it, to a {@link Journal} of deltas. Every {@link Leader#COMPACT_RECORDS} changes,
+ * it saves a new snapshot and starts a new journal, and deletes the files that are older than the previous ones.
+ * <p> A {@link Follower} loads the newest snapshot, and then reads the deltas that are appended after it, a few times a second,
+ * only reading the bytes that have been appended since it last read. So a change costs the followers what it takes to read
+ * the media that changed, and reaches them in a fraction of a second.
+ * <p> Every snapshot and delta has a term and a version. Each leader has a higher term than the leaders before it,
+ * which it claims by creating the file {@code catalog.<term>.term}, so two leaders that start at once never have the same term.
+ * Each change has the next version of the term. A follower only applies the next version, and only of the highest term
+ * it has seen, so it never goes back to an older catalog, or applies a change twice, or out of order, even if an old leader
+ * keeps writing. If a follower misses a version, such as when the journal it was reading has been deleted,
+ * it loads the newest snapshot again.
+ * <p> The followers give the media the ids that the leader gave them, so that an id finds the same media in every process,
+ * and a new leader keeps the ids of the leader before it. See {@link MediaIds} and {@link #adoptIds}.
+ * <p> The files are named {@code catalog.<term>.<version>.snapshot} and {@code catalog.<term>.<version>.deltas},
+ * where the version of a journal is the version of the snapshot it continues. A snapshot is: <ul>
+ * <li> {@code int} magic number, {@code int} format version, {@code long} term, {@code long} version.
+ * <li> {@code int} the id the leader gives the next new media.
+ * <li> The number of media, followed by the {@code int} id and the media of each. See {@link UserJournal#writeMedia}. </ul>
+ * A delta is: {@code long} term, {@code long} version, the number of removed media, each removed media,
+ * the number of added media, and the {@code int} id and the media of each added media.
+ * A changed media is removed as it was, and added as it is.
+ */
+final class CatalogReplication {
+
+    /** The first four bytes of a snapshot. Is "CSNP" in ASCII. */
+    private static final int MAGIC = 0x43534E50;
+
+    /** The version of the snapshot format. Should be increased whenever the format changes. */
+    private static final int FORMAT_VERSION = 2;
+
+    private static final Pattern FILE_NAME = Pattern.compile("catalog\\.(\\d+)\\.(\\d+)\\.(snapshot|deltas)");
+    private static final Pattern TERM_FILE_NAME = Pattern.compile("catalog\\.(\\d+)\\.term");
+
+    private CatalogReplication() {}
+
+    /** A term and a version, which are ordered by term first. */
+    static record Position(long term, long version) implements Comparable<Position> {
+        public int compareTo(Position other) {
+            return term != other.term ? Long.compare(term, other.term) : Long.compare(version, other.version);
+        }
+    }
+
+    /** Owns the catalog, and saves it and every change to it in the shared directory. <i>Is thread safe.</i> */
+    static class Leader implements MediaLibrary.ChangeListener, AutoCloseable {
+
+        /** The number of changes after which a new snapshot is saved, and a new journal started. */
+        static final int COMPACT_RECORDS = 1000;
+
+        private final MediaLibrary library;
+        private final Path directory;
+        private final long term;
+
+        /** Is given the errors that happen when saving a change, since the library that makes the change can't be told of them. */
+        private final Consumer<Exception> errorHandler;
+
+        // Are only used while synchronized on the library.
+        private long version;
+        private Journal journal;
+        private int journalRecords;
+        private boolean isClosed;
+
+        /** Becomes the leader of the catalog in the directory, with a higher term than any leader before it,
+         * and saves the media of the library as the first snapshot of the term. Every later change to the library is saved.
+         * <p> The library should have been given the ids of the leader before, with {@link #adoptIds}, before its media were added.
+         * @param library The library to replicate.
+         * @param directory The shared directory. Is created if it doesn't exist.
+         * @param errorHandler Is given the exceptions thrown when saving a snapshot, and an {@link IllegalStateException}
+         *        when another leader has taken over. Is called on the thread that changed the library.
+         * @throws IOException If the directory could not be written.
+         * @throws IllegalStateException If the library has followed another catalog, so it has ids that only it knows.
+         */
+        Leader(MediaLibrary library, Path directory, Consumer<Exception> errorHandler) throws IOException {
+            if(library.getMediaIds().isFollowing())
+                throw new IllegalStateException("A catalog that has followed another catalog can't lead.");
+            this.library = library;
+            this.directory = directory;
+            this.errorHandler = errorHandler;
+            Files.createDirectories(directory);
+            term = claimTerm(directory);
+
+            synchronized(library) {
+                startGeneration(library.getSnapshot());
+                library.setChangeListener(this);
+            }
+        }
+
+        long getTerm() {
+            return term;
+        }
+
+        /** Returns the version of the last change that has been saved. */
+        long getVersion() {
+            synchronized(library) {
+                return version;
+            }
+        }
+
+        /** Returns whether another leader with a higher term has taken over the directory.
+         * A leader that has been fenced off stops saving changes when it next saves a snapshot,
+         * but the followers ignore its changes already, since they follow the highest term.
+         */
+        boolean isFenced() throws IOException {
+            return findHighestTerm(directory) > term;
+        }
+
+        /** Claims the term after the highest term in the directory. Only one leader can create the file of a term,
+         * so if another leader claims the same term at the same time, the next term is tried.
+         */
+        private static long claimTerm(Path directory) throws IOException {
+            long term = findHighestTerm(directory) + 1;
+            while(true) {
+                try {
+                    Files.createFile(getTermPath(directory, term));
+                    return term;
+                } catch (FileAlreadyExistsException e) {
+                    term++;
+                }
+            }
+        }
+
+        public void mediaChanged(MediaLibrary.Snapshot snapshot, Set<Media> removed, Set<Media> added) {
+            if(isClosed) return;
+            version++;
+            journal.append(encodeDelta(new Position(term, version), removed, added, snapshot));
+
+            if(++journalRecords >= COMPACT_RECORDS) {
+                try {
+                    if(isFenced()) {
+                        errorHandler.accept(new IllegalStateException(
+                            "Another leader has taken over the catalog in " + directory + ", so changes are no longer saved."));
+                        close();
+                        return;
+                    }
+                    Path previous = journal.getFilePath();
+                    journal.close();
+                    try {
+                        startGeneration(snapshot);
+                    } catch (IOException e) {
+                        // The changes are appended to the old journal, and the next change tries again.
+                        journal = new Journal(previous);
+                        throw e;
+                    }
+                } catch (IOException e) {
+                    errorHandler.accept(new IOException("Failed to save a snapshot of the catalog: " + e.getMessage(), e));
+                }
+            }
+        }
+
+        /** Saves a snapshot of the current version, and starts a journal of the changes after it.
+         * The journal before it must have been closed, so that the followers have all of its changes before it.
+         */
+        private void startGeneration(MediaLibrary.Snapshot snapshot) throws IOException {
+            Position position = new Position(term, version);
+            writeSnapshot(getPath(directory, position, "snapshot"), position, snapshot, library.getMediaIds().getNextId());
+            journal = new Journal(getPath(directory, position, "deltas"));
+            journalRecords = 0;
+            deleteOldFiles(position);
+        }
+
+        /** Deletes the files of older terms, and the files of this term that are older than the previous snapshot,
+         * so that a follower that is reading the previous journal can still finish it.
+         */
+        private void deleteOldFiles(Position current) throws IOException {
+            TreeMap<Position, Path> snapshots = findFiles(directory, "snapshot");
+            Position previous = snapshots.lowerKey(current);
+            Position keep = previous != null && previous.term() == term ? previous : current;
+            for(String kind : new String[] {"snapshot", "deltas"})
+                for(Path file : findFiles(directory, kind).headMap(keep).values())
+                    Files.deleteIfExists(file);
+            // The file of this term is kept, so that the next leader claims a higher term.
+            for(long oldTerm : findTerms(directory))
+                if(oldTerm < term) Files.deleteIfExists(getTermPath(directory, oldTerm));
+        }
+
+        /** Stops saving changes, and writes the changes that have not been written yet. */
+        public void close() throws IOException {
+            synchronized(library) {
+                if(isClosed) return;
+                isClosed = true;
+                library.setChangeListener(null);
+                journal.close();
+            }
+        }
+    }
+
+    /** Follows the catalog that a {@link Leader} saves in the shared directory, and applies it to a library.
+     * Reads the directory on a background thread, a few times a second, after {@link #start()} has been called,
+     * or when {@link #poll()} is called. <i>Is thread safe.</i>
+     */
+    static class Follower implements AutoCloseable {
+
+        /** The time between reading the directory. */
+        static final long POLL_INTERVAL_MILLIS = 100;
+
+        private final MediaLibrary library;
+        private final Path directory;
+
+        /** Is run after each change has been applied. <b>May be null.</b> */
+        private final Runnable onChange;
+
+        /** Is given the errors that happen on the background thread, and the deltas that are skipped. */
+        private final Consumer<Exception> errorHandler;
+
+        // Are guarded by this follower.
+        private Position position;
+        private long journalVersion;
+        private long journalOffset;
+
+        private volatile Thread poller;
+
+        /** Creates a follower that applies the catalog in the directory to the library, with the ids the leader gave the media.
+         * @param library The library to apply the catalog to. Must not have given any media an id yet.
+         * @param directory The shared directory.
+         * @param onChange Is run after each change has been applied, on the thread that applied it. May be null.
+         * @param errorHandler Is given the exceptions thrown when reading the directory on the background thread,
+         *        and the malformed deltas that are skipped. Is called on the thread that reads the directory.
+         * @throws IllegalStateException If the library has already given media ids, which the leader may give to other media.
+         */
+        Follower(MediaLibrary library, Path directory, Runnable onChange, Consumer<Exception> errorHandler) {
+            library.getMediaIds().follow();
+            this.library = library;
+            this.directory = directory;
+            this.onChange = onChange;
+            this.errorHandler = errorHandler;
+        }
+
+        /** Returns the term and version of the catalog that has been applied, or null if no snapshot has been loaded yet. */
+        synchronized Position getPosition() {
+            return position;
+        }
+
+        /** Starts reading the directory on a background thread. */
+        synchronized void start() {
+            if(poller != null) return;
+            poller = new Thread(() -> {
+                while(poller == Thread.currentThread()) {
+                    try {
+                        poll();
+                        Thread.sleep(POLL_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException | UncheckedIOException | IllegalStateException e) {
+                        // The leader may be replacing the files, so it is tried again next time.
+                        errorHandler.accept(e);
+                    }
+                }
+            }, "Catalog follower " + directory.getFileName());
+            poller.setDaemon(true);
+            poller.start();
+        }
+
+        public void close() {
+            Thread thread = poller;
+            poller = null;
+            if(thread != null) thread.interrupt();
+        }
+
+        /** Applies the changes that have been saved since the last time, and loads a newer snapshot if it is needed.
+         * @return Whether the library was changed.
+         * @throws IOException If the directory could not be read.
+         * @throws IllegalStateException If the leader gave an id to a different media than a leader before it did.
+         *         The change is not applied.
+         */
+        synchronized boolean poll() throws IOException {
+            TreeMap<Position, Path> snapshots = findFiles(directory, "snapshot");
+            if(snapshots.isEmpty()) return false;
+            Position newest = snapshots.lastKey();
+
+            boolean changed = false;
+            if(position == null || newest.term() > position.term()) {
+                loadSnapshot(snapshots.lastEntry().getValue());
+                changed = true;
+            }
+
+            while(true) {
+                Path journalPath = getPath(directory, new Position(position.term(), journalVersion), "deltas");
+                Delta delta = new Delta(position, errorHandler);
+                boolean journalExists = true;
+                try {
+                    journalOffset = Journal.readRecords(journalPath, journalOffset, delta::add);
+                } catch (NoSuchFileException e) {
+                    journalExists = false;
+                }
+                changed |= delta.apply(library);
+                position = delta.position;
+
+                // The leader closes a journal before it starts the next, which continues from the version of its snapshot.
+                // So if there is a journal that continues from the current version, the one before it has been read to the end.
+                if(!delta.missed && position.version() != journalVersion
+                   && Files.exists(getPath(directory, position, "deltas"))) {
+                    journalVersion = position.version();
+                    journalOffset = 0;
+                    continue;
+                }
+
+                // The changes that were missed can only be had from a newer snapshot.
+                if(delta.missed || !journalExists) {
+                    Position newestOfTerm = snapshots.floorKey(new Position(position.term(), Long.MAX_VALUE));
+                    if(newestOfTerm != null && newestOfTerm.compareTo(position) > 0) {
+                        loadSnapshot(snapshots.get(newestOfTerm));
+                        changed = true;
+                        continue;
+                    }
+                }
+                break;
+            }
+
+            if(changed && onChange != null) onChange.run();
+            return changed;
+        }
+
+        private void loadSnapshot(Path file) throws IOException {
+            List<Media> media = new ArrayList<>();
+            Position loaded = readSnapshot(file, media, library.getMediaIds());
+            library.replaceAll(media);
+            position = loaded;
+            journalVersion = position.version();
+            journalOffset = 0;
+        }
+    }
+
+    /** The changes of the deltas that are read at once, which are applied to the library together, in a single new snapshot.
+     * Only the next version is added, so deltas that have already been applied are skipped, and if a version is missing,
+     * nothing after it is added.
+     */
+    private static class Delta {
+        private Position position;
+        private final Set<Media> removed = new HashSet<>();
+        /** The added media, and the ids the leader gave them. */
+        private final Map<Media, Integer> added = new HashMap<>();
+        private boolean missed;
+        private final Consumer<Exception> errorHandler;
+
+        private Delta(Position position, Consumer<Exception> errorHandler) {
+            this.position = position;
+            this.errorHandler = errorHandler;
+        }
+
+        private void add(byte[] record) {
+            try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+                Position recordPosition = new Position(in.readLong(), in.readLong());
+                if(missed || recordPosition.term() != position.term() || recordPosition.version() <= position.version())
+                    return;
+                if(recordPosition.version() != position.version() + 1) {
+                    missed = true;
+                    return;
+                }
+
+                // A media that is removed after it was added, or added after it was removed, cancels out.
+                for(int i = in.readInt(); i > 0; i--) {
+                    Media media = UserJournal.readMedia(in);
+                    if(added.remove(media) == null) removed.add(media);
+                }
+                for(int i = in.readInt(); i > 0; i--) {
+                    int id = in.readInt();
+                    Media media = UserJournal.readMedia(in);
+                    if(!removed.remove(media)) added.put(media, id);
+                }
+                position = recordPosition;
+            } catch (IOException e) {
+                // The record matched its checksum, so it was written by a different version of the application.
+                errorHandler.accept(new IOException("Skipped a malformed catalog delta after " + position + ": " + e.getMessage(), e));
+                missed = true;
+            }
+        }
+
+        private boolean apply(MediaLibrary library) {
+            if(removed.isEmpty() && added.isEmpty()) return false;
+            MediaIds ids = library.getMediaIds();
+            added.forEach(ids::register);
+            return library.update(removed, added.keySet());
+        }
+    }
+
+    /** Gives the media of the newest catalog in the directory the ids that its leader gave them,
+     * and makes the library give new media ids after the highest of them, so that a new leader keeps the ids of the one before it.
+     * Should be called before the media of the library are added, so they get the same ids as before.
+     * Does nothing if no catalog has been saved in the directory.
+     * @param library The library that is going to lead the catalog.
+     * @param directory The shared directory.
+     * @throws IOException If the directory could not be read.
+     * @throws IllegalStateException If the library has followed another catalog, or has given one of the ids to a different media.
+     */
+    static void adoptIds(MediaLibrary library, Path directory) throws IOException {
+        MediaIds ids = library.getMediaIds();
+        if(ids.isFollowing())
+            throw new IllegalStateException("A catalog that has followed another catalog can't lead.");
+        TreeMap<Position, Path> snapshots = findFiles(directory, "snapshot");
+        if(snapshots.isEmpty()) return;
+        Position newest = readSnapshot(snapshots.lastEntry().getValue(), new ArrayList<>(), ids);
+
+        // The changes after the snapshot gave the media they added ids too, even if they have been removed again since.
+        for(Map.Entry<Position, Path> journal : findFiles(directory, "deltas").tailMap(newest, true).entrySet()) {
+            if(journal.getKey().term() != newest.term()) continue;
+            try {
+                Journal.readRecords(journal.getValue(), 0, record -> {
+                    try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+                        in.readLong();
+                        in.readLong();
+                        for(int i = in.readInt(); i > 0; i--)
+                            UserJournal.readMedia(in);
+                        for(int i = in.readInt(); i > 0; i--) {
+                            int id = in.readInt();
+                            ids.register(UserJournal.readMedia(in), id);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static byte[] encodeDelta(Position position, Set<Media> removed, Set<Media> added, MediaLibrary.Snapshot snapshot) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 128 * (removed.size() + added.size()));
+        try(DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(position.term());
+            out.writeLong(position.version());
+            out.writeInt(removed.size());
+            for(Media m : removed)
+                UserJournal.writeMedia(out, m);
+            out.writeInt(added.size());
+            for(Media m : added) {
+                out.writeInt(snapshot.getId(m));
+                UserJournal.writeMedia(out, m);
+            }
+        } catch (IOException e) {
+            // Writing to a byte array doesn't throw.
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeSnapshot(Path file, Position position, MediaLibrary.Snapshot snapshot, int nextId) throws IOException {
+        List<Media> ordered = new ArrayList<>(snapshot.getMedia());
+        ordered.sort(Comparator.comparingInt(snapshot::getId));
+        ObjectSaving.writeAtomically(file, tempFile -> {
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile.toFile())))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(position.term());
+                out.writeLong(position.version());
+                out.writeInt(nextId);
+                out.writeInt(ordered.size());
+                for(Media m : ordered) {
+                    out.writeInt(snapshot.getId(m));
+                    UserJournal.writeMedia(out, m);
+                }
+            }
+        });
+    }
+
+    /** Reads the media of a snapshot, and gives them the ids that the leader gave them.
+     * @param file The snapshot.
+     * @param media Is given the media.
+     * @param ids The ids of the library the media are added to.
+     * @return The position of the snapshot.
+     */
+    private static Position readSnapshot(Path file, List<Media> media, MediaIds ids) throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if(in.readInt() != MAGIC)
+                throw new IOException(file + " is not a catalog snapshot.");
+            int formatVersion = in.readInt();
+            if(formatVersion != FORMAT_VERSION)
+                throw new IOException(file + " has the unknown format version " + formatVersion + ".");
+            Position position = new Position(in.readLong(), in.readLong());
+            ids.continueFrom(in.readInt());
+            for(int i = in.readInt(); i > 0; i--) {
+                int id = in.readInt();
+                Media m = UserJournal.readMedia(in);
+                ids.register(m, id);
+                media.add(m);
+            }
+            return position;
+        }
+    }
+
+    private static Path getPath(Path directory, Position position, String kind) {
+        return directory.resolve("catalog." + position.term() + "." + position.version() + "." + kind);
+    }
+
+    private static Path getTermPath(Path directory, long term) {
+        return directory.resolve("catalog." + term + ".term");
+    }
+
+    /** Returns the highest term that a leader has claimed, or has saved a snapshot of, in the directory, or 0 if there is none. */
+    private static long findHighestTerm(Path directory) throws IOException {
+        TreeMap<Position, Path> snapshots = findFiles(directory, "snapshot");
+        long highest = snapshots.isEmpty() ? 0 : snapshots.lastKey().term();
+        for(long term : findTerms(directory))
+            highest = Math.max(highest, term);
+        return highest;
+    }
+
+    /** Finds the terms that leaders have claimed in the directory. */
+    private static List<Long> findTerms(Path directory) throws IOException {
+        List<Long> terms = new ArrayList<>();
+        if(!Files.isDirectory(directory)) return terms;
+        try(Stream<Path> stream = Files.list(directory)) {
+            stream.forEach(file -> {
+                Matcher matcher = TERM_FILE_NAME.matcher(file.getFileName().toString());
+                if(matcher.matches()) terms.add(Long.parseLong(matcher.group(1)));
+            });
+        }
+        return terms;
+    }
+
+    /** Finds the files of the given kind in the directory, by their position. */
+    private static TreeMap<Position, Path> findFiles(Path directory, String kind) throws IOException {
+        TreeMap<Position, Path> files = new TreeMap<>();
+        if(!Files.isDirectory(directory)) return files;
+        try(Stream<Path> stream = Files.list(directory)) {
+            stream.forEach(file -> {
+                Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if(matcher.matches() && matcher.group(3).equals(kind))
+                    files.put(new Position(Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))), file);
+            });
+        }
+        return files;
+    }
+
+    /** Returns the hash of the media of the catalog by their ids, which is the same in every process with the same ids. */
+    static int hashIds(MediaLibrary.Snapshot snapshot) {
+        Map<Integer, Media> byId = new HashMap<>();
+        for(Media media : snapshot.getMedia())
+            byId.put(snapshot.getId(media), media);
+        return byId.hashCode();
+    }
+
+    /** Follows the catalog in the given directory, and prints the term, version, size and hash of the catalog,
+     * and the hash of its media by their ids, every time it changes, until the standard input is closed.
+     * Is used to test replication between processes. See {@link #hashIds}.
+     * @param args The shared directory.
+     */
+    public static void main(String[] args) throws Exception {
+        MediaLibrary library = new MediaLibrary();
+        Follower[] follower = new Follower[1];
+        Consumer<Exception> errorHandler = e -> System.err.println(e.getMessage());
+        follower[0] = new Follower(library, Path.of(args[0]), () -> {
+            MediaLibrary.Snapshot snapshot = library.getSnapshot();
+            Set<Media> media = snapshot.getMedia();
+            Position position = follower[0].getPosition();
+            System.out.println(position.term() + " " + position.version() + " " + media.size() + " " + media.hashCode() + " " + hashIds(snapshot));
+            System.out.flush();
+        }, errorHandler);
+        follower[0].start();
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        while(in.readLine() != null);
+        follower[0].close();
+    }
+
+}
@@ -0,0 +1,152 @@
+package domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import data.BlockCompression;
+import data.CompressedInputStream;
+import data.CompressedOutputStream;
+
+/** Measures how well, and how fast, each {@link BlockCompression} compresses saved user sets.
+ * <p> For each number of users, a synthetic user set is saved uncompressed with {@link UserSetCodec},
+ * in a temporary folder. The saved files are then compressed and decompressed in memory with each compression,
+ * so that the time spent on the storage device and on encoding the users is not measured.
+ * <p> Prints the compression ratio, which is the uncompressed size divided by the compressed size,
+ * and the encode and decode throughput, in megabytes of uncompressed bytes per second.
+ * <p> Run with the numbers of users as arguments. By default, 10^3, 10^4, 10^5 and 10^6 users are measured.
+ */
+class CompressionBenchmark {
+
+    private static final String[] CATEGORIES = {"Action", "Adventure", "Comedy", "Crime", "Drama", "Family", "Fantasy", "Horror", "Romance", "Sci-fi", "Thriller", "War"};
+
+    private static final int CATALOG_SIZE = 200;
+    private static final int MAX_FAVORITES = 20;
+    private static final int ROUNDS = 3;
+
+    private static final List<BlockCompression> COMPRESSIONS = List.of(
+        BlockCompression.FAST,
+        BlockCompression.deflate(1),
+        BlockCompression.deflate(6),
+        BlockCompression.deflate(9)
+    );
+
+    public static void main(String[] args) throws IOException {
+        int[] userCounts = args.length == 0
+            ? new int[] {1_000, 10_000, 100_000, 1_000_000}
+            : Stream.of(args).mapToInt(Integer::parseInt).toArray();
+
+        System.out.printf("%10s %-12s %12s %12s %8s %12s %12s%n", "Users", "Compression", "Size", "Compressed", "Ratio", "Encode MB/s", "Decode MB/s");
+        for(int userCount : userCounts) {
+            List<byte[]> files = saveSyntheticUsers(userCount, new Random(userCount));
+            long size = files.stream().mapToLong(file -> file.length).sum();
+
+            for(BlockCompression compression : COMPRESSIONS) {
+                long compressedSize = 0;
+                long encodeNanos = Long.MAX_VALUE;
+                long decodeNanos = Long.MAX_VALUE;
+
+                // The fastest round is reported, since the first rounds include warming up.
+                for(int round = 0; round < ROUNDS; round++) {
+                    long start = System.nanoTime();
+                    List<byte[]> compressedFiles = new ArrayList<>(files.size());
+                    for(byte[] file : files)
+                        compressedFiles.add(compress(file, compression));
+                    encodeNanos = Math.min(encodeNanos, System.nanoTime() - start);
+
+                    start = System.nanoTime();
+                    for(byte[] compressedFile : compressedFiles)
+                        decompress(compressedFile);
+                    decodeNanos = Math.min(decodeNanos, System.nanoTime() - start);
+
+                    compressedSize = compressedFiles.stream().mapToLong(file -> file.length).sum();
+                }
+
+                System.out.printf("%10d %-12s %12d %12d %8.2f %12.1f %12.1f%n", userCount, compression, size, compressedSize,
+                    (double) size / compressedSize, megabytesPerSecond(size, encodeNanos), megabytesPerSecond(size, decodeNanos));
+            }
+        }
+    }
+
+    /** Saves the given number of synthetic users in a temporary folder, and returns the contents of the saved files.
+     * Each user has a random password, some have a profile picture, and each has up to {@link #MAX_FAVORITES} favorites
+     * from a catalog of {@link #CATALOG_SIZE} media.
+     */
+    private static List<byte[]> saveSyntheticUsers(int userCount, Random random) throws IOException {
+        Media[] catalog = new Media[CATALOG_SIZE];
+        for(int i = 0; i < CATALOG_SIZE; i++) {
+            String[] categories = {CATEGORIES[random.nextInt(CATEGORIES.length)], CATEGORIES[random.nextInt(CATEGORIES.length)]};
+            catalog[i] = new Movie("Movie " + i, 1950 + random.nextInt(75), categories, 1 + random.nextInt(90) / 10f, "./Data/filmplakater/");
+        }
+
+        List<User> users = new ArrayList<>(userCount);
+        List<Map<String, List<Media>>> shards = new ArrayList<>(UserStore.SHARD_COUNT);
+        for(int i = 0; i < UserStore.SHARD_COUNT; i++)
+            shards.add(new HashMap<>());
+
+        for(int i = 0; i < userCount; i++) {
+            String username = "user" + i;
+            String password = XOREncryption.encrypt(Long.toString(random.nextLong(), 36));
+            String imagePath = random.nextInt(4) == 0 ? "./Pictures/profile" + random.nextInt(16) + ".png" : null;
+            users.add(User.restore(username, password, imagePath, name -> new Media[0]));
+
+            List<Media> favorites = new ArrayList<>();
+            for(int j = random.nextInt(MAX_FAVORITES + 1); j > 0; j--)
+                favorites.add(catalog[random.nextInt(CATALOG_SIZE)]);
+            shards.get(UserStore.shardOf(username)).put(username, favorites.stream().distinct().toList());
+        }
+
+        Path folder = Files.createTempDirectory("benchmark");
+        try {
+            List<Path> filePaths = new ArrayList<>();
+            filePaths.add(folder.resolve("benchmark.userset"));
+            UserSetCodec.saveDirectory(users, filePaths.get(0));
+            for(int i = 0; i < UserStore.SHARD_COUNT; i++) {
+                filePaths.add(folder.resolve("benchmark." + i + ".favorites"));
+                UserSetCodec.saveFavorites(shards.get(i), filePaths.get(i + 1));
+            }
+
+            List<byte[]> files = new ArrayList<>(filePaths.size());
+            for(Path filePath : filePaths)
+                files.add(Files.readAllBytes(filePath));
+            return files;
+        }
+        finally {
+            try(Stream<Path> paths = Files.walk(folder)) {
+                for(Path path : paths.sorted(Comparator.reverseOrder()).toList())
+                    Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static byte[] compress(byte[] file, BlockCompression compression) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(file.length / 2);
+        try(OutputStream out = new CompressedOutputStream(bytes, compression)) {
+            out.write(file);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void decompress(byte[] compressedFile) throws IOException {
+        byte[] buffer = new byte[CompressedOutputStream.DEFAULT_BLOCK_SIZE];
+        try(InputStream in = new CompressedInputStream(new ByteArrayInputStream(compressedFile))) {
+            while(in.read(buffer) != -1);
+        }
+    }
+
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return bytes / 1e6 / (nanos / 1e9);
+    }
+
+}
@@ -0,0 +1,241 @@
+package domain;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/** A compressed set of non-negative ids, in the style of a Roaring bitmap.
+ * <p> The ids are split by their upper 16 bits into containers, which each hold up to 65536 ids.
+ * A container with few ids stores them as a sorted array of their lower 16 bits,
+ * and a container with many ids stores a bit for every possible id.
+ * This keeps small sets small, while large sets use at most one bit per id.
+ * <p> Checking whether an id is in the set is a binary search over the containers,
+ * followed by a binary search or a bit test in the container.
+ * <p> The ids are always iterated in ascending order.
+ * <i>Is not thread safe.</i>
+ */
+class IdBitmap {
+
+    /** Containers with more ids than this are stored as bits, which then uses less memory. */
+    private static final int MAX_ARRAY_LENGTH = 4096;
+
+    private static final int BITMAP_LONGS = 65536 / Long.SIZE;
+
+    /** The upper 16 bits of the ids in each container, sorted. */
+    private char[] keys = new char[0];
+    private Container[] containers = new Container[0];
+    private int containerCount = 0;
+    private int size = 0;
+
+    /** The ids with the same upper 16 bits. Either {@link #values} or {@link #bits} is null. */
+    private static final class Container {
+        /** The sorted lower 16 bits of the ids, of which the first {@link #length} are used. */
+        private char[] values = new char[4];
+        /** A bit for each possible lower 16 bits. */
+        private long[] bits;
+        private int length = 0;
+
+        private boolean contains(char low) {
+            if(bits != null)
+                return (bits[low >>> 6] & (1L << low)) != 0;
+            return Arrays.binarySearch(values, 0, length, low) >= 0;
+        }
+
+        private boolean add(char low) {
+            if(bits != null) {
+                long before = bits[low >>> 6];
+                bits[low >>> 6] = before | (1L << low);
+                if(before == bits[low >>> 6]) return false;
+                length++;
+                return true;
+            }
+
+            int index = Arrays.binarySearch(values, 0, length, low);
+            if(index >= 0) return false;
+            index = -index - 1;
+
+            if(length == MAX_ARRAY_LENGTH) {
+                toBits();
+                return add(low);
+            }
+
+            if(length == values.length)
+                values = Arrays.copyOf(values, Math.min(values.length * 2, MAX_ARRAY_LENGTH));
+            System.arraycopy(values, index, values, index + 1, length - index);
+            values[index] = low;
+            length++;
+            return true;
+        }
+
+        private boolean remove(char low) {
+            if(bits != null) {
+                long before = bits[low >>> 6];
+                bits[low >>> 6] = before & ~(1L << low);
+                if(before == bits[low >>> 6]) return false;
+                length--;
+                if(length <= MAX_ARRAY_LENGTH / 2) toValues();
+                return true;
+            }
+
+            int index = Arrays.binarySearch(values, 0, length, low);
+            if(index < 0) return false;
+            System.arraycopy(values, index + 1, values, index, length - index - 1);
+            length--;
+            return true;
+        }
+
+        private void forEach(int high, IntConsumer consumer) {
+            if(bits == null) {
+                for(int i = 0; i < length; i++)
+                    consumer.accept(high | values[i]);
+                return;
+            }
+
+            for(int i = 0; i < bits.length; i++) {
+                long word = bits[i];
+                while(word != 0) {
+                    consumer.accept(high | (i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        private void toBits() {
+            bits = new long[BITMAP_LONGS];
+            for(int i = 0; i < length; i++)
+                bits[values[i] >>> 6] |= 1L << values[i];
+            values = null;
+        }
+
+        private void toValues() {
+            char[] newValues = new char[length];
+            int index = 0;
+            for(int i = 0; i < bits.length; i++) {
+                long word = bits[i];
+                while(word != 0) {
+                    newValues[index++] = (char) ((i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            values = newValues;
+            bits = null;
+        }
+    }
+
+    /** Returns whether the given id is in the set.
+     * @param id The id to check.
+     * @return Whether the id is in the set.
+     */
+    boolean contains(int id) {
+        int index = indexOf(high(id));
+        return index >= 0 && containers[index].contains(low(id));
+    }
+
+    /** Adds the given id to the set.
+     * @param id The id to add. Must not be negative.
+     * @return Whether the id was added, i.e. wasn't in the set already.
+     */
+    boolean add(int id) {
+        if(id < 0)
+            throw new IllegalArgumentException("Ids cannot be negative.");
+
+        char high = high(id);
+        int index = indexOf(high);
+        if(index < 0) {
+            index = -index - 1;
+            insertContainer(index, high);
+        }
+
+        if(!containers[index].add(low(id))) return false;
+        size++;
+        return true;
+    }
+
+    /** Removes the given id from the set.
+     * @param id The id to remove.
+     * @return Whether the id was removed, i.e. was in the set.
+     */
+    boolean remove(int id) {
+        int index = indexOf(high(id));
+        if(index < 0 || !containers[index].remove(low(id))) return false;
+
+        size--;
+        if(containers[index].length == 0) removeContainer(index);
+        return true;
+    }
+
+    /** Returns the number of ids in the set.
+     * @return The number of ids in the set.
+     */
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Gives each id in the set to the consumer, in ascending order.
+     * @param consumer The consumer to give the ids.
+     */
+    void forEach(IntConsumer consumer) {
+        for(int i = 0; i < containerCount; i++)
+            containers[i].forEach(keys[i] << 16, consumer);
+    }
+
+    /** Returns the ids in the set, in ascending order.
+     * @return A new array of the ids.
+     */
+    int[] toArray() {
+        int[] ids = new int[size];
+        int[] index = {0};
+        forEach(id -> ids[index[0]++] = id);
+        return ids;
+    }
+
+    public boolean equals(Object obj) {
+        if(obj == this)
+            return true;
+        if(!(obj instanceof IdBitmap))
+            return false;
+
+        IdBitmap other = (IdBitmap) obj;
+        return size == other.size && Arrays.equals(toArray(), other.toArray());
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(toArray());
+    }
+
+    private int indexOf(char high) {
+        return Arrays.binarySearch(keys, 0, containerCount, high);
+    }
+
+    private void insertContainer(int index, char high) {
+        if(containerCount == keys.length) {
+            int newLength = Math.max(4, containerCount * 2);
+            keys = Arrays.copyOf(keys, newLength);
+            containers = Arrays.copyOf(containers, newLength);
+        }
+        System.arraycopy(keys, index, keys, index + 1, containerCount - index);
+        System.arraycopy(containers, index, containers, index + 1, containerCount - index);
+        keys[index] = high;
+        containers[index] = new Container();
+        containerCount++;
+    }
+
+    private void removeContainer(int index) {
+        System.arraycopy(keys, index + 1, keys, index, containerCount - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, containerCount - index - 1);
+        containerCount--;
+        containers[containerCount] = null;
+    }
+
+    private static char high(int id) {
+        return (char) (id >>> 16);
+    }
+
+    private static char low(int id) {
+        return (char) id;
+    }
+
+}
@@ -0,0 +1,471 @@
+package domain;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import data.ObjectSaving;
+
+/** A user directory for very many users, which doesn't have to be loaded into memory as a whole.
+ * <p> Is used instead of the user directory file of a {@link UserStore}, if {@link UserSet#setUserDirectoryMapped} is set.
+ * Saving the users then changes their records in place, rather than writing the whole directory again.
+ * Opening the directory takes the same time no matter how many users it has, and only the records that are looked up are read.
+ * <p> The directory is made of two files: <ul>
+ * <li> The table, {@code FOLDER + fileName + ".userdir"}, which is memory-mapped.
+ * It has a header, followed by a hash table of fixed-size records, found by open addressing with linear probing.
+ * <li> The string heap, {@code FOLDER + fileName + "." + generation + ".userheap"}, which the records point into.
+ * Strings are appended to it, or overwritten in place if the new string fits where the old one was. </ul>
+ * <p> Each record is {@value #RECORD_SIZE} bytes: <ul>
+ * <li> {@code long} hash of the username, {@code int} state (empty, used or deleted).
+ * <li> {@code int} length and {@code long} heap offset of the username.
+ * <li> {@code long} heap offset and {@code int} length of the encrypted password.
+ * <li> {@code int} length and {@code long} heap offset of the profile picture, where the length is -1 if there is none.
+ * <li> {@code long} favorites reference, which tells where the user's favorites are. See {@link UserStore#shardOf(String)}. </ul>
+ * <p> Records are changed in place in the mapped table. When too many slots are used,
+ * the table is rebuilt with twice the capacity, and replaces the old one atomically.
+ * <p> The space of strings that are replaced or removed is counted as garbage. When more than half the heap is garbage,
+ * the table is rebuilt with the same capacity, and the strings that are still used are copied to a heap of the next generation,
+ * which the new table points into. The old heap is deleted once the new table has replaced the old one,
+ * so a crash while rebuilding leaves the old table and heap as they were.
+ * <i>The methods are synchronized, so the directory can be used from several threads.</i>
+ */
+class MappedUserDirectory implements AutoCloseable {
+
+    /** The first four bytes of the table. Is "UDIR" in ASCII. */
+    private static final int MAGIC = 0x55444952;
+    private static final int VERSION = 2;
+
+    private static final String TABLE_FILE_EXTENSION = ".userdir";
+    private static final String HEAP_FILE_EXTENSION = ".userheap";
+
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 64;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** The most records the table can have, so that it fits in a single mapped buffer, which is indexed by {@code int}. */
+    private static final int MAX_CAPACITY = Integer.highestOneBit((Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE);
+
+    /** The table is rebuilt when more than this fraction of the slots are used or deleted. */
+    private static final double MAX_LOAD_FACTOR = 0.7;
+
+    /** The heap is only compacted when it has at least this many bytes of garbage, so small heaps aren't compacted all the time. */
+    private static final long MIN_COMPACTED_GARBAGE = 64 * 1024;
+
+    // The offsets of the fields in the header.
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_COUNT = 12;
+    private static final int HEADER_DELETED = 16;
+    private static final int HEADER_HEAP_GENERATION = 20;
+    private static final int HEADER_GARBAGE = 24;
+
+    // The offsets of the fields in a record.
+    private static final int RECORD_HASH = 0;
+    private static final int RECORD_STATE = 8;
+    private static final int RECORD_USERNAME_LENGTH = 12;
+    private static final int RECORD_USERNAME_OFFSET = 16;
+    private static final int RECORD_PASSWORD_OFFSET = 24;
+    private static final int RECORD_PASSWORD_LENGTH = 32;
+    private static final int RECORD_IMAGE_LENGTH = 36;
+    private static final int RECORD_IMAGE_OFFSET = 40;
+    private static final int RECORD_FAVORITES = 48;
+
+    private static final int STATE_EMPTY = 0;
+    private static final int STATE_USED = 1;
+    private static final int STATE_DELETED = 2;
+
+    /** A user in the directory.
+     * @param username The user's name.
+     * @param encryptedPassword The user's encrypted password. See {@link User#getEncryptedPassword()}.
+     * @param imagePath The user's profile picture. May be null.
+     * @param favoritesReference Tells where the user's favorites are saved.
+     */
+    static record Entry(String username, String encryptedPassword, String imagePath, long favoritesReference) {
+
+        /** Recreates the user. Its favorites are loaded with the given loader when they are needed.
+         * @param favoritesLoader Loads the user's favorites.
+         * @return The user.
+         */
+        User toUser(User.FavoritesLoader favoritesLoader) {
+            return User.restore(username, encryptedPassword, imagePath, favoritesLoader);
+        }
+    }
+
+    /** The path of the files, without extension. */
+    private final String basePath;
+    private final Path tablePath;
+
+    private FileChannel tableChannel;
+    private MappedByteBuffer table;
+    private int capacity;
+    private int count;
+    private int deleted;
+
+    private FileChannel heap;
+    private int heapGeneration;
+    /** The number of bytes in the heap that no record points to. */
+    private long garbage;
+
+    private MappedUserDirectory(String basePath) throws IOException {
+        this.basePath = basePath;
+        tablePath = Path.of(basePath + TABLE_FILE_EXTENSION);
+
+        boolean isNew = !Files.exists(tablePath) || Files.size(tablePath) == 0;
+        if(isNew)
+            createTable(tablePath, INITIAL_CAPACITY, 0);
+        mapTable();
+        // A new table starts with an empty heap, even if a heap was left behind by a table that was deleted.
+        heap = isNew ? FileChannel.open(getHeapPath(heapGeneration), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                     : FileChannel.open(getHeapPath(heapGeneration), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /** Opens the directory saved under the given file name, creating it if it doesn't exist.
+     * @param fileName The name of the files, without extension.
+     * @return The opened directory.
+     * @throws IOException If the files could not be opened, or are not formatted correctly.
+     */
+    static MappedUserDirectory open(String fileName) throws IOException {
+        Files.createDirectories(Path.of(ObjectSaving.FOLDER));
+        return new MappedUserDirectory(ObjectSaving.FOLDER + fileName);
+    }
+
+    /** Returns whether a directory is saved under the given file name.
+     * @param fileName The name of the files, without extension.
+     * @return Whether the directory exists.
+     */
+    static boolean exists(String fileName) {
+        return Files.exists(Path.of(ObjectSaving.FOLDER + fileName + TABLE_FILE_EXTENSION));
+    }
+
+    /** Returns the number of users in the directory.
+     * @return The number of users.
+     */
+    synchronized int size() {
+        return count;
+    }
+
+    /** Looks up the user with the given name. Only reads the records that are probed, and the user's strings.
+     * @param username The name of the user.
+     * @return The user, or an empty optional if there is no user with the name.
+     * @throws IOException If the string heap could not be read.
+     */
+    synchronized Optional<Entry> get(String username) throws IOException {
+        int slot = findSlot(username);
+        if(slot < 0) return Optional.empty();
+        return Optional.of(readEntry(recordOffset(slot)));
+    }
+
+    /** Adds the user, or changes it in place if a user with the same name already exists.
+     * @param username The user's name.
+     * @param encryptedPassword The user's encrypted password.
+     * @param imagePath The user's profile picture. May be null.
+     * @param favoritesReference Tells where the user's favorites are saved.
+     * @return Whether the user was added, rather than changed.
+     * @throws IOException If the files could not be written to.
+     */
+    synchronized boolean put(String username, String encryptedPassword, String imagePath, long favoritesReference) throws IOException {
+        int slot = findSlot(username);
+        if(slot >= 0) {
+            int record = recordOffset(slot);
+            writeString(record + RECORD_PASSWORD_OFFSET, record + RECORD_PASSWORD_LENGTH, encryptedPassword);
+            writeString(record + RECORD_IMAGE_OFFSET, record + RECORD_IMAGE_LENGTH, imagePath);
+            table.putLong(record + RECORD_FAVORITES, favoritesReference);
+            compactIfNeeded();
+            return false;
+        }
+
+        if(count + deleted + 1 > capacity * MAX_LOAD_FACTOR) {
+            boolean grow = count + 1 > capacity * MAX_LOAD_FACTOR / 2;
+            if(grow && capacity == MAX_CAPACITY)
+                throw new IOException("The user directory " + tablePath + " is full.");
+            rebuild(grow ? capacity * 2 : capacity);
+        }
+
+        long hash = hash(username);
+        int record = recordOffset(findFreeSlot(hash));
+        if(table.getInt(record + RECORD_STATE) == STATE_DELETED) deleted--;
+
+        // The strings are written to the heap before the record points to them.
+        table.putInt(record + RECORD_PASSWORD_LENGTH, 0);
+        table.putInt(record + RECORD_IMAGE_LENGTH, -1);
+        table.putInt(record + RECORD_USERNAME_LENGTH, 0);
+        writeString(record + RECORD_USERNAME_OFFSET, record + RECORD_USERNAME_LENGTH, username);
+        writeString(record + RECORD_PASSWORD_OFFSET, record + RECORD_PASSWORD_LENGTH, encryptedPassword);
+        writeString(record + RECORD_IMAGE_OFFSET, record + RECORD_IMAGE_LENGTH, imagePath);
+        table.putLong(record + RECORD_FAVORITES, favoritesReference);
+        table.putLong(record + RECORD_HASH, hash);
+        table.putInt(record + RECORD_STATE, STATE_USED);
+
+        setCounts(count + 1, deleted);
+        return true;
+    }
+
+    /** Removes the user with the given name. Its record is marked as deleted, so later records can still be found.
+     * @param username The name of the user.
+     * @return Whether the user was removed.
+     * @throws IOException If the string heap could not be read.
+     */
+    synchronized boolean remove(String username) throws IOException {
+        int slot = findSlot(username);
+        if(slot < 0) return false;
+
+        int record = recordOffset(slot);
+        table.putInt(record + RECORD_STATE, STATE_DELETED);
+        setCounts(count - 1, deleted + 1);
+        addGarbage(Math.max(0, table.getInt(record + RECORD_USERNAME_LENGTH)) + Math.max(0, table.getInt(record + RECORD_PASSWORD_LENGTH))
+                   + Math.max(0, table.getInt(record + RECORD_IMAGE_LENGTH)));
+        compactIfNeeded();
+        return true;
+    }
+
+    /** Gives every user in the directory to the consumer, in no particular order.
+     * Reads the whole directory, so should only be used for things like migrating the users.
+     * @param consumer The consumer to give the users.
+     * @throws IOException If the string heap could not be read.
+     */
+    synchronized void forEach(Consumer<Entry> consumer) throws IOException {
+        for(int slot = 0; slot < capacity; slot++) {
+            int record = recordOffset(slot);
+            if(table.getInt(record + RECORD_STATE) == STATE_USED)
+                consumer.accept(readEntry(record));
+        }
+    }
+
+    /** Writes all changes to the disk.
+     * @throws IOException If the changes could not be written.
+     */
+    synchronized void sync() throws IOException {
+        heap.force(false);
+        table.force();
+    }
+
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        }
+        finally {
+            tableChannel.close();
+            heap.close();
+        }
+    }
+
+    /** Returns the slot of the user with the given name, or -1 if there is none. */
+    private int findSlot(String username) throws IOException {
+        long hash = hash(username);
+        int mask = capacity - 1;
+        for(int slot = (int) hash & mask, probes = 0; probes < capacity; slot = (slot + 1) & mask, probes++) {
+            int record = recordOffset(slot);
+            int state = table.getInt(record + RECORD_STATE);
+            if(state == STATE_EMPTY) return -1;
+            if(state == STATE_USED && table.getLong(record + RECORD_HASH) == hash
+               && readString(record + RECORD_USERNAME_OFFSET, record + RECORD_USERNAME_LENGTH).equals(username))
+                return slot;
+        }
+        return -1;
+    }
+
+    /** Returns the first slot for the hash that is empty or deleted. */
+    private int findFreeSlot(long hash) {
+        int mask = capacity - 1;
+        int slot = (int) hash & mask;
+        while(table.getInt(recordOffset(slot) + RECORD_STATE) == STATE_USED)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private Entry readEntry(int record) throws IOException {
+        return new Entry(readString(record + RECORD_USERNAME_OFFSET, record + RECORD_USERNAME_LENGTH),
+                         readString(record + RECORD_PASSWORD_OFFSET, record + RECORD_PASSWORD_LENGTH),
+                         readString(record + RECORD_IMAGE_OFFSET, record + RECORD_IMAGE_LENGTH),
+                         table.getLong(record + RECORD_FAVORITES));
+    }
+
+    /** Reads the string that the record fields at the given offsets point to. Returns null if the length is -1. */
+    private String readString(int offsetField, int lengthField) throws IOException {
+        byte[] bytes = readBytes(offsetField, lengthField);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Reads the bytes of the string that the record fields at the given offsets point to. Returns null if the length is -1. */
+    private byte[] readBytes(int offsetField, int lengthField) throws IOException {
+        int length = table.getInt(lengthField);
+        if(length < 0) return null;
+
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        long position = table.getLong(offsetField);
+        while(bytes.hasRemaining())
+            if(heap.read(bytes, position + bytes.position()) == -1)
+                throw new IOException("The user directory points past the end of " + tablePath + "'s string heap.");
+        return bytes.array();
+    }
+
+    /** Writes the string to the heap, and makes the record fields at the given offsets point to it.
+     * The string is written where the old string was, if it fits, and otherwise at the end of the heap.
+     */
+    private void writeString(int offsetField, int lengthField, String string) throws IOException {
+        if(string == null) {
+            table.putInt(lengthField, -1);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        int oldLength = table.getInt(lengthField);
+        long position = oldLength >= bytes.length ? table.getLong(offsetField) : heap.size();
+        // The bytes of the old string that the new one doesn't use, or all of them if it is written elsewhere.
+        addGarbage(oldLength >= bytes.length ? oldLength - bytes.length : Math.max(0, oldLength));
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while(buffer.hasRemaining())
+            heap.write(buffer, position + buffer.position());
+
+        table.putLong(offsetField, position);
+        table.putInt(lengthField, bytes.length);
+    }
+
+    /** Creates an empty table with the given capacity, which must be a power of two, and which points into the given heap. */
+    private static void createTable(Path path, int capacity, int heapGeneration) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer newTable = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            newTable.putInt(HEADER_MAGIC, MAGIC);
+            newTable.putInt(HEADER_VERSION, VERSION);
+            newTable.putInt(HEADER_CAPACITY, capacity);
+            newTable.putInt(HEADER_COUNT, 0);
+            newTable.putInt(HEADER_DELETED, 0);
+            newTable.putInt(HEADER_HEAP_GENERATION, heapGeneration);
+            newTable.putLong(HEADER_GARBAGE, 0);
+            newTable.force();
+        }
+    }
+
+    private void mapTable() throws IOException {
+        tableChannel = FileChannel.open(tablePath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        table = tableChannel.map(FileChannel.MapMode.READ_WRITE, 0, tableChannel.size());
+
+        if(table.getInt(HEADER_MAGIC) != MAGIC)
+            throw new IOException("The file " + tablePath + " is not a user directory.");
+        if(table.getInt(HEADER_VERSION) != VERSION)
+            throw new IOException("The file " + tablePath + " has unsupported version " + table.getInt(HEADER_VERSION) + ".");
+
+        capacity = table.getInt(HEADER_CAPACITY);
+        count = table.getInt(HEADER_COUNT);
+        deleted = table.getInt(HEADER_DELETED);
+        heapGeneration = table.getInt(HEADER_HEAP_GENERATION);
+        garbage = table.getLong(HEADER_GARBAGE);
+        if(Integer.bitCount(capacity) != 1 || capacity > MAX_CAPACITY || tableChannel.size() != HEADER_SIZE + (long) capacity * RECORD_SIZE)
+            throw new IOException("The file " + tablePath + " has the wrong size.");
+    }
+
+    /** Rebuilds the table with the same capacity if more than half the heap is garbage, which compacts the heap. */
+    private void compactIfNeeded() throws IOException {
+        if(garbage >= MIN_COMPACTED_GARBAGE && garbage * 2 > heap.size())
+            rebuild(capacity);
+    }
+
+    /** Copies the used records into a new table with the given capacity, dropping the deleted ones,
+     * and their strings into a new heap, dropping the garbage. Then replaces the old table and heap with them.
+     */
+    private void rebuild(int newCapacity) throws IOException {
+        Path newTablePath = tablePath.resolveSibling(tablePath.getFileName() + ".tmp");
+        int newHeapGeneration = heapGeneration + 1;
+        Path newHeapPath = getHeapPath(newHeapGeneration);
+        createTable(newTablePath, newCapacity, newHeapGeneration);
+
+        // A heap of the next generation may be left over from a rebuild that crashed, so it is replaced.
+        try(FileChannel channel = FileChannel.open(newTablePath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FileChannel newHeap = FileChannel.open(newHeapPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer newTable = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            int mask = newCapacity - 1;
+            byte[] record = new byte[RECORD_SIZE];
+
+            for(int slot = 0; slot < capacity; slot++) {
+                int oldRecord = recordOffset(slot);
+                if(table.getInt(oldRecord + RECORD_STATE) != STATE_USED) continue;
+
+                int newSlot = (int) table.getLong(oldRecord + RECORD_HASH) & mask;
+                while(newTable.getInt(recordOffset(newSlot) + RECORD_STATE) != STATE_EMPTY)
+                    newSlot = (newSlot + 1) & mask;
+
+                int newRecord = recordOffset(newSlot);
+                table.get(oldRecord, record);
+                newTable.put(newRecord, record);
+                copyString(oldRecord, newTable, newRecord, RECORD_USERNAME_OFFSET, RECORD_USERNAME_LENGTH, newHeap);
+                copyString(oldRecord, newTable, newRecord, RECORD_PASSWORD_OFFSET, RECORD_PASSWORD_LENGTH, newHeap);
+                copyString(oldRecord, newTable, newRecord, RECORD_IMAGE_OFFSET, RECORD_IMAGE_LENGTH, newHeap);
+            }
+            newTable.putInt(HEADER_COUNT, count);
+            // The new heap must be on disk before the new table that points into it replaces the old one.
+            newHeap.force(false);
+            newTable.force();
+        }
+
+        Path oldHeapPath = getHeapPath(heapGeneration);
+        tableChannel.close();
+        heap.close();
+        try {
+            Files.move(newTablePath, tablePath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(newTablePath, tablePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        mapTable();
+        heap = FileChannel.open(getHeapPath(heapGeneration), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Files.deleteIfExists(oldHeapPath);
+    }
+
+    /** Appends the string of the old record's fields at the given offsets to the new heap, and makes the new record point to it. */
+    private void copyString(int oldRecord, MappedByteBuffer newTable, int newRecord, int offsetField, int lengthField,
+                            FileChannel newHeap) throws IOException {
+        byte[] bytes = readBytes(oldRecord + offsetField, oldRecord + lengthField);
+        if(bytes == null) return;
+
+        long position = newHeap.size();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while(buffer.hasRemaining())
+            newHeap.write(buffer, position + buffer.position());
+        newTable.putLong(newRecord + offsetField, position);
+    }
+
+    private Path getHeapPath(int generation) {
+        return Path.of(basePath + "." + generation + HEAP_FILE_EXTENSION);
+    }
+
+    private void addGarbage(long bytes) {
+        garbage += bytes;
+        table.putLong(HEADER_GARBAGE, garbage);
+    }
+
+    private void setCounts(int newCount, int newDeleted) {
+        count = newCount;
+        deleted = newDeleted;
+        table.putInt(HEADER_COUNT, count);
+        table.putInt(HEADER_DELETED, deleted);
+    }
+
+    /** Returns the offset of the record in the table. Is computed as a {@code long}, so a slot past the end of a table
+     * that can be mapped throws, rather than overflowing into another record.
+     */
+    private static int recordOffset(int slot) {
+        return Math.toIntExact(HEADER_SIZE + (long) slot * RECORD_SIZE);
+    }
+
+    /** A 64 bit FNV-1a hash of the username, which is the same on every run. */
+    private static long hash(String username) {
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < username.length(); i++)
+            hash = (hash ^ username.charAt(i)) * 0x100000001b3L;
+        return hash;
+    }
+
+}
@@ -15,6 +15,8 @@ import data.ObjectSaving.Saveable;
 */
 public abstract class Media implements Saveable {
 
+    private static final long serialVersionUID = -4584024474844752669L;
+
     public final String title;
     public final int releaseYear;
     public final float rating;
@@ -186,6 +188,27 @@ public abstract class Media implements Saveable {
 
     public final String imagePath;
 
+    /** The id given to this media by the {@link MediaIds} of a catalog, so that the catalog doesn't have to hash it.
+     * Is null until a catalog first gives it an id, which is also its value after the media has been deserialized.
+     * Is only used by {@link MediaIds}. The id in any catalog is found by {@link MediaLibrary.Snapshot#getId(Media)}.
+     */
+    transient volatile MediaIds.CachedId cachedId;
+
+    /** The hash code, computed by {@link #computeHashCode()}. Is 0 until it is first needed.
+     * Do not access directly;
+     * use {@link #hashCode()}.
+     */
+    transient private int hash;
+
+    /** The identity key. Is 0 until it is first needed.
+     * Do not access directly;
+     * use {@link #getIdentityKey()}.
+     */
+    transient private long identityKey;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
     protected Media(String title, int releaseYear, String[] categories, float rating, String imagePath) {
         Objects.requireNonNull(title);
         Objects.requireNonNull(categories);
@@ -202,13 +225,59 @@ public abstract class Media implements Saveable {
             this.imagePath = imagePath + "/" + title + ".jpg";
     }
 
+    /** Returns the path of the folder containing the image, as it was given to the constructor.
+     * Passing it to the constructor again results in the same {@link #imagePath}.
+     * @return The path of the image folder.
+     */
+    String getImageFolderPath() {
+        return imagePath.substring(0, imagePath.length() - (title + ".jpg").length());
+    }
+
+    /** Returns a key made from the type, title and release year of this media.
+     * <p> Equal media have the same key, so media with different keys are never equal,
+     * which lets {@code equals} return early without comparing every field.
+     * The key only depends on the fields, so it is the same on every run, and after serialization.
+     * <i>Media with the same key are not necessarily equal.</i>
+     * @return The identity key, which is never 0.
+     */
+    long getIdentityKey() {
+        long key = identityKey;
+        if(key == 0) {
+            // 64 bit FNV-1a over the type, the characters of the title, and the release year.
+            key = FNV_OFFSET_BASIS;
+            key = (key ^ getClass().getSimpleName().hashCode()) * FNV_PRIME;
+            for(int i = 0; i < title.length(); i++)
+                key = (key ^ title.charAt(i)) * FNV_PRIME;
+            key = (key ^ releaseYear) * FNV_PRIME;
+            if(key == 0) key = 1;
+            identityKey = key;
+        }
+        return key;
+    }
+
     protected String getCategoriesString() {
         return Stream.of(categories.getNames()).collect(Collectors.joining(", "));
     }
 
     public abstract String toString();
 
-    public abstract int hashCode();
+    /** Returns the hash code, which is only computed the first time, since media can't be changed.
+     * @return The hash code.
+     * @see #computeHashCode()
+     */
+    public final int hashCode() {
+        int h = hash;
+        if(h == 0) {
+            h = computeHashCode();
+            hash = h;
+        }
+        return h;
+    }
+
+    /** Computes the hash code from all the fields that are compared by {@code equals}.
+     * @return The hash code.
+     */
+    protected abstract int computeHashCode();
 
     public abstract boolean equals(Object obj);
 }
@@ -0,0 +1,187 @@
+package domain;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Gives every distinct media of a catalog a small id, so sets of media can be stored as an {@link IdBitmap},
+ * and media can be found by their id.
+ * <p> Each {@link MediaLibrary} has its own ids, which the users of the catalog share. See {@link UserSet#UserSet(MediaIds)}.
+ * Equal media always get the same id. Ids are given out in the order the media are first seen,
+ * and since the catalog is read before most other media, the ids follow the order of the catalog.
+ * <p> The ids start at 1, so that 0 can mean that a media has no id. A media keeps its id after it has left the catalog,
+ * so that the favorites of it can still be found, and so that the id is never given to a different media.
+ * So the ids only live as long as the catalog, and are only valid for it. They must not be saved,
+ * except by {@link CatalogReplication}, which gives the followers of a catalog the ids of its leader.
+ * <p> A follower gives the media that the leader hasn't given an id, such as favorites that have left the catalog,
+ * ids from {@link #FIRST_FOLLOWER_ID}, so that they are never the same as the leader's. If the leader later gives
+ * such a media an id, the media is moved to the leader's id, and the old id still finds it. See {@link #moveIds(IdBitmap)}.
+ * <p> A media remembers the id it was given by one catalog, so finding its id in that catalog doesn't hash it.
+ * <i>Is thread safe.</i>
+ */
+final class MediaIds {
+
+    /** The first id a follower gives out itself. The leader's ids are always lower. */
+    static final int FIRST_FOLLOWER_ID = 1 << 30;
+
+    /** The id that a media was given, and the ids that gave it. Is kept in the media. See {@link Media#cachedId}. */
+    static record CachedId(MediaIds ids, int id) {}
+
+    private final ConcurrentHashMap<Media, Integer> ids = new ConcurrentHashMap<>();
+
+    /** The media with each id below {@link #FIRST_FOLLOWER_ID}, and the media with each id from it.
+     * Each is null if no media has the id, and the first media is always null.
+     * <p> Are only changed while holding this, but are read without it. The array is written to its field again
+     * after each media is put in it, so that a reader who reads the field also sees the media.
+     */
+    private volatile Media[] media = new Media[16];
+    private volatile Media[] followerMedia = new Media[0];
+    // Are guarded by this.
+    private int nextId = 1;
+    private int nextFollowerId = FIRST_FOLLOWER_ID;
+    private boolean isFollowing;
+
+    /** The ids that media have been moved from, and the ids they were moved to. Is guarded by this. */
+    private final Map<Integer, Integer> movedIds = new HashMap<>();
+    private volatile int moveCount;
+
+    /** Returns the id of the given media, giving it one if it doesn't have one yet.
+     * @param media The media.
+     * @return The id of the media.
+     */
+    int register(Media media) {
+        int id = getId(media);
+        if(id != 0) return id;
+        synchronized(this) {
+            Integer existing = ids.get(media);
+            if(existing != null) return existing;
+            if(isFollowing) {
+                id = nextFollowerId++;
+                followerMedia = put(followerMedia, id - FIRST_FOLLOWER_ID, media);
+            } else {
+                id = nextId++;
+                this.media = put(this.media, id, media);
+            }
+            ids.put(media, id);
+        }
+        if(media.cachedId == null) media.cachedId = new CachedId(this, id);
+        return id;
+    }
+
+    /** Returns the id of the given media, without giving it one.
+     * @param media The media.
+     * @return The id of the media, or 0 if it has none.
+     */
+    int getId(Media media) {
+        CachedId cached = media.cachedId;
+        // A moved media may still remember its old id, so then the id is looked up.
+        if(cached != null && cached.ids() == this && moveCount == 0) return cached.id();
+        Integer id = ids.get(media);
+        if(id == null) return 0;
+        if(cached == null) media.cachedId = new CachedId(this, id);
+        return id;
+    }
+
+    /** Gives the media the given id, which the leader of the catalog gave it. If the media had another id, it is moved.
+     * @param media The media.
+     * @param id The id, which must be below {@link #FIRST_FOLLOWER_ID}.
+     * @throws IllegalStateException If a different media already has the id.
+     */
+    synchronized void register(Media media, int id) {
+        if(id <= 0 || id >= FIRST_FOLLOWER_ID)
+            throw new IllegalArgumentException("The id " + id + " can't be given by a leader.");
+        Integer current = ids.get(media);
+        if(current != null && current == id) return;
+
+        Media other = id < this.media.length ? this.media[id] : null;
+        if(other != null && !other.equals(media))
+            throw new IllegalStateException("The id " + id + " already belongs to " + other + ", not to " + media + ".");
+        if(other == null) this.media = put(this.media, id, media);
+        ids.put(media, id);
+        nextId = Math.max(nextId, id + 1);
+        media.cachedId = new CachedId(this, id);
+
+        if(current != null) {
+            // The old id keeps finding the media, and the favorites that have it are moved when they are next used.
+            movedIds.remove(id);
+            movedIds.put(current, id);
+            moveCount++;
+        }
+    }
+
+    /** Returns the media with the given id.
+     * Equal media have the same id, so it may be a different object than the one the id was given to.
+     * @param id The id of the media.
+     * @return The media with the id.
+     * @throws IndexOutOfBoundsException If no media has the id.
+     */
+    Media get(int id) {
+        // Is called for every media a request sends, so it doesn't lock.
+        Media found = null;
+        if(id > 0 && id < FIRST_FOLLOWER_ID) {
+            Media[] media = this.media;
+            if(id < media.length) found = media[id];
+        } else if(id >= FIRST_FOLLOWER_ID) {
+            Media[] followerMedia = this.followerMedia;
+            if(id - FIRST_FOLLOWER_ID < followerMedia.length) found = followerMedia[id - FIRST_FOLLOWER_ID];
+        }
+        if(found == null)
+            throw new IndexOutOfBoundsException("No media has the id " + id + ".");
+        return found;
+    }
+
+    /** Makes this the ids of a follower, which gives the media that the leader hasn't given an id, ids of its own
+     * from {@link #FIRST_FOLLOWER_ID}. Must be called before any media is given an id by this.
+     * @throws IllegalStateException If media have already been given ids by this, which a leader might give to other media.
+     */
+    synchronized void follow() {
+        if(isFollowing) return;
+        if(nextId > 1)
+            throw new IllegalStateException("The catalog already has ids of its own, so it can't follow another catalog.");
+        isFollowing = true;
+    }
+
+    synchronized boolean isFollowing() {
+        return isFollowing;
+    }
+
+    /** Returns the id that will be given to the next media that doesn't have one. */
+    synchronized int getNextId() {
+        return nextId;
+    }
+
+    /** Makes sure that the ids that are given out from now on are at least the given id,
+     * so that ids a leader before this gave to media that are not in the catalog any more, are not given again.
+     * @param nextId The lowest id that may be given out.
+     */
+    synchronized void continueFrom(int nextId) {
+        this.nextId = Math.max(this.nextId, nextId);
+    }
+
+    /** Returns the number of times a media has been moved to another id. Is 0 unless the catalog follows another. */
+    int getMoveCount() {
+        return moveCount;
+    }
+
+    /** Replaces the ids in the given set that media have been moved from, with the ids they were moved to.
+     * @param set The set of ids.
+     */
+    synchronized void moveIds(IdBitmap set) {
+        for(Map.Entry<Integer, Integer> moved : movedIds.entrySet())
+            if(set.remove(moved.getKey())) {
+                int id = moved.getValue();
+                while(movedIds.containsKey(id))
+                    id = movedIds.get(id);
+                set.add(id);
+            }
+    }
+
+    private static Media[] put(Media[] array, int index, Media media) {
+        if(index >= array.length)
+            array = Arrays.copyOf(array, Math.max(index + 1, array.length * 2));
+        array[index] = media;
+        return array;
+    }
+
+}
@@ -1,9 +1,19 @@
 package domain;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 import data.ObjectSaving.Saveable;
@@ -12,23 +22,362 @@ import domain.MediaSorting.SearchCache;
 
 /** A class that represents a library of media. <ul>
  * <p> Use {@link #readMediaFromFiles(String, String)} to read the media from the given files.
+ * <p> Use {@link #readMediaFromFilesInBatches} to read the media, while using the first media before the rest is read.
  * <p> Use {@link #search(String)} to search for media.
  * <p> Use {@link #add(Media)} to add media to the library.
- * <p> Use {@link #remove(Media)} to remove media from the library. </ul>
+ * <p> Use {@link #remove(Media)} to remove media from the library.
+ * <p> Use {@link Builder} to create a library from many media at once. </ul>
+ * <p> The media is published as immutable {@link Snapshot}s. Every change creates a new snapshot with a higher version,
+ * and replaces the old one in a single step. Reading never takes a lock, and always sees the media of one version,
+ * so the library can be read from any number of threads, while media is still being read in the background.
+ * Changes are synchronized with each other.
  */
 public class MediaLibrary implements Saveable, Cloneable {
 
-    /** The set of media in the library. */
-    private final Set<Media> mediaSet;
+    // Same as the one that was generated before it was declared, so old saved files can be loaded.
+    private static final long serialVersionUID = 4872558066058521665L;
 
-    /** The search cache. */
-    // transient means that this field will not be saved, when saving the object.
-    transient private SearchCache searchCache;
+    /** The library used to be saved with its set of media as a field, so it still is. */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("mediaSet", Set.class)
+    };
+
+    /** The current media. Is replaced, never changed, whenever media is added or removed. */
+    private transient volatile Snapshot snapshot;
+
+    /** The ids of the media of the library, which stay the same from one snapshot to the next. See {@link MediaIds}. */
+    private transient MediaIds ids;
+
+    /** Is told about every new snapshot. Is only used while synchronized on this library. <b>May be null.</b> */
+    private transient ChangeListener changeListener;
+
+    /** Is told about every change to the media in a {@link MediaLibrary}.
+     * Is called while synchronized on the library, after the new snapshot has been published,
+     * so it sees the changes in the order they were made, and no other change is made until it returns.
+     */
+    interface ChangeListener {
+        /** @param snapshot The new snapshot.
+         * @param removed The media that were in the old snapshot, but not in the new one.
+         * @param added The media that are in the new snapshot, but were not in the old one.
+         */
+        void mediaChanged(Snapshot snapshot, Set<Media> removed, Set<Media> added);
+    }
+
+    /** The media in the library at one point in time. Never changes, so it can be read from any thread without locks.
+     * <p> Everything that is derived from the media, such as the search cache and the sorted view,
+     * belongs to the snapshot, so it is thrown away together with the snapshot when the library changes.
+     */
+    public static final class Snapshot {
+
+        private final long version;
+        private final Set<Media> mediaSet;
+        private final MediaIds ids;
+        private final SearchCache searchCache = new SearchCache();
+
+        /** The media sorted by the default comparator. Is null until it is needed.
+         * Two threads may sort at the same time, but they get the same result, so it doesn't matter which is kept.
+         */
+        private volatile List<Media> sortedByDefault;
+
+        /** The media split into partitions, for the last number of partitions that was asked for. Is null until it is needed. */
+        private volatile List<Partition> partitions;
+
+        /** The media sorted by each property and order, indexed by {@link #getSortedView}. Each is null until it is needed. */
+        private final AtomicReferenceArray<List<Media>> sortedViews =
+            new AtomicReferenceArray<>(MediaSorting.SortBy.values().length * MediaSorting.SortOrder.values().length);
+
+        private Snapshot(long version, Set<Media> mediaSet, MediaIds ids) {
+            this.version = version;
+            this.mediaSet = Collections.unmodifiableSet(mediaSet);
+            this.ids = ids;
+        }
+
+        /** Returns the version of the snapshot. Is increased by every change to the library,
+         * so two snapshots of the same library with the same version contain the same media.
+         * @return The version.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /** Returns the media in the snapshot.
+         * @return An unmodifiable set of the media.
+         */
+        public Set<Media> getMedia() {
+            return mediaSet;
+        }
+
+        public int size() {
+            return mediaSet.size();
+        }
+
+        /** Returns the id of the given media in the library, which is the same for all equal media,
+         * and is kept from one snapshot to the next. A media that isn't in the library is given an id too,
+         * which it keeps if it is added later. The ids are only valid for the library. See {@link MediaIds}.
+         * @param media The media.
+         * @return The id of the media.
+         */
+        public int getId(Media media) {
+            return ids.register(media);
+        }
+
+        /** Returns the media with the given id, if it is in the snapshot. See {@link #getId(Media)}.
+         * @param id The id of the media.
+         * @return An optional containing the media, which is empty if no media in the snapshot has the id.
+         */
+        public Optional<Media> getMedia(int id) {
+            try {
+                Media media = ids.get(id);
+                return mediaSet.contains(media) ? Optional.of(media) : Optional.empty();
+            } catch (IndexOutOfBoundsException e) {
+                return Optional.empty();
+            }
+        }
+
+        /** Returns the media sorted by the default comparator. Is only sorted the first time.
+         * @return The sorted, unmodifiable list of media.
+         */
+        public List<Media> getSortedByDefault() {
+            List<Media> sorted = sortedByDefault;
+            if(sorted == null)
+                sortedByDefault = sorted = Collections.unmodifiableList(
+                    MediaSorting.sortMedia(mediaSet, MediaSorting.SortBy.DEFAULT, MediaSorting.SortOrder.DEFAULT));
+            return sorted;
+        }
+
+        /** Returns the media sorted by the given property.
+         * @param sortBy The property to sort by.
+         * @param sortOrder The order to sort in.
+         * @return The sorted list of media.
+         */
+        public List<Media> getSortedBy(MediaSorting.SortBy sortBy, MediaSorting.SortOrder sortOrder) {
+            return MediaSorting.sortMedia(mediaSet, sortBy, sortOrder);
+        }
+
+        /** Returns the media sorted by the given property, as a view that is only sorted the first time it is asked for,
+         * and is then shared by everyone who asks for the same order of this snapshot.
+         * @param sortBy The property to sort by.
+         * @param sortOrder The order to sort in.
+         * @return The sorted, unmodifiable list of media.
+         */
+        public List<Media> getSortedView(MediaSorting.SortBy sortBy, MediaSorting.SortOrder sortOrder) {
+            int index = sortBy.ordinal() * MediaSorting.SortOrder.values().length + sortOrder.ordinal();
+            List<Media> sorted = sortedViews.get(index);
+            if(sorted == null) {
+                // Two threads may sort the same order at the same time, and then either of the equal lists is kept.
+                sorted = Collections.unmodifiableList(MediaSorting.sortMedia(mediaSet, sortBy, sortOrder));
+                sortedViews.compareAndSet(index, null, sorted);
+            }
+            return sorted;
+        }
+
+        /** Returns the media split into the given number of partitions, by their ids, so that each can be searched on its own.
+         * Media with the id {@code i} is in the partition {@code i % count}, and since the ids are given out in order,
+         * the partitions are about the same size. Each partition has its own search cache.
+         * <p> Is only split the first time it is asked for, unless it is asked for with a different number of partitions.
+         * See {@link PartitionedSearch}.
+         * @param count The number of partitions.
+         * @return The partitions.
+         */
+        public List<Partition> getPartitions(int count) {
+            List<Partition> current = partitions;
+            if(current != null && current.size() == count) return current;
+
+            List<Set<Media>> sets = new ArrayList<>(count);
+            for(int i = 0; i < count; i++)
+                sets.add(new HashSet<>((int) (mediaSet.size() / count / 0.75f) + 1));
+            for(Media media : mediaSet)
+                sets.get(ids.register(media) % count).add(media);
+
+            List<Partition> split = new ArrayList<>(count);
+            for(Set<Media> set : sets)
+                split.add(new Partition(set));
+            partitions = current = Collections.unmodifiableList(split);
+            return current;
+        }
+
+        /** Returns the media sorted by how well they match the given search string.
+         * See {@link MediaLibrary#getSortedBySearch(String, int, boolean, boolean)}.
+         */
+        public List<Media> getSortedBySearch(String query, int count, boolean useCache, boolean parallel) {
+            return MediaSorting.sortBySearchQueries(mediaSet, query.split("\\s+"), searchCache, count, useCache, parallel);
+        }
+
+        /** Returns the media sorted by how well they match each of the given search strings, evaluated together in one pass.
+         * Gives the same results as calling {@link #getSortedBySearch(String, int, boolean, boolean)} for each search string,
+         * but is much faster for many search strings. See {@link MediaSorting#sortBySearchQueriesBatch}.
+         * @param queries The search strings.
+         * @param count The maximum number of results for each search string. Best results are returned first.
+         * @param useCache Whether to use the search cache.
+         * @return A list with the results of each search string, in the same order.
+         */
+        public List<List<Media>> getSortedBySearch(List<String> queries, int count, boolean useCache) {
+            List<String[]> words = new ArrayList<>(queries.size());
+            for(String query : queries)
+                words.add(query.split("\\s+"));
+            return MediaSorting.sortBySearchQueriesBatch(mediaSet, words, searchCache, count, useCache);
+        }
+
+        /** Returns the media in order of how well they match the given search string, putting each in order only when it is asked for.
+         * Is in the same order as {@link #getSortedBySearch(String, int, boolean, boolean)}, but the first media is ready
+         * without sorting all of them. See {@link MediaSorting#iterateBySearchQueries}.
+         * @param query The search string.
+         * @param useCache Whether to use the search cache.
+         * @return An iterator of the media, best match first.
+         */
+        public Iterator<Media> iterateBySearch(String query, boolean useCache) {
+            return MediaSorting.iterateBySearchQueries(mediaSet, query.split("\\s+"), searchCache, useCache);
+        }
+    }
+
+    /** A part of the media of a snapshot, which is searched on its own. See {@link Snapshot#getPartitions(int)}.
+     * <p> A search of a partition only needs the words of the query, and only gives back the best media with their scores,
+     * so a partition could as well be searched in another process. <i>Is thread safe.</i>
+     */
+    public static final class Partition {
+
+        private final Set<Media> mediaSet;
+        private final SearchCache searchCache = new SearchCache();
+
+        private Partition(Set<Media> mediaSet) {
+            this.mediaSet = Collections.unmodifiableSet(mediaSet);
+        }
+
+        public Set<Media> getMedia() {
+            return mediaSet;
+        }
+
+        /** Returns the best media of the partition for the query words, with their scores.
+         * See {@link MediaSorting#bestBySearchQueries}.
+         * @param queries The words of the query.
+         * @param count The maximum number of results.
+         * @param useCache Whether to use the search cache of the partition.
+         * @return The best media, best first.
+         */
+        public List<MediaSorting.ScoredMedia> search(String[] queries, int count, boolean useCache) {
+            return MediaSorting.bestBySearchQueries(mediaSet, queries, searchCache, count, useCache);
+        }
+    }
 
     /** Creates an empty media library.*/
     MediaLibrary() {
-        mediaSet = new HashSet<>();
-        searchCache = new SearchCache();
+        this(new HashSet<>());
+    }
+
+    /** Creates a media library backed by the given set.
+     * The set must not be used by anything else afterwards.
+     * @param mediaSet The set of media in the library.
+     */
+    private MediaLibrary(Set<Media> mediaSet) {
+        ids = new MediaIds();
+        snapshot = new Snapshot(0, mediaSet, ids);
+    }
+
+    /** Builds a media library from many media at once.
+     * <p> The backing set is sized up front, and nothing that is derived from the media,
+     * such as the search cache or the sorted view, is touched while media is being added.
+     * Instead they are built once for the built library, when they are first needed, which makes building a library
+     * of n media O(n), instead of n separate cache invalidations.
+     */
+    static class Builder {
+
+        /** The set that will back the built library. Null after {@link #build()} has been called. */
+        private Set<Media> mediaSet;
+
+        /** Creates a builder for a library of about the given size.
+         * @param expectedSize The expected number of media.
+         */
+        Builder(int expectedSize) {
+            // HashSet resizes when it is 75% full, so it is sized to fit the expected size below that.
+            mediaSet = new HashSet<>((int) (expectedSize / 0.75f) + 1);
+        }
+
+        /** Adds the given media.
+         * @param media The media to add.
+         * @return This builder. <i>(For method chaining)</i>
+         */
+        Builder add(Media media) {
+            getSet().add(media);
+            return this;
+        }
+
+        /** Adds all the given media.
+         * @param media The media to add.
+         * @return This builder. <i>(For method chaining)</i>
+         */
+        Builder addAll(Media[] media) {
+            Collections.addAll(getSet(), media);
+            return this;
+        }
+
+        /** Adds all media in the given stream. The stream is consumed.
+         * @param media The media to add.
+         * @return This builder. <i>(For method chaining)</i>
+         */
+        Builder addAll(Stream<Media> media) {
+            media.forEachOrdered(getSet()::add);
+            return this;
+        }
+
+        /** Creates the library. Its sorted view is built when it is first asked for.
+         * The builder cannot be used afterwards.
+         * @return The library containing all the added media.
+         */
+        MediaLibrary build() {
+            MediaLibrary library = new MediaLibrary(getSet());
+            mediaSet = null;
+            return library;
+        }
+
+        private Set<Media> getSet() {
+            if(mediaSet == null)
+                throw new IllegalStateException("The library has already been built.");
+            return mediaSet;
+        }
+    }
+
+    /** Returns the current media in the library. The snapshot never changes,
+     * so several calls to it always agree with each other, even if the library is changed meanwhile.
+     * @return The current snapshot.
+     */
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /** Returns the ids of the media of the library, which its users should store their favorites as. See {@link UserSet#UserSet(MediaIds)}. */
+    MediaIds getMediaIds() {
+        return ids;
+    }
+
+    /** Publishes a new snapshot, with a copy of the current media changed by the given change.
+     * Must be called while synchronized on this library.
+     * @param change Changes the copied set, and returns whether it was changed.
+     * @return Whether the media was changed, and a new snapshot was published.
+     */
+    private boolean publish(Predicate<Set<Media>> change) {
+        Snapshot current = snapshot;
+        Set<Media> newSet = new HashSet<>(current.mediaSet);
+        if(!change.test(newSet)) return false;
+        snapshot = new Snapshot(current.version + 1, newSet, ids);
+
+        if(changeListener != null) {
+            Set<Media> removed = new HashSet<>();
+            for(Media media : current.mediaSet)
+                if(!newSet.contains(media)) removed.add(media);
+            Set<Media> added = new HashSet<>();
+            for(Media media : newSet)
+                if(!current.mediaSet.contains(media)) added.add(media);
+            if(!removed.isEmpty() || !added.isEmpty())
+                changeListener.mediaChanged(snapshot, removed, added);
+        }
+        return true;
+    }
+
+    /** Sets the listener that is told about every change to the media.
+     * @param changeListener The listener, or null to remove it.
+     */
+    synchronized void setChangeListener(ChangeListener changeListener) {
+        this.changeListener = changeListener;
     }
 
     /** Creates a new media library that contains all media in the given files.
@@ -54,7 +403,7 @@ public class MediaLibrary implements Saveable, Cloneable {
      * @throws MediaParsing.InvalidStringFormatException If the files are not formatted correctly.
      * <i>All successfully parsed media will still be added to the library.</i>
      */
-    void readMediaFromFiles(String filePathMovies, String filePathSeries, String filePathMovieImages, String filePathSeriesImages)
+    synchronized void readMediaFromFiles(String filePathMovies, String filePathSeries, String filePathMovieImages, String filePathSeriesImages)
     throws IOException, InvalidStringFormatException {
 
         Media[] mediaArray;
@@ -69,15 +418,54 @@ public class MediaLibrary implements Saveable, Cloneable {
             exception = e;
         }
 
+        // Give the media ids in the order of the catalog. See MediaIds.
+        for(Media media : mediaArray)
+            ids.register(media);
+
         // Update media library
-        mediaSet.clear();
-        Stream.of(mediaArray).forEach(media -> mediaSet.add(media));
-        searchCache.clear();
+        Media[] newMedia = mediaArray;
+        publish(set -> {
+            set.clear();
+            Collections.addAll(set, newMedia);
+            return true;
+        });
 
         // Throw exception if unsuccessful
         if (exception != null) throw exception;
     }
 
+    /** Clears the library, and then re-reads the media files in batches.
+     * Each batch is added to the library, before it is given to the consumer,
+     * so the library can be used while the rest of the files are being read.
+     * <p><i>If some lines were not formatted correctly, an exception will be thrown,
+     * but the all successfully parsed media will still be added to the library.</i>
+     * @param filePathMovies The path to the file containing movies.
+     * @param filePathSeries The path to the file containing series.
+     * @param batchSize The maximum number of media in each batch.
+     * @param batchConsumer The consumer that is given each batch, after it has been added.
+     * @throws IOException If the files could not be read.
+     * @throws MediaParsing.InvalidStringFormatException If the files are not formatted correctly.
+     * <i>All successfully parsed media will still be added to the library.</i>
+     * @see MediaParsing#parseFilesInBatches
+     */
+    void readMediaFromFilesInBatches(String filePathMovies, String filePathSeries, String filePathMovieImages, String filePathSeriesImages,
+                                     int batchSize, Consumer<List<Media>> batchConsumer)
+    throws IOException, InvalidStringFormatException {
+
+        removeAll();
+
+        MediaParsing.parseFilesInBatches(filePathMovies, filePathSeries, filePathMovieImages, filePathSeriesImages, batchSize, batch -> {
+            // Give the media ids in the order of the catalog. See MediaIds.
+            batch.forEach(ids::register);
+
+            // Only hold the lock while adding, so that the library can be read between batches.
+            synchronized(this) {
+                publish(set -> set.addAll(batch));
+            }
+            batchConsumer.accept(batch);
+        });
+    }
+
     /** Returns the media library sorted by the given search string.
      * Searches by title and category, <i>case insensitive</i>.
      * @param query The query to search for.
@@ -86,7 +474,8 @@ public class MediaLibrary implements Saveable, Cloneable {
      * @return A set of media that matches the given query.
      */
     List<Media> getSortedBySearch(String query, boolean useCache, boolean parallel) {
-        return getSortedBySearch(query, mediaSet.size(), useCache, parallel);
+        Snapshot current = snapshot;
+        return current.getSortedBySearch(query, current.size(), useCache, parallel);
     }
 
     /** Returns the media library sorted by the given search string.
@@ -98,7 +487,7 @@ public class MediaLibrary implements Saveable, Cloneable {
      * @return A set of media that matches the given query.
      */
     List<Media> getSortedBySearch(String query, int count, boolean useCache, boolean parallel) {
-        return MediaSorting.sortBySearchQueries(mediaSet, query.split("\\s+"), searchCache, count, useCache, parallel);
+        return snapshot.getSortedBySearch(query, count, useCache, parallel);
     }
 
     /** Returns a sorted list of the library,
@@ -108,45 +497,79 @@ public class MediaLibrary implements Saveable, Cloneable {
      * @return The sorted list of media.
      */
     List<Media> getSortedBy(MediaSorting.SortBy sortBy, MediaSorting.SortOrder sortOrder) {
-        return MediaSorting.sortMedia(mediaSet, sortBy, sortOrder);
+        return snapshot.getSortedBy(sortBy, sortOrder);
     }
 
     /** Returns a sorted list of the library,
      * using the default sorting method.
-     * @return The sorted list of media.
+     * <p> The list is only sorted again if the library has been modified since last time.
+     * @return The sorted, unmodifiable list of media.
      */
     List<Media> getSortedByDefault() {
-        return MediaSorting.sortMedia(mediaSet, MediaSorting.SortBy.DEFAULT, MediaSorting.SortOrder.DEFAULT);
+        return snapshot.getSortedByDefault();
     }
 
-    /** Adds the given media to the library, and clears the search cache.
+    /** Adds the given media to the library.
      * @param media The media to add.
+     * @return Whether the media was added, which is false if it was already in the library.
      */
-    void add(Media media) {
-        mediaSet.add(media);
-        searchCache.clear();
+    synchronized boolean add(Media media) {
+        if(snapshot.mediaSet.contains(media)) return false;
+        return publish(set -> set.add(media));
     }
 
-    /** Adds all media in the given library to this library, and clears the search cache.
+    /** Adds all media in the given library to this library.
      * @param media The set of media to add.
      */
-    void addAll(MediaLibrary media) {
-        mediaSet.addAll(media.mediaSet);
-        searchCache.clear();
+    synchronized void addAll(MediaLibrary media) {
+        Collection<Media> newMedia = media.snapshot.mediaSet;
+        publish(set -> set.addAll(newMedia));
     }
 
-    /** Removes the given media from the library, and clears the search cache.
+    /** Adds all the given media to this library, in a single new snapshot.
+     * @param media The media to add.
+     */
+    synchronized void addAll(Media[] media) {
+        publish(set -> Collections.addAll(set, media));
+    }
+
+    /** Removes and adds the given media, in a single new snapshot. A media that is changed is removed as it was, and added as it is.
+     * @param removed The media to remove.
+     * @param added The media to add.
+     * @return Whether the media was changed.
+     */
+    synchronized boolean update(Collection<Media> removed, Collection<Media> added) {
+        if(removed.isEmpty() && added.isEmpty()) return false;
+        return publish(set -> set.removeAll(removed) | set.addAll(added));
+    }
+
+    /** Replaces all media in the library, in a single new snapshot.
+     * @param media The new media.
+     */
+    synchronized void replaceAll(Collection<Media> media) {
+        publish(set -> {
+            set.clear();
+            set.addAll(media);
+            return true;
+        });
+    }
+
+    /** Removes the given media from the library.
      * @param media The media to remove.
+     * @return Whether the media was removed, which is false if it wasn't in the library.
      */
-    void remove(Media media) {
-        mediaSet.remove(media);
-        searchCache.clear();
+    synchronized boolean remove(Media media) {
+        if(!snapshot.mediaSet.contains(media)) return false;
+        return publish(set -> set.remove(media));
     }
 
-    /** Clears the library, and clears the search cache. */
-    void removeAll() {
-        mediaSet.clear();
-        searchCache.clear();
+    /** Clears the library. */
+    synchronized void removeAll() {
+        if(snapshot.mediaSet.isEmpty()) return;
+        publish(set -> {
+            set.clear();
+            return true;
+        });
     }
 
     /** Returns whether the library contains the given media.
@@ -154,28 +577,31 @@ public class MediaLibrary implements Saveable, Cloneable {
      * @return Whether the library contains the given media.
      */
     boolean contains(Media media) {
-        return mediaSet.contains(media);
+        return snapshot.mediaSet.contains(media);
     }
 
     /** Returns the number of media in the library.
      * @return The number of media in the library.
      */
     int size() {
-        return mediaSet.size();
+        return snapshot.mediaSet.size();
     }
 
     /** Clones the media library. Media are immutable,
      * so we don't need to clone them.
+     * <p> Snapshots never change, so the clone simply starts with the current snapshot,
+     * and shares the ids of this library, so that the media have the same ids in both.
      * @return A clone of the media library.
     */
     public MediaLibrary clone() {
         MediaLibrary newLibrary = new MediaLibrary();
-        mediaSet.forEach(media -> newLibrary.add(media));
+        newLibrary.ids = ids;
+        newLibrary.snapshot = snapshot;
         return newLibrary;
     }
     
     public int hashCode() {
-        return 37 * mediaSet.hashCode();
+        return 37 * snapshot.mediaSet.hashCode();
     }
 
     /** Returns whether the given object is equal to this media library.
@@ -186,12 +612,23 @@ public class MediaLibrary implements Saveable, Cloneable {
         if (obj == this) return true;
         if (!(obj instanceof MediaLibrary)) return false;
         MediaLibrary other = (MediaLibrary) obj;
-        return mediaSet.equals(other.mediaSet);
+        return snapshot.mediaSet.equals(other.snapshot.mediaSet);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("mediaSet", new HashSet<>(snapshot.mediaSet));
+        out.writeFields();
     }
 
+    @SuppressWarnings("unchecked")
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
-        in.defaultReadObject();
-        searchCache = new SearchCache();
+        ObjectInputStream.GetField fields = in.readFields();
+        Set<Media> mediaSet = (Set<Media>) fields.get("mediaSet", null);
+        if(mediaSet == null)
+            throw new IOException("The saved media library has no media.");
+        ids = new MediaIds();
+        snapshot = new Snapshot(0, new HashSet<>(mediaSet), ids);
     }
 
 }
@@ -1,13 +1,17 @@
 package domain;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import data.FileReading;
 
 /** Effectively just functions as a namespace for functions that parse files.
  * <p> Use {@link #parseFiles(String, String)} to read parse movie and series files.
+ * <p> Use {@link #parseFilesInBatches} to parse the files while they are being read.
  * <p> Contains {@link #InvalidStringFormatException} for when a string is formatted incorrectly.
  */
 public class MediaParsing {
@@ -63,6 +67,100 @@ public class MediaParsing {
         return lines;
     }
 
+    /** Reads and parses the given files lazily, and hands the parsed media to the consumer in batches.
+     * <p> Unlike {@link #parseFiles}, the first batch is handed over as soon as it has been parsed,
+     * so the time until the first media is available does not depend on the size of the files.
+     * The consumer is called on the calling thread, and the next lines are not read
+     * before the consumer returns, so a slow consumer simply slows down the parsing.
+     * <p> Lines must be written in the format specified at {@link #parseStringToMedia}.
+     * @param filePathMovies The path to the file containing movies. Fx. {@code ".Data/film.txt"}.
+     * @param filePathSeries The path to the file containing series. Fx. {@code ".Data/serier.txt"}.
+     * @param batchSize The maximum number of media in each batch.
+     * @param batchConsumer The consumer that is given each batch of parsed media.
+     * @throws IOException If an I/O error occurs trying to read from the files.
+     * @throws InvalidStringFormatException If a line in the files is not written in the correct format.
+     * <i>All successfully parsed media will still have been given to the consumer.</i>
+     */
+    public static void parseFilesInBatches(String filePathMovies, String filePathSeries, String filePathMovieImages, String filePathSeriesImages,
+                                           int batchSize, Consumer<List<Media>> batchConsumer)
+    throws IOException, InvalidStringFormatException {
+        if(batchSize < 1)
+            throw new IllegalArgumentException("The batch size must be at least 1.");
+
+        BatchParser parser = new BatchParser(batchSize, batchConsumer);
+
+        try {
+            try(Stream<String> lines = FileReading.streamLinesFromFile(filePathMovies)) {
+                lines.forEach(line -> parser.parse(line, filePathMovieImages));
+            }
+            try(Stream<String> lines = FileReading.streamLinesFromFile(filePathSeries)) {
+                lines.forEach(line -> parser.parse(line, filePathSeriesImages));
+            }
+        }
+        // Files.lines wraps errors that happen while reading in an unchecked exception.
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        parser.finish();
+    }
+
+    /** Collects parsed media into batches, and remembers the lines that could not be parsed.
+     * Used by {@link #parseFilesInBatches}.
+     */
+    private static class BatchParser {
+
+        private final int batchSize;
+        private final Consumer<List<Media>> batchConsumer;
+
+        private List<Media> batch;
+        private int parsedCount = 0;
+
+        // In case of an exception, we want to throw it after we have attempted to parse all lines.
+        private InvalidStringFormatException exception = null;
+        private List<String> invalidStrings = null;
+
+        private BatchParser(int batchSize, Consumer<List<Media>> batchConsumer) {
+            this.batchSize = batchSize;
+            this.batchConsumer = batchConsumer;
+            this.batch = new ArrayList<>(batchSize);
+        }
+
+        /** Parses a single line, and hands over the batch if it is full. */
+        private void parse(String line, String imagesPath) {
+            try {
+                Media media = parseStringToMedia(line, imagesPath);
+                if(media == null) return;
+                batch.add(media);
+                parsedCount++;
+            }
+            // If an exception is thrown, we want to save it and continue parsing.
+            catch (InvalidStringFormatException e) {
+                if(exception == null) exception = e;
+                if(invalidStrings == null) invalidStrings = new ArrayList<String>();
+                invalidStrings.add(line);
+            }
+
+            if(batch.size() >= batchSize) flush();
+        }
+
+        /** Hands over the current batch, if it is not empty. */
+        private void flush() {
+            if(batch.isEmpty()) return;
+            batchConsumer.accept(List.copyOf(batch));
+            batch = new ArrayList<>(batchSize);
+        }
+
+        /** Hands over the last batch, and throws the saved exception if any line was invalid. */
+        private void finish() throws InvalidStringFormatException {
+            flush();
+            if(exception != null)
+                throw new InvalidStringFormatException(exception.errorDescription,
+                                                       invalidStrings.toArray(new String[invalidStrings.size()]),
+                                                       parsedCount);
+        }
+    }
+
     private static Media[] parseLinesToMedia(String[] lines, String imagePath) throws InvalidStringFormatException {
         return parseLinesToMedia(new String[][] {lines}, imagePath);
     }
@@ -355,6 +453,19 @@ public class MediaParsing {
             this.successfullyParsed = successfullyParsed;
         }
 
+        /** Used when the successfully parsed media have already been handed over, fx. in batches.
+         * In that case {@link #successfullyParsed} is empty.
+         */
+        public InvalidStringFormatException(String errorDescription, String[] invalidStrings, int successfullyParsedCount) {
+            super(errorDescription + ": \"" + invalidStrings[0].strip() +
+                (invalidStrings.length == 1 ? "\"" : "\" and " + (invalidStrings.length - 1) + " more.") +
+                " Successfully parsed: " + successfullyParsedCount + " media."
+            );
+            this.errorDescription = errorDescription;
+            this.invalidStrings = invalidStrings;
+            this.successfullyParsed = new Media[0];
+        }
+
     }
     
 }
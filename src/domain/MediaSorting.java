@@ -1,12 +1,17 @@
 package domain;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
@@ -18,6 +23,7 @@ import java.util.stream.Stream;
 
 /** Effectively functions as a namespace for functions that search for media.
  * <p> Use {@link #sortBySearchQueries(String[], Set, SearchCache, int, boolean, boolean))} to search for media.
+ * <p> Use {@link #sortBySearchQueriesBatch(Set, List, SearchCache, int, boolean)} to search for many queries at once.
  * <p> Use the {@link #SearchCache} class to cache search results.
  */
 public class MediaSorting {
@@ -38,9 +44,14 @@ public class MediaSorting {
      * because it depends on the media library,
      * but is instead passed as a parameter to the search functions.
      * <p><i> The cache should be cleared whenever the media library is modified.</i>
+     * <p> Can be used by many searches at the same time. If two searches for the same query
+     * miss the cache at the same time, both calculate it, and the result of the last one is kept.
      */
     public static class SearchCache {
-        private final Map<String, Map<Media, Integer>> cache = new HashMap<>();
+        private final Map<String, Map<Media, Integer>> cache = new ConcurrentHashMap<>();
+
+        /** The cache is cleared when it holds this many queries, so that many different queries can't use up the memory. */
+        private static final int MAX_QUERIES = 4096;
 
         /** Clears the cache. Should be used when media library is modified. */
         public void clear() {
@@ -62,6 +73,7 @@ public class MediaSorting {
          * @return The scoring map just added. <i>(For method chaining)</i>
          */
         private Map<Media, Integer> add(String query, Map<Media, Integer> result) {
+            if(cache.size() >= MAX_QUERIES) cache.clear();
             cache.put(query, result);
             return result;
         }
@@ -72,8 +84,9 @@ public class MediaSorting {
      * So if the first int of the array is 5, then the first category has a score of 5, from this query.
      * Because this cache is for scoring categories, and categories are constant during runtime,
      * then this cache can be stored locally and statically in this class.
+     * <p> Is shared by every search, on every thread, so it is concurrent.
      */
-    private static final Map<String, int[]> searchCategoryCache = new HashMap<>();
+    private static final Map<String, int[]> searchCategoryCache = new ConcurrentHashMap<>();
 
     /** The default comparator for comparing Media.
      * First compares by title (alphabetically), then by year (newest first).
@@ -128,23 +141,9 @@ public class MediaSorting {
      * @return A map mapping from media to a search score.
      */
     private static Map<Media, Integer> calcSearchScorerByCategory(String query, Set<Media> media) {
-        final int[] categoryScores;
-
         // If the query is already in the category cache, use it.
-        if(searchCategoryCache.containsKey(query))
-            categoryScores = searchCategoryCache.get(query);
-            
-        // Otherwise, calculate how well the query matches each category
-        else {
-            categoryScores =            // Get the names of all categories
-                Media.CategoryList.names.stream()
-                                        // Calculate the search score for each category
-                                        .mapToInt(c -> calcSearchScore(query, c))
-                                        // Convert the stream to an array
-                                        .toArray();
-            // And add the result to the cache
-            searchCategoryCache.put(query, categoryScores);
-        }
+        // Otherwise, calculate how well the query matches each category, and add the result to the cache.
+        final int[] categoryScores = getCategoryScores(query);
 
         // For each media, calculate the maximum search score of its categories,
         // and collect the mapping from media to score in a map
@@ -176,7 +175,63 @@ public class MediaSorting {
      * @return A sorted list of media that matches the given queries.
      */
     public static List<Media> sortBySearchQueries(Set<Media> media, String[] queries, SearchCache cache, int count, boolean useCache, boolean parallel) {
+        final Map<Media, Integer> scoreMap = calcSearchScores(media, queries, cache, useCache, parallel);
+
+        // Creates a comparator that uses the score map to compare media.
+        final Comparator<Media> scoreComparator = getScoreComparator(scoreMap);
+
+        // If only one result is needed, return the media with the highest score.
+        if(count == 1)
+            return scoreMap.keySet()
+                           .stream()
+                           .min(scoreComparator)
+                           .stream()
+                           .collect(Collectors.toList());
         
+        // If multiple results are needed, sort and return the results with the comparator.
+        else
+            return scoreMap.keySet()
+                           .stream()
+                           .sorted(scoreComparator)
+                           .limit(count)
+                           .collect(Collectors.toList());
+    }
+
+    /** Returns the media that matches the given queries, best first, in the same order as {@link #sortBySearchQueries},
+     * but only puts each media in order when it is asked for.
+     * <p> Every media is scored up front, and added to a heap one at a time. That takes O(n log n) time in the worst case,
+     * since {@link PriorityQueue} can only heapify a collection in linear time by its natural ordering, not by a comparator,
+     * but most media only move up a level or two, so it is close to linear, and much cheaper than sorting.
+     * Each media that is asked for then takes logarithmic time, so the first results are ready
+     * long before all of the media could have been sorted, and media that is never asked for is never sorted.
+     * <p> Uses the cache to avoid searching the same query multiple times.
+     * Also caches the results of the search.
+     * @param media The set of media to search in.
+     * @param queries The queries to search for.
+     * @param cache The cache to use.
+     * @param useCache Whether to use the cache.
+     * @return An iterator of the media, best match first. Does not support removing.
+     */
+    public static Iterator<Media> iterateBySearchQueries(Set<Media> media, String[] queries, SearchCache cache, boolean useCache) {
+        final Map<Media, Integer> scoreMap = calcSearchScores(media, queries, cache, useCache, false);
+        final PriorityQueue<Media> heap = new PriorityQueue<>(Math.max(1, scoreMap.size()), getScoreComparator(scoreMap));
+        heap.addAll(scoreMap.keySet());
+
+        return new Iterator<>() {
+            public boolean hasNext() {
+                return !heap.isEmpty();
+            }
+
+            public Media next() {
+                if(heap.isEmpty()) throw new NoSuchElementException();
+                return heap.poll();
+            }
+        };
+    }
+
+    /** Returns a map from each media to the sum of its search scores for each of the queries, by title and by category. */
+    private static Map<Media, Integer> calcSearchScores(Set<Media> media, String[] queries, SearchCache cache, boolean useCache, boolean parallel) {
+
         // Stores the search score of each media. The search score is the number of queries that the media matches.
         final Map<Media, Integer> scoreMap = parallel ? new ConcurrentHashMap<>() : new HashMap<>(); // Uses ConcurrentHashMap if parallel.
 
@@ -194,27 +249,14 @@ public class MediaSorting {
                               // and for each media in the mapping, add the score to the score map.
                               .forEach((m, score) -> scoreMap.merge(m, score, Integer::sum)));
 
-        // Creates a comparator that uses the score map to compare media.
-        final Comparator<Media> scoreComparator =
-            Comparator.comparingInt((ToIntFunction<Media>)scoreMap::get)
-                      .reversed()
-                      .thenComparing(defaultComparator);
+        return scoreMap;
+    }
 
-        // If only one result is needed, return the media with the highest score.
-        if(count == 1)
-            return scoreMap.keySet()
-                           .stream()
-                           .min(scoreComparator)
-                           .stream()
-                           .collect(Collectors.toList());
-        
-        // If multiple results are needed, sort and return the results with the comparator.
-        else
-            return scoreMap.keySet()
-                           .stream()
-                           .sorted(scoreComparator)
-                           .limit(count)
-                           .collect(Collectors.toList());
+    /** Returns a comparator that puts the media with the highest score first, and otherwise uses the default comparator. */
+    private static Comparator<Media> getScoreComparator(Map<Media, Integer> scoreMap) {
+        return Comparator.comparingInt((ToIntFunction<Media>)scoreMap::get)
+                         .reversed()
+                         .thenComparing(defaultComparator);
     }
 
     /** Returns the media that matches the given queries.
@@ -239,6 +281,273 @@ public class MediaSorting {
         return sortBySearchQueries(media, queries, cache, media.size(), useCache, parallel);
     }
 
+    /** Returns the media that matches each of the given queries, exactly as {@link #sortBySearchQueries} would,
+     * but evaluates all of the queries in one pass over the media.
+     * <p> The work that the queries have in common is only done once: <ul>
+     * <li> The titles are split into words once, and words that are in several titles are only scored once.
+     * <li> A word that is in several queries is only scored once, against each distinct word of the titles.
+     * <li> The characters and character pairs of every word are only found once. See {@link WordProfile}. </ul>
+     * Then, for each media, the score of each query is added up from the scores of its words,
+     * and the best {@code count} media of each query are kept in a bounded heap, instead of sorting all media for each query.
+     * <p> Uses the cache to avoid scoring words that have been searched for before, and caches the words that haven't.
+     * @param media The set of media to search in.
+     * @param queries The queries to search for. Each query is the words of one search, as for {@link #sortBySearchQueries}.
+     * @param cache The cache to use.
+     * @param count The number of results to return for each query.
+     * @param useCache Whether to use the cache.
+     * @return A list with a sorted list of the media that matches each query, in the order of the queries.
+     */
+    public static List<List<Media>> sortBySearchQueriesBatch(Set<Media> media, List<String[]> queries, SearchCache cache, int count, boolean useCache) {
+        Media[] mediaArray = media.toArray(Media[]::new);
+
+        // The distinct words of all queries, and the words of each query as indices into them.
+        Map<String, Integer> wordIndices = new HashMap<>();
+        List<String> words = new ArrayList<>();
+        int[][] queryWords = new int[queries.size()][];
+        for(int q = 0; q < queryWords.length; q++) {
+            String[] query = queries.get(q);
+            queryWords[q] = new int[query.length];
+            for(int w = 0; w < query.length; w++)
+                queryWords[q][w] = wordIndices.computeIfAbsent(query[w].toLowerCase(), word -> {
+                    words.add(word);
+                    return words.size() - 1;
+                });
+        }
+
+        // The distinct words of all titles, and the words of each title as indices into them.
+        Map<String, Integer> titleWordIndices = new HashMap<>();
+        List<WordProfile> titleWords = new ArrayList<>();
+        int[][] mediaTitleWords = new int[mediaArray.length][];
+        for(int i = 0; i < mediaArray.length; i++) {
+            String[] titleWordArray = mediaArray[i].title.toLowerCase().split(" ");
+            mediaTitleWords[i] = new int[titleWordArray.length];
+            for(int t = 0; t < titleWordArray.length; t++)
+                mediaTitleWords[i][t] = titleWordIndices.computeIfAbsent(titleWordArray[t], word -> {
+                    titleWords.add(new WordProfile(word));
+                    return titleWords.size() - 1;
+                });
+        }
+
+        // The score of each word, for each media, by title and by category.
+        int[][] wordScores = new int[words.size()][];
+        for(int w = 0; w < wordScores.length; w++) {
+            String word = words.get(w);
+            Map<Media, Integer> cached = useCache ? cache.get(word).orElse(null) : null;
+            int[] titleScores = scoreTitles(word, cached, mediaArray, mediaTitleWords, titleWords);
+            if(useCache && cached == null) {
+                Map<Media, Integer> result = new HashMap<>(mediaArray.length * 2);
+                for(int i = 0; i < mediaArray.length; i++)
+                    result.put(mediaArray[i], titleScores[i]);
+                cache.add(word, result);
+            }
+
+            int[] categoryScores = getCategoryScores(word);
+            for(int i = 0; i < mediaArray.length; i++) {
+                int categoryScore = 0;
+                for(int category : mediaArray[i].categories.getIndices())
+                    categoryScore = Math.max(categoryScore, categoryScores[category]);
+                titleScores[i] += categoryScore;
+            }
+            wordScores[w] = titleScores;
+        }
+
+        // The single pass over the media, which offers each media to the best results of each query.
+        int limit = Math.min(count, mediaArray.length);
+        List<PriorityQueue<ScoredMedia>> best = new ArrayList<>(queryWords.length);
+        for(int q = 0; q < queryWords.length; q++)
+            best.add(new PriorityQueue<>(limit + 1, bestFirst.reversed()));
+
+        for(int i = 0; i < mediaArray.length; i++) {
+            for(int q = 0; q < queryWords.length; q++) {
+                int score = 0;
+                for(int w : queryWords[q])
+                    score += wordScores[w][i];
+
+                offer(best.get(q), limit, score, mediaArray[i]);
+            }
+        }
+
+        List<List<Media>> results = new ArrayList<>(queryWords.length);
+        for(PriorityQueue<ScoredMedia> heap : best) {
+            List<Media> result = new ArrayList<>(heap.size());
+            for(ScoredMedia scored : sortBest(heap))
+                result.add(scored.media());
+            results.add(result);
+        }
+        return results;
+    }
+
+    /** A media and how well it matches a search. Is what each partition of a search sends back,
+     * so that the best media of all partitions can be found without searching again. See {@link #mergeBest}.
+     * @param score The search score, which is the sum of the title and category scores of each query.
+     * @param media The media.
+     */
+    public static record ScoredMedia(int score, Media media) {}
+
+    /** Orders scored media with the highest score first, and otherwise by the default comparator,
+     * which is the same order as {@link #sortBySearchQueries} gives.
+     */
+    public static final Comparator<ScoredMedia> bestFirst =
+        Comparator.comparingInt(ScoredMedia::score).reversed().thenComparing(ScoredMedia::media, defaultComparator);
+
+    /** Returns the best media of the search, with their scores, in the same order as {@link #sortBySearchQueries}.
+     * Only the best {@code count} media are kept while the media is scored, in a bounded heap, so the rest are never sorted.
+     * <p> The score of a media doesn't depend on the other media, so searching parts of a set, and merging the best media
+     * of each part with {@link #mergeBest}, gives the same media as searching the whole set.
+     * @param media The set of media to search in.
+     * @param queries The queries to search for.
+     * @param cache The cache to use.
+     * @param count The maximum number of results to return.
+     * @param useCache Whether to use the cache.
+     * @return The best media, best first.
+     */
+    public static List<ScoredMedia> bestBySearchQueries(Set<Media> media, String[] queries, SearchCache cache, int count, boolean useCache) {
+        Map<Media, Integer> scoreMap = calcSearchScores(media, queries, cache, useCache, false);
+        int limit = Math.min(count, scoreMap.size());
+        PriorityQueue<ScoredMedia> heap = new PriorityQueue<>(limit + 1, bestFirst.reversed());
+        scoreMap.forEach((m, score) -> offer(heap, limit, score, m));
+        return sortBest(heap);
+    }
+
+    /** Merges the best media of several searches, which are each ordered by {@link #bestFirst}, into the best media of them all.
+     * Takes the best of the first media of each list, one at a time, until enough media have been taken.
+     * @param results The results of each search.
+     * @param count The maximum number of media to return.
+     * @return The best media, best first.
+     */
+    public static List<Media> mergeBest(List<List<ScoredMedia>> results, int count) {
+        // Each element is the index of a list, and the index of the next media to take from it.
+        PriorityQueue<int[]> next = new PriorityQueue<>(Math.max(1, results.size()),
+            (a, b) -> bestFirst.compare(results.get(a[0]).get(a[1]), results.get(b[0]).get(b[1])));
+        int total = 0;
+        for(int i = 0; i < results.size(); i++) {
+            total += results.get(i).size();
+            if(!results.get(i).isEmpty()) next.add(new int[] {i, 0});
+        }
+
+        List<Media> merged = new ArrayList<>(Math.min(count, total));
+        while(merged.size() < count && !next.isEmpty()) {
+            int[] head = next.poll();
+            List<ScoredMedia> result = results.get(head[0]);
+            merged.add(result.get(head[1]).media());
+            if(++head[1] < result.size()) next.add(head);
+        }
+        return merged;
+    }
+
+    /** Offers the media to a heap of the best media, which has the worst of them first, and replaces it if this media is better.
+     * A scored media is only created if the media is kept.
+     */
+    private static void offer(PriorityQueue<ScoredMedia> heap, int limit, int score, Media media) {
+        if(heap.size() < limit) heap.add(new ScoredMedia(score, media));
+        else if(limit > 0) {
+            ScoredMedia worst = heap.peek();
+            if(score > worst.score() || score == worst.score() && defaultComparator.compare(media, worst.media()) < 0) {
+                heap.poll();
+                heap.add(new ScoredMedia(score, media));
+            }
+        }
+    }
+
+    private static List<ScoredMedia> sortBest(PriorityQueue<ScoredMedia> heap) {
+        ScoredMedia[] sorted = heap.toArray(ScoredMedia[]::new);
+        Arrays.sort(sorted, bestFirst);
+        return Arrays.asList(sorted);
+    }
+
+    /** Returns the title score of the word for each media, from the cached scores if there are any.
+     * Otherwise the word is scored once against each distinct word of the titles, and each media gets the best score of its title words.
+     */
+    private static int[] scoreTitles(String word, Map<Media, Integer> cached, Media[] media, int[][] mediaTitleWords, List<WordProfile> titleWords) {
+        int[] scores = new int[media.length];
+        if(cached != null) {
+            for(int i = 0; i < media.length; i++)
+                scores[i] = cached.getOrDefault(media[i], 0);
+            return scores;
+        }
+
+        WordProfile profile = new WordProfile(word);
+        int[] titleWordScores = new int[titleWords.size()];
+        for(int t = 0; t < titleWordScores.length; t++)
+            titleWordScores[t] = profile.calcSearchScore(titleWords.get(t));
+
+        for(int i = 0; i < media.length; i++) {
+            int score = 0;
+            for(int t : mediaTitleWords[i])
+                score = Math.max(score, titleWordScores[t]);
+            scores[i] = score;
+        }
+        return scores;
+    }
+
+    /** Returns how well the query matches each category, from the category cache if it is there. See {@link #searchCategoryCache}. */
+    private static int[] getCategoryScores(String query) {
+        if(searchCategoryCache.size() >= SearchCache.MAX_QUERIES) searchCategoryCache.clear();
+        return searchCategoryCache.computeIfAbsent(query, q -> {
+                                        WordProfile profile = new WordProfile(q);
+                                        // Get the names of all categories
+                                        return Media.CategoryList.names.stream()
+                                        // Calculate the search score for each category
+                                        .mapToInt(c -> profile.calcSearchScore(new WordProfile(c)))
+                                        // Convert the stream to an array
+                                        .toArray();
+                                    });
+    }
+
+    /** A word, with the distinct characters and character pairs in it, so that they are only found once for each word.
+     * Scores exactly as {@link MediaSorting#calcSearchScore(String, String)}, but without creating any sets.
+     */
+    private static class WordProfile {
+        private final String word;
+        /** The distinct characters, in order. */
+        private final int[] chars;
+        /** The distinct pairs of characters next to each other, each as the first character in the high bits, in order. */
+        private final int[] pairs;
+
+        private WordProfile(String word) {
+            this.word = word;
+            chars = word.chars().sorted().distinct().toArray();
+            pairs = IntStream.range(1, word.length())
+                             .map(i -> word.charAt(i - 1) << 16 | word.charAt(i))
+                             .sorted().distinct().toArray();
+        }
+
+        /** Returns the score of this word as a query, against the target word. */
+        private int calcSearchScore(WordProfile target) {
+            String query = word;
+            if(query.isEmpty() || target.word.isEmpty())
+                return 0;
+
+            int score = 0;
+            if(query.equals(target.word))
+                score += 2 + 3 + 3 + 3;
+            else {
+                if(query.length() == target.word.length())
+                    score += 2;
+                if(query.charAt(0) == target.word.charAt(0))
+                    score += 3;
+                if(query.charAt(query.length() - 1) == target.word.charAt(target.word.length() - 1))
+                    score += 3;
+            }
+            return score + countShared(chars, target.chars) + countShared(pairs, target.pairs);
+        }
+
+        /** Returns the number of values that are in both sorted arrays. */
+        private static int countShared(int[] a, int[] b) {
+            int count = 0;
+            for(int i = 0, j = 0; i < a.length && j < b.length; ) {
+                if(a[i] < b[j]) i++;
+                else if(a[i] > b[j]) j++;
+                else {
+                    count++;
+                    i++;
+                    j++;
+                }
+            }
+            return count;
+        }
+    }
+
     /** Returns an integer score representing how well the target string matches the query string.
      * <i> The strings should be in lowercase and trimmed. (Meaning no leading or trailing whitespace)</i>
      * <p> Scoring: <ul>
@@ -386,6 +695,15 @@ public class MediaSorting {
      * @return A sorted list of media.
      */
     public static List<Media> sortMedia(Collection<Media> media, SortBy sortBy, SortOrder sortOrder) {
+        return media.stream().sorted(getComparator(sortBy, sortOrder)).collect(Collectors.toList());
+    }
+
+    /** Returns the comparator that {@link #sortMedia} sorts with.
+     * @param sortBy The property to sort by.
+     * @param sortOrder The order to sort in.
+     * @return The comparator.
+     */
+    public static Comparator<Media> getComparator(SortBy sortBy, SortOrder sortOrder) {
         Comparator<Media> comparator = switch (sortBy) {
             case TITLE -> Comparator.comparing(m -> m.title); // Alphabeticallly
             case RELEASE_YEAR -> Comparator.comparingInt((ToIntFunction<Media>)m -> m.releaseYear).reversed(); // Newest first.
@@ -397,7 +715,7 @@ public class MediaSorting {
 
         if (sortOrder == SortOrder.REVERSE) comparator = comparator.reversed();
 
-        return media.stream().sorted(comparator).collect(Collectors.toList());
+        return comparator;
     }
 
 }
@@ -6,6 +6,8 @@ package domain;
 */
 public class Movie extends Media {
 
+    private static final long serialVersionUID = 8229589629173671697L;
+
     /**
      * @param title The title of the movie.
      * @param releaseYear The year the movie was released.
@@ -20,7 +22,7 @@ public class Movie extends Media {
         return title + "; " + releaseYear + "; " + getCategoriesString() + "; " + rating + ";";
     }
 
-    public int hashCode() {
+    protected int computeHashCode() {
         int result = 31;
         result = 37 * result + title.hashCode();
         result = 37 * result + releaseYear;
@@ -40,6 +42,9 @@ public class Movie extends Media {
             return false;
 
         Movie other = (Movie) obj;
+        if (getIdentityKey() != other.getIdentityKey())
+            return false;
+
         return title.equals(other.title) &&
                releaseYear == other.releaseYear &&
                categories.equals(other.categories) &&
@@ -0,0 +1,79 @@
+package domain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Searches the catalog split into partitions, each on its own worker thread, and merges the best media of each partition.
+ * <p> Each search is sent to every partition at once, which finds its best media, and the best media of all partitions
+ * are then merged, in the same order as searching the whole catalog gives. See {@link MediaSorting#mergeBest}.
+ * So a search takes about as long as searching one partition, if there is a core for each partition.
+ * <p> Each partition is always searched on the same worker, so the media and search cache of a partition
+ * stay with one thread. The partitions belong to each snapshot of the catalog, while the workers are kept.
+ * See {@link MediaLibrary.Snapshot#getPartitions(int)}.
+ * <i>Is thread safe.</i>
+ */
+public class PartitionedSearch implements AutoCloseable {
+
+    private final ExecutorService[] workers;
+
+    /** Creates the workers of the given number of partitions. The threads are only started when they are first needed.
+     * @param partitionCount The number of partitions, which is best at the number of cores.
+     */
+    public PartitionedSearch(int partitionCount) {
+        if(partitionCount < 1)
+            throw new IllegalArgumentException("There must be at least one partition.");
+        workers = new ExecutorService[partitionCount];
+        for(int i = 0; i < partitionCount; i++) {
+            String name = "Search partition " + i;
+            workers[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public int getPartitionCount() {
+        return workers.length;
+    }
+
+    /** Returns the media of the catalog sorted by how well they match the given search string,
+     * exactly as {@link MediaLibrary.Snapshot#getSortedBySearch(String, int, boolean, boolean)} would.
+     * @param catalog The catalog to search.
+     * @param query The search string.
+     * @param count The maximum number of results. Best results are returned first.
+     * @param useCache Whether to use the search caches of the partitions.
+     * @return The sorted list of media.
+     */
+    public List<Media> search(MediaLibrary.Snapshot catalog, String query, int count, boolean useCache) {
+        List<MediaLibrary.Partition> partitions = catalog.getPartitions(workers.length);
+        String[] words = query.split("\\s+");
+
+        List<CompletableFuture<List<MediaSorting.ScoredMedia>>> searches = new ArrayList<>(workers.length);
+        for(int i = 0; i < workers.length; i++) {
+            MediaLibrary.Partition partition = partitions.get(i);
+            searches.add(CompletableFuture.supplyAsync(() -> partition.search(words, count, useCache), workers[i]));
+        }
+
+        List<List<MediaSorting.ScoredMedia>> results = new ArrayList<>(workers.length);
+        try {
+            for(CompletableFuture<List<MediaSorting.ScoredMedia>> search : searches)
+                results.add(search.join());
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof RuntimeException cause) throw cause;
+            throw e;
+        }
+        return MediaSorting.mergeBest(results, count);
+    }
+
+    /** Stops the workers. Searches that have already been sent to them are finished. */
+    public void close() {
+        for(ExecutorService worker : workers)
+            worker.shutdown();
+    }
+
+}
@@ -0,0 +1,123 @@
+package domain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/** Measures how much faster many queries are searched for together, with {@link MediaLibrary.Snapshot#getSortedBySearch(List, int, boolean)},
+ * than one at a time, with {@link MediaLibrary.Snapshot#getSortedBySearch(String, int, boolean, boolean)}.
+ * <p> The queries are the start of the words of random titles in the catalog, some with a letter replaced, as users type them.
+ * The search cache is not used, so that every query is searched for.
+ * <p> Prints the queries per second of each way, and how many times faster the batch is.
+ * <p> Run with the numbers of queries as arguments. By default, 10, 100, 1000 and 10000 queries are measured.
+ * <p> Run with {@code --partitions [copies]} to instead measure how long a single search takes with {@link PartitionedSearch},
+ * with 1, 2, 4 and so on partitions, up to twice the number of cores. The catalog is copied the given number of times,
+ * 100 by default, with a number added to each title, so that a search takes long enough for splitting it to matter.
+ */
+class SearchBenchmark {
+
+    private static final int RESULT_COUNT = 20;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        if(args.length > 0 && args[0].equals("--partitions")) {
+            measurePartitions(args.length > 1 ? Integer.parseInt(args[1]) : 100);
+            return;
+        }
+
+        int[] queryCounts = args.length == 0
+            ? new int[] {10, 100, 1_000, 10_000}
+            : Stream.of(args).mapToInt(Integer::parseInt).toArray();
+
+        ApplicationData data = new ApplicationData();
+        data.readMedia();
+        MediaLibrary.Snapshot catalog = data.getCatalog();
+
+        System.out.printf("%d media, %d results per query%n", catalog.size(), RESULT_COUNT);
+        System.out.printf("%10s %16s %16s %8s%n", "Queries", "Single q/s", "Batch q/s", "Speedup");
+        for(int queryCount : queryCounts) {
+            List<String> queries = syntheticQueries(catalog, queryCount, new Random(queryCount));
+            long singleNanos = Long.MAX_VALUE;
+            long batchNanos = Long.MAX_VALUE;
+
+            // The fastest round is reported, since the first rounds include warming up.
+            for(int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                for(String query : queries)
+                    catalog.getSortedBySearch(query, RESULT_COUNT, false, false);
+                singleNanos = Math.min(singleNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                catalog.getSortedBySearch(queries, RESULT_COUNT, false);
+                batchNanos = Math.min(batchNanos, System.nanoTime() - start);
+            }
+
+            System.out.printf("%10d %16.0f %16.0f %8.1f%n", queryCount,
+                queryCount * 1e9 / singleNanos, queryCount * 1e9 / batchNanos, (double) singleNanos / batchNanos);
+        }
+    }
+
+    private static void measurePartitions(int copies) throws Exception {
+        ApplicationData data = new ApplicationData();
+        data.readMedia();
+        List<Media> original = data.getAllMedia();
+        MediaLibrary.Builder builder = new MediaLibrary.Builder(original.size() * copies);
+        for(int copy = 0; copy < copies; copy++) {
+            for(Media media : original) {
+                String title = media.title + " " + copy;
+                String[] categories = media.categories.getNames();
+                builder.add(media instanceof Series series
+                    ? new Series(title, series.releaseYear, series.isEnded, series.endYear, categories, series.rating, seasonLengths(series), series.getImageFolderPath())
+                    : new Movie(title, media.releaseYear, categories, media.rating, media.getImageFolderPath()));
+            }
+        }
+        MediaLibrary.Snapshot catalog = builder.build().getSnapshot();
+        List<String> queries = syntheticQueries(catalog, 200, new Random(1));
+
+        System.out.printf("%d media, %d results per query, %d cores%n", catalog.size(), RESULT_COUNT, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%10s %14s %8s%n", "Partitions", "Mean ms", "Speedup");
+        double firstMillis = 0;
+        for(int partitions = 1; partitions <= 2 * Runtime.getRuntime().availableProcessors(); partitions *= 2) {
+            try(PartitionedSearch search = new PartitionedSearch(partitions)) {
+                long nanos = Long.MAX_VALUE;
+                // The fastest round is reported, since the first rounds include warming up.
+                for(int round = 0; round < ROUNDS; round++) {
+                    long start = System.nanoTime();
+                    for(String query : queries)
+                        search.search(catalog, query, RESULT_COUNT, false);
+                    nanos = Math.min(nanos, System.nanoTime() - start);
+                }
+                double millis = nanos / 1e6 / queries.size();
+                if(partitions == 1) firstMillis = millis;
+                System.out.printf("%10d %14.3f %8.1f%n", partitions, millis, firstMillis / millis);
+            }
+        }
+    }
+
+    private static int[] seasonLengths(Series series) {
+        int[] lengths = new int[series.seasonLengths.length()];
+        for(int i = 0; i < lengths.length; i++)
+            lengths[i] = series.seasonLengths.get(i);
+        return lengths;
+    }
+
+    private static List<String> syntheticQueries(MediaLibrary.Snapshot catalog, int count, Random random) {
+        List<Media> media = catalog.getSortedByDefault();
+        List<String> queries = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            String[] words = media.get(random.nextInt(media.size())).title.toLowerCase().split(" ");
+            StringBuilder query = new StringBuilder();
+            for(String word : words) {
+                if(random.nextInt(3) == 0) continue;
+                StringBuilder typed = new StringBuilder(word.substring(0, 1 + random.nextInt(word.length())));
+                if(typed.length() > 2 && random.nextInt(4) == 0)
+                    typed.setCharAt(random.nextInt(typed.length()), (char) ('a' + random.nextInt(26)));
+                query.append(query.length() == 0 ? "" : " ").append(typed);
+            }
+            queries.add(query.length() == 0 ? words[0] : query.toString());
+        }
+        return queries;
+    }
+
+}
@@ -9,6 +9,8 @@ import java.util.stream.IntStream;
 */
 public class Series extends Media {
 
+    private static final long serialVersionUID = 7260974423213338041L;
+
     public final boolean isEnded;
     
     /** <i>Should only be used if {@link #isEnded} is {@code true}</i>.*/
@@ -52,7 +54,7 @@ public class Series extends Media {
                getSeasonLengthsString() + ";";
     }
 
-    public int hashCode() {
+    protected int computeHashCode() {
         int result = 29;
         result = 39 * result + title.hashCode();
         result = 39 * result + releaseYear;
@@ -75,6 +77,9 @@ public class Series extends Media {
             return false;
         
         Series other = (Series) obj;
+        if (getIdentityKey() != other.getIdentityKey())
+            return false;
+
         return title.equals(other.title) &&
                releaseYear == other.releaseYear &&
                isEnded == other.isEnded &&
@@ -0,0 +1,206 @@
+package domain;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/** Keeps the sessions of logged in users, by opaque tokens, so that a request with a token only costs one map lookup,
+ * instead of finding the user and checking its password again.
+ * <p> A token is random, and says nothing about the user. A session expires when it hasn't been used for the time to live,
+ * and every use moves the expiry forward again. Expired sessions are ended when they are next used, and all of them
+ * now and then by {@link #sweep()}, which should be called after a session is started. When there are too many sessions,
+ * the sweep ends the ones that would expire first.
+ * <p> Ending the sessions of a user, such as when the user is deleted, takes effect right away.
+ * Every session is ended exactly once, however it ends, and the listener is told about it.
+ * <i>Is thread safe.</i>
+ */
+public class SessionCache {
+
+    /** The number of random bytes in a token. */
+    private static final int TOKEN_BYTES = 24;
+
+    /** The expiry of a session is only moved forward when it is used this long after it was last moved, or a tenth of the
+     * time to live if that is shorter, so that a session that is used by many requests at once isn't written by all of them.
+     */
+    private static final long REFRESH_MILLIS = 1000;
+
+    /** The share of the sessions that are kept, when there are too many and the ones that would expire first are ended. */
+    private static final double EVICT_TO = 0.9;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /** A session of a user. The user is found once, when the session is started. */
+    private static final class Session {
+        private final String token;
+        private final User user;
+        private volatile long expiresAt;
+
+        private Session(String token, User user, long expiresAt) {
+            this.token = token;
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long timeToLiveMillis;
+    private final long refreshMillis;
+    private final int maxSessions;
+    private final Consumer<User> onEnd;
+    private final LongSupplier clock;
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+    /** The tokens of the sessions of each user, by username, so that they can all be ended at once. */
+    private final ConcurrentHashMap<String, Set<String>> tokensByUser = new ConcurrentHashMap<>();
+
+    private volatile long lastSweep;
+
+    /** Whether a thread is ending the expired sessions. See {@link #sweep(long)}. */
+    private final AtomicBoolean isSweeping = new AtomicBoolean();
+
+    /** Creates an empty session cache.
+     * @param timeToLiveMillis How long a session lasts after it was last used.
+     * @param maxSessions The most sessions there may be at once.
+     * @param onEnd Is given the user of every session that ends, after it has ended.
+     */
+    public SessionCache(long timeToLiveMillis, int maxSessions, Consumer<User> onEnd) {
+        this(timeToLiveMillis, maxSessions, onEnd, System::currentTimeMillis);
+    }
+
+    /** Creates an empty session cache, which gets the time from the given clock. */
+    SessionCache(long timeToLiveMillis, int maxSessions, Consumer<User> onEnd, LongSupplier clock) {
+        if(timeToLiveMillis <= 0 || maxSessions <= 0)
+            throw new IllegalArgumentException("The time to live and the most sessions must be positive.");
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.refreshMillis = Math.min(REFRESH_MILLIS, timeToLiveMillis / 10);
+        this.maxSessions = maxSessions;
+        this.onEnd = onEnd;
+        this.clock = clock;
+        lastSweep = clock.getAsLong();
+    }
+
+    /** Starts a session of the user. The user must already have been authenticated.
+     * <p> Doesn't end other sessions, since the caller may hold a lock that the listener takes for them,
+     * so {@link #sweep()} should be called afterwards, without holding such a lock.
+     * @param user The user.
+     * @return The token of the session.
+     */
+    public String start(User user) {
+        long now = clock.getAsLong();
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+
+        Session session = new Session(token, user, now + timeToLiveMillis);
+        // Is added while the tokens of the user are locked, so that it can't be added to a set that is being removed.
+        tokensByUser.compute(user.getUsername(), (name, tokens) -> {
+            if(tokens == null) tokens = ConcurrentHashMap.newKeySet();
+            tokens.add(token);
+            return tokens;
+        });
+        sessions.put(token, session);
+        return token;
+    }
+
+    /** Returns the user of the session with the token, and moves the expiry of the session forward.
+     * @param token The token of the session. <p><b>May be null.</b>
+     * @return An optional containing the user, which is empty if there is no such session, or it has expired.
+     */
+    public Optional<User> get(String token) {
+        if(token == null) return Optional.empty();
+        Session session = sessions.get(token);
+        if(session == null) return Optional.empty();
+
+        long now = clock.getAsLong();
+        long expiresAt = session.expiresAt;
+        if(expiresAt <= now) {
+            end(session);
+            return Optional.empty();
+        }
+        if(now + timeToLiveMillis - expiresAt >= refreshMillis)
+            session.expiresAt = now + timeToLiveMillis;
+        return Optional.of(session.user);
+    }
+
+    /** Ends the session with the token.
+     * @param token The token of the session.
+     * @return Whether there was such a session.
+     */
+    public boolean end(String token) {
+        Session session = sessions.get(token);
+        return session != null && end(session);
+    }
+
+    /** Ends all sessions of the user with the given name.
+     * @param username The name of the user.
+     * @return The number of sessions that were ended.
+     */
+    public int endAll(String username) {
+        Set<String> tokens = tokensByUser.get(username);
+        if(tokens == null) return 0;
+        int ended = 0;
+        for(String token : tokens)
+            if(end(token)) ended++;
+        return ended;
+    }
+
+    /** Returns the number of sessions, including the ones that have expired, but haven't been ended yet. */
+    public int size() {
+        return sessions.size();
+    }
+
+    /** Ends the session, unless another thread has ended it already. */
+    private boolean end(Session session) {
+        if(!sessions.remove(session.token, session)) return false;
+        tokensByUser.computeIfPresent(session.user.getUsername(), (name, tokens) -> {
+            tokens.remove(session.token);
+            return tokens.isEmpty() ? null : tokens;
+        });
+        onEnd.accept(session.user);
+        return true;
+    }
+
+    /** Ends the expired sessions, if they haven't been for a while, or if there are too many sessions.
+     * Then, if there are still too many, ends the sessions that would expire first.
+     * <p> The listener is told about the sessions on this thread, so this must not be called while holding a lock
+     * that the listener takes. Does nothing if another thread is already doing it. The other threads don't wait for it.
+     */
+    public void sweep() {
+        long now = clock.getAsLong();
+        if(now - lastSweep < timeToLiveMillis / 4 && sessions.size() <= maxSessions) return;
+        if(!isSweeping.compareAndSet(false, true)) return;
+        try {
+            sweepExpired(now);
+        }
+        finally {
+            isSweeping.set(false);
+        }
+    }
+
+    private void sweepExpired(long now) {
+        lastSweep = now;
+        // The expiries are read once, since they may be moved forward while the sessions are sorted.
+        record Expiry(Session session, long expiresAt) {}
+        List<Expiry> remaining = new ArrayList<>(sessions.size());
+        for(Session session : sessions.values()) {
+            long expiresAt = session.expiresAt;
+            if(expiresAt <= now) end(session);
+            else remaining.add(new Expiry(session, expiresAt));
+        }
+
+        if(remaining.size() < maxSessions) return;
+        remaining.sort(Comparator.comparingLong(Expiry::expiresAt));
+        int toEnd = remaining.size() - (int) (maxSessions * EVICT_TO);
+        for(int i = 0; i < toEnd; i++)
+            end(remaining.get(i).session());
+    }
+
+}
@@ -0,0 +1,152 @@
+package domain;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.RandomAccess;
+
+/** Media kept in sorted order while media is added and removed one at a time.
+ * <p> The media is sorted once, when the list is created. After that, each added media is
+ * inserted where it belongs, and each removed media is found, with a binary search.
+ * <p> The media is stored in an array that is replaced, not changed, whenever media is added or removed.
+ * So {@link #view(boolean)} and {@link #page(int, int, boolean)} can return lists backed directly by the array,
+ * without copying it, and the lists never change afterwards. The lists can also be in reverse order, without copying.
+ * <i>Is not thread safe, but the returned lists can be read from any thread.</i>
+ */
+class SortedMediaList {
+
+    private static final Media[] EMPTY = new Media[0];
+
+    /** The order of the media. Ties are broken by the identity key, so the order doesn't depend on the order of changes. */
+    private final Comparator<Media> comparator;
+
+    private Media[] media;
+
+    /** The lists returned by {@link #view(boolean)}. Are null until they are needed, and after every change. */
+    private List<Media> view, reversedView;
+
+    /** Creates a list of the given media, sorted by the given comparator.
+     * @param comparator The order of the media.
+     * @param media The media. Must not contain the same media twice.
+     */
+    SortedMediaList(Comparator<Media> comparator, Collection<Media> media) {
+        this.comparator = comparator.thenComparingLong(Media::getIdentityKey);
+        this.media = media.toArray(EMPTY);
+        Arrays.sort(this.media, this.comparator);
+    }
+
+    /** Inserts the media where it belongs in the order. Does not check whether it is already in the list.
+     * @param newMedia The media to add.
+     */
+    void add(Media newMedia) {
+        int index = Arrays.binarySearch(media, newMedia, comparator);
+        if(index < 0) index = -index - 1;
+
+        Media[] newArray = new Media[media.length + 1];
+        System.arraycopy(media, 0, newArray, 0, index);
+        newArray[index] = newMedia;
+        System.arraycopy(media, index, newArray, index + 1, media.length - index);
+        media = newArray;
+        view = reversedView = null;
+    }
+
+    /** Removes the media, if it is in the list.
+     * @param oldMedia The media to remove.
+     * @return Whether the media was removed.
+     */
+    boolean remove(Media oldMedia) {
+        int index = indexOf(oldMedia);
+        if(index < 0) return false;
+
+        Media[] newArray = new Media[media.length - 1];
+        System.arraycopy(media, 0, newArray, 0, index);
+        System.arraycopy(media, index + 1, newArray, index, media.length - index - 1);
+        media = newArray;
+        view = reversedView = null;
+        return true;
+    }
+
+    int size() {
+        return media.length;
+    }
+
+    /** Returns an unmodifiable list of the media in sorted order, backed by the current array.
+     * @param isReversed Whether the list is in reverse order.
+     * @return The sorted media.
+     */
+    List<Media> view(boolean isReversed) {
+        if(isReversed) {
+            if(reversedView == null) reversedView = new ArrayView(media, 0, media.length, true);
+            return reversedView;
+        }
+        if(view == null) view = new ArrayView(media, 0, media.length, false);
+        return view;
+    }
+
+    /** Returns an unmodifiable list of one page of the media in sorted order, backed by the current array.
+     * @param pageIndex The index of the page, starting at 0.
+     * @param pageSize The number of media on each page.
+     * @param isReversed Whether the pages are in reverse order.
+     * @return The media on the page, which is empty if the page is after the last media.
+     */
+    List<Media> page(int pageIndex, int pageSize, boolean isReversed) {
+        if(pageIndex < 0 || pageSize <= 0)
+            throw new IllegalArgumentException("The page index cannot be negative, and the page size must be positive.");
+
+        int from = (int) Math.min((long) pageIndex * pageSize, media.length);
+        int to = (int) Math.min((long) from + pageSize, media.length);
+        return view(isReversed).subList(from, to);
+    }
+
+    /** Finds the media with a binary search. Since media that compare equal aren't necessarily equal,
+     * the media around the found index that compare equal are checked too.
+     */
+    private int indexOf(Media target) {
+        int index = Arrays.binarySearch(media, target, comparator);
+        if(index < 0) return -1;
+        if(media[index].equals(target)) return index;
+
+        for(int i = index - 1; i >= 0 && comparator.compare(media[i], target) == 0; i--)
+            if(media[i].equals(target)) return i;
+        for(int i = index + 1; i < media.length && comparator.compare(media[i], target) == 0; i++)
+            if(media[i].equals(target)) return i;
+        return -1;
+    }
+
+    /** An unmodifiable list backed by a range of an array that is never changed, in either order. */
+    private static final class ArrayView extends AbstractList<Media> implements RandomAccess {
+
+        private final Media[] array;
+        private final int from;
+        private final int to;
+        private final boolean isReversed;
+
+        private ArrayView(Media[] array, int from, int to, boolean isReversed) {
+            this.array = array;
+            this.from = from;
+            this.to = to;
+            this.isReversed = isReversed;
+        }
+
+        public Media get(int index) {
+            if(index < 0 || index >= to - from)
+                throw new IndexOutOfBoundsException(index);
+            return isReversed ? array[to - 1 - index] : array[from + index];
+        }
+
+        public int size() {
+            return to - from;
+        }
+
+        public List<Media> subList(int fromIndex, int toIndex) {
+            if(fromIndex < 0 || toIndex > size() || fromIndex > toIndex)
+                throw new IndexOutOfBoundsException();
+            if(isReversed)
+                return new ArrayView(array, to - toIndex, to - fromIndex, true);
+            return new ArrayView(array, from + fromIndex, from + toIndex, false);
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package domain;
+
+import java.nio.ByteBuffer;
+
+/** Made up videos for the media, standing in for the real videos, so that streaming can be tried out and measured without them.
+ * <p> Every movie has one video, and every episode of a series has one video, see {@link Series#seasonLengths}.
+ * A video is split into segments of {@link #SEGMENT_SECONDS} seconds, which all have the same size, given by the bit rate.
+ * <p> The length and the bytes of a video are made up, but are generated from a seed that only depends on
+ * the media and the episode, so that a video is always the same, across runs and across machines.
+ * Any range of bytes of a segment can be generated on its own, without generating the rest of the segment.
+ */
+public class SyntheticContent {
+
+    /** The length of every segment in seconds. */
+    public static final int SEGMENT_SECONDS = 4;
+
+    /** The default bit rate, which gives segments of a million bytes. */
+    public static final int DEFAULT_BITS_PER_SECOND = 2_000_000;
+
+    private static final int MIN_MOVIE_MINUTES = 80;
+    private static final int MAX_MOVIE_MINUTES = 180;
+    private static final int MIN_EPISODE_MINUTES = 20;
+    private static final int MAX_EPISODE_MINUTES = 60;
+
+    private SyntheticContent() {}
+
+    /** A made up video.
+     * @param name The name of the video, such as {@code "Breaking Bad S1E2"}.
+     * @param seed The seed that the bytes of the video are generated from.
+     * @param segmentCount The number of segments.
+     * @param segmentSize The size of every segment in bytes.
+     */
+    public static record Video(String name, long seed, int segmentCount, int segmentSize) {
+
+        /** Returns the size of the whole video in bytes. */
+        public long size() {
+            return (long) segmentCount * segmentSize;
+        }
+
+        /** Returns the length of the whole video in seconds. */
+        public int durationSeconds() {
+            return segmentCount * SEGMENT_SECONDS;
+        }
+
+        /** Fills the buffer with the bytes of a segment, starting at the given offset in the segment.
+         * Stops at the end of the segment, if the buffer has more room than that.
+         * @param segment The index of the segment.
+         * @param offset The offset in the segment to start at.
+         * @param destination The buffer to put the bytes in.
+         * @return The number of bytes put in the buffer.
+         * @throws IndexOutOfBoundsException If there is no such segment, or the offset is outside the segment.
+         */
+        public int fill(int segment, long offset, ByteBuffer destination) {
+            if(segment < 0 || segment >= segmentCount)
+                throw new IndexOutOfBoundsException("The video has no segment " + segment + ".");
+            if(offset < 0 || offset > segmentSize)
+                throw new IndexOutOfBoundsException("The offset " + offset + " is outside the segment.");
+
+            int count = (int) Math.min(destination.remaining(), segmentSize - offset);
+            long segmentSeed = mix(seed + segment * 0x9E3779B97F4A7C15L);
+            long position = offset;
+            long end = offset + count;
+
+            // The bytes are the big-endian bytes of a sequence of pseudo random words, so whole words can be put at once.
+            while(position < end && position % 8 != 0)
+                destination.put(byteAt(segmentSeed, position++));
+            while(end - position >= 8) {
+                destination.putLong(word(segmentSeed, position / 8));
+                position += 8;
+            }
+            while(position < end)
+                destination.put(byteAt(segmentSeed, position++));
+            return count;
+        }
+
+        private static byte byteAt(long segmentSeed, long position) {
+            return (byte) (word(segmentSeed, position / 8) >>> (56 - 8 * (position % 8)));
+        }
+
+        private static long word(long segmentSeed, long index) {
+            return mix(segmentSeed ^ index * 0xBF58476D1CE4E5B9L);
+        }
+    }
+
+    /** Returns the video of a movie, at the default bit rate.
+     * @param movie The movie.
+     * @return The video.
+     */
+    public static Video movie(Movie movie) {
+        return movie(movie, DEFAULT_BITS_PER_SECOND);
+    }
+
+    /** Returns the video of a movie.
+     * @param movie The movie.
+     * @param bitsPerSecond The bit rate of the video.
+     * @return The video.
+     */
+    public static Video movie(Movie movie, int bitsPerSecond) {
+        long seed = mix(mediaSeed(movie));
+        return new Video(movie.title, seed, segmentCount(seed, MIN_MOVIE_MINUTES, MAX_MOVIE_MINUTES), segmentSize(bitsPerSecond));
+    }
+
+    /** Returns the video of an episode of a series, at the default bit rate.
+     * @param series The series.
+     * @param season The number of the season, starting from 1.
+     * @param episode The number of the episode in the season, starting from 1.
+     * @return The video.
+     * @throws IllegalArgumentException If the series has no such episode.
+     */
+    public static Video episode(Series series, int season, int episode) {
+        return episode(series, season, episode, DEFAULT_BITS_PER_SECOND);
+    }
+
+    /** Returns the video of an episode of a series.
+     * @param series The series.
+     * @param season The number of the season, starting from 1.
+     * @param episode The number of the episode in the season, starting from 1.
+     * @param bitsPerSecond The bit rate of the video.
+     * @return The video.
+     * @throws IllegalArgumentException If the series has no such episode.
+     */
+    public static Video episode(Series series, int season, int episode, int bitsPerSecond) {
+        if(season < 1 || season > series.seasonLengths.length())
+            throw new IllegalArgumentException(series.title + " has no season " + season + ".");
+        if(episode < 1 || episode > series.getSeasonLength(season))
+            throw new IllegalArgumentException("Season " + season + " of " + series.title + " has no episode " + episode + ".");
+
+        long seed = mix(mediaSeed(series) + ((long) season << 32 | episode));
+        return new Video(series.title + " S" + season + "E" + episode, seed,
+                         segmentCount(seed, MIN_EPISODE_MINUTES, MAX_EPISODE_MINUTES), segmentSize(bitsPerSecond));
+    }
+
+    /** Returns the video that is played first for the media, which is the movie, or the first episode of the series.
+     * @param media The media.
+     * @return The video.
+     */
+    public static Video first(Media media) {
+        return media instanceof Series series ? episode(series, 1, 1) : movie((Movie) media);
+    }
+
+    /** Returns a seed that only depends on the title and release year, so that it is the same in every run. */
+    private static long mediaSeed(Media media) {
+        return (long) media.title.hashCode() << 16 ^ media.releaseYear;
+    }
+
+    private static int segmentCount(long seed, int minMinutes, int maxMinutes) {
+        int minutes = minMinutes + (int) Long.remainderUnsigned(seed, maxMinutes - minMinutes + 1);
+        return minutes * 60 / SEGMENT_SECONDS;
+    }
+
+    private static int segmentSize(int bitsPerSecond) {
+        if(bitsPerSecond < 8)
+            throw new IllegalArgumentException("The bit rate must be at least 8 bits per second.");
+        return (int) Math.min(Integer.MAX_VALUE, (long) bitsPerSecond / 8 * SEGMENT_SECONDS);
+    }
+
+    /** The finalizer of SplitMix64, which turns similar numbers into very different ones. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+}
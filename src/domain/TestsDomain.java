@@ -1,11 +1,41 @@
 package domain;
 
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 import java.util.stream.Stream;
 
+import javax.imageio.ImageIO;
+
 import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.params.ParameterizedTest;
@@ -13,6 +43,11 @@ import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.junit.platform.commons.util.ReflectionUtils;
 
+import data.BlockCompression;
+import data.CompressedInputStream;
+import data.CompressedOutputStream;
+import data.ImageManifest;
+import data.Journal;
 import data.ObjectSaving;
 import domain.MediaParsing.InvalidStringFormatException;
 import domain.User.InvalidImagePathException;
@@ -206,6 +241,29 @@ public class TestsDomain {
             assertTrue(exceptionMovie.getMessage().startsWith(expectedMessageMovie));
             assertTrue(exceptionSerie.getMessage().startsWith(expectedMessageSerie));
         }
+
+        // Batch parsing
+
+        @Test
+        void parseInBatches() throws IOException, InvalidStringFormatException {
+            Path movies = Files.createTempFile("movies", ".txt");
+            Path series = Files.createTempFile("series", ".txt");
+            try {
+                Files.writeString(movies, "The Matrix; 1999; Action, Sci-fi; 8,7;\nInception; 2010; Action, Sci-fi; 8,8;\nThe Dark Knight; 2008; Action, Crime, Drama; 9,0;\n");
+                Files.writeString(series, "The Office; 2005-2013; Comedy; 8,9; 1-6, 2-22, 3-25, 4-19, 5-28, 6-26, 7-26, 8-24, 9-25;\n");
+
+                List<List<Media>> batches = new ArrayList<>();
+                MediaParsing.parseFilesInBatches(movies.toString(), series.toString(), MOVIE_IMAGES_PATH, SERIES_IMAGES_PATH, 2, batches::add);
+
+                assertEquals(2, batches.size());
+                assertEquals(List.of(newTestMovie, newTestMovie1), batches.get(0));
+                assertEquals(newTestSeries, batches.get(1).get(1));
+            }
+            finally {
+                Files.delete(movies);
+                Files.delete(series);
+            }
+        }
     
     }
 
@@ -247,6 +305,55 @@ public class TestsDomain {
             assertEquals(newTestMovie, searchResult.get(2));
         }
 
+        @Test
+        void batchSearchMatchesSingleSearches() throws IOException, InvalidStringFormatException {
+            ApplicationData data = new ApplicationData();
+            data.readMedia();
+            MediaLibrary.Snapshot catalog = data.getCatalog();
+            List<String> queries = List.of("The Matrix", "godfathr", "action", "drama comedy", " the  dark knight", "x", "the the", "");
+
+            for(int count : new int[] {1, 5, catalog.size()}) {
+                // The second batch with the cache uses the title scores that the first one cached.
+                for(boolean useCache : new boolean[] {false, true, true}) {
+                    List<List<Media>> batch = catalog.getSortedBySearch(queries, count, useCache);
+                    assertEquals(queries.size(), batch.size());
+                    for(int i = 0; i < queries.size(); i++)
+                        assertEquals(catalog.getSortedBySearch(queries.get(i), count, false, false), batch.get(i), queries.get(i));
+                }
+            }
+        }
+
+        @Test
+        void partitionedSearchMatchesWholeSearch() throws IOException, InvalidStringFormatException {
+            ApplicationData data = new ApplicationData();
+            data.readMedia();
+            MediaLibrary.Snapshot catalog = data.getCatalog();
+            List<String> queries = List.of("The Matrix", "godfathr", "action", "drama comedy", " the  dark knight", "x");
+
+            for(int partitionCount : new int[] {1, 3, 8}) {
+                try(PartitionedSearch search = new PartitionedSearch(partitionCount)) {
+                    assertEquals(catalog.size(), catalog.getPartitions(partitionCount).stream().mapToInt(p -> p.getMedia().size()).sum());
+                    for(int count : new int[] {1, 5, catalog.size()})
+                        for(String query : queries)
+                            assertEquals(catalog.getSortedBySearch(query, count, false, false), search.search(catalog, query, count, true), query);
+                }
+            }
+        }
+
+        @Test
+        void builder() {
+            MediaLibrary expected = newTestMediaLibrary();
+            MediaLibrary actual = new MediaLibrary.Builder(6)
+                                    .addAll(new Media[] {newTestMovie, newTestSeries, newTestMovie1})
+                                    .addAll(Stream.of(newTestSeries1, newTestMovie2))
+                                    .add(newTestSeries2)
+                                    .build();
+
+            assertEquals(expected, actual);
+            assertEquals(expected.getSortedByDefault(), actual.getSortedByDefault());
+            assertEquals(expected, actual.clone());
+        }
+
     }
 
     @Nested
@@ -263,6 +370,16 @@ public class TestsDomain {
             assertEquals(movie, parsedMovie);
         }
 
+        @Test
+        void identityKeySurvivesSerialization() throws IOException, ClassNotFoundException {
+            ObjectSaving.saveToFile(newTestSeries, "test");
+            Series parsedSeries = ObjectSaving.loadFromFile(Series.class, "test");
+
+            assertEquals(newTestSeries.getIdentityKey(), parsedSeries.getIdentityKey());
+            assertEquals(newTestSeries.hashCode(), parsedSeries.hashCode());
+            assertNotEquals(newTestMovie.getIdentityKey(), newTestSeries.getIdentityKey());
+        }
+
         @Test
         void seriesSerialization() throws IOException, ClassNotFoundException {
             Series series = newTestSeries;
@@ -315,6 +432,876 @@ public class TestsDomain {
             assertEquals(userSet, parsedUserSet);
         }
 
+        @Test
+        void userSetCodec() throws IOException, ClassNotFoundException, UserAlreadyExistsException, InvalidUsernameException, InvalidPasswordException, InvalidImagePathException, UserDoesNotExistException {
+            UserSet userSet = new UserSet();
+            userSet.addUser(new User("Test1", "abc123", null));
+            userSet.addUser(new User("Test2", "abc123", "./Images/Button.png"));
+            userSet.getUser("Test1").addFavorite(newTestMovie);
+            userSet.getUser("Test1").addFavorite(newTestSeries);
+            userSet.getUser("Test2").addFavorite(newTestSeries);
+
+            userSet.saveToFile("test");
+
+            UserSet parsedUserSet = UserSet.loadUserSet("test");
+
+            assertEquals(userSet, parsedUserSet);
+            for(User user : userSet.getUsers()) {
+                User parsedUser = parsedUserSet.getUser(user.getUsername());
+                assertEquals(user.getFavorites(), parsedUser.getFavorites());
+                assertEquals(user.getImagePath(), parsedUser.getImagePath());
+                assertTrue(parsedUser.checkPassword("abc123"));
+            }
+        }
+
+        @Test
+        void compressedFiles() throws IOException, ClassNotFoundException, UserAlreadyExistsException, InvalidUsernameException, InvalidPasswordException, InvalidImagePathException, UserDoesNotExistException {
+            UserSet userSet = new UserSet();
+            for(int i = 0; i < 1000; i++)
+                userSet.addUser(new User("Test" + i, "abc123", i % 2 == 0 ? null : "./Images/Button.png"));
+            userSet.getUser("Test1").addFavorite(newTestMovie);
+            userSet.getUser("Test2").addFavorite(newTestSeries);
+
+            try {
+                for(BlockCompression compression : List.of(BlockCompression.FAST, BlockCompression.deflate(1), BlockCompression.deflate(9))) {
+                    ObjectSaving.setCompression(compression);
+                    userSet.saveToFile("test");
+                    ObjectSaving.saveToFile(newTestSeries, "test");
+
+                    assertTrue(CompressedInputStream.isCompressed(ObjectSaving.getFilePath(UserSet.class, "test")));
+                    UserSet parsedUserSet = UserSet.loadUserSet("test");
+                    assertEquals(userSet, parsedUserSet);
+                    assertEquals(List.of(newTestMovie), parsedUserSet.getUser("Test1").getFavorites());
+                    assertEquals(List.of(newTestSeries), parsedUserSet.getUser("Test2").getFavorites());
+                    assertEquals(newTestSeries, ObjectSaving.loadFromFile(Series.class, "test"));
+                }
+            }
+            finally {
+                ObjectSaving.setCompression(BlockCompression.NONE);
+            }
+        }
+
+        @Test
+        void compressedBlocksAreChecked() throws IOException {
+            byte[] data = new byte[200_000];
+            for(int i = 0; i < data.length; i++)
+                data[i] = (byte) (i % 251 < 100 ? i % 7 : i * 31);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try(OutputStream out = new CompressedOutputStream(bytes, BlockCompression.FAST, 4096)) {
+                out.write(data);
+            }
+            byte[] compressed = bytes.toByteArray();
+            assertTrue(compressed.length < data.length);
+
+            try(InputStream in = new CompressedInputStream(new ByteArrayInputStream(compressed))) {
+                assertArrayEquals(data, in.readAllBytes());
+            }
+
+            // A changed byte fails the checksum or the decompression, and a missing end is noticed.
+            compressed[compressed.length / 2] ^= 0x10;
+            try(InputStream in = new CompressedInputStream(new ByteArrayInputStream(compressed))) {
+                assertThrows(IOException.class, in::readAllBytes);
+            }
+            compressed[compressed.length / 2] ^= 0x10;
+            try(InputStream in = new CompressedInputStream(new ByteArrayInputStream(compressed, 0, compressed.length - 4))) {
+                assertThrows(IOException.class, in::readAllBytes);
+            }
+        }
+
+        @Test
+        void favoritesAreLoadedLazily() throws IOException, ClassNotFoundException, UserAlreadyExistsException, InvalidUsernameException, InvalidPasswordException, InvalidImagePathException, UserDoesNotExistException {
+            UserSet userSet = new UserSet();
+            userSet.addUser(new User("Test1", "abc123", null));
+            userSet.addUser(new User("Test2", "abc123", null));
+            userSet.getUser("Test1").addFavorite(newTestMovie);
+            userSet.saveToFile("test");
+
+            UserSet loadedUserSet = UserSet.loadUserSet("test");
+            User user = loadedUserSet.getUser("Test1");
+            assertFalse(user.isFavoritesLoaded());
+
+            loadedUserSet.loadFavorites(user);
+            assertTrue(user.isFavoritesLoaded());
+            assertEquals(List.of(newTestMovie), user.getFavorites());
+
+            user.addFavorite(newTestSeries);
+            loadedUserSet.evictFavorites(user);
+            assertFalse(user.isFavoritesLoaded());
+            assertTrue(user.isFavorite(newTestSeries));
+            assertFalse(loadedUserSet.getUser("Test2").isFavoritesLoaded());
+
+            assertEquals(2, UserSet.loadUserSet("test").getUser("Test1").getFavorites().size());
+        }
+
+        @Test
+        void idBitmap() {
+            IdBitmap ids = new IdBitmap();
+            // Enough ids in the first container for it to be stored as bits.
+            for(int id = 0; id < 10000; id += 2)
+                assertTrue(ids.add(id));
+            assertTrue(ids.add(70000));
+            assertFalse(ids.add(70000));
+            assertEquals(5001, ids.size());
+
+            assertTrue(ids.contains(9998));
+            assertFalse(ids.contains(9999));
+            assertTrue(ids.contains(70000));
+
+            for(int id = 0; id < 9000; id += 2)
+                assertTrue(ids.remove(id));
+            assertFalse(ids.remove(1));
+            assertArrayEquals(new int[] {9000, 9002, 9004}, Arrays.copyOf(ids.toArray(), 3));
+            assertEquals(70000, ids.toArray()[ids.size() - 1]);
+            assertEquals(501, ids.size());
+        }
+
+        @Test
+        void favoritesUseMediaIds() throws InvalidUsernameException, InvalidPasswordException, InvalidImagePathException {
+            User user = new User("Test1", "abc123", null);
+            user.addFavorite(newTestMovie);
+            Movie equalMovie = new Movie(newTestMovie.title, newTestMovie.releaseYear, newTestMovie.categories.getNames(),
+                                         newTestMovie.rating, newTestMovie.getImageFolderPath());
+
+            MediaIds ids = new MediaIds();
+            assertEquals(ids.register(newTestMovie), ids.register(equalMovie));
+            assertEquals(0, new MediaIds().getId(newTestMovie));
+            assertTrue(user.isFavorite(equalMovie));
+            assertFalse(user.isFavorite(newTestSeries));
+            user.removeFavorite(equalMovie);
+            assertEquals(List.of(), user.getFavorites());
+        }
+
+        @Test
+        void sortedFavoritesAreKeptUpToDate() throws InvalidUsernameException, InvalidPasswordException, InvalidImagePathException {
+            User user = new User("Test1", "abc123", null);
+            List<Media> media = List.of(newTestMovie, newTestSeries, newTestMovie1, newTestSeries1, newTestMovie2);
+            media.forEach(user::addFavorite);
+
+            List<Media> byRating = user.getFavorites(MediaSorting.SortBy.RATING, MediaSorting.SortOrder.DEFAULT);
+            user.addFavorite(newTestSeries2);
+            user.removeFavorite(newTestMovie);
+
+            List<Media> expected = new ArrayList<>(media);
+            expected.add(newTestSeries2);
+            expected.remove(newTestMovie);
+            for(MediaSorting.SortBy sortBy : MediaSorting.SortBy.values()) {
+                List<Media> sorted = user.getFavorites(sortBy, MediaSorting.SortOrder.DEFAULT);
+                Comparator<Media> comparator = MediaSorting.getComparator(sortBy, MediaSorting.SortOrder.DEFAULT);
+                for(int i = 1; i < sorted.size(); i++)
+                    assertTrue(comparator.compare(sorted.get(i - 1), sorted.get(i)) <= 0);
+                assertEquals(Set.copyOf(expected), Set.copyOf(sorted));
+            }
+
+            // Lists that have been returned never change.
+            assertEquals(5, byRating.size());
+            assertTrue(byRating.contains(newTestMovie));
+
+            List<Media> reversed = user.getFavorites(MediaSorting.SortBy.TITLE, MediaSorting.SortOrder.REVERSE);
+            assertEquals(user.getFavorites(MediaSorting.SortBy.TITLE, MediaSorting.SortOrder.DEFAULT).get(0), reversed.get(4));
+            assertEquals(reversed.subList(2, 4), user.getFavoritesPage(MediaSorting.SortBy.TITLE, MediaSorting.SortOrder.REVERSE, 1, 2));
+            assertEquals(List.of(), user.getFavoritesPage(MediaSorting.SortBy.TITLE, MediaSorting.SortOrder.DEFAULT, 3, 2));
+        }
+
+        @Test
+        void mappedUserDirectory() throws IOException {
+            deleteMappedUserDirectory();
+
+            try(MappedUserDirectory directory = MappedUserDirectory.open("test")) {
+                // Enough users for the table to be rebuilt a few times.
+                for(int i = 0; i < 3000; i++)
+                    assertTrue(directory.put("User" + i, "password" + i, i % 2 == 0 ? null : "./Images/" + i + ".png", i % 16));
+                assertFalse(directory.put("User5", "new", null, 3));
+                assertTrue(directory.remove("User6"));
+                assertFalse(directory.remove("User6"));
+            }
+
+            try(MappedUserDirectory directory = MappedUserDirectory.open("test")) {
+                assertEquals(2999, directory.size());
+                assertEquals(new MappedUserDirectory.Entry("User5", "new", null, 3), directory.get("User5").get());
+                assertEquals(new MappedUserDirectory.Entry("User2999", "password2999", "./Images/2999.png", 2999 % 16),
+                             directory.get("User2999").get());
+                assertTrue(directory.get("User6").isEmpty());
+
+                int[] count = {0};
+                directory.forEach(entry -> count[0]++);
+                assertEquals(2999, count[0]);
+
+                // Replaced strings are garbage, which is dropped when the heap is compacted.
+                for(int i = 0; i < 2000; i++)
+                    directory.put("User5", "password".repeat(i), null, 3);
+                directory.remove("User2999");
+                assertTrue(sizeOfMappedUserHeaps() < 512 * 1024);
+            }
+
+            try(MappedUserDirectory directory = MappedUserDirectory.open("test")) {
+                assertEquals(2998, directory.size());
+                assertEquals("password".repeat(1999), directory.get("User5").get().encryptedPassword());
+                assertEquals("./Images/2997.png", directory.get("User2997").get().imagePath());
+                assertTrue(directory.get("User2999").isEmpty());
+            }
+        }
+
+        private void deleteMappedUserDirectory() throws IOException {
+            try(Stream<Path> files = Files.list(Path.of(ObjectSaving.FOLDER))) {
+                for(Path file : files.toList())
+                    if(file.getFileName().toString().matches("test(\\.\\d+\\.userheap|\\.userdir)"))
+                        Files.delete(file);
+            }
+        }
+
+        /** Deletes the files that the test saved as "test", such as journals, shards of favorites and mapped directories,
+         * so that they aren't left in the folder of saved files.
+         */
+        @AfterEach
+        void deleteTestFiles() throws IOException {
+            try(Stream<Path> files = Files.list(Path.of(ObjectSaving.FOLDER))) {
+                for(Path file : files.toList())
+                    if(file.getFileName().toString().startsWith("test."))
+                        Files.deleteIfExists(file);
+            }
+        }
+
+        private long sizeOfMappedUserHeaps() throws IOException {
+            long size = 0;
+            try(Stream<Path> files = Files.list(Path.of(ObjectSaving.FOLDER))) {
+                for(Path file : files.toList())
+                    if(file.getFileName().toString().matches("test\\.\\d+\\.userheap"))
+                        size += Files.size(file);
+            }
+            return size;
+        }
+
+        @Test
+        void mappedUserDirectoryOfUserSet() throws IOException, ClassNotFoundException, UserAlreadyExistsException, InvalidUsernameException, InvalidPasswordException, InvalidImagePathException, UserDoesNotExistException {
+            deleteMappedUserDirectory();
+
+            UserSet userSet = new UserSet();
+            userSet.setUserDirectoryMapped(true);
+            userSet.addUser(new User("Test1", "abc123", null));
+            userSet.addUser(new User("Test2", "abc123", "./Images/Button.png"));
+            userSet.addUser(new User("Test3", "abc123", null));
+            userSet.getUser("Test1").addFavorite(newTestMovie);
+            userSet.saveToFile("test");
+            userSet.removeUser("Test3");
+            userSet.saveToFile("test");
+
+            UserSet parsedUserSet = new UserSet();
+            parsedUserSet.setUserDirectoryMapped(true);
+            parsedUserSet.loadUsersAndAdd("test");
+
+            assertEquals(userSet, parsedUserSet);
+            assertEquals(List.of(newTestMovie), parsedUserSet.getUser("Test1").getFavorites());
+            assertEquals("./Images/Button.png", parsedUserSet.getUser("Test2").getImagePath().orElseThrow());
+            assertTrue(parsedUserSet.getUser("Test2").checkPassword("abc123"));
+
+            // The users are only looked up when they are needed, and a user that hasn't been looked up
+            // keeps its saved favorites when another user in the same shard changes.
+            UserSet lazyUserSet = new UserSet();
+            lazyUserSet.setUserDirectoryMapped(true);
+            lazyUserSet.loadUsersAndAdd("test");
+            String sameShard = Stream.iterate(0, i -> i + 1).map(i -> "Same" + i)
+                                     .filter(name -> UserStore.shardOf(name) == UserStore.shardOf("Test1")).findFirst().orElseThrow();
+            lazyUserSet.addUser(new User(sameShard, "abc123", null));
+            lazyUserSet.getUser(sameShard).addFavorite(newTestSeries);
+            assertThrows(UserAlreadyExistsException.class, () -> lazyUserSet.addUser(new User("Test2", "abc123", null)));
+            lazyUserSet.removeUser("Test2");
+            assertThrows(UserDoesNotExistException.class, () -> lazyUserSet.getUser("Test2"));
+            assertThrows(UserDoesNotExistException.class, () -> lazyUserSet.getUser("Test3"));
+            lazyUserSet.saveToFile("test");
+
+            UserSet reloadedUserSet = new UserSet();
+            reloadedUserSet.setUserDirectoryMapped(true);
+            reloadedUserSet.loadUsersAndAdd("test");
+            assertEquals(List.of(sameShard, "Test1"), reloadedUserSet.getSortedUsers().stream().map(User::getUsername).toList());
+            assertEquals(List.of(newTestMovie), reloadedUserSet.getUser("Test1").getFavorites());
+            assertEquals(List.of(newTestSeries), reloadedUserSet.getUser(sameShard).getFavorites());
+        }
+
+        @Test
+        void userDirectoryFileMovesToMappedDirectory() throws IOException, ClassNotFoundException, UserAlreadyExistsException, InvalidUsernameException, InvalidPasswordException, InvalidImagePathException, UserDoesNotExistException {
+            deleteMappedUserDirectory();
+            UserSet userSet = new UserSet();
+            userSet.addUser(new User("Test1", "abc123", null));
+            userSet.getUser("Test1").addFavorite(newTestMovie);
+            userSet.saveToFile("test");
+
+            UserSet mappedUserSet = new UserSet();
+            mappedUserSet.setUserDirectoryMapped(true);
+            mappedUserSet.loadUsersAndAdd("test");
+            assertEquals(List.of(newTestMovie), mappedUserSet.getUser("Test1").getFavorites());
+            mappedUserSet.saveToFile("test");
+
+            try(MappedUserDirectory directory = MappedUserDirectory.open("test")) {
+                assertEquals(1, directory.size());
+                assertTrue(directory.get("Test1").isPresent());
+            }
+        }
+
+        @Test
+        void userSetLookups() throws UserAlreadyExistsException, InvalidUsernameException, InvalidPasswordException, InvalidImagePathException, UserDoesNotExistException {
+            UserSet userSet = new UserSet();
+            userSet.addUser(new User("Test2", "abc123", null));
+            userSet.addUser(new User("Test1", "abc123", null));
+            userSet.addUser(new User("test1", "abc123", null));
+
+            assertEquals("Test1", userSet.getUser("Test1").getUsername());
+            assertThrows(UserDoesNotExistException.class, () -> userSet.getUser("TEST1"));
+            assertEquals(List.of("Test1", "Test2", "test1"), userSet.getSortedUsers().stream().map(User::getUsername).toList());
+
+            userSet.removeUser("Test2");
+            assertEquals(List.of("Test1", "test1"), userSet.getSortedUsers().stream().map(User::getUsername).toList());
+            assertThrows(UserDoesNotExistException.class, () -> userSet.removeUser("Test2"));
+        }
+
+        @Test
+        void userSetIgnoringCase() throws UserAlreadyExistsException, InvalidUsernameException, InvalidPasswordException, InvalidImagePathException, UserDoesNotExistException {
+            UserSet userSet = new UserSet(true);
+            userSet.addUser(new User("Test1", "abc123", null));
+
+            assertEquals("Test1", userSet.getUser("TEST1").getUsername());
+            assertThrows(UserAlreadyExistsException.class, () -> userSet.addUser(new User("test1", "abc123", null)));
+
+            userSet.removeUser("test1");
+            assertThrows(UserDoesNotExistException.class, () -> userSet.getUser("Test1"));
+            userSet.addUser(new User("test1", "abc123", null));
+        }
+
+        @Test
+        void userSetConcurrentChanges() throws InterruptedException {
+            UserSet userSet = new UserSet();
+            Thread[] threads = new Thread[4];
+            for(int t = 0; t < threads.length; t++) {
+                final int offset = t;
+                threads[t] = new Thread(() -> {
+                    try {
+                        for(int i = offset; i < 400; i += threads.length) {
+                            userSet.addUser(new User("User" + i, "abc123", null));
+                            if(i % 2 == 0) userSet.removeUser("User" + i);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                threads[t].start();
+            }
+            for(Thread thread : threads)
+                thread.join();
+
+            assertEquals(200, userSet.getUsers().size());
+            assertEquals(200, userSet.getSortedUsers().size());
+        }
+
+        @Test
+        void userSetChangeListener() throws UserAlreadyExistsException, InvalidUsernameException, InvalidPasswordException, InvalidImagePathException, UserDoesNotExistException {
+            int[] changes = {0};
+            UserSet userSet = new UserSet();
+            userSet.setChangeListener(new UserSet.ChangeListener() {
+                public void userAdded(User user) { changes[0]++; }
+                public void userRemoved(User user) { changes[0]++; }
+                public void favoriteAdded(User user, Media media) { changes[0]++; }
+                public void favoriteRemoved(User user, Media media) { changes[0]++; }
+            });
+
+            User user = new User("Test1", "abc123", null);
+            userSet.addUser(user);
+            user.addFavorite(newTestMovie);
+            user.addFavorite(newTestMovie);
+            user.removeFavorite(newTestSeries);
+            assertEquals(2, changes[0]);
+
+            userSet.removeUser("Test1");
+            user.addFavorite(newTestSeries);
+            assertEquals(3, changes[0]);
+        }
+
+        @Test
+        void userJournal() throws IOException, ClassNotFoundException, UserAlreadyExistsException, InvalidUsernameException, InvalidPasswordException, InvalidImagePathException, UserDoesNotExistException {
+            UserSet userSet = new UserSet();
+            UserJournal journal = new UserJournal("test", null);
+            journal.open(e -> fail(e));
+            userSet.setChangeListener(journal);
+
+            userSet.addUser(new User("Test1", "abc123", null));
+            userSet.addUser(new User("Test2", "abc123", "./Images/Button.png"));
+            userSet.getUser("Test1").addFavorite(newTestMovie);
+            userSet.getUser("Test2").addFavorite(newTestSeries);
+            journal.compact(userSet);
+
+            userSet.getUser("Test1").addFavorite(newTestSeries);
+            userSet.getUser("Test1").removeFavorite(newTestMovie);
+            userSet.removeUser("Test2");
+            userSet.addUser(new User("Test3", "abc123", null));
+            journal.close();
+
+            UserSet replayedUserSet = UserSet.loadUserSet("test");
+            List<IOException> skipped = new ArrayList<>();
+            assertEquals(4, new UserJournal("test", null).replayInto(replayedUserSet, skipped::add));
+            assertEquals(List.of(), skipped);
+
+            assertEquals(userSet, replayedUserSet);
+            assertEquals(List.of(newTestSeries), replayedUserSet.getUser("Test1").getFavorites());
+            assertTrue(replayedUserSet.getUser("Test3").checkPassword("abc123"));
+
+            // Opening the journal only starts a new generation if something has been appended to the newest one.
+            long generations = countJournalFiles();
+            for(int i = 0; i < 2; i++) {
+                UserJournal reopened = new UserJournal("test", null);
+                reopened.open(e -> fail(e));
+                reopened.close();
+            }
+            assertEquals(generations + 1, countJournalFiles());
+
+            // A record of an unknown kind, such as one written by a newer version, is skipped and reported.
+            try(Journal newer = new Journal(Path.of(ObjectSaving.FOLDER + "test.1000000.userjournal"))) {
+                newer.append(new byte[] {99, 0, 1, 'x'});
+            }
+            assertEquals(5, new UserJournal("test", null).replayInto(UserSet.loadUserSet("test"), skipped::add));
+            assertEquals(1, skipped.size());
+        }
+
+        private long countJournalFiles() throws IOException {
+            try(Stream<Path> files = Files.list(Path.of(ObjectSaving.FOLDER))) {
+                return files.filter(file -> file.getFileName().toString().matches("test\\.\\d+\\.userjournal")).count();
+            }
+        }
+
+        @Test
+        void userSetCodecReadsSerializedFiles() throws IOException, ClassNotFoundException, UserAlreadyExistsException, InvalidUsernameException, InvalidPasswordException, InvalidImagePathException, UserDoesNotExistException {
+            UserSet userSet = new UserSet();
+            userSet.addUser(new User("Test1", "abc123", null));
+            userSet.getUser("Test1").addFavorite(newTestMovie);
+            userSet.addUser(new User("Test2", "abc123", null));
+
+            ObjectSaving.saveToFile(userSet, "test");
+
+            UserSet parsedUserSet = UserSet.loadUserSet("test");
+
+            assertEquals(userSet, parsedUserSet);
+            assertEquals(List.of(newTestMovie), parsedUserSet.getUser("Test1").getFavorites());
+            assertEquals(List.of(), parsedUserSet.getUser("Test2").getFavorites());
+
+            // Files saved before the users were kept in a map have a set of users in the field users, and nothing else,
+            // so the file above is saved the same way, and older files load like it.
+            ObjectStreamField[] fields = ObjectStreamClass.lookup(UserSet.class).getFields();
+            assertEquals(1, fields.length);
+            assertEquals("users", fields[0].getName());
+            assertEquals(Set.class, fields[0].getType());
+        }
+
+    }
+
+    @Nested
+    public class TestImageManifest {
+
+        @Test
+        void rescanFindsChangedImages() throws IOException {
+            Path folder = Files.createTempDirectory("posters");
+            try {
+                Path poster = folder.resolve("poster.png");
+                Path unchanged = folder.resolve("unchanged.jpg");
+                writeImage(poster, 3, 2);
+                writeImage(unchanged, 7, 7);
+                Files.writeString(folder.resolve("notes.txt"), "Not an image.");
+
+                ImageManifest manifest = ImageManifest.scanFolders(folder.toString(), folder.resolve("missing").toString());
+                assertEquals(2, manifest.size());
+                assertEquals(3, manifest.get(poster.toString()).get().width());
+                assertEquals(2, manifest.get(folder + "/./poster.png").get().height());
+                assertFalse(manifest.contains(folder.resolve("notes.txt").toString()));
+                assertFalse(manifest.contains(null));
+
+                // The poster is replaced, a new one is added, and the other is left as it was.
+                writeImage(poster, 5, 4);
+                Files.setLastModifiedTime(poster, FileTime.fromMillis(manifest.get(poster.toString()).get().lastModified() + 2000));
+                Path added = folder.resolve("added.png");
+                writeImage(added, 1, 1);
+
+                ImageManifest rescanned = manifest.rescan();
+                assertEquals(3, rescanned.size());
+                assertEquals(5, rescanned.get(poster.toString()).get().width());
+                assertTrue(rescanned.contains(added.toString()));
+                assertSame(manifest.get(unchanged.toString()).get(), rescanned.get(unchanged.toString()).get());
+                assertEquals(3, manifest.get(poster.toString()).get().width());
+
+                Files.delete(added);
+                assertFalse(rescanned.rescan().contains(added.toString()));
+            }
+            finally {
+                try(Stream<Path> files = Files.list(folder)) {
+                    for(Path file : files.toList())
+                        Files.delete(file);
+                }
+                Files.delete(folder);
+            }
+        }
+
+        private void writeImage(Path file, int width, int height) throws IOException {
+            String format = file.toString().endsWith(".jpg") ? "jpg" : "png";
+            assertTrue(ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), format, file.toFile()));
+        }
+
+    }
+
+    @Nested
+    public class TestConcurrency {
+
+        private static final int THREADS = 16;
+        private static final int OPERATIONS = 6000;
+        private static final int USERS = 20;
+
+        @Test
+        void concurrentSessions() throws Exception {
+            ApplicationData data = new ApplicationData();
+            data.readMedia();
+            for(int i = 0; i < USERS; i++)
+                data.addUser("User" + i, "abc123", null);
+
+            List<Media> catalog = data.getAllMedia();
+            long firstVersion = data.getCatalog().getVersion();
+            String[] queries = {"the", "action", "dark knight", "drama comedy", "x"};
+
+            // Each session adds a different favorite, and every fourth removes it again.
+            Map<String, Set<Media>> expectedFavorites = new ConcurrentHashMap<>();
+            List<Callable<Void>> operations = new ArrayList<>();
+            for(int k = 0; k < OPERATIONS; k++) {
+                final int operation = k;
+                operations.add(() -> {
+                    switch(operation % 3) {
+                        case 0 -> {
+                            // The catalog is read again now and then, which must never be seen half done.
+                            if(operation % 600 == 0) data.readMedia();
+                            MediaLibrary.Snapshot snapshot = data.getCatalog();
+                            String query = queries[operation % queries.length];
+                            assertEquals(catalog.size(), snapshot.getSortedBySearch(query, snapshot.size(), true, false).size());
+                            assertEquals(catalog.size(), data.searchAllMedia(query).size());
+                        }
+                        case 1 -> {
+                            MediaSorting.SortBy sortBy = MediaSorting.SortBy.values()[operation % MediaSorting.SortBy.values().length];
+                            List<Media> sorted = data.sortAllMedia(sortBy);
+                            assertEquals(catalog.size(), sorted.size());
+                            Comparator<Media> comparator = MediaSorting.getComparator(sortBy, MediaSorting.SortOrder.DEFAULT);
+                            for(int i = 1; i < sorted.size(); i++)
+                                assertTrue(comparator.compare(sorted.get(i - 1), sorted.get(i)) <= 0);
+                        }
+                        default -> {
+                            int session = operation / 3;
+                            String username = "User" + session % USERS;
+                            Media media = catalog.get(session / USERS % catalog.size());
+
+                            assertTrue(data.login(username, "wrong").isEmpty());
+                            User user = data.login(username, "abc123").orElseThrow();
+                            user.addFavorite(media);
+                            assertTrue(user.isFavorite(media));
+                            if(session % 4 == 0) user.removeFavorite(media);
+                            else expectedFavorites.computeIfAbsent(username, name -> ConcurrentHashMap.newKeySet()).add(media);
+                            data.logout(user);
+                        }
+                    }
+                    return null;
+                });
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            try {
+                for(Future<Void> result : executor.invokeAll(operations))
+                    result.get();
+            }
+            finally {
+                executor.shutdown();
+            }
+
+            assertTrue(data.getCatalog().getVersion() > firstVersion);
+            assertEquals(catalog, data.getAllMedia());
+            for(int i = 0; i < USERS; i++) {
+                User user = data.getUser("User" + i);
+                Set<Media> expected = expectedFavorites.getOrDefault(user.getUsername(), Set.of());
+                assertEquals(expected, Set.copyOf(user.getFavorites()));
+                assertEquals(expected.size(), user.getFavorites(MediaSorting.SortBy.TITLE, MediaSorting.SortOrder.REVERSE).size());
+            }
+        }
+
+        @Test
+        void searchAdmission() throws Exception {
+            AdmissionControl admission = new AdmissionControl(1, 2, 1);
+            CountDownLatch finish = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(3);
+            try {
+                List<Future<Integer>> results = new ArrayList<>();
+                for(int i = 0; i < 3; i++) {
+                    final int task = i;
+                    results.add(executor.submit(() -> admission.call(() -> {
+                        try {
+                            finish.await();
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        return task;
+                    }, 10, TimeUnit.SECONDS)));
+                }
+                while(admission.getRunning() < 2 || admission.getQueued() < 1)
+                    Thread.sleep(1);
+
+                // Two tasks are running and one is waiting, so there is no room for more.
+                assertThrows(AdmissionControl.BusyException.class, () -> admission.call(() -> 3, 10, TimeUnit.SECONDS));
+                assertEquals(1, admission.getRejected());
+
+                finish.countDown();
+                for(int i = 0; i < 3; i++)
+                    assertEquals(i, results.get(i).get());
+                assertEquals(0, admission.getRunning());
+            }
+            finally {
+                executor.shutdown();
+            }
+
+            // A task that can't run before its deadline gives up.
+            AdmissionControl single = new AdmissionControl(1, 1, 4);
+            CountDownLatch release = new CountDownLatch(1);
+            Thread holder = new Thread(() -> single.callWithoutDeadline(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return null;
+            }));
+            holder.start();
+            while(single.getRunning() < 1)
+                Thread.sleep(1);
+            long start = System.nanoTime();
+            assertThrows(AdmissionControl.BusyException.class, () -> single.call(() -> 0, 20, TimeUnit.MILLISECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+            release.countDown();
+            holder.join();
+
+            // The limit is lowered when the tasks take much longer than they used to.
+            AdmissionControl adaptive = new AdmissionControl(1, 8, 0);
+            for(long millis : new long[] {1, 20}) {
+                for(int i = 0; i < 8; i++) {
+                    adaptive.call(() -> {
+                        try {
+                            Thread.sleep(millis);
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        return null;
+                    }, 1, TimeUnit.SECONDS);
+                }
+            }
+            assertTrue(adaptive.getLimit() < 8);
+        }
+
+        @Test
+        void sessionCache() throws Exception {
+            long[] now = {0};
+            List<User> ended = new ArrayList<>();
+            SessionCache sessions = new SessionCache(1000, 10, ended::add, () -> now[0]);
+            User first = new User("Test1", "abc123", null);
+            User second = new User("Test2", "abc123", null);
+
+            // Using a session moves its expiry forward, while an unused one expires.
+            String used = sessions.start(first);
+            String unused = sessions.start(first);
+            assertNotEquals(used, unused);
+            for(int i = 0; i < 3; i++) {
+                now[0] += 600;
+                assertSame(first, sessions.get(used).orElseThrow());
+            }
+            assertTrue(sessions.get(unused).isEmpty());
+            assertTrue(sessions.get("unknown").isEmpty());
+            assertEquals(List.of(first), ended);
+
+            // Ending the sessions of a user takes effect right away, and each session is only ended once.
+            String other = sessions.start(second);
+            assertEquals(1, sessions.endAll("Test1"));
+            assertTrue(sessions.get(used).isEmpty());
+            assertFalse(sessions.end(used));
+            assertSame(second, sessions.get(other).orElseThrow());
+            assertTrue(sessions.end(other));
+            assertEquals(List.of(first, first, second), ended);
+            assertEquals(0, sessions.size());
+
+            // When there are too many sessions, the ones that would expire first are ended.
+            List<String> tokens = new ArrayList<>();
+            for(int i = 0; i < 25; i++) {
+                now[0]++;
+                tokens.add(sessions.start(first));
+                sessions.sweep();
+                assertTrue(sessions.size() <= 10);
+            }
+            assertTrue(sessions.get(tokens.get(0)).isEmpty());
+            assertSame(first, sessions.get(tokens.get(24)).orElseThrow());
+            assertEquals(3 + 25 - sessions.size(), ended.size());
+
+            // Starting a session doesn't end the expired ones, which only the sweep does.
+            now[0] += 2000;
+            int endedBefore = ended.size();
+            String last = sessions.start(second);
+            assertEquals(endedBefore, ended.size());
+            sessions.sweep();
+            assertEquals(3 + 25, ended.size());
+            assertSame(second, sessions.get(last).orElseThrow());
+        }
+
+    }
+
+    @Nested
+    public class TestReplication {
+
+        private static final long TIMEOUT_MILLIS = 20_000;
+
+        @Test
+        void followersConverge() throws Exception {
+            Path directory = Files.createTempDirectory("catalog");
+            List<Process> followers = new ArrayList<>();
+            try {
+                ApplicationData data = new ApplicationData();
+                data.readMedia();
+                MediaLibrary library = new MediaLibrary.Builder(data.getAllMedia().size()).addAll(data.getAllMedia().stream()).build();
+                CatalogReplication.Leader leader = new CatalogReplication.Leader(library, directory, e -> fail(e));
+
+                // The followers are other processes, which print their catalog every time it changes.
+                String classPath = Path.of(CatalogReplication.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+                String java = ProcessHandle.current().info().command().orElse("java");
+                List<BlockingQueue<String>> outputs = new ArrayList<>();
+                for(int i = 0; i < 2; i++) {
+                    Process follower = new ProcessBuilder(java, "-cp", classPath, "domain.CatalogReplication", directory.toString())
+                        .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+                    followers.add(follower);
+                    BlockingQueue<String> output = new LinkedBlockingQueue<>();
+                    outputs.add(output);
+                    Thread reader = new Thread(() -> new BufferedReader(new InputStreamReader(follower.getInputStream())).lines().forEach(output::add));
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+                awaitCatalog(outputs, leader, library);
+
+                // Media is removed, added and changed, and enough changes are made that a new snapshot is saved.
+                List<Media> media = new ArrayList<>(library.getSnapshot().getMedia());
+                for(int i = 0; i < 10; i++)
+                    library.remove(media.get(i));
+                Media changed = media.get(10);
+                library.update(List.of(changed), List.of(new Movie(changed.title, changed.releaseYear, new String[] {"Drama"}, 9.9f, "./Data/filmplakater/")));
+                for(int i = 0; i < CatalogReplication.Leader.COMPACT_RECORDS + 100; i++)
+                    library.add(new Movie("Replicated " + i, 2000 + i % 20, new String[] {"Action"}, 5f, "./Data/filmplakater/"));
+                awaitCatalog(outputs, leader, library);
+
+                // A new leader takes over, and the old leader is fenced off.
+                MediaLibrary newLibrary = library.clone();
+                CatalogReplication.Leader newLeader = new CatalogReplication.Leader(newLibrary, directory, e -> fail(e));
+                assertEquals(leader.getTerm() + 1, newLeader.getTerm());
+                library.remove(media.get(11));
+                newLibrary.remove(media.get(12));
+                awaitCatalog(outputs, newLeader, newLibrary);
+                assertTrue(leader.isFenced());
+
+                // A leader in another process gives the media the same ids, and a follower can't lead.
+                MediaLibrary restarted = new MediaLibrary();
+                CatalogReplication.adoptIds(restarted, directory);
+                restarted.update(List.of(), newLibrary.getSnapshot().getMedia());
+                for(Media m : newLibrary.getSnapshot().getMedia())
+                    assertEquals(newLibrary.getSnapshot().getId(m), restarted.getSnapshot().getId(m));
+                MediaLibrary following = new MediaLibrary();
+                new CatalogReplication.Follower(following, directory, null, e -> fail(e)).poll();
+                assertEquals(CatalogReplication.hashIds(newLibrary.getSnapshot()), CatalogReplication.hashIds(following.getSnapshot()));
+                assertThrows(IllegalStateException.class, () -> new CatalogReplication.Leader(following, directory, e -> fail(e)));
+                leader.close();
+                newLeader.close();
+            }
+            finally {
+                for(Process follower : followers)
+                    follower.destroy();
+                try(Stream<Path> files = Files.list(directory)) {
+                    for(Path file : files.toList())
+                        Files.delete(file);
+                }
+                Files.delete(directory);
+            }
+        }
+
+        @Test
+        void leadersStartingAtOnceGetDifferentTerms() throws Exception {
+            Path directory = Files.createTempDirectory("catalog");
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            try {
+                for(int round = 0; round < 20; round++) {
+                    CyclicBarrier start = new CyclicBarrier(2);
+                    List<Future<CatalogReplication.Leader>> leaders = new ArrayList<>();
+                    for(int i = 0; i < 2; i++) {
+                        MediaLibrary library = new MediaLibrary();
+                        library.add(new Movie("Leader " + i, 2000, new String[] {"Drama"}, 5f, "./Data/filmplakater/"));
+                        leaders.add(executor.submit(() -> {
+                            start.await();
+                            return new CatalogReplication.Leader(library, directory, e -> fail(e));
+                        }));
+                    }
+                    CatalogReplication.Leader first = leaders.get(0).get(), second = leaders.get(1).get();
+                    assertNotEquals(first.getTerm(), second.getTerm());
+                    assertTrue(first.getTerm() < second.getTerm() ? first.isFenced() : second.isFenced());
+                    first.close();
+                    second.close();
+                }
+            }
+            finally {
+                executor.shutdown();
+                try(Stream<Path> files = Files.list(directory)) {
+                    for(Path file : files.toList())
+                        Files.delete(file);
+                }
+                Files.delete(directory);
+            }
+        }
+
+        /** Waits until every follower has printed the catalog of the leader. */
+        private void awaitCatalog(List<BlockingQueue<String>> outputs, CatalogReplication.Leader leader, MediaLibrary library) throws InterruptedException {
+            Set<Media> media = library.getSnapshot().getMedia();
+            String expected = leader.getTerm() + " " + leader.getVersion() + " " + media.size() + " " + media.hashCode()
+                              + " " + CatalogReplication.hashIds(library.getSnapshot());
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            for(BlockingQueue<String> output : outputs) {
+                String line;
+                do {
+                    line = output.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                    assertNotNull(line, "The follower did not get " + expected + " in time.");
+                } while(!line.equals(expected));
+            }
+        }
+
+    }
+
+    @Nested
+    public class TestSyntheticContent {
+
+        @Test
+        void videosAreDeterministic() {
+            Movie movie = new Movie("The Matrix", 1999, new String[] {"Action", "Sci-fi"}, 8.7f, "./Data/filmplakater/");
+            Series series = new Series("Lost", 2004, true, 2010, new String[] {"Drama"}, 8.3f, new int[] {25, 24}, "./Data/serieforsider/");
+
+            SyntheticContent.Video video = SyntheticContent.movie(movie, 80_000);
+            assertEquals(video, SyntheticContent.movie(new Movie("The Matrix", 1999, new String[] {"Action"}, 1f, "./Data/filmplakater/"), 80_000));
+            assertEquals(40_000, video.segmentSize());
+            assertTrue(video.durationSeconds() >= 80 * 60 && video.durationSeconds() <= 180 * 60);
+
+            // Each range of a segment is the same as that part of the whole segment.
+            ByteBuffer whole = ByteBuffer.allocate(video.segmentSize() + 10);
+            assertEquals(video.segmentSize(), video.fill(3, 0, whole));
+            for(int[] range : new int[][] {{0, 1}, {5, 17}, {8, 16}, {39_990, 10}}) {
+                ByteBuffer part = ByteBuffer.allocate(range[1]);
+                video.fill(3, range[0], part);
+                assertArrayEquals(Arrays.copyOfRange(whole.array(), range[0], range[0] + range[1]), part.array());
+            }
+            ByteBuffer other = ByteBuffer.allocate(video.segmentSize());
+            video.fill(4, 0, other);
+            assertFalse(Arrays.equals(Arrays.copyOf(whole.array(), video.segmentSize()), other.array()));
+
+            assertEquals("Lost S2E24", SyntheticContent.episode(series, 2, 24).name());
+            assertNotEquals(SyntheticContent.episode(series, 1, 1).seed(), SyntheticContent.episode(series, 1, 2).seed());
+            assertThrows(IllegalArgumentException.class, () -> SyntheticContent.episode(series, 2, 25));
+            assertThrows(IllegalArgumentException.class, () -> SyntheticContent.episode(series, 3, 1));
+            assertThrows(IndexOutOfBoundsException.class, () -> video.fill(video.segmentCount(), 0, other));
+        }
+
     }
 
 }
@@ -1,12 +1,35 @@
 package domain;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 
 import data.ObjectSaving.Saveable;
+import domain.MediaSorting.SortBy;
+import domain.MediaSorting.SortOrder;
 
 public class User implements Comparable<User>, Saveable {
+
+    // The value generated before it was declared, so users saved back then can still be loaded.
+    private static final long serialVersionUID = -6355495064861098793L;
+
+    /** The favorites used to be saved as a {@link MediaLibrary} in {@code favorites}, so users saved back then can still be loaded.
+     * They are now saved as an array in {@code favoriteMedia}.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("username", String.class),
+        new ObjectStreamField("password", String.class),
+        new ObjectStreamField("imagePath", String.class),
+        new ObjectStreamField("favorites", MediaLibrary.class),
+        new ObjectStreamField("favoriteMedia", Media[].class)
+    };
     
     /** The user's name. */
     private final String username;
@@ -23,8 +46,37 @@ public class User implements Comparable<User>, Saveable {
     */
     private final String imagePath;
 
-    /** A library of the users favorite media. */
-    private final MediaLibrary favorites;
+    /** The ids of the user's favorite media, given by {@link #mediaIds}.
+     * <p><b>Is null while the favorites are evicted.</b>
+     * Do not access directly;
+     * use {@link #favorites()}.
+     */
+    transient private IdBitmap favorites;
+
+    /** The ids that the favorites are stored as. Are the ids of the catalog, once the user is in a {@link UserSet} of it.
+     * <p><b>Is null until it is needed.</b>
+     * Do not access directly;
+     * use {@link #mediaIds()}.
+     */
+    transient private MediaIds mediaIds;
+
+    /** The number of moved ids that {@link #favorites} have been updated for. See {@link MediaIds#moveIds(IdBitmap)}. */
+    transient private int seenMoves;
+
+    /** The favorite media in each order that has been asked for, which are kept sorted as favorites are added and removed.
+     * <p><b>Is null until it is needed, and while the favorites are evicted.</b>
+     */
+    transient private EnumMap<SortBy, SortedMediaList> sortedFavorites;
+
+    /** Loads the favorites again after they have been evicted.
+     * <p><b>Is null while the favorites are loaded.</b>
+     */
+    transient private FavoritesLoader favoritesLoader;
+
+    /** Is told whenever the user is changed. Set by the {@link UserSet} the user is in.
+     * <p><b>May be null.</b>
+     */
+    transient private volatile UserSet.ChangeListener changeListener;
 
     /** Creates a new user with the given name and password.
      * @param username The user's name.
@@ -59,7 +111,62 @@ public class User implements Comparable<User>, Saveable {
         this.username = username;
         this.password = XOREncryption.encrypt(password);
         this.imagePath = imagePath;
-        this.favorites = new MediaLibrary();
+        this.favorites = new IdBitmap();
+    }
+
+    /** Loads a user's favorites, when they are needed. */
+    @FunctionalInterface
+    static interface FavoritesLoader {
+        Media[] load(String username) throws IOException;
+    }
+
+    /** Creates a user from data that has already been validated and encrypted.
+     * Used when loading saved users.
+     * Either the favorites or the loader is null.
+     */
+    private User(String username, String encryptedPassword, String imagePath, Media[] favorites, FavoritesLoader favoritesLoader) {
+        this.username = username;
+        this.password = encryptedPassword;
+        this.imagePath = imagePath;
+        this.favorites = favorites == null ? null : toIdBitmap(favorites);
+        this.favoritesLoader = favoritesLoader;
+    }
+
+    /** Recreates a saved user.
+     * <i>The data is not validated, since it was validated when the user was created.</i>
+     * @param username The user's name.
+     * @param encryptedPassword The user's password, as returned by {@link #getEncryptedPassword()}.
+     * @param imagePath The user's profile picture. May be null.
+     * @param favorites The user's favorite media.
+     * @return The recreated user.
+     */
+    static User restore(String username, String encryptedPassword, String imagePath, Media[] favorites) {
+        Objects.requireNonNull(username, "The username cannot be null.");
+        Objects.requireNonNull(encryptedPassword, "The password cannot be null.");
+        return new User(username, encryptedPassword, imagePath, favorites, null);
+    }
+
+    /** Recreates a saved user, without loading its favorites.
+     * The favorites are loaded with the given loader when they are first needed, or by {@link #loadFavorites()}.
+     * <i>The data is not validated, since it was validated when the user was created.</i>
+     * @param username The user's name.
+     * @param encryptedPassword The user's password, as returned by {@link #getEncryptedPassword()}.
+     * @param imagePath The user's profile picture. May be null.
+     * @param favoritesLoader Loads the user's favorite media.
+     * @return The recreated user.
+     */
+    static User restore(String username, String encryptedPassword, String imagePath, FavoritesLoader favoritesLoader) {
+        Objects.requireNonNull(username, "The username cannot be null.");
+        Objects.requireNonNull(encryptedPassword, "The password cannot be null.");
+        Objects.requireNonNull(favoritesLoader, "The favorites loader cannot be null.");
+        return new User(username, encryptedPassword, imagePath, null, favoritesLoader);
+    }
+
+    /** Returns the user's encrypted password, so that it can be saved.
+     * @return The encrypted password.
+     */
+    String getEncryptedPassword() {
+        return password;
     }
 
     /** Returns the user's name.
@@ -85,35 +192,220 @@ public class User implements Comparable<User>, Saveable {
         return Optional.ofNullable(imagePath);
     }
 
-    /** A list of the user's favorites library.
+    /** A list of the user's favorites library, in the default order.
      * @return A list of the user's favorites library.
+     * @see #getFavorites(SortBy, SortOrder)
      */
     public List<Media> getFavorites() {
-        return favorites.getSortedByDefault();
+        return getFavorites(SortBy.DEFAULT, SortOrder.DEFAULT);
+    }
+
+    /** A list of the user's favorites library, in the given order.
+     * <p> The favorites are only sorted the first time an order is asked for.
+     * After that they are kept sorted when favorites are added or removed,
+     * and the returned list is not copied. The list never changes, even if the favorites do.
+     * @param sortBy The property to sort by.
+     * @param sortOrder The order to sort in.
+     * @return An unmodifiable list of the user's favorites library.
+     */
+    public synchronized List<Media> getFavorites(SortBy sortBy, SortOrder sortOrder) {
+        return getSortedFavorites(sortBy).view(sortOrder == SortOrder.REVERSE);
+    }
+
+    /** One page of the user's favorites library, in the given order. Like {@link #getFavorites(SortBy, SortOrder)},
+     * the page is not copied.
+     * @param sortBy The property to sort by.
+     * @param sortOrder The order to sort in.
+     * @param pageIndex The index of the page, starting at 0.
+     * @param pageSize The number of media on each page.
+     * @return An unmodifiable list of the media on the page, which is empty if the page is after the last favorite.
+     */
+    public synchronized List<Media> getFavoritesPage(SortBy sortBy, SortOrder sortOrder, int pageIndex, int pageSize) {
+        return getSortedFavorites(sortBy).page(pageIndex, pageSize, sortOrder == SortOrder.REVERSE);
+    }
+
+    private synchronized SortedMediaList getSortedFavorites(SortBy sortBy) {
+        IdBitmap ids = favorites();
+        if(sortedFavorites == null)
+            sortedFavorites = new EnumMap<>(SortBy.class);
+
+        SortedMediaList sorted = sortedFavorites.get(sortBy);
+        if(sorted == null) {
+            List<Media> media = new ArrayList<>(ids.size());
+            MediaIds catalogIds = mediaIds();
+            ids.forEach(id -> media.add(catalogIds.get(id)));
+            sorted = new SortedMediaList(MediaSorting.getComparator(sortBy, SortOrder.DEFAULT), media);
+            sortedFavorites.put(sortBy, sorted);
+        }
+        return sorted;
     }
 
     /** Adds the given media to the user's favorites library.
      * @param media The media to add.
      * @return Whether the media was added.
      */
-    public void addFavorite(Media media) {
-        favorites.add(media);
+    public synchronized void addFavorite(Media media) {
+        UserSet.ChangeListener listener = changeListener;
+        IdBitmap ids = favorites();
+        if(!ids.add(mediaIds().register(media))) return;
+        if(sortedFavorites != null)
+            sortedFavorites.values().forEach(sorted -> sorted.add(media));
+        if(listener != null) listener.favoriteAdded(this, media);
     }
 
     /** Removes the given media from the user's favorites library.
      * @param media The media to remove.
      * @return Whether the media was removed.
      */
-    public void removeFavorite(Media media) {
-        favorites.remove(media);
+    public synchronized void removeFavorite(Media media) {
+        UserSet.ChangeListener listener = changeListener;
+        IdBitmap ids = favorites();
+        if(!ids.remove(mediaIds().getId(media))) return;
+        if(sortedFavorites != null)
+            sortedFavorites.values().forEach(sorted -> sorted.remove(media));
+        if(listener != null) listener.favoriteRemoved(this, media);
     }
 
     /** Returns whether the given media is in the user's favorites library.
      * @param media The media to check.
      * @return Whether the given media is in the user's favorites library.
      */
-    public boolean isFavorite(Media media) {
-        return favorites.contains(media);
+    public synchronized boolean isFavorite(Media media) {
+        IdBitmap ids = favorites();
+        return ids.contains(mediaIds().getId(media));
+    }
+
+    /** Loads the user's favorites, if they have been evicted.
+     * @throws IOException If the favorites could not be loaded.
+     */
+    synchronized void loadFavorites() throws IOException {
+        if(favorites != null) return;
+        favorites = toIdBitmap(favoritesLoader.load(username));
+        favoritesLoader = null;
+    }
+
+    /** Stores the favorites as the given ids from now on, which should be the ids of the catalog the user belongs to.
+     * The favorites that are loaded are given ids by the new ids. Is called by the {@link UserSet} the user is added to.
+     * @param ids The ids of the catalog.
+     */
+    synchronized void setMediaIds(MediaIds ids) {
+        if(mediaIds == ids) return;
+        int moves = ids.getMoveCount();
+        if(mediaIds != null && favorites != null && !favorites.isEmpty()) {
+            MediaIds oldIds = mediaIds;
+            IdBitmap newFavorites = new IdBitmap();
+            favorites.forEach(id -> newFavorites.add(ids.register(oldIds.get(id))));
+            favorites = newFavorites;
+        }
+        mediaIds = ids;
+        seenMoves = moves;
+    }
+
+    /** Returns the ids that the favorites are stored as. A user that isn't in a {@link UserSet} has ids of its own. */
+    private synchronized MediaIds mediaIds() {
+        if(mediaIds == null) {
+            mediaIds = new MediaIds();
+            seenMoves = 0;
+        }
+        return mediaIds;
+    }
+
+    /** Returns whether the user's favorites are loaded.
+     * @return Whether the favorites are loaded.
+     */
+    synchronized boolean isFavoritesLoaded() {
+        return favorites != null;
+    }
+
+    /** Frees the user's favorites from memory. They must already be saved.
+     * @param favoritesLoader Loads the favorites again when they are needed.
+     */
+    synchronized void evictFavorites(FavoritesLoader favoritesLoader) {
+        this.favoritesLoader = Objects.requireNonNull(favoritesLoader);
+        favorites = null;
+        sortedFavorites = null;
+    }
+
+    /** Returns the ids of the favorites, loading them first if they have been evicted,
+     * and moving the ids of media that the catalog has moved to other ids. See {@link MediaIds#moveIds(IdBitmap)}.
+     * Use {@link #loadFavorites()} beforehand to handle the exception.
+     * @throws UncheckedIOException If the favorites could not be loaded.
+     */
+    private synchronized IdBitmap favorites() {
+        try {
+            loadFavorites();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load the favorites of " + username + ".", e);
+        }
+        MediaIds ids = mediaIds();
+        int moves = ids.getMoveCount();
+        if(moves != seenMoves) {
+            ids.moveIds(favorites);
+            seenMoves = moves;
+        }
+        return favorites;
+    }
+
+    /** Sets the listener that is told whenever the user is changed.
+     * @param changeListener The listener, or null to remove it.
+     */
+    void setChangeListener(UserSet.ChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    private IdBitmap toIdBitmap(Media[] media) {
+        MediaIds catalogIds = mediaIds();
+        IdBitmap ids = new IdBitmap();
+        for(Media m : media)
+            ids.add(catalogIds.register(m));
+        return ids;
+    }
+
+    private Media[] toMedia(IdBitmap ids) {
+        MediaIds catalogIds = mediaIds();
+        Media[] media = new Media[ids.size()];
+        int[] index = {0};
+        ids.forEach(id -> media[index[0]++] = catalogIds.get(id));
+        return media;
+    }
+
+    /** Saves the user with its favorites as an array, in the order of their ids, so they are neither sorted nor put in a library.
+     * The favorites are loaded first, if they have been evicted, so they are saved too.
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("username", username);
+        fields.put("password", password);
+        fields.put("imagePath", imagePath);
+        fields.put("favorites", null);
+        fields.put("favoriteMedia", toMedia(favorites()));
+        out.writeFields();
+    }
+
+    /** The fields read by {@link #readObject}, which {@link #readResolve()} creates the user from.
+     * Is needed because the final fields can't be set by {@code readObject}.
+     */
+    transient private SerializedFields serializedFields;
+
+    private static record SerializedFields(String username, String password, String imagePath,
+                                           MediaLibrary favorites, Media[] favoriteMedia) {}
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        serializedFields = new SerializedFields((String) fields.get("username", null),
+                                                (String) fields.get("password", null),
+                                                (String) fields.get("imagePath", null),
+                                                (MediaLibrary) fields.get("favorites", null),
+                                                (Media[]) fields.get("favoriteMedia", null));
+    }
+
+    private Object readResolve() {
+        SerializedFields fields = serializedFields;
+        Media[] favoriteMedia = fields.favoriteMedia();
+        if(favoriteMedia == null)
+            favoriteMedia = fields.favorites() == null ? new Media[0]
+                                                       : fields.favorites().getSortedByDefault().toArray(Media[]::new);
+        return new User(fields.username(), fields.password(), fields.imagePath(), favoriteMedia, null);
     }
 
     /** Compares this user to the given user.
@@ -0,0 +1,324 @@
+package domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import data.Journal;
+import data.ObjectSaving;
+import domain.UserSet.UserAlreadyExistsException;
+import domain.UserSet.UserDoesNotExistException;
+
+/** Saves every change to the users as a small record in an append-only {@link Journal},
+ * so that saving a change costs the same no matter how many users there are.
+ * <p> The journal is split into generations, each in its own file, named
+ * {@code FOLDER + fileName + "." + generation + ".userjournal"}.
+ * {@link #compact(UserSet)} starts a new generation, saves a snapshot of all users
+ * with {@link UserSet#saveToFile(String)}, and then deletes the older generations.
+ * <p> When loading, the snapshot is loaded first, and then the journals are replayed on top of it.
+ * Replaying is idempotent, fx. adding a user that already exists does nothing,
+ * because the snapshot may already contain some of the changes in the journals.
+ * Since every record sets something to a value, rather than changing it relative to what it was,
+ * replaying the records in order always ends with the right result.
+ */
+class UserJournal implements UserSet.ChangeListener {
+
+    private static final String FILE_EXTENSION = ".userjournal";
+
+    private static final byte ADD_USER = 1;
+    private static final byte REMOVE_USER = 2;
+    private static final byte ADD_FAVORITE = 3;
+    private static final byte REMOVE_FAVORITE = 4;
+
+    private static final byte TYPE_MOVIE = 0;
+    private static final byte TYPE_SERIES = 1;
+
+    private final String fileName;
+
+    /** Is run after each record is appended. <b>May be null.</b> */
+    private final Runnable onAppend;
+
+    /** The journal that records are appended to. Is null when the journal isn't open. */
+    private Journal journal;
+    private long generation;
+
+    /** Is given the exception when a record could not be written. Is set when the journal is opened. */
+    private Consumer<IOException> writeErrorHandler;
+
+    /** Creates a journal for the users saved under the given file name.
+     * @param fileName The name of the files, without extension.
+     * @param onAppend Is run after each record is appended, fx. to schedule compaction. May be null.
+     */
+    UserJournal(String fileName, Runnable onAppend) {
+        this.fileName = fileName;
+        this.onAppend = onAppend;
+    }
+
+    /** Replays all generations of the journal onto the given users, from oldest to newest.
+     * Should be called after loading the snapshot, and before opening the journal.
+     * @param users The users to replay the changes onto.
+     * @param skippedRecordHandler Is given an exception for each record that is skipped, because it is malformed,
+     *        or of a kind that is unknown, fx. because it was written by a newer version of the application.
+     * @return The number of records read, including the skipped ones.
+     * @throws IOException If a journal could not be read.
+     */
+    int replayInto(UserSet users, Consumer<IOException> skippedRecordHandler) throws IOException {
+        int count = 0;
+        for(Path filePath : findGenerations().values())
+            count += Journal.readRecords(filePath, record -> apply(record, users, skippedRecordHandler));
+        return count;
+    }
+
+    /** Opens a new generation of the journal, which changes are appended to from now on.
+     * Old generations are kept until the next compaction, since they aren't part of a snapshot yet.
+     * If nothing has been appended to the newest generation, it is used again, rather than starting another.
+     * <p> If a record can't be written, no more records are written to that generation, and the error is reported.
+     * The changes are still in memory, so they are saved by the next {@link #compact(UserSet)},
+     * which is scheduled right away, and which starts a new generation.
+     * @param writeErrorHandler Is given the exception when a record could not be written. Is called on a background thread.
+     * @throws IOException If the journal could not be opened.
+     */
+    synchronized void open(Consumer<IOException> writeErrorHandler) throws IOException {
+        if(journal != null) return;
+        this.writeErrorHandler = writeErrorHandler;
+        Map.Entry<Long, Path> newest = findGenerations().lastEntry();
+        if(newest != null && Files.size(newest.getValue()) == 0)
+            generation = newest.getKey();
+        else
+            generation = (newest != null ? newest.getKey() : 0) + 1;
+        journal = openGeneration(generation);
+    }
+
+    private Journal openGeneration(long generation) throws IOException {
+        Consumer<IOException> handler = writeErrorHandler;
+        return new Journal(getGenerationPath(generation), e -> {
+            handler.accept(new IOException("Failed to write the user journal, so the changes are saved when it is compacted: " + e.getMessage(), e));
+            if(onAppend != null) onAppend.run();
+        });
+    }
+
+    /** Saves a snapshot of the users, and deletes the generations of the journal that it contains.
+     * Changes made while compacting are appended to the new generation, so none are lost.
+     * @param users The users to save.
+     * @throws IOException If the snapshot could not be saved, or the journal could not be rotated.
+     */
+    void compact(UserSet users) throws IOException {
+        long newGeneration;
+        Journal previous;
+        synchronized(this) {
+            if(journal == null)
+                throw new IllegalStateException("The journal is not open.");
+
+            // Start a new generation first, so every change not in the new generation
+            // is made before the snapshot is taken, and therefore is in the snapshot.
+            // It is opened before the old one is closed, so changes always have a journal to go to, even if closing fails.
+            newGeneration = generation + 1;
+            previous = journal;
+            journal = openGeneration(newGeneration);
+            generation = newGeneration;
+        }
+
+        try {
+            previous.close();
+        } catch (IOException e) {
+            // Has already been reported, and the records that weren't written are in the snapshot.
+        }
+        users.saveToFile(fileName);
+
+        for(Map.Entry<Long, Path> entry : findGenerations().entrySet())
+            if(entry.getKey() < newGeneration)
+                Files.deleteIfExists(entry.getValue());
+    }
+
+    /** Writes the appended records, and closes the journal.
+     * @throws IOException If some records could not be written.
+     */
+    synchronized void close() throws IOException {
+        if(journal == null) return;
+        try {
+            journal.close();
+        }
+        finally {
+            journal = null;
+        }
+    }
+
+    public void userAdded(User user) {
+        append(ADD_USER, out -> {
+            out.writeUTF(user.getUsername());
+            out.writeUTF(user.getEncryptedPassword());
+            out.writeBoolean(user.getImagePath().isPresent());
+            if(user.getImagePath().isPresent())
+                out.writeUTF(user.getImagePath().get());
+        });
+    }
+
+    public void userRemoved(User user) {
+        append(REMOVE_USER, out -> out.writeUTF(user.getUsername()));
+    }
+
+    public void favoriteAdded(User user, Media media) {
+        append(ADD_FAVORITE, out -> {
+            out.writeUTF(user.getUsername());
+            writeMedia(out, media);
+        });
+    }
+
+    public void favoriteRemoved(User user, Media media) {
+        append(REMOVE_FAVORITE, out -> {
+            out.writeUTF(user.getUsername());
+            writeMedia(out, media);
+        });
+    }
+
+    /** Writes the contents of a record. */
+    @FunctionalInterface
+    private static interface RecordWriting {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    private void append(byte operation, RecordWriting writing) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try(DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(operation);
+            writing.writeTo(out);
+        } catch (IOException e) {
+            // Writing to a byte array doesn't throw.
+            throw new UncheckedIOException(e);
+        }
+
+        synchronized(this) {
+            if(journal == null) return;
+            journal.append(bytes.toByteArray());
+        }
+
+        if(onAppend != null) onAppend.run();
+    }
+
+    /** Applies a single record to the users. Records that don't apply, fx. because they are already applied, are skipped. */
+    private static void apply(byte[] record, UserSet users, Consumer<IOException> skippedRecordHandler) {
+        try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            byte operation = in.readByte();
+            String username = in.readUTF();
+
+            switch(operation) {
+                case ADD_USER -> {
+                    String encryptedPassword = in.readUTF();
+                    String imagePath = in.readBoolean() ? in.readUTF() : null;
+                    try {
+                        users.addUser(User.restore(username, encryptedPassword, imagePath, new Media[0]));
+                    } catch (UserAlreadyExistsException e) {
+                        // Already in the snapshot.
+                    }
+                }
+                case REMOVE_USER -> {
+                    try {
+                        users.removeUser(username);
+                    } catch (UserDoesNotExistException e) {
+                        // Already removed in the snapshot.
+                    }
+                }
+                case ADD_FAVORITE, REMOVE_FAVORITE -> {
+                    Media media = readMedia(in);
+                    try {
+                        User user = users.getUser(username);
+                        if(operation == ADD_FAVORITE) user.addFavorite(media);
+                        else                          user.removeFavorite(media);
+                    } catch (UserDoesNotExistException e) {
+                        // The user is removed later in the journal.
+                    }
+                }
+                default -> skippedRecordHandler.accept(new IOException("Skipped unknown user journal record: " + operation));
+            }
+        } catch (IOException e) {
+            skippedRecordHandler.accept(new IOException("Skipped malformed user journal record: " + e.getMessage(), e));
+        }
+    }
+
+    /** Writes all fields of the media. Is also used by {@link CatalogReplication}. */
+    static void writeMedia(DataOutputStream out, Media media) throws IOException {
+        out.writeByte(media instanceof Series ? TYPE_SERIES : TYPE_MOVIE);
+        out.writeUTF(media.title);
+        out.writeUTF(media.getImageFolderPath());
+        out.writeInt(media.releaseYear);
+        out.writeFloat(media.rating);
+
+        String[] categories = media.categories.getNames();
+        out.writeByte(categories.length);
+        for(String category : categories)
+            out.writeUTF(category);
+
+        if(media instanceof Series series) {
+            out.writeBoolean(series.isEnded);
+            out.writeInt(series.endYear);
+            out.writeShort(series.seasonLengths.length());
+            for(int seasonLength : series.seasonLengths)
+                out.writeInt(seasonLength);
+        }
+    }
+
+    static Media readMedia(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String title = in.readUTF();
+        String imageFolder = in.readUTF();
+        int releaseYear = in.readInt();
+        float rating = in.readFloat();
+
+        String[] categories = new String[in.readByte()];
+        for(int i = 0; i < categories.length; i++)
+            categories[i] = in.readUTF();
+
+        if(type == TYPE_MOVIE)
+            return new Movie(title, releaseYear, categories, rating, imageFolder);
+
+        if(type == TYPE_SERIES) {
+            boolean isEnded = in.readBoolean();
+            int endYear = in.readInt();
+            int[] seasonLengths = new int[in.readShort()];
+            for(int i = 0; i < seasonLengths.length; i++)
+                seasonLengths[i] = in.readInt();
+            return new Series(title, releaseYear, isEnded, endYear, categories, rating, seasonLengths, imageFolder);
+        }
+
+        throw new IOException("Unknown media type " + type + ".");
+    }
+
+    private Path getGenerationPath(long generation) {
+        return Path.of(ObjectSaving.FOLDER + fileName + "." + generation + FILE_EXTENSION);
+    }
+
+    /** Finds the journal files, sorted by generation. */
+    private TreeMap<Long, Path> findGenerations() throws IOException {
+        Pattern pattern = Pattern.compile(Pattern.quote(fileName) + "\\.(\\d+)" + Pattern.quote(FILE_EXTENSION));
+        TreeMap<Long, Path> generations = new TreeMap<>();
+
+        Path folder = Path.of(ObjectSaving.FOLDER);
+        if(!Files.isDirectory(folder)) return generations;
+
+        List<Path> files = new ArrayList<>();
+        try(Stream<Path> stream = Files.list(folder)) {
+            stream.forEach(files::add);
+        }
+
+        for(Path file : files) {
+            Matcher matcher = pattern.matcher(file.getFileName().toString());
+            if(matcher.matches())
+                generations.put(Long.parseLong(matcher.group(1)), file);
+        }
+        return generations;
+    }
+
+}
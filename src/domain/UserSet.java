@@ -1,81 +1,530 @@
 package domain;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-import data.ObjectSaving;
 import data.ObjectSaving.Saveable;
 
 /** A set of all users.
  * <p> Users are identified by their name,
  * and two users are considered equal if they have the same name,
  * which means that no two users can have the same name.
+ * <p> The users are kept in a concurrent map by name, so users can be looked up, added and removed
+ * in constant time, from several threads at once.
+ * <p> If the user directory is mapped, the users are not loaded when the set is loaded. Each user is looked up
+ * in the directory, and kept in the map, the first time it is needed, and only the users that changed are saved.
+ * See {@link #setUserDirectoryMapped}.
  * @see User
 */
 public class UserSet implements Saveable {
+
+    // Declared with the value that used to be generated, so that files saved
+    // with Java serialization can still be loaded by UserStore.
+    private static final long serialVersionUID = 6900548993459834453L;
+
+    /** The users used to be saved as a set in the field {@code users}, so they still are. */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("users", Set.class)
+    };
     
-    /** A set of all users. */
-    private Set<User> users;
+    /** All users, by name. */
+    transient private ConcurrentHashMap<String, User> users;
+
+    /** All users, by their name in lower case. Used to find users regardless of case.
+     * <p><b>Is null unless the set is case-insensitive.</b>
+     */
+    transient private ConcurrentHashMap<String, User> usersIgnoringCase;
+
+    /** The ids that the favorites of the users are stored as. See {@link #UserSet(MediaIds)}. */
+    transient private MediaIds mediaIds;
+
+    /** Is increased after every user that is added or removed. */
+    transient private AtomicLong version;
+
+    /** The users sorted by name, and the version they were sorted at.
+     * <p><b>May be null, or out of date.</b>
+     * Do not access directly;
+     * use {@link #getSortedUsers()}.
+     */
+    transient private volatile SortedUsers sortedUsers;
+
+    private static record SortedUsers(long version, List<User> users) {}
+
+    /** Is told whenever a user is added, removed or changed.
+     * <p><b>May be null.</b>
+     */
+    transient private volatile ChangeListener changeListener;
+
+    /** The files the users are saved in, which evicted favorites are loaded from.
+     * <p><b>Is null until the users have been loaded or saved.</b>
+     */
+    transient private volatile UserStore store;
+
+    /** Whether the user directory is saved in a {@link MappedUserDirectory}. See {@link #setUserDirectoryMapped}. */
+    transient private volatile boolean isUserDirectoryMapped;
+
+    /** The shards of {@link #store} with changes that haven't been saved yet. */
+    transient private Set<Integer> dirtyShards;
 
-    /** Creates a new empty user set. */
+    /** The names of the users that have been added or removed since the user directory was last saved. */
+    transient private Set<String> changedUsers;
+
+    /** The names of the users that have been removed since the favorites of their shard were last saved. */
+    transient private Set<String> removedUsers;
+
+    /** Is held while a user is looked up in a mapped user directory, and while users are added to, removed from,
+     * or saved in it, so that a removed user isn't looked up again before its removal has been saved.
+     */
+    transient private Object directoryLock;
+
+    /** Is held while a shard is saved, or a user in it is evicted, so a user is never evicted
+     * after its shard has been read, but before it has been written.
+     */
+    transient private Object[] shardLocks;
+
+    /** Is set as the listener of every user in the set. Marks the shard of the user as changed,
+     * and tells {@link #changeListener}.
+     */
+    transient private ChangeListener userListener;
+
+    /** Is told about every change to the users in a {@link UserSet}.
+     * The methods are called after the change has been made.
+     */
+    interface ChangeListener {
+        void userAdded(User user);
+        void userRemoved(User user);
+        void favoriteAdded(User user, Media media);
+        void favoriteRemoved(User user, Media media);
+    }
+
+    /** Creates a new empty user set, whose favorites have ids of their own. */
     UserSet() {
-        users = new HashSet<User>();
+        this(false);
+    }
+
+    /** Creates a new empty user set, whose favorites have ids of their own.
+     * @param isCaseInsensitive Whether users can be found regardless of the case of their name.
+     * If so, no two users can have names that only differ in case.
+     */
+    UserSet(boolean isCaseInsensitive) {
+        initialize(isCaseInsensitive, new MediaIds());
+    }
+
+    /** Creates a new empty user set, whose favorites are stored as the ids of the given catalog,
+     * so that they are the same media as the catalog has with those ids.
+     * @param mediaIds The ids of the catalog. See {@link MediaLibrary#getMediaIds()}.
+     */
+    UserSet(MediaIds mediaIds) {
+        initialize(false, mediaIds);
+    }
+
+    private void initialize(boolean isCaseInsensitive, MediaIds mediaIds) {
+        this.mediaIds = mediaIds;
+        users = new ConcurrentHashMap<>();
+        usersIgnoringCase = isCaseInsensitive ? new ConcurrentHashMap<>() : null;
+        version = new AtomicLong();
+        dirtyShards = ConcurrentHashMap.newKeySet();
+        changedUsers = ConcurrentHashMap.newKeySet();
+        removedUsers = ConcurrentHashMap.newKeySet();
+        directoryLock = new Object();
+        shardLocks = new Object[UserStore.SHARD_COUNT];
+        for(int i = 0; i < shardLocks.length; i++)
+            shardLocks[i] = new Object();
+        userListener = new UserListener();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("users", new HashSet<>(users.values()));
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        initialize(false, new MediaIds());
+        for(User user : (Set<User>) fields.get("users", Set.of())) {
+            users.put(user.getUsername(), user);
+            user.setMediaIds(mediaIds);
+        }
+    }
+
+    /** Sets whether the user directory is saved in a {@link MappedUserDirectory}, which suits very many users,
+     * rather than in a single file. Must be called before the users are loaded or saved.
+     * <p> The users are then looked up when they are needed, rather than loaded at startup.
+     * If only a user directory file has been saved, the users are loaded from it, and moved to the mapped directory
+     * when they are next saved.
+     * @param isUserDirectoryMapped Whether the user directory is mapped.
+     * @throws IllegalStateException If the set is case-insensitive, since the mapped directory finds users by their exact name.
+     * @see UserStore
+     */
+    void setUserDirectoryMapped(boolean isUserDirectoryMapped) {
+        if(isUserDirectoryMapped && usersIgnoringCase != null)
+            throw new IllegalStateException("A case-insensitive set can't keep its user directory mapped.");
+        this.isUserDirectoryMapped = isUserDirectoryMapped;
+    }
+
+    /** Returns whether the users are saved in, and looked up in, a mapped user directory. */
+    private boolean isLookingUpSavedUsers() {
+        UserStore currentStore = store;
+        return currentStore != null && currentStore.isDirectoryMapped();
     }
 
     /** Loads a saved userset from a file.
+     * Only the user directory is loaded. Each user's favorites are loaded when they are needed.
+     * Both the binary format and the older Java serialization format can be loaded.
      * @param folderName The name of the folder to load from.
      * @throws ClassNotFoundException If the class of a serialized object cannot be found.
      * @throws IOException If an I/O error occurs.
+     * @see UserStore
      */
     static UserSet loadUserSet(String folderName) throws ClassNotFoundException, IOException {
-        return ObjectSaving.loadFromFile(UserSet.class, folderName);
+        UserSet userSet = new UserSet();
+        userSet.loadUsersAndAdd(folderName);
+        return userSet;
+    }
+
+    /** Saves this userset to a file, in the binary format of {@link UserSetCodec}.
+     * <p> If the users were loaded from, or last saved to, the same file,
+     * only the favorites files with changes are saved again.
+     * If the users haven't been loaded or saved before, they are saved to the given file from now on.
+     * @param fileName The name of the file to save to.
+     * @throws IOException If the file could not be written to.
+     * @see UserStore
+     */
+    public void saveToFile(String fileName) throws IOException {
+        UserStore currentStore = store;
+        boolean isSameStore = currentStore != null && currentStore.getFileName().equals(fileName);
+        UserStore target = isSameStore ? currentStore : new UserStore(fileName, isUserDirectoryMapped);
+
+        if(isSameStore && target.isDirectoryMapped()) {
+            for(int shard = 0; shard < UserStore.SHARD_COUNT; shard++)
+                if(dirtyShards.contains(shard))
+                    saveShard(target, shard);
+            saveChangedUsers(target);
+            return;
+        }
+
+        // Every user is saved, so the users of a mapped directory that haven't been looked up are loaded first.
+        List<User> allUsers = getUsers();
+        // The changed users are only saved if the users are saved to this file from now on.
+        // They are cleared before saving, so users changed while saving are saved next time.
+        List<String> changed = isSameStore || currentStore == null ? List.copyOf(changedUsers) : List.of();
+        changedUsers.removeAll(changed);
+        try {
+            for(int shard = 0; shard < UserStore.SHARD_COUNT; shard++)
+                if(!isSameStore || dirtyShards.contains(shard))
+                    saveShard(target, shard);
+            target.saveUsers(allUsers);
+        }
+        catch (IOException e) {
+            changedUsers.addAll(changed);
+            throw e;
+        }
+
+        if(currentStore == null) store = target;
+    }
+
+    /** Saves the records of the users that have been added or removed since the mapped directory was last saved. */
+    private void saveChangedUsers(UserStore target) throws IOException {
+        synchronized(directoryLock) {
+            List<String> changed = List.copyOf(changedUsers);
+            changedUsers.removeAll(changed);
+            try {
+                for(String username : changed) {
+                    User user = users.get(username);
+                    if(user != null) target.saveUser(user);
+                    else             target.removeUser(username);
+                }
+                target.syncDirectory();
+            }
+            catch (IOException e) {
+                changedUsers.addAll(changed);
+                throw e;
+            }
+        }
+    }
+
+    /** Saves the favorites of the users in the given shard.
+     * Users whose favorites are evicted keep the favorites saved in the current store,
+     * and so do the users of a mapped directory that haven't been looked up.
+     */
+    private void saveShard(UserStore target, int shard) throws IOException {
+        synchronized(shardLocks[shard]) {
+            // Cleared before reading the favorites, so changes made while saving are saved next time.
+            dirtyShards.remove(shard);
+            List<String> removed = removedUsers.stream().filter(username -> UserStore.shardOf(username) == shard).toList();
+            try {
+                Map<String, Media[]> savedFavorites = null;
+                Map<String, List<Media>> favorites = new HashMap<>();
+                if(target == store && target.isDirectoryMapped()) {
+                    savedFavorites = store.loadShard(shard);
+                    for(Map.Entry<String, Media[]> saved : savedFavorites.entrySet())
+                        if(!removedUsers.contains(saved.getKey()))
+                            favorites.put(saved.getKey(), List.of(saved.getValue()));
+                }
+                for(User user : users.values()) {
+                    if(UserStore.shardOf(user.getUsername()) != shard) continue;
+
+                    if(user.isFavoritesLoaded()) {
+                        favorites.put(user.getUsername(), user.getFavorites());
+                        continue;
+                    }
+                    if(savedFavorites == null) savedFavorites = store.loadShard(shard);
+                    favorites.put(user.getUsername(), List.of(savedFavorites.getOrDefault(user.getUsername(), new Media[0])));
+                }
+                target.saveShard(shard, favorites);
+                removedUsers.removeAll(removed);
+            }
+            catch (IOException e) {
+                dirtyShards.add(shard);
+                throw e;
+            }
+        }
     }
 
     /** Loads a saved userset and adds its users to this userset.
+     * The users are saved to the same file from now on.
      * @param folderName The name of the folder to load from.
      * @throws ClassNotFoundException If the class of a serialized object cannot be found.
      * @throws IOException If an I/O error occurs.
      */
     void loadUsersAndAdd(String folderName) throws ClassNotFoundException, IOException {
-        UserSet loadedUsers = loadUserSet(folderName);
-        users.addAll(loadedUsers.users);
+        UserStore loadedStore = new UserStore(folderName, isUserDirectoryMapped);
+        store = loadedStore;
+        // The users of a mapped directory are looked up when they are needed, unless they are only saved in a file so far.
+        boolean isMigrating = loadedStore.isMigratingToMappedDirectory();
+        if(loadedStore.isDirectoryMapped() && !isMigrating) return;
+
+        for(User user : loadedStore.loadUsers()) {
+            if(!put(user)) continue;
+            user.setChangeListener(userListener);
+            if(isMigrating) changedUsers.add(user.getUsername());
+            // Older files contain the favorites, which aren't in the favorites files yet.
+            if(user.isFavoritesLoaded())
+                dirtyShards.add(UserStore.shardOf(user.getUsername()));
+        }
+        version.incrementAndGet();
+    }
+
+    /** Loads the favorites of the given user, if they aren't loaded already.
+     * Should be called when the user logs in.
+     * @param user The user.
+     * @throws IOException If the favorites could not be loaded.
+     */
+    void loadFavorites(User user) throws IOException {
+        user.loadFavorites();
+    }
+
+    /** Frees the favorites of the given user from memory, after saving them if they have changed.
+     * Should be called when the user logs out. Does nothing if the users haven't been saved or loaded yet.
+     * @param user The user.
+     * @throws IOException If the changed favorites could not be saved.
+     */
+    void evictFavorites(User user) throws IOException {
+        UserStore currentStore = store;
+        if(currentStore == null) return;
+
+        int shard = UserStore.shardOf(user.getUsername());
+        synchronized(shardLocks[shard]) {
+            synchronized(user) {
+                if(dirtyShards.contains(shard))
+                    saveShard(currentStore, shard);
+                user.evictFavorites(currentStore::loadFavorites);
+            }
+        }
+    }
+
+    /** Sets the listener that is told whenever a user is added, removed or changed.
+     * <i>Loading users does not count as a change.</i>
+     * @param changeListener The listener, or null to remove it.
+     */
+    void setChangeListener(ChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    private class UserListener implements ChangeListener {
+        public void userAdded(User user) {
+            dirtyShards.add(UserStore.shardOf(user.getUsername()));
+            changedUsers.add(user.getUsername());
+            ChangeListener listener = changeListener;
+            if(listener != null) listener.userAdded(user);
+        }
+        public void userRemoved(User user) {
+            dirtyShards.add(UserStore.shardOf(user.getUsername()));
+            changedUsers.add(user.getUsername());
+            removedUsers.add(user.getUsername());
+            ChangeListener listener = changeListener;
+            if(listener != null) listener.userRemoved(user);
+        }
+        public void favoriteAdded(User user, Media media) {
+            dirtyShards.add(UserStore.shardOf(user.getUsername()));
+            ChangeListener listener = changeListener;
+            if(listener != null) listener.favoriteAdded(user, media);
+        }
+        public void favoriteRemoved(User user, Media media) {
+            dirtyShards.add(UserStore.shardOf(user.getUsername()));
+            ChangeListener listener = changeListener;
+            if(listener != null) listener.favoriteRemoved(user, media);
+        }
     }
 
     /** Returns an unmodifiable list of all users.
+     * If the user directory is mapped, every user that hasn't been looked up is loaded, which reads the whole directory.
      * @return An unmodifiable list of all users.
      */
     List<User> getUsers() {
-        return List.copyOf(users);
+        loadSavedUsers();
+        return List.copyOf(users.values());
+    }
+
+    /** Loads every user of a mapped user directory that hasn't been looked up yet. Reads the whole directory. */
+    private void loadSavedUsers() {
+        UserStore currentStore = store;
+        if(currentStore == null || !currentStore.isDirectoryMapped() || currentStore.isMigratingToMappedDirectory()) return;
+
+        synchronized(directoryLock) {
+            boolean isChanged = false;
+            try {
+                for(User user : currentStore.loadMappedUsers()) {
+                    // A user that has been removed is still in the directory until the removal has been saved.
+                    if(changedUsers.contains(user.getUsername()) || !put(user)) continue;
+                    user.setChangeListener(userListener);
+                    isChanged = true;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to load the users: " + e.getMessage(), e);
+            }
+            if(isChanged) version.incrementAndGet();
+        }
+    }
+
+    /** Returns an unmodifiable list of all users, sorted by name.
+     * The list is only sorted again after users have been added or removed.
+     * If the user directory is mapped, every user that hasn't been looked up is loaded, which reads the whole directory.
+     * @return An unmodifiable list of all users, sorted by name.
+     */
+    List<User> getSortedUsers() {
+        loadSavedUsers();
+        SortedUsers sorted = sortedUsers;
+        long currentVersion = version.get();
+        if(sorted != null && sorted.version() == currentVersion)
+            return sorted.users();
+
+        List<User> sortedList = users.values().stream().sorted().toList();
+        // Only kept if no users were added or removed while sorting.
+        if(version.get() == currentVersion)
+            sortedUsers = new SortedUsers(currentVersion, sortedList);
+        return sortedList;
+    }
+
+    /** Returns whether users can be found regardless of the case of their name.
+     * @return Whether the set is case-insensitive.
+     */
+    boolean isCaseInsensitive() {
+        return usersIgnoringCase != null;
     }
 
     /** Returns the user with the given name.
+     * If the set is case-insensitive, the case of the name does not matter.
      * @param username The name of the user.
      * @return The user with the given name.
      * @throws UserDoesNotExistException If the user does not exist.
      */
     User getUser(String username) throws UserDoesNotExistException {
-        User user = users.stream()
-                         .filter(u -> u.getUsername().equals(username))
-                         .findFirst()
-                         .orElse(null);
-        
+        User user = findUser(username);
         if(user == null)
             throw new UserDoesNotExistException("User does not exist");
 
         return user;
     }
 
+    /** Returns the user with the given name, looking it up in the mapped user directory if it hasn't been yet.
+     * @return The user, or null if there is no user with the name.
+     * @throws UncheckedIOException If the mapped user directory could not be read.
+     */
+    private User findUser(String username) {
+        User user = users.get(username);
+        if(user == null && usersIgnoringCase != null)
+            user = usersIgnoringCase.get(username.toLowerCase(Locale.ROOT));
+        UserStore currentStore = store;
+        if(user != null || currentStore == null || !currentStore.isDirectoryMapped()) return user;
+
+        synchronized(directoryLock) {
+            user = users.get(username);
+            // A user that has been removed is still in the directory until the removal has been saved.
+            if(user != null || changedUsers.contains(username)) return user;
+
+            Optional<User> saved;
+            try {
+                saved = currentStore.loadUser(username);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to look up the user " + username + ": " + e.getMessage(), e);
+            }
+            if(saved.isEmpty()) return null;
+
+            user = saved.get();
+            put(user);
+            user.setChangeListener(userListener);
+            version.incrementAndGet();
+            return user;
+        }
+    }
+
     /** Adds the given user to the set.
      * @param user The user to add.
-     * @throws UserAlreadyExistsException If the user already exists.
+     * @throws UserAlreadyExistsException If the user already exists,
+     * or if the set is case-insensitive and a user with the same name in another case exists.
      */
     void addUser(User user) throws UserAlreadyExistsException {
-        if(users.contains(user))
+        if(!isLookingUpSavedUsers()) {
+            addLoadedUser(user);
+            return;
+        }
+        synchronized(directoryLock) {
+            // A saved user that hasn't been looked up is looked up, so that the user is found to exist.
+            findUser(user.getUsername());
+            addLoadedUser(user);
+        }
+    }
+
+    private void addLoadedUser(User user) throws UserAlreadyExistsException {
+        if(!put(user))
             throw new UserAlreadyExistsException("User already exists");
 
-        users.add(user);
+        user.setChangeListener(userListener);
+        userListener.userAdded(user);
+        version.incrementAndGet();
+    }
+
+    /** Puts the user in the maps, if no user with the same name exists, and stores its favorites as the ids of the set.
+     * @return Whether the user was put.
+     */
+    private boolean put(User user) {
+        if(usersIgnoringCase == null) {
+            if(users.putIfAbsent(user.getUsername(), user) != null) return false;
+        }
+        else {
+            // The lower case name is claimed first, so two names that only differ in case can't both be added.
+            String lowerCaseName = user.getUsername().toLowerCase(Locale.ROOT);
+            if(usersIgnoringCase.putIfAbsent(lowerCaseName, user) != null)
+                return false;
+            users.put(user.getUsername(), user);
+        }
+        user.setMediaIds(mediaIds);
+        return true;
     }
 
     /** Removes the given user from the set.
@@ -83,24 +532,47 @@ public class UserSet implements Saveable {
      * @return Whether the user was removed.
      */
     boolean removeUser(User user) throws UserDoesNotExistException {
-        if(!users.contains(user))
-            throw new UserDoesNotExistException("User does not exist");
-
-        return users.remove(user);
+        return removeUser(user.getUsername());
     }
 
     /** Removes the user with the given name from the set.
+     * If the set is case-insensitive, the case of the name does not matter.
      * @param username The name of the user to remove.
      * @return Whether the user was removed.
      */
     boolean removeUser(String username) throws UserDoesNotExistException {
-        if(!users.removeIf(u -> u.getUsername().equals(username)))
+        if(!isLookingUpSavedUsers())
+            return removeLoadedUser(username);
+        synchronized(directoryLock) {
+            // A saved user that hasn't been looked up is looked up, so that it can be removed.
+            findUser(username);
+            return removeLoadedUser(username);
+        }
+    }
+
+    private boolean removeLoadedUser(String username) throws UserDoesNotExistException {
+        User user = users.remove(username);
+        if(user == null && usersIgnoringCase != null) {
+            User userIgnoringCase = usersIgnoringCase.get(username.toLowerCase(Locale.ROOT));
+            if(userIgnoringCase != null && users.remove(userIgnoringCase.getUsername(), userIgnoringCase))
+                user = userIgnoringCase;
+        }
+
+        if(user == null)
             throw new UserDoesNotExistException("User does not exist");
+
+        if(usersIgnoringCase != null)
+            usersIgnoringCase.remove(user.getUsername().toLowerCase(Locale.ROOT), user);
+
+        user.setChangeListener(null);
+        userListener.userRemoved(user);
+        version.incrementAndGet();
         return true;
     }
 
     public int hashCode() {
-        return users.hashCode();
+        loadSavedUsers();
+        return users.keySet().hashCode();
     }
 
     public boolean equals(Object obj) {
@@ -112,7 +584,9 @@ public class UserSet implements Saveable {
             return false;
 
         UserSet other = (UserSet) obj;
-        return users.equals(other.users);
+        loadSavedUsers();
+        other.loadSavedUsers();
+        return users.keySet().equals(other.users.keySet());
     }
 
     /** A user already exists exception. */
@@ -0,0 +1,343 @@
+package domain;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import data.BinaryFileReader;
+import data.BinaryFileWriter;
+import data.ObjectSaving;
+
+/** Saves and loads users in a compact, versioned binary format.
+ * <p> Users are saved in two kinds of files. The user directory contains each user's
+ * name, password and profile picture, which is all that is needed before a user logs in.
+ * The favorites are saved in favorites files, which are only read when they are needed.
+ * See {@link UserStore} for how the users are split between the favorites files.
+ * <p> With Java serialization, every user's favorites library contains complete media objects,
+ * so a media is written again for every user who has it as a favorite.
+ * In a favorites file each media is only written once, in a table,
+ * and favorites are written as indices into that table.
+ * All strings are likewise written once, in a string table, and referred to by index.
+ * <p> The user directory is: <ul>
+ * <li> {@code int} magic number, {@code int} version.
+ * <li> The string table: the number of strings, followed by the strings.
+ * <li> The users: the number of users, followed by each user. See {@link #writeUser}. </ul>
+ * <p> A favorites file is: <ul>
+ * <li> {@code int} magic number, {@code int} version.
+ * <li> The string table.
+ * <li> The media table: the number of media, followed by each media. See {@link #writeMedia}.
+ * <li> The favorites: the number of users, followed by each user's favorites. See {@link #writeFavorites}. </ul>
+ * <p> Version 1 user directories also contained the media table and each user's favorites, and can still be loaded.
+ * <p> The files are compressed with {@link ObjectSaving#getCompression()}, and are decompressed by {@link BinaryFileReader}
+ * when they are loaded, so the format above describes the decompressed bytes.
+ */
+class UserSetCodec {
+
+    /** The first four bytes of a user directory. Is "USET" in ASCII. */
+    private static final int MAGIC = 0x55534554;
+
+    /** The first four bytes of a favorites file. Is "UFAV" in ASCII. */
+    private static final int MAGIC_FAVORITES = 0x55464156;
+
+    /** The version of the user directory. Should be increased whenever the format changes. */
+    private static final int VERSION = 2;
+
+    /** The version of the favorites files. Should be increased whenever the format changes. */
+    private static final int VERSION_FAVORITES = 1;
+
+    private static final int TYPE_MOVIE = 0;
+    private static final int TYPE_SERIES = 1;
+
+    private UserSetCodec() {}
+
+    /** Saves the user directory to the given file. The favorites are not saved.
+     * The file is replaced atomically, so it is never left half written. See {@link ObjectSaving#writeAtomically}.
+     * @param users The users to save.
+     * @param filePath The path of the file to save to.
+     * @throws IOException If the file could not be written to.
+     */
+    static void saveDirectory(List<User> users, Path filePath) throws IOException {
+        // Collect the strings first, so that the table can be written before they are referred to.
+        Tables tables = new Tables();
+        for(User user : users) {
+            tables.intern(user.getUsername());
+            tables.intern(user.getImagePath().orElse(null));
+        }
+
+        ObjectSaving.writeAtomically(filePath, tempFilePath -> {
+            try(BinaryFileWriter out = new BinaryFileWriter(tempFilePath, ObjectSaving.getCompression())) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeStrings(out, tables);
+
+                out.writeVarInt(users.size());
+                for(User user : users)
+                    writeUser(out, user, tables);
+            }
+        });
+    }
+
+    /** Loads the user directory from the given file.
+     * The favorites of the users are not loaded, but are loaded with the given loader when they are needed.
+     * <i>Users loaded from a version 1 file have their favorites loaded already.</i>
+     * @param filePath The path of the file to load from.
+     * @param favoritesLoader Loads the favorites of the users.
+     * @return The loaded users.
+     * @throws IOException If the file could not be read, or is not formatted correctly.
+     */
+    static List<User> loadDirectory(Path filePath, User.FavoritesLoader favoritesLoader) throws IOException {
+        if(!Files.exists(filePath))
+            throw new IOException("The file " + filePath + " does not exist.");
+
+        try(BinaryFileReader in = new BinaryFileReader(filePath)) {
+            int version = readHeader(in, filePath, MAGIC, VERSION);
+            String[] strings = readStrings(in);
+
+            // Version 1 had the favorites in the same file.
+            Media[] media = version == 1 ? readMediaTable(in, strings) : null;
+
+            int userCount = in.readVarInt();
+            List<User> users = new ArrayList<>(userCount);
+            for(int i = 0; i < userCount; i++)
+                users.add(readUser(in, strings, media, favoritesLoader));
+            return users;
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new IOException("The file " + filePath + " refers to strings or media that it does not contain.", e);
+        }
+    }
+
+    /** Saves the given favorites to a favorites file.
+     * The file is replaced atomically, so it is never left half written. See {@link ObjectSaving#writeAtomically}.
+     * @param favorites The favorites of each user, by username.
+     * @param filePath The path of the file to save to.
+     * @throws IOException If the file could not be written to.
+     */
+    static void saveFavorites(Map<String, List<Media>> favorites, Path filePath) throws IOException {
+        // Collect the strings and media first, so that the tables can be written before they are referred to.
+        Tables tables = new Tables();
+        favorites.forEach((username, userFavorites) -> {
+            tables.intern(username);
+            for(Media media : userFavorites)
+                tables.intern(media);
+        });
+
+        ObjectSaving.writeAtomically(filePath, tempFilePath -> {
+            try(BinaryFileWriter out = new BinaryFileWriter(tempFilePath, ObjectSaving.getCompression())) {
+                out.writeInt(MAGIC_FAVORITES);
+                out.writeInt(VERSION_FAVORITES);
+                writeStrings(out, tables);
+
+                out.writeVarInt(tables.media.size());
+                for(Media media : tables.media)
+                    writeMedia(out, media, tables);
+
+                out.writeVarInt(favorites.size());
+                for(Map.Entry<String, List<Media>> entry : favorites.entrySet())
+                    writeFavorites(out, entry.getKey(), entry.getValue(), tables);
+            }
+        });
+    }
+
+    /** Loads the favorites in a favorites file.
+     * @param filePath The path of the file to load from.
+     * @return The favorites of each user in the file, by username. Is empty if the file does not exist.
+     * @throws IOException If the file could not be read, or is not formatted correctly.
+     */
+    static Map<String, Media[]> loadFavorites(Path filePath) throws IOException {
+        if(!Files.exists(filePath))
+            return Map.of();
+
+        try(BinaryFileReader in = new BinaryFileReader(filePath)) {
+            readHeader(in, filePath, MAGIC_FAVORITES, VERSION_FAVORITES);
+            String[] strings = readStrings(in);
+            Media[] media = readMediaTable(in, strings);
+
+            int userCount = in.readVarInt();
+            Map<String, Media[]> favorites = new HashMap<>(userCount * 2);
+            for(int i = 0; i < userCount; i++) {
+                String username = strings[in.readVarInt()];
+                favorites.put(username, readMediaIndices(in, media));
+            }
+            return favorites;
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new IOException("The file " + filePath + " refers to strings or media that it does not contain.", e);
+        }
+    }
+
+    /** Reads the magic number and version, and checks them.
+     * @return The version of the file.
+     */
+    private static int readHeader(BinaryFileReader in, Path filePath, int magic, int latestVersion) throws IOException {
+        if(in.readInt() != magic)
+            throw new IOException("The file " + filePath + " is not a saved userset.");
+
+        int version = in.readInt();
+        if(version < 1 || version > latestVersion)
+            throw new IOException("The file " + filePath + " has unsupported version " + version + ".");
+        return version;
+    }
+
+    private static void writeStrings(BinaryFileWriter out, Tables tables) throws IOException {
+        out.writeVarInt(tables.strings.size());
+        for(String string : tables.strings)
+            out.writeString(string);
+    }
+
+    private static String[] readStrings(BinaryFileReader in) throws IOException {
+        String[] strings = new String[in.readVarInt()];
+        for(int i = 0; i < strings.length; i++)
+            strings[i] = in.readString();
+        return strings;
+    }
+
+    private static Media[] readMediaTable(BinaryFileReader in, String[] strings) throws IOException {
+        Media[] media = new Media[in.readVarInt()];
+        for(int i = 0; i < media.length; i++)
+            media[i] = readMedia(in, strings);
+        return media;
+    }
+
+    private static Media[] readMediaIndices(BinaryFileReader in, Media[] media) throws IOException {
+        Media[] indexed = new Media[in.readVarInt()];
+        for(int i = 0; i < indexed.length; i++)
+            indexed[i] = media[in.readVarInt()];
+        return indexed;
+    }
+
+    /** Writes a media as: <ul>
+     * <li> {@code byte} type, {@code varint} title, {@code varint} image folder, {@code int} release year, {@code float} rating.
+     * <li> {@code varint} category count, followed by a {@code varint} for each category name.
+     * <li> For series: {@code boolean} is ended, {@code int} end year, {@code varint} season count,
+     * followed by a {@code varint} for each season length. </ul>
+     */
+    private static void writeMedia(BinaryFileWriter out, Media media, Tables tables) throws IOException {
+        out.writeByte(media instanceof Series ? TYPE_SERIES : TYPE_MOVIE);
+        out.writeVarInt(tables.indexOf(media.title));
+        out.writeVarInt(tables.indexOf(media.getImageFolderPath()));
+        out.writeInt(media.releaseYear);
+        out.writeFloat(media.rating);
+
+        String[] categories = media.categories.getNames();
+        out.writeVarInt(categories.length);
+        for(String category : categories)
+            out.writeVarInt(tables.indexOf(category));
+
+        if(media instanceof Series series) {
+            out.writeBoolean(series.isEnded);
+            out.writeInt(series.endYear);
+            out.writeVarInt(series.seasonLengths.length());
+            for(int seasonLength : series.seasonLengths)
+                out.writeVarInt(seasonLength);
+        }
+    }
+
+    private static Media readMedia(BinaryFileReader in, String[] strings) throws IOException {
+        int type = in.readByte();
+        String title = strings[in.readVarInt()];
+        String imageFolder = strings[in.readVarInt()];
+        int releaseYear = in.readInt();
+        float rating = in.readFloat();
+
+        String[] categories = new String[in.readVarInt()];
+        for(int i = 0; i < categories.length; i++)
+            categories[i] = strings[in.readVarInt()];
+
+        if(type == TYPE_MOVIE)
+            return new Movie(title, releaseYear, categories, rating, imageFolder);
+
+        if(type == TYPE_SERIES) {
+            boolean isEnded = in.readBoolean();
+            int endYear = in.readInt();
+            int[] seasonLengths = new int[in.readVarInt()];
+            for(int i = 0; i < seasonLengths.length; i++)
+                seasonLengths[i] = in.readVarInt();
+            return new Series(title, releaseYear, isEnded, endYear, categories, rating, seasonLengths, imageFolder);
+        }
+
+        throw new IOException("Unknown media type " + type + ".");
+    }
+
+    /** Writes a user as: <ul>
+     * <li> {@code varint} username, {@code string} encrypted password.
+     * <li> {@code varint} image path, which is 0 if there is none, and otherwise the index plus one. </ul>
+     * <p> In version 1 this was followed by the user's favorites, as written by {@link #writeFavorites}, without the username.
+     */
+    private static void writeUser(BinaryFileWriter out, User user, Tables tables) throws IOException {
+        out.writeVarInt(tables.indexOf(user.getUsername()));
+        out.writeString(user.getEncryptedPassword());
+
+        String imagePath = user.getImagePath().orElse(null);
+        out.writeVarInt(imagePath == null ? 0 : tables.indexOf(imagePath) + 1);
+    }
+
+    /** Reads a user. If the media table is given, the user is from a version 1 file, and its favorites are read too. */
+    private static User readUser(BinaryFileReader in, String[] strings, Media[] media, User.FavoritesLoader favoritesLoader) throws IOException {
+        String username = strings[in.readVarInt()];
+        String encryptedPassword = in.readString();
+
+        int imagePathIndex = in.readVarInt();
+        String imagePath = imagePathIndex == 0 ? null : strings[imagePathIndex - 1];
+
+        if(media != null)
+            return User.restore(username, encryptedPassword, imagePath, readMediaIndices(in, media));
+        return User.restore(username, encryptedPassword, imagePath, favoritesLoader);
+    }
+
+    /** Writes a user's favorites as: <ul>
+     * <li> {@code varint} username.
+     * <li> {@code varint} favorite count, followed by a {@code varint} index into the media table for each favorite. </ul>
+     */
+    private static void writeFavorites(BinaryFileWriter out, String username, List<Media> favorites, Tables tables) throws IOException {
+        out.writeVarInt(tables.indexOf(username));
+        out.writeVarInt(favorites.size());
+        for(Media media : favorites)
+            out.writeVarInt(tables.indexOf(media));
+    }
+
+    /** The string and media tables, which give each distinct string and media an index. */
+    private static class Tables {
+
+        private final List<String> strings = new ArrayList<>();
+        private final Map<String, Integer> stringIndices = new HashMap<>();
+
+        private final List<Media> media = new ArrayList<>();
+        private final Map<Media, Integer> mediaIndices = new HashMap<>();
+
+        /** Adds the string to the table, if it isn't already. Null is ignored. */
+        private void intern(String string) {
+            if(string == null) return;
+            stringIndices.computeIfAbsent(string, s -> {
+                strings.add(s);
+                return strings.size() - 1;
+            });
+        }
+
+        /** Adds the media and its strings to the tables, if it isn't already. */
+        private void intern(Media media) {
+            if(mediaIndices.containsKey(media)) return;
+
+            intern(media.title);
+            intern(media.getImageFolderPath());
+            for(String category : media.categories.getNames())
+                intern(category);
+
+            this.media.add(media);
+            mediaIndices.put(media, this.media.size() - 1);
+        }
+
+        private int indexOf(String string) {
+            return stringIndices.get(string);
+        }
+
+        private int indexOf(Media media) {
+            return mediaIndices.get(media);
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+package domain;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import data.ObjectSaving;
+
+/** The files that a {@link UserSet} is saved in.
+ * <p> The user directory, {@code ObjectSaving.getFilePath(UserSet.class, fileName)},
+ * contains what is needed to show and log in the users, and is loaded at startup.
+ * The favorites are split by a hash of the username into {@link #SHARD_COUNT} shards,
+ * each saved in its own file, {@code FOLDER + fileName + "." + shard + ".favorites"}.
+ * A user's favorites are only loaded when the user logs in, and only the shards with changes are saved again.
+ * <p> The user directory can instead be kept in a {@link MappedUserDirectory}. Then no users are loaded at startup.
+ * Each user is looked up when it is needed, and saving only writes the records of the users that changed, in place.
+ * The directory is kept open while the store is used, so only one store may use it at a time.
+ * See {@link UserSet#setUserDirectoryMapped}.
+ * @see UserSetCodec
+ */
+class UserStore {
+
+    /** The number of favorites files. Must never change, since users are found by {@link #shardOf(String)}. */
+    static final int SHARD_COUNT = 16;
+
+    private static final String FAVORITES_FILE_EXTENSION = ".favorites";
+
+    private final String fileName;
+    private final boolean isDirectoryMapped;
+
+    /** Is null until it is first used, and always if the directory isn't mapped. Is guarded by this. */
+    private MappedUserDirectory directory;
+
+    /** Creates a store for the users saved under the given file name.
+     * @param fileName The name of the files, without extension.
+     */
+    UserStore(String fileName) {
+        this(fileName, false);
+    }
+
+    /** Creates a store for the users saved under the given file name.
+     * @param fileName The name of the files, without extension.
+     * @param isDirectoryMapped Whether the user directory is kept in a {@link MappedUserDirectory}.
+     */
+    UserStore(String fileName, boolean isDirectoryMapped) {
+        this.fileName = fileName;
+        this.isDirectoryMapped = isDirectoryMapped;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    boolean isDirectoryMapped() {
+        return isDirectoryMapped;
+    }
+
+    /** Returns whether the directory is mapped, but has never been saved, while a user directory file is saved.
+     * The users are then loaded from the file, and saved in the mapped directory from then on.
+     * @return Whether the users must be moved to the mapped directory.
+     */
+    boolean isMigratingToMappedDirectory() {
+        return isDirectoryMapped && !MappedUserDirectory.exists(fileName)
+               && Files.exists(ObjectSaving.getFilePath(UserSet.class, fileName));
+    }
+
+    /** Returns the shard that the favorites of the user with the given name are saved in.
+     * <i>Uses {@link String#hashCode()}, which is the same on every run.</i>
+     * @param username The name of the user.
+     * @return The shard, between 0 and {@link #SHARD_COUNT}.
+     */
+    static int shardOf(String username) {
+        return Math.floorMod(username.hashCode(), SHARD_COUNT);
+    }
+
+    /** Loads the user directory. The favorites are loaded from this store when they are needed.
+     * Files saved with Java serialization, or in the first version of {@link UserSetCodec},
+     * contain the favorites too, so they are loaded right away.
+     * @return The loaded users.
+     * @throws IOException If the file could not be read, or is not formatted correctly.
+     * @throws ClassNotFoundException If the file was saved with Java serialization, and contains unknown classes.
+     */
+    List<User> loadUsers() throws IOException, ClassNotFoundException {
+        if(isDirectoryMapped && !isMigratingToMappedDirectory())
+            return loadMappedUsers();
+
+        Path filePath = ObjectSaving.getFilePath(UserSet.class, fileName);
+
+        if(ObjectSaving.isSerializedObjectFile(filePath))
+            return ObjectSaving.loadFromFile(UserSet.class, fileName).getUsers();
+
+        return UserSetCodec.loadDirectory(filePath, this::loadFavorites);
+    }
+
+    /** Loads every user of the mapped directory. Reads the whole directory.
+     * @return The loaded users.
+     * @throws IOException If the directory could not be read.
+     */
+    List<User> loadMappedUsers() throws IOException {
+        List<User> users = new ArrayList<>();
+        getDirectory().forEach(entry -> users.add(entry.toUser(this::loadFavorites)));
+        return users;
+    }
+
+    /** Looks up the user with the given name in the mapped directory, without loading the other users.
+     * @param username The name of the user.
+     * @return The user, or an empty optional if no user with the name is saved.
+     * @throws IOException If the directory could not be read.
+     */
+    Optional<User> loadUser(String username) throws IOException {
+        return getDirectory().get(username).map(entry -> entry.toUser(this::loadFavorites));
+    }
+
+    /** Saves the whole user directory. The favorites are saved with {@link #saveShard}.
+     * @param users The users to save.
+     * @throws IOException If the file could not be written to.
+     */
+    void saveUsers(List<User> users) throws IOException {
+        if(isDirectoryMapped) {
+            Set<String> usernames = new HashSet<>();
+            for(User user : users) {
+                usernames.add(user.getUsername());
+                saveUser(user);
+            }
+            List<String> removed = new ArrayList<>();
+            getDirectory().forEach(entry -> {
+                if(!usernames.contains(entry.username())) removed.add(entry.username());
+            });
+            for(String username : removed)
+                removeUser(username);
+            syncDirectory();
+            return;
+        }
+        UserSetCodec.saveDirectory(users, ObjectSaving.getFilePath(UserSet.class, fileName));
+    }
+
+    /** Saves the user in the mapped directory, in place. Is written to the disk by {@link #syncDirectory()}.
+     * @param user The user.
+     * @throws IOException If the directory could not be written to.
+     */
+    void saveUser(User user) throws IOException {
+        getDirectory().put(user.getUsername(), user.getEncryptedPassword(), user.getImagePath().orElse(null), shardOf(user.getUsername()));
+    }
+
+    /** Removes the user from the mapped directory. Is written to the disk by {@link #syncDirectory()}.
+     * @param username The name of the user.
+     * @throws IOException If the directory could not be written to.
+     */
+    void removeUser(String username) throws IOException {
+        getDirectory().remove(username);
+    }
+
+    /** Writes the changes to the mapped directory to the disk.
+     * @throws IOException If the changes could not be written.
+     */
+    void syncDirectory() throws IOException {
+        getDirectory().sync();
+    }
+
+    private synchronized MappedUserDirectory getDirectory() throws IOException {
+        if(!isDirectoryMapped)
+            throw new IllegalStateException("The user directory of " + fileName + " is not mapped.");
+        if(directory == null)
+            directory = MappedUserDirectory.open(fileName);
+        return directory;
+    }
+
+    /** Loads the favorites of the user with the given name.
+     * @param username The name of the user.
+     * @return The user's favorites, which is empty if none are saved.
+     * @throws IOException If the favorites file could not be read.
+     */
+    Media[] loadFavorites(String username) throws IOException {
+        return loadShard(shardOf(username)).getOrDefault(username, new Media[0]);
+    }
+
+    /** Loads the favorites of all users in the given shard.
+     * @param shard The shard to load.
+     * @return The favorites of each user, by username.
+     * @throws IOException If the favorites file could not be read.
+     */
+    Map<String, Media[]> loadShard(int shard) throws IOException {
+        return UserSetCodec.loadFavorites(getShardPath(shard));
+    }
+
+    /** Saves the favorites of all users in the given shard, replacing the shard.
+     * @param shard The shard to save.
+     * @param favorites The favorites of each user in the shard, by username.
+     * @throws IOException If the favorites file could not be written to.
+     */
+    void saveShard(int shard, Map<String, List<Media>> favorites) throws IOException {
+        UserSetCodec.saveFavorites(favorites, getShardPath(shard));
+    }
+
+    private Path getShardPath(int shard) {
+        return Path.of(ObjectSaving.FOLDER + fileName + "." + shard + FAVORITES_FILE_EXTENSION);
+    }
+
+}
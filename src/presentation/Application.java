@@ -1,25 +1,62 @@
 package presentation;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
+import javax.swing.SwingUtilities;
+
 import domain.ApplicationData;
 import domain.Media;
+import domain.SyntheticContent;
 import domain.User;
 
 public class Application {
+
+    /** Whether changes to the users are saved in the background. Turned off by the tests. */
+    private static boolean saveUsersAutomatically = true;
     
     private final ApplicationData data;
     private final ApplicationWindow window;
 
+    /** The user who is logged in. <b>Is null when no user is logged in.</b> */
+    private User loggedInUser;
+
     public Application() {
         data = new ApplicationData();
-        window = new ApplicationWindow();
-        window.addOnCloseListener(() -> ErrorHandling.tryOrShowExceptionMessage(data::saveUsers, window));
+        window = new ApplicationWindow(data::getPosterInfo);
+        window.addOnCloseListener(() -> ErrorHandling.tryOrShowExceptionMessage(data::flushUsers, window));
 
-        ErrorHandling.tryOrShowCustomMessage(data::loadUsers, "Failed to load users.", window);
-        ErrorHandling.tryOrShowExceptionMessage(data::readMedia, window);
+        List<IOException> skippedChanges = new ArrayList<>();
+        ErrorHandling.tryOrShowCustomMessage(() -> data.loadUsers(skippedChanges::add), "Failed to load users.", window);
+        if(!skippedChanges.isEmpty())
+            ErrorHandling.showMessage("Skipped " + skippedChanges.size() + " saved changes to the users, which could not be read.", window);
+        if(saveUsersAutomatically)
+            ErrorHandling.tryOrShowCustomMessage(() -> data.startSavingUsersAutomatically(
+                e -> SwingUtilities.invokeLater(() -> ErrorHandling.showMessage("Failed to save users.", window))),
+                "Failed to open the user journal.", window);
+        data.startReadingPosters(e -> SwingUtilities.invokeLater(() -> ErrorHandling.showMessage("Failed to read posters.", window)));
         
         window.gotoWelcomePage(data.getUsers(), this::loginUser, this::addUser, this::deleteUser);
+
+        readMediaInBackground();
+    }
+
+    /** Reads the media on a background thread, so the welcome page and the first media
+     * can be shown before all media has been read. Each batch is shown on the event dispatch thread.
+     */
+    private void readMediaInBackground() {
+        Thread reader = new Thread(() -> {
+            try {
+                data.readMediaInBatches(batch -> SwingUtilities.invokeLater(() -> window.showLoadedMedia(batch)));
+            } catch (Exception e) {
+                SwingUtilities.invokeLater(() -> ErrorHandling.showMessage(e.getMessage(), window));
+            }
+            SwingUtilities.invokeLater(window::showAllLoadedMedia);
+        }, "Media reader");
+        reader.setDaemon(true);
+        reader.start();
     }
 
     public void loginUser(String username, String password) {
@@ -30,14 +67,24 @@ public class Application {
         if(!user.isPresent())
             return;
 
-        if(user.get().checkPassword(password))
-            window.gotoHomePage(user.get(), data.getAllMedia(), data::sortAllMedia,
-                                data::searchAllMedia, this::selectMedia, this::logoutUser);
-        else
+        if(!user.get().checkPassword(password)) {
             window.showError("Incorrect password");
+            return;
+        }
+
+        ErrorHandling.tryOrShowCustomMessage(() -> data.loadFavorites(user.get()), "Failed to load favorites.", window);
+        loggedInUser = user.get();
+        window.gotoHomePage(user.get(), data::getAllMedia, data::sortAllMedia,
+                            data::searchAllMedia, this::selectMedia, this::logoutUser);
     }
 
     public void logoutUser() {
+        // Evicting saves changed favorites, so it is only done when the users are saved automatically.
+        if(loggedInUser != null && saveUsersAutomatically) {
+            final User user = loggedInUser;
+            ErrorHandling.tryOrShowCustomMessage(() -> data.evictFavorites(user), "Failed to save favorites.", window);
+        }
+        loggedInUser = null;
         window.gotoWelcomePage(data.getUsers(), this::loginUser, this::addUser, this::deleteUser);
     }
 
@@ -60,8 +107,17 @@ public class Application {
 
     public void selectMedia(Media media, User user) {
         window.gotoInformationPage(media, user::isFavorite, user::addFavorite, user::removeFavorite,
-                                    m -> System.out.println("Playing " + m.title),
-                                   () -> window.gotoHomePage(user, data.getAllMedia(), data::sortAllMedia, data::searchAllMedia,
+                                    this::playMedia,
+                                   () -> window.gotoHomePage(user, data::getAllMedia, data::sortAllMedia, data::searchAllMedia,
                                                              this::selectMedia, this::logoutUser));
     }
+
+    /** Stands in for playing the media, by showing the made up video, which can be streamed from the HTTP service.
+     * @see SyntheticContent
+     */
+    private void playMedia(Media media) {
+        SyntheticContent.Video video = SyntheticContent.first(media);
+        window.showInformation("Playing " + video.name() + ", " + video.segmentCount() + " segments of "
+                               + SyntheticContent.SEGMENT_SECONDS + " seconds.");
+    }
 }
@@ -4,9 +4,11 @@ import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.UIManager;
 
+import data.ImageManifest.ImageInfo;
 import domain.Media;
 import domain.User;
 import domain.MediaSorting.SortBy;
+import domain.MediaSorting.SortOrder;
 import presentation.WelcomePage.QuadStringConsumer;
 
 import static presentation.UIUtils.*;
@@ -16,21 +18,31 @@ import java.awt.Rectangle;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.List;
+import java.util.Optional;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class ApplicationWindow {
     
     private final JFrame frame;
 
+    private final Posters posters;
+
     private WelcomePage welcomePage;
 
     private HomePage homePage;
 
     private InformationPage informationPage;
 
-    public ApplicationWindow() {
+    /** Creates the window.
+     * @param posterInfoGetter The function that gets the information about the poster of a media,
+     * which is empty if the poster doesn't exist.
+     */
+    public ApplicationWindow(Function<Media, Optional<ImageInfo>> posterInfoGetter) {
+
+        posters = new Posters(posterInfoGetter);
 
         { // Changes the default UI settings
             // Change default text color to white for labels
@@ -80,11 +92,11 @@ public class ApplicationWindow {
         frame.repaint();
     }
 
-    public void gotoHomePage(User user, List<Media> allMedia, Function<SortBy, List<Media>> sorter, Function<String, List<Media>> searcher,
+    public void gotoHomePage(User user, Supplier<List<Media>> allMediaGetter, Function<SortBy, List<Media>> sorter, Function<String, List<Media>> searcher,
                              BiConsumer<Media, User> selectMediaAsUserListener, Runnable logoutListener) {
         clearFrame();
 
-        homePage = new HomePage(allMedia, user::getFavorites, sorter, searcher, media -> selectMediaAsUserListener.accept(media, user), logoutListener);
+        homePage = new HomePage(allMediaGetter, sortBy -> user.getFavorites(sortBy, SortOrder.DEFAULT), sorter, searcher, media -> selectMediaAsUserListener.accept(media, user), logoutListener, posters);
         frame.add(homePage.panel);
 
         frame.revalidate();
@@ -96,20 +108,39 @@ public class ApplicationWindow {
         clearFrame();
 
         informationPage = new InformationPage(media, isMediaFavoriteFunction, addToFavoritesListener,
-                                              removeFromFavoritesListener, playMediaListener, goBackListner);
+                                              removeFromFavoritesListener, playMediaListener, goBackListner, posters);
         frame.add(informationPage.panel);
 
         frame.revalidate();
         frame.repaint();
     }
 
+    /** Shows media that was read after the home page was created, if the home page is shown.
+     * @param media The newly read media.
+     */
+    public void showLoadedMedia(List<Media> media) {
+        if(homePage != null) homePage.showLoadedMedia(media);
+    }
+
+    /** Shows all the media in sorted order, if the home page is shown.
+     * Should be called when all media has been read.
+     */
+    public void showAllLoadedMedia() {
+        if(homePage != null) homePage.showAllLoadedMedia();
+    }
+
     private void clearFrame() {
         frame.getContentPane().removeAll();
         if(welcomePage != null) welcomePage.disposeExtraFrames();
+        homePage = null;
     }
 
     public void showError(String message) {
         JOptionPane.showMessageDialog(frame, message, "Error", javax.swing.JOptionPane.ERROR_MESSAGE);
     }
 
+    public void showInformation(String message) {
+        JOptionPane.showMessageDialog(frame, message, "Information", javax.swing.JOptionPane.INFORMATION_MESSAGE);
+    }
+
 }
@@ -9,13 +9,14 @@ import java.awt.event.ActionEvent;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
 import javax.swing.BoxLayout;
-import javax.swing.ImageIcon;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
 import javax.swing.JLabel;
@@ -39,8 +40,17 @@ public class HomePage {
     private final Header header;
     private final Catalog catalog;
 
-    public HomePage(List<Media> allMedia, Supplier<List<Media>> favoritesGetter, Function<SortBy, List<Media>> sorter,
-                    Function<String, List<Media>> searcher, Consumer<Media> selectMediaListener, Runnable logoff) {
+    private final Supplier<List<Media>> allMediaGetter;
+
+    /** Whether the overview is shown, in which case media that is read later is added to the catalog. */
+    private boolean isShowingOverview = true;
+
+    /** Whether the favorites are shown, in which case sorting sorts the favorites instead of all media. */
+    private boolean isShowingFavorites = false;
+
+    public HomePage(Supplier<List<Media>> allMediaGetter, Function<SortBy, List<Media>> favoritesGetter, Function<SortBy, List<Media>> sorter,
+                    Function<String, List<Media>> searcher, Consumer<Media> selectMediaListener, Runnable logoff, Posters posters) {
+        this.allMediaGetter = allMediaGetter;
         this.panel = new BackgroundPanel(Images.BACKGROUND());
 
         { // Sets the layout of the panel
@@ -48,38 +58,64 @@ public class HomePage {
             panel.setLayout(layout);
         }
 
-        catalog = new Catalog(allMedia, selectMediaListener);
+        catalog = new Catalog(allMediaGetter.get(), selectMediaListener, posters);
         panel.add(catalog);
 
-        header = new Header(() -> gotoOverview(allMedia),
-                            () -> gotoFavorites(favoritesGetter.get()),
-                             s -> updateSort(sorter.apply(s)),
+        header = new Header(() -> gotoOverview(allMediaGetter.get()),
+                            () -> gotoFavorites(favoritesGetter.apply(SortBy.DEFAULT)),
+                             s -> updateSort(isShowingFavorites ? favoritesGetter.apply(s) : sorter.apply(s)),
                             () -> gotoSearch(),
                              s -> updateSearch(searcher.apply(s)),
                             logoff);
         panel.add(header, 0);
     }
 
+    /** Adds media that has been read after the page was created, if the overview is shown.
+     * The media is added to the end of the catalog, until {@link #showAllLoadedMedia()} sorts it.
+     * @param media The newly read media.
+     */
+    public void showLoadedMedia(List<Media> media) {
+        if(isShowingOverview)
+            catalog.appendMedia(media);
+    }
+
+    /** Shows all media in sorted order, if the overview is shown.
+     * Should be called when all media has been read.
+     */
+    public void showAllLoadedMedia() {
+        if(isShowingOverview)
+            catalog.replaceMediaWith(allMediaGetter.get());
+    }
+
     private void gotoOverview(List<Media> allMedia) {
         // TODO: Also update the header to show that the overview is selected
+        isShowingOverview = true;
+        isShowingFavorites = false;
         catalog.replaceMediaWith(allMedia);
     }
         
     private void gotoFavorites(List<Media> favorites) {
         // TODO: Also update the header to show that the favorites are selected
+        isShowingOverview = false;
+        isShowingFavorites = true;
         catalog.replaceMediaWith(favorites);
     }
 
     private void updateSort(List<Media> sortResults) {
+        isShowingOverview = false;
         catalog.replaceMediaWith(sortResults);
     }
 
     private void gotoSearch() {
         // TODO: Also update the header to show that the search is selected
+        isShowingOverview = false;
+        isShowingFavorites = false;
         catalog.replaceMediaWith(new ArrayList<>());
     }
 
     private void updateSearch(List<Media> searchResults) {
+        isShowingOverview = false;
+        isShowingFavorites = false;
         catalog.replaceMediaWith(searchResults);
     }
 
@@ -196,9 +232,15 @@ public class HomePage {
         private final JPanel innerPanel;
     
         private final Consumer<Media> selectMediaListener;
+
+        private final Posters posters;
+
+        /** The media currently shown, so that media read in the background isn't shown twice. */
+        private final Set<Media> shownMedia = new HashSet<>();
     
-        public Catalog(List<Media> media, Consumer<Media> selectMediaListener) {
+        public Catalog(List<Media> media, Consumer<Media> selectMediaListener, Posters posters) {
             this.selectMediaListener = selectMediaListener;
+            this.posters = posters;
     
             this.setOpaque(false);
             this.viewport.setOpaque(false);
@@ -359,20 +401,30 @@ public class HomePage {
         // Creates the media panels
         private void addMediaButtonsTo(List<Media> media) {
             this.invalidate();
-            media.forEach(m -> innerPanel.add(new MediaPanel(m, selectMediaListener)));
+            media.forEach(m -> innerPanel.add(new MediaPanel(m, selectMediaListener, posters)));
+            shownMedia.addAll(media);
             this.validate();
         }
     
         public void replaceMediaWith(List<Media> media) {
             innerPanel.removeAll();
+            shownMedia.clear();
             addMediaButtonsTo(media);
             this.revalidate();
             this.repaint();
         }
+
+        public void appendMedia(List<Media> media) {
+            List<Media> newMedia = media.stream().filter(m -> !shownMedia.contains(m)).toList();
+            if(newMedia.isEmpty()) return;
+            addMediaButtonsTo(newMedia);
+            this.revalidate();
+            this.repaint();
+        }
     
         private static class MediaPanel extends JPanel {
     
-            public MediaPanel(Media media, Consumer<Media> selectMediaListener) {
+            public MediaPanel(Media media, Consumer<Media> selectMediaListener, Posters posters) {
         
                 this.setOpaque(false);
         
@@ -383,7 +435,7 @@ public class HomePage {
                 }
                 
                 { // Creates and adds the components to the panel
-                    JButton button = new JButton(new ImageIcon(media.imagePath)) {
+                    JButton button = new JButton(posters.get(media)) {
                         public void fireActionPerformed(ActionEvent event) {
                             selectMediaListener.accept(media);
                         }
@@ -29,7 +29,8 @@ public class InformationPage {
     public final JPanel panel;
 
     public InformationPage(Media media, Function<Media, Boolean> isMediaFavoriteFunction, Consumer<Media> addToFavoritesListener,
-                           Consumer<Media> removeFromFavoritesListener, Consumer<Media> playMediaListener, Runnable goBackListner) {
+                           Consumer<Media> removeFromFavoritesListener, Consumer<Media> playMediaListener, Runnable goBackListner,
+                           Posters posters) {
                 
         // Creates the panel
         panel = new BackgroundPanel(Images.BACKGROUND());
@@ -58,7 +59,7 @@ public class InformationPage {
             innerPanel.add(headerPanel);
 
             BodyPanel bodyPanel = new BodyPanel(media, isMediaFavoriteFunction, addToFavoritesListener,
-                                                       removeFromFavoritesListener, playMediaListener);
+                                                       removeFromFavoritesListener, playMediaListener, posters);
             innerPanel.add(bodyPanel);
         }
 
@@ -88,13 +89,13 @@ public class InformationPage {
     private static class BodyPanel extends JPanel {
 
         public BodyPanel(Media media, Function<Media, Boolean> isMediaFavoriteFunction, Consumer<Media> addToFavoritesListener,
-                                    Consumer<Media> removeFromFavoritesListener, Consumer<Media> playMediaListener) {
+                                    Consumer<Media> removeFromFavoritesListener, Consumer<Media> playMediaListener, Posters posters) {
             this.setOpaque(false);
             this.setLayout(new BoxLayout(this, BoxLayout.X_AXIS));
             this.setAlignmentX(JPanel.LEFT_ALIGNMENT);
             
             MediaImagePanel imagePanel = new MediaImagePanel(media, isMediaFavoriteFunction, addToFavoritesListener,
-                                                                    removeFromFavoritesListener, playMediaListener);
+                                                                    removeFromFavoritesListener, playMediaListener, posters);
             this.add(imagePanel);
             
             this.add(Fillers.HORIZONTAL_SMALL());
@@ -106,7 +107,7 @@ public class InformationPage {
         private static class MediaImagePanel extends JPanel {
 
             public MediaImagePanel(Media media, Function<Media, Boolean> isMediaFavoriteFunction, Consumer<Media> addToFavoritesListener,
-                                                Consumer<Media> removeFromFavoritesListener, Consumer<Media> playMediaListener) {
+                                                Consumer<Media> removeFromFavoritesListener, Consumer<Media> playMediaListener, Posters posters) {
                 super();
                 
                 { // Sets the layout of the panel
@@ -118,7 +119,7 @@ public class InformationPage {
     
                 { // Creates and adds the components
                     final int IMAGE_SCALE = 2;
-                    ImageIcon mediaImageIcon = new ImageIcon(media.imagePath);
+                    ImageIcon mediaImageIcon = posters.get(media);
                     mediaImageIcon = new ImageIcon(mediaImageIcon.getImage().getScaledInstance(
                                                                                 mediaImageIcon.getIconWidth() * IMAGE_SCALE,
                                                                                 mediaImageIcon.getIconHeight() * IMAGE_SCALE,
@@ -0,0 +1,116 @@
+package presentation;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.MediaTracker;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+import javax.swing.ImageIcon;
+
+import data.ImageManifest.ImageInfo;
+import domain.Media;
+
+/** Gets the posters of media, using the information about the posters that was read at startup.
+ * <p> Media whose poster doesn't exist get a placeholder right away,
+ * instead of trying to load the missing file every time the catalog is shown.
+ * Loaded posters are cached, and the sizes from the poster information
+ * are used to decide what to cache, and to keep the cache within {@link #MAX_CACHED_BYTES}.
+ */
+class Posters {
+
+    /** The size used for placeholders, when the size of the poster is unknown. */
+    static final int DEFAULT_WIDTH = 140;
+    static final int DEFAULT_HEIGHT = 209;
+
+    /** The maximum number of bytes the cached posters may take up, when decoded. */
+    private static final long MAX_CACHED_BYTES = 64L * 1024 * 1024;
+
+    /** Posters larger than this are not cached, so that a single poster can't empty the cache. */
+    private static final long MAX_BYTES_PER_POSTER = MAX_CACHED_BYTES / 16;
+
+    private static final Color PLACEHOLDER_COLOR = new Color(40, 40, 40);
+    private static final Color PLACEHOLDER_BORDER_COLOR = new Color(90, 90, 90);
+
+    /** A poster in the cache, together with the file information it was loaded from. */
+    private static record CachedPoster(ImageIcon icon, long lastModified, long size, long bytes) {}
+
+    private final Function<Media, Optional<ImageInfo>> posterInfoGetter;
+
+    /** Maps from poster paths to cached posters, in least recently used order. */
+    private final LinkedHashMap<String, CachedPoster> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+
+    /** Maps from a size to the placeholder with that size. */
+    private final Map<Long, ImageIcon> placeholders = new HashMap<>();
+
+    /** Creates a poster getter.
+     * @param posterInfoGetter The function that gets the information about the poster of a media,
+     * which is empty if the poster doesn't exist.
+     */
+    Posters(Function<Media, Optional<ImageInfo>> posterInfoGetter) {
+        this.posterInfoGetter = posterInfoGetter;
+    }
+
+    /** Returns the poster of the given media, or a placeholder if it doesn't exist or couldn't be loaded.
+     * @param media The media to get the poster of.
+     * @return The poster, or a placeholder.
+     */
+    synchronized ImageIcon get(Media media) {
+        Optional<ImageInfo> optionalInfo = posterInfoGetter.apply(media);
+        if(optionalInfo.isEmpty())
+            return getPlaceholder(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+
+        ImageInfo info = optionalInfo.get();
+
+        // Use the cached poster, unless the file has changed since it was loaded.
+        CachedPoster cached = cache.get(info.path());
+        if(cached != null && cached.lastModified() == info.lastModified() && cached.size() == info.size())
+            return cached.icon();
+
+        ImageIcon icon = new ImageIcon(info.path());
+        if(icon.getImageLoadStatus() != MediaTracker.COMPLETE)
+            return info.hasDimensions() ? getPlaceholder(info.width(), info.height())
+                                        : getPlaceholder(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+
+        // Four bytes per pixel when decoded.
+        long bytes = 4L * icon.getIconWidth() * icon.getIconHeight();
+        if(bytes <= MAX_BYTES_PER_POSTER)
+            put(info.path(), new CachedPoster(icon, info.lastModified(), info.size(), bytes));
+
+        return icon;
+    }
+
+    /** Adds the poster to the cache, and removes the least recently used posters until it fits. */
+    private void put(String path, CachedPoster poster) {
+        CachedPoster old = cache.put(path, poster);
+        if(old != null) cachedBytes -= old.bytes();
+        cachedBytes += poster.bytes();
+
+        Iterator<CachedPoster> leastRecentlyUsed = cache.values().iterator();
+        while(cachedBytes > MAX_CACHED_BYTES && leastRecentlyUsed.hasNext()) {
+            cachedBytes -= leastRecentlyUsed.next().bytes();
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    /** Returns a plain placeholder with the given size. Placeholders are only created once per size. */
+    private ImageIcon getPlaceholder(int width, int height) {
+        return placeholders.computeIfAbsent(((long) width << 32) | height, key -> {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = image.createGraphics();
+            graphics.setColor(PLACEHOLDER_COLOR);
+            graphics.fillRect(0, 0, width, height);
+            graphics.setColor(PLACEHOLDER_BORDER_COLOR);
+            graphics.drawRect(0, 0, width - 1, height - 1);
+            graphics.dispose();
+            return new ImageIcon(image);
+        });
+    }
+
+}
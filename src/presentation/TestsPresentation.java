@@ -32,6 +32,14 @@ public class TestsPresentation {
             showErrorDialog.set(null, false);
         }
 
+        // The tests shouldn't overwrite the saved users.
+        @BeforeAll
+        static void turnOffSavingUsers() throws Exception {
+            Field saveUsersAutomatically = Application.class.getDeclaredField("saveUsersAutomatically");
+            saveUsersAutomatically.setAccessible(true);
+            saveUsersAutomatically.set(null, false);
+        }
+
         @Test
         void pageNavigation() throws Exception {
             Application app = new Application();
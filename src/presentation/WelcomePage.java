@@ -120,7 +120,6 @@ public class WelcomePage {
             // Creates the buttons
             final SelectUserButton[] userButtons =
                 users.stream()
-                     .sorted()
                      .map(user -> new SelectUserButton(user.getUsername(), user.getImagePath(), loginPagerShower))
                      .toArray(SelectUserButton[]::new);
             
@@ -0,0 +1,58 @@
+package service;
+
+import java.util.Optional;
+
+/** A range of bytes of a file or segment, as requested with a {@code Range} header.
+ * @param start The index of the first byte.
+ * @param length The number of bytes.
+ */
+record ByteRange(long start, long length) {
+
+    /** Returns the end of the range, inclusive, as in the {@code Content-Range} header. */
+    long end() {
+        return start + length - 1;
+    }
+
+    /** Returns the value of the {@code Content-Range} header for this range, of something of the given size. */
+    String contentRange(long size) {
+        return "bytes " + start + "-" + end() + "/" + size;
+    }
+
+    /** Returns the range requested by a {@code Range} header, for something of the given size.
+     * Only a single range of bytes is supported. Other ranges are ignored, and everything is sent instead, as is allowed.
+     * @param header The value of the header. <p><b>May be null.</b>
+     * @param size The size of what is requested.
+     * @return An optional containing the range, which is empty if everything should be sent.
+     * @throws IllegalArgumentException If the range is valid, but none of it is inside what is requested.
+     */
+    static Optional<ByteRange> parse(String header, long size) {
+        if(header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0)
+            return Optional.empty();
+
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if(dash < 0) return Optional.empty();
+
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start, end;
+            if(first.isEmpty()) {
+                // A suffix range, of the last bytes.
+                long suffix = Long.parseLong(last);
+                if(suffix <= 0 || size == 0) throw new IllegalArgumentException("The range is empty.");
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+                if(start < 0 || !last.isEmpty() && Long.parseLong(last) < start) return Optional.empty();
+                if(start >= size) throw new IllegalArgumentException("The range starts after the end.");
+            }
+            return Optional.of(new ByteRange(start, end - start + 1));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+}
@@ -0,0 +1,725 @@
+package service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import domain.AdmissionControl.BusyException;
+import domain.ApplicationData;
+import domain.Media;
+import domain.MediaLibrary;
+import domain.MediaSorting.SortBy;
+import domain.MediaSorting.SortOrder;
+import domain.Movie;
+import domain.Series;
+import domain.SyntheticContent;
+import domain.User;
+import domain.UserSet.UserDoesNotExistException;
+
+/** Serves the {@link ApplicationData} over HTTP as JSON, on the local machine, without the window.
+ * <p> The endpoints are: <ul>
+ * <li> {@code GET /media?sort=TITLE&order=REVERSE} lists the catalog, optionally sorted. See {@link SortBy} and {@link SortOrder}.
+ * <li> {@code GET /media/search?q=query&count=10} searches the catalog, best matches first.
+ * <li> {@code GET /media/{id}} returns one media. The ids are those of {@link MediaLibrary.Snapshot#getId(Media)}.
+ * <li> {@code POST /login} logs a user in to a session, and {@code POST /logout} with its token logs the user out of it.
+ * <li> {@code GET /favorites?sort=TITLE} lists the favorites of a user.
+ * <li> {@code PUT /favorites/{id}} and {@code DELETE /favorites/{id}} add and remove a favorite.
+ * <li> {@code GET /posters/{id}?v=hash} sends the poster of a media. See {@link #handlePoster}.
+ * <li> {@code GET /streams/{id}} and {@code GET /streams/{id}/{season}/{episode}} describe the video of a movie or an episode,
+ * and {@code GET /streams/.../segments/{n}} sends a segment of it. See {@link #handleStream}. </ul>
+ * <p> Requests for a user use HTTP basic authentication, with the username and password, or bearer authentication,
+ * with the token that {@code POST /login} gives. A token only costs a lookup, and lasts until {@code POST /logout} with it,
+ * until the user is removed, or until it hasn't been used for a while. See {@link domain.SessionCache}.
+ * <p> Every request is handled on its own thread, so slow requests never hold up others.
+ * Searches, which go through the whole catalog, are also limited by the admission control of the data,
+ * so that many searches don't slow everything else down, and are turned away with {@code 503} when there are too many.
+ * See {@link ApplicationData#getSearchAdmission()}.
+ * The same {@link ApplicationData} is used by every thread. See {@link Json} for the format of the responses.
+ * <p> The catalog and each media are sent from a {@link ResponseCache}, with an ETag,
+ * and a request with a matching {@code If-None-Match} header gets {@code 304 Not Modified} instead.
+ * <p> The lists of {@code /media}, {@code /media/search} and {@code /favorites} are sent as one JSON array, or,
+ * with {@code ?format=ndjson} or {@code Accept: application/x-ndjson}, as one media per line, while they are put in order.
+ * See {@link #sendNdjson}.
+ */
+public class HttpService {
+
+    public static final int DEFAULT_PORT = 8080;
+
+    private static final String NDJSON_TYPE = "application/x-ndjson";
+
+    /** The longest time a search may wait for other searches to finish, before it is turned away. */
+    private static final int SEARCH_TIMEOUT_MILLIS = 1000;
+
+    /** How often a leader checks whether the media files have been modified. */
+    private static final long MEDIA_FILES_CHECK_MILLIS = 1000;
+
+    /** The number of connections that may wait to be accepted. */
+    private static final int BACKLOG = 256;
+
+    /** The size of the buffer that segments of videos are generated into, a piece at a time. */
+    private static final int SEGMENT_BUFFER_SIZE = 64 * 1024;
+
+    /** A buffer for generating segments in, for each thread, so that sending a segment allocates nothing. */
+    private static final ThreadLocal<ByteBuffer> segmentBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(SEGMENT_BUFFER_SIZE));
+
+    static {
+        // The server writes the headers and the body of a response separately. Without this, the body waits for
+        // the client to acknowledge the headers, which clients delay by about 40 ms. Is read when the first server is created.
+        if(System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final ApplicationData data;
+    private final ResponseCache cache = new ResponseCache();
+    private final PosterFiles posterFiles = new PosterFiles();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /** Is given the unexpected exceptions thrown while handling a request, which are sent to the client as an internal error. */
+    private final Consumer<Exception> errorHandler;
+
+    /** Creates a service for the given data, on the given port of the loopback address. Use {@link #start()} to start it.
+     * @param data The data to serve.
+     * @param port The port to listen on, or 0 for any free port.
+     * @param errorHandler Is given the unexpected exceptions thrown while handling a request. Is called on the request's thread.
+     * @throws IOException If the port could not be listened on.
+     */
+    public HttpService(ApplicationData data, int port, Consumer<Exception> errorHandler) throws IOException {
+        this.data = data;
+        this.errorHandler = errorHandler;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "HTTP request " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        server.setExecutor(executor);
+        server.createContext("/media", exchange -> handle(exchange, this::handleMedia));
+        server.createContext("/login", exchange -> handle(exchange, this::handleLogin));
+        server.createContext("/logout", exchange -> handle(exchange, this::handleLogout));
+        server.createContext("/favorites", exchange -> handle(exchange, this::handleFavorites));
+        server.createContext("/posters", exchange -> handle(exchange, this::handlePoster));
+        server.createContext("/streams", exchange -> handle(exchange, this::handleStream));
+    }
+
+    /** Loads the saved data, and serves it on the given port until the process is stopped.
+     * The users are saved automatically, and the last changes are saved when the process is stopped.
+     * @param port The port to listen on.
+     * @throws Exception If the data could not be loaded, or the port could not be listened on.
+     */
+    public static void run(int port) throws Exception {
+        run(port, null, false, false);
+    }
+
+    /** Loads the saved data, and serves it on the given port until the process is stopped, sharing the catalog with other processes.
+     * <p> A leader reads the media files, and reads them again whenever they are modified, and saves the catalog and its changes
+     * in the replication directory. A follower never reads the media files, but applies the catalog saved by the leader.
+     * See {@link ApplicationData#leadCatalog} and {@link ApplicationData#followCatalog}.
+     * @param port The port to listen on.
+     * @param replicationDirectory The directory that is shared with the other processes, or null to not share the catalog.
+     * @param isLeader Whether this process leads the catalog, or follows it.
+     * @param isUserDirectoryMapped Whether the users are kept in a memory-mapped directory, and looked up when they are needed,
+     *        rather than loaded at startup. See {@link ApplicationData#setUserDirectoryMapped}.
+     * @throws Exception If the data could not be loaded, or the port could not be listened on.
+     */
+    public static void run(int port, Path replicationDirectory, boolean isLeader, boolean isUserDirectoryMapped) throws Exception {
+        // Everything that fails in the background is reported here, since there is no one to tell.
+        Consumer<Exception> errorHandler = e -> System.err.println(e.getMessage());
+        ApplicationData data = new ApplicationData();
+        if(replicationDirectory == null)
+            data.readMedia();
+        else if(isLeader)
+            startLeadingCatalog(data, replicationDirectory, errorHandler);
+        else
+            data.followCatalog(replicationDirectory, errorHandler);
+        data.setUserDirectoryMapped(isUserDirectoryMapped);
+        data.loadUsers(errorHandler::accept);
+        data.readPosters();
+        data.startSavingUsersAutomatically(e -> errorHandler.accept(new IOException("Failed to save users: " + e.getMessage(), e)));
+
+        HttpService service = new HttpService(data, port, errorHandler);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            service.stop(1);
+            data.stopPartitionedSearch();
+            try {
+                data.flushUsers();
+            } catch (IOException | InterruptedException e) {
+                errorHandler.accept(new IOException("Failed to save users: " + e.getMessage(), e));
+            }
+        }, "HTTP service shutdown"));
+
+        service.start();
+        System.out.println("Serving on http://localhost:" + service.getPort() + "/media");
+    }
+
+    /** Leads the catalog, and reads the media files again on a background thread whenever they are modified.
+     * @param errorHandler Is given the exceptions thrown when saving the catalog or reading the media files.
+     */
+    private static void startLeadingCatalog(ApplicationData data, Path replicationDirectory, Consumer<Exception> errorHandler) throws Exception {
+        data.leadCatalog(replicationDirectory, errorHandler);
+
+        Thread watcher = new Thread(() -> {
+            while(true) {
+                try {
+                    Thread.sleep(MEDIA_FILES_CHECK_MILLIS);
+                    data.readMediaIfChanged();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    errorHandler.accept(new IOException("Failed to read the media files: " + e.getMessage(), e));
+                }
+            }
+        }, "Media file watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /** Stops accepting requests, and waits at most the given time for the current requests to finish.
+     * @param delaySeconds The maximum number of seconds to wait.
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /** Handles a request, and sends the response. */
+    @FunctionalInterface
+    private static interface Handler {
+        public void handle(HttpExchange exchange) throws IOException, HttpError;
+    }
+
+    /** An error that is sent as the response to a request, with the given status code. */
+    private static class HttpError extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        private HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /** Calls the handler, and sends any error it throws as the response. Always closes the exchange. */
+    private void handle(HttpExchange exchange, Handler handler) {
+        try(exchange) {
+            try {
+                handler.handle(exchange);
+            } catch (HttpError e) {
+                sendJson(exchange, e.status, Json.error(e.getMessage()));
+            } catch (RuntimeException e) {
+                errorHandler.accept(new RuntimeException(
+                    "Failed to handle " + exchange.getRequestMethod() + " " + exchange.getRequestURI() + ": " + e, e));
+                sendJson(exchange, 500, Json.error("Internal error."));
+            }
+        } catch (IOException e) {
+            // The client has gone away, so there is no one to tell.
+        }
+    }
+
+    // Endpoints
+
+    private void handleMedia(HttpExchange exchange) throws IOException, HttpError {
+        requireMethod(exchange, "GET");
+        String path = getSubPath(exchange, "/media");
+        Map<String, String> query = parseQuery(exchange);
+        MediaLibrary.Snapshot catalog = data.getCatalog();
+
+        if(path.isEmpty()) {
+            SortBy sortBy = query.containsKey("sort") ? parseSortBy(query) : null;
+            if(wantsNdjson(exchange, query)) {
+                List<Media> sorted = sortBy == null ? catalog.getSortedByDefault() : catalog.getSortedView(sortBy, parseSortOrder(query));
+                sendNdjson(exchange, catalog, sorted.iterator(), parseInt(query, "count", Integer.MAX_VALUE));
+                return;
+            }
+            sendCached(exchange, cache.getCatalog(catalog, sortBy, parseSortOrder(query)));
+            return;
+        }
+
+        if(path.equals("search")) {
+            String searchQuery = query.get("q");
+            if(searchQuery == null || searchQuery.isBlank())
+                throw new HttpError(400, "The search query 'q' is missing.");
+            if(wantsNdjson(exchange, query)) {
+                // Only scoring the media is limited. The results are put in order while they are sent, which is cheap.
+                Iterator<Media> results = admitSearch(exchange, query, () -> catalog.iterateBySearch(searchQuery.trim(), true));
+                sendNdjson(exchange, catalog, results, parseInt(query, "count", Integer.MAX_VALUE));
+                return;
+            }
+            int count = parseInt(query, "count", catalog.size());
+            List<Media> results = admitSearch(exchange, query, () -> data.searchCatalog(catalog, searchQuery.trim(), count));
+            sendJson(exchange, 200, cache.concatenate(catalog, results));
+            return;
+        }
+
+        sendCached(exchange, cache.getMedia(catalog, getMedia(catalog, path)));
+    }
+
+    /** Runs a search when the admission control of searches has room for it.
+     * The search may wait {@link #SEARCH_TIMEOUT_MILLIS} to run, or less if the client asks for less with {@code ?timeout=ms}.
+     * @throws HttpError {@code 503 Service Unavailable}, with {@code Retry-After}, if the search is turned away.
+     */
+    private <T> T admitSearch(HttpExchange exchange, Map<String, String> query, Supplier<T> search) throws HttpError {
+        int timeout = Math.min(SEARCH_TIMEOUT_MILLIS, parseInt(query, "timeout", SEARCH_TIMEOUT_MILLIS));
+        try {
+            return data.getSearchAdmission().call(search, timeout, TimeUnit.MILLISECONDS);
+        } catch (BusyException e) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            throw new HttpError(503, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpError(503, "The service is stopping.");
+        }
+    }
+
+    private void handleLogin(HttpExchange exchange) throws IOException, HttpError {
+        requireMethod(exchange, "POST");
+        String[] credentials = getCredentials(exchange);
+        try {
+            Optional<String> token = data.startSession(credentials[0], credentials[1]);
+            if(token.isEmpty())
+                throw new HttpError(401, "Incorrect password.");
+            User user = data.getSessionUser(token.get()).orElseThrow(() -> new HttpError(401, "The session has already ended."));
+            sendJson(exchange, 200, Json.session(user, token.get(), data.getCatalog()));
+        } catch (UserDoesNotExistException e) {
+            throw new HttpError(401, "The user does not exist.");
+        }
+    }
+
+    private void handleLogout(HttpExchange exchange) throws IOException, HttpError {
+        requireMethod(exchange, "POST");
+        // Only a session that was started can be ended, so that the user isn't logged out of a session it never logged in to.
+        String token = getToken(exchange);
+        if(token == null)
+            throw new HttpError(401, "Log out with the token that logging in gave.");
+        if(!data.endSession(token))
+            throw new HttpError(401, "The session has expired, or has already ended.");
+        sendEmpty(exchange, 204);
+    }
+
+    /** Handles a request for the favorites of the user who is logged in with a session token, or with basic authentication.
+     * A user who gives a password is logged in only for the request, so that the favorites don't stay in memory after it.
+     */
+    private void handleFavorites(HttpExchange exchange) throws IOException, HttpError {
+        String token = getToken(exchange);
+        if(token != null) {
+            User user = data.getSessionUser(token).orElseThrow(() -> new HttpError(401, "The session has expired, or has ended."));
+            handleFavorites(exchange, user);
+            return;
+        }
+
+        User user = login(exchange);
+        try {
+            handleFavorites(exchange, user);
+        } finally {
+            try {
+                data.logout(user);
+            } catch (IOException e) {
+                errorHandler.accept(new IOException("Failed to save the favorites of " + user.getUsername() + ": " + e.getMessage(), e));
+            }
+        }
+    }
+
+    private void handleFavorites(HttpExchange exchange, User user) throws IOException, HttpError {
+        String path = getSubPath(exchange, "/favorites");
+        String method = exchange.getRequestMethod();
+
+        if(path.isEmpty()) {
+            requireMethod(exchange, "GET");
+            Map<String, String> query = parseQuery(exchange);
+            List<Media> favorites = query.containsKey("sort")
+                ? user.getFavorites(parseSortBy(query), parseSortOrder(query))
+                : user.getFavorites();
+            MediaLibrary.Snapshot catalog = data.getCatalog();
+            if(wantsNdjson(exchange, query))
+                sendNdjson(exchange, catalog, favorites.iterator(), Integer.MAX_VALUE);
+            else
+                sendJson(exchange, 200, cache.concatenate(catalog, favorites));
+            return;
+        }
+
+        Media media = getMedia(data.getCatalog(), path);
+        switch(method) {
+            case "PUT" -> user.addFavorite(media);
+            case "DELETE" -> user.removeFavorite(media);
+            default -> throw new HttpError(405, "Use PUT or DELETE.");
+        }
+        sendEmpty(exchange, 204);
+    }
+
+    /** Sends the poster of a media, straight from the file. See {@link PosterFiles}.
+     * <p> The ETag of a poster is a hash of the file. A poster requested with that hash as {@code v}
+     * can never change, so clients may keep it for a year without asking again.
+     * Otherwise clients must check that their copy is up to date, with {@code If-None-Match} or {@code If-Modified-Since}.
+     * <p> A single range of bytes may be requested with a {@code Range} header, and an {@code If-Range} header is respected.
+     */
+    private void handlePoster(HttpExchange exchange) throws IOException, HttpError {
+        requireMethod(exchange, "GET");
+        Media media = getMedia(data.getCatalog(), getSubPath(exchange, "/posters"));
+
+        PosterFiles.PosterFile poster;
+        try {
+            poster = posterFiles.get(Path.of(media.imagePath))
+                                .orElseThrow(() -> new HttpError(404, "The media has no poster."));
+        } catch (InvalidPathException e) {
+            throw new HttpError(404, "The media has no poster.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpError(503, "The service is stopping.");
+        }
+
+        boolean isVersioned = poster.hash().equals(parseQuery(exchange).get("v"));
+        exchange.getResponseHeaders().set("ETag", poster.etag());
+        exchange.getResponseHeaders().set("Last-Modified", formatHttpDate(poster.lastModified()));
+        exchange.getResponseHeaders().set("Cache-Control", isVersioned ? "public, max-age=31536000, immutable" : "public, no-cache");
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if(isNotModified(exchange, poster.etag(), poster.lastModified())) {
+            sendEmpty(exchange, 304);
+            return;
+        }
+
+        // A range is only sent if the client's partial copy is of the same file.
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        String rangeHeader = ifRange == null || ifRange.equals(poster.etag()) ? exchange.getRequestHeaders().getFirst("Range") : null;
+        Optional<ByteRange> range;
+        try {
+            range = ByteRange.parse(rangeHeader, poster.size());
+        } catch (IllegalArgumentException e) {
+            exchange.getResponseHeaders().set("Content-Range", "bytes */" + poster.size());
+            throw new HttpError(416, e.getMessage());
+        }
+
+        Optional<PosterFiles.OpenFile> opened;
+        try {
+            opened = posterFiles.open(poster);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpError(503, "The service is stopping.");
+        }
+        if(opened.isEmpty()) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            throw new HttpError(503, "Too many posters are being sent. Try again.");
+        }
+
+        try(PosterFiles.OpenFile file = opened.get()) {
+            ByteRange sent = range.orElse(new ByteRange(0, poster.size()));
+            exchange.getResponseHeaders().set("Content-Type", poster.contentType());
+            if(range.isPresent())
+                exchange.getResponseHeaders().set("Content-Range", sent.contentRange(poster.size()));
+            // A length of 0 would mean that the length is unknown.
+            exchange.sendResponseHeaders(range.isPresent() ? 206 : 200, sent.length() == 0 ? -1 : sent.length());
+            try(OutputStream out = exchange.getResponseBody()) {
+                file.transferTo(sent, out);
+            }
+        }
+    }
+
+    /** Describes the made up video of a movie or an episode, or sends a segment of it. See {@link SyntheticContent}.
+     * <p> Segments never change, so clients may keep them. A single range of bytes of a segment may be requested with a {@code Range} header.
+     * The segment is generated a piece at a time, straight into the response, so no segment is ever held in memory as a whole.
+     */
+    private void handleStream(HttpExchange exchange) throws IOException, HttpError {
+        requireMethod(exchange, "GET");
+        String[] path = getSubPath(exchange, "/streams").split("/");
+        Media media = getMedia(data.getCatalog(), path[0]);
+
+        SyntheticContent.Video video;
+        int next = 1;
+        if(media instanceof Series series) {
+            if(path.length < 3)
+                throw new HttpError(404, "Choose an episode with /streams/" + path[0] + "/{season}/{episode}.");
+            try {
+                video = SyntheticContent.episode(series, Integer.parseInt(path[1]), Integer.parseInt(path[2]));
+            } catch (NumberFormatException e) {
+                throw new HttpError(404, "Not found.");
+            } catch (IllegalArgumentException e) {
+                throw new HttpError(404, e.getMessage());
+            }
+            next = 3;
+        }
+        else video = SyntheticContent.movie((Movie) media);
+
+        if(path.length == next) {
+            sendJson(exchange, 200, Json.video(video));
+            return;
+        }
+        if(path.length != next + 2 || !path[next].equals("segments"))
+            throw new HttpError(404, "Not found.");
+
+        int segment;
+        try {
+            segment = Integer.parseInt(path[next + 1]);
+        } catch (NumberFormatException e) {
+            segment = -1;
+        }
+        if(segment < 0 || segment >= video.segmentCount())
+            throw new HttpError(404, video.name() + " has no segment " + path[next + 1] + ".");
+
+        exchange.getResponseHeaders().set("Cache-Control", "public, max-age=31536000, immutable");
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        Optional<ByteRange> range;
+        try {
+            range = ByteRange.parse(exchange.getRequestHeaders().getFirst("Range"), video.segmentSize());
+        } catch (IllegalArgumentException e) {
+            exchange.getResponseHeaders().set("Content-Range", "bytes */" + video.segmentSize());
+            throw new HttpError(416, e.getMessage());
+        }
+
+        ByteRange sent = range.orElse(new ByteRange(0, video.segmentSize()));
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        if(range.isPresent())
+            exchange.getResponseHeaders().set("Content-Range", sent.contentRange(video.segmentSize()));
+        exchange.sendResponseHeaders(range.isPresent() ? 206 : 200, sent.length());
+
+        ByteBuffer buffer = segmentBuffer.get();
+        try(OutputStream out = exchange.getResponseBody()) {
+            WritableByteChannel channel = Channels.newChannel(out);
+            long position = sent.start();
+            long end = sent.start() + sent.length();
+            while(position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                position += video.fill(segment, position, buffer);
+                buffer.flip();
+                while(buffer.hasRemaining())
+                    channel.write(buffer);
+            }
+        }
+    }
+
+    // Helpers
+
+    private static Media getMedia(MediaLibrary.Snapshot catalog, String id) throws HttpError {
+        try {
+            return catalog.getMedia(Integer.parseInt(id))
+                          .orElseThrow(() -> new HttpError(404, "No media has the id " + id + "."));
+        } catch (NumberFormatException e) {
+            throw new HttpError(404, "Not found.");
+        }
+    }
+
+    /** Logs in the user whose name and password are given with basic authentication, which loads the user's favorites.
+     * Each call must be matched by {@link ApplicationData#logout(User)}.
+     */
+    private User login(HttpExchange exchange) throws IOException, HttpError {
+        String[] credentials = getCredentials(exchange);
+        try {
+            return data.login(credentials[0], credentials[1]).orElseThrow(() -> new HttpError(401, "Incorrect password."));
+        } catch (UserDoesNotExistException e) {
+            throw new HttpError(401, "The user does not exist.");
+        }
+    }
+
+    /** Returns the token given with bearer authentication, or null if the request doesn't have one. */
+    private static String getToken(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if(authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)) return null;
+        return authorization.substring(7).trim();
+    }
+
+    /** Returns the username and password given with basic authentication. */
+    private static String[] getCredentials(HttpExchange exchange) throws HttpError {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if(authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, 6))
+            throw new HttpError(401, "Log in with basic authentication.");
+
+        String credentials;
+        try {
+            credentials = new String(Base64.getDecoder().decode(authorization.substring(6).trim()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new HttpError(400, "The credentials are not valid base 64.");
+        }
+
+        int separator = credentials.indexOf(':');
+        if(separator < 0)
+            throw new HttpError(400, "The credentials must be a username and a password, separated by a colon.");
+        return new String[] {credentials.substring(0, separator), credentials.substring(separator + 1)};
+    }
+
+    private static void requireMethod(HttpExchange exchange, String method) throws HttpError {
+        if(!exchange.getRequestMethod().equals(method))
+            throw new HttpError(405, "Use " + method + ".");
+    }
+
+    /** Returns the part of the path after the context, without slashes around it. */
+    private static String getSubPath(HttpExchange exchange, String context) {
+        String path = exchange.getRequestURI().getPath().substring(context.length());
+        int start = path.startsWith("/") ? 1 : 0;
+        int end = path.endsWith("/") && path.length() > start ? path.length() - 1 : path.length();
+        return path.substring(start, Math.max(start, end));
+    }
+
+    private static Map<String, String> parseQuery(HttpExchange exchange) {
+        Map<String, String> query = new HashMap<>();
+        String rawQuery = exchange.getRequestURI().getRawQuery();
+        if(rawQuery == null) return query;
+
+        for(String parameter : rawQuery.split("&")) {
+            if(parameter.isEmpty()) continue;
+            int separator = parameter.indexOf('=');
+            String name = separator < 0 ? parameter : parameter.substring(0, separator);
+            String value = separator < 0 ? "" : parameter.substring(separator + 1);
+            query.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static SortBy parseSortBy(Map<String, String> query) throws HttpError {
+        try {
+            return SortBy.valueOf(query.get("sort").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new HttpError(400, "Unknown sort '" + query.get("sort") + "'.");
+        }
+    }
+
+    private static SortOrder parseSortOrder(Map<String, String> query) throws HttpError {
+        try {
+            return SortOrder.valueOf(query.getOrDefault("order", "DEFAULT").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new HttpError(400, "Unknown order '" + query.get("order") + "'.");
+        }
+    }
+
+    private static int parseInt(Map<String, String> query, String name, int defaultValue) throws HttpError {
+        String value = query.get(name);
+        if(value == null) return defaultValue;
+        try {
+            int number = Integer.parseInt(value);
+            if(number <= 0) throw new NumberFormatException();
+            return number;
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, "'" + name + "' must be a positive integer.");
+        }
+    }
+
+    /** Sends a cached response, or {@code 304 Not Modified} if the client already has it.
+     * Clients may keep the response, but must check that it is up to date before using it again.
+     */
+    private static void sendCached(HttpExchange exchange, ResponseCache.Response response) throws IOException {
+        exchange.getResponseHeaders().set("ETag", response.etag());
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        if(ResponseCache.matches(exchange.getRequestHeaders().getFirst("If-None-Match"), response.etag())) {
+            sendEmpty(exchange, 304);
+            return;
+        }
+        sendJson(exchange, 200, response.body());
+    }
+
+    /** Returns whether the client already has the current version of a file,
+     * from the {@code If-None-Match} header, or else from the {@code If-Modified-Since} header.
+     */
+    private static boolean isNotModified(HttpExchange exchange, String etag, long lastModified) {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if(ifNoneMatch != null) return ResponseCache.matches(ifNoneMatch, etag);
+
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if(ifModifiedSince == null) return false;
+        try {
+            // HTTP dates only have whole seconds.
+            long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            return lastModified / 1000 <= since;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private static String formatHttpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        sendJson(exchange, status, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try(OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /** Returns whether the client asked for a list as NDJSON, with {@code ?format=ndjson} or an {@code Accept} header. */
+    private static boolean wantsNdjson(HttpExchange exchange, Map<String, String> query) throws HttpError {
+        String format = query.get("format");
+        if(format != null) {
+            switch(format.toLowerCase(Locale.ROOT)) {
+                case "ndjson": return true;
+                case "json": return false;
+                default: throw new HttpError(400, "'format' must be 'json' or 'ndjson'.");
+            }
+        }
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        return accept != null && accept.contains(NDJSON_TYPE);
+    }
+
+    /** Sends media as NDJSON, one JSON object of {@link Json#media} per line, with chunked transfer encoding.
+     * <p> Each media is taken from the iterator only when the one before has been written, so media that are put in order
+     * lazily are only put in order as they are sent. Nothing but the chunk that is being written is kept in memory,
+     * however many media are sent, and the first media is sent right away, without waiting for the rest.
+     * <p> A client that has what it needs may close the connection. The next write then fails, and no more media are taken.
+     * @param catalog The catalog, which gives the media their ids.
+     * @param media The media to send, in order.
+     * @param count The maximum number of media to send.
+     */
+    private void sendNdjson(HttpExchange exchange, MediaLibrary.Snapshot catalog, Iterator<Media> media, int count) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", NDJSON_TYPE + "; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        try(OutputStream out = exchange.getResponseBody()) {
+            for(int sent = 0; sent < count && media.hasNext(); sent++) {
+                out.write(cache.getMedia(catalog, media.next()).body());
+                out.write('\n');
+                // The chunks are otherwise only sent when they are full.
+                if(sent == 0) out.flush();
+            }
+        }
+    }
+
+    /** Sends a response without a body. */
+    private static void sendEmpty(HttpExchange exchange, int status) throws IOException {
+        // The server closes the connection, instead of keeping it for the next request, if the request has not been read
+        // to the end when it finds that the response has been sent, which for a response without a body is right away.
+        exchange.getRequestBody().close();
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+}
@@ -0,0 +1,134 @@
+package service;
+
+import java.util.List;
+
+import domain.Media;
+import domain.MediaLibrary;
+import domain.Series;
+import domain.SyntheticContent;
+import domain.User;
+
+/** Encodes the domain objects as JSON, for {@link HttpService}.
+ * <p> Media is encoded as: <pre>
+ * {"id": 1, "type": "movie", "title": "The Matrix", "releaseYear": 1999, "rating": 8.7,
+ *  "categories": ["Action", "Sci-fi"], "imagePath": "./Data/filmplakater/The Matrix.jpg"}
+ * </pre> Series also have {@code "isEnded"}, {@code "endYear"} and {@code "seasonLengths"}.
+ * <p> A user is encoded as its name, profile picture, and the ids of its favorites, and when it logs in, the token of its session.
+ * Passwords are never encoded.
+ * <p> A video is encoded as its name, its number of segments, and the size and length of each segment.
+ */
+class Json {
+
+    private Json() {}
+
+    /** Encodes the media, with its id in the catalog. See {@link MediaLibrary.Snapshot#getId(Media)}. */
+    static String media(Media media, int id) {
+        StringBuilder json = new StringBuilder(256);
+        appendMedia(json, media, id);
+        return json.toString();
+    }
+
+    /** Encodes the user, with the ids of its favorites in the given catalog. */
+    static String user(User user, MediaLibrary.Snapshot catalog) {
+        return appendUser(new StringBuilder(128), user, catalog).append('}').toString();
+    }
+
+    /** Encodes the user as {@link #user} does, with the token of a session of it. */
+    static String session(User user, String token, MediaLibrary.Snapshot catalog) {
+        StringBuilder json = appendUser(new StringBuilder(160), user, catalog);
+        json.append(",\"token\":");
+        appendString(json, token);
+        return json.append('}').toString();
+    }
+
+    /** Appends the user, without the closing brace. */
+    private static StringBuilder appendUser(StringBuilder json, User user, MediaLibrary.Snapshot catalog) {
+        json.append("{\"username\":");
+        appendString(json, user.getUsername());
+        json.append(",\"imagePath\":");
+        appendString(json, user.getImagePath().orElse(null));
+        json.append(",\"favorites\":[");
+        List<Media> favorites = user.getFavorites();
+        for(int i = 0; i < favorites.size(); i++) {
+            if(i > 0) json.append(',');
+            json.append(catalog.getId(favorites.get(i)));
+        }
+        return json.append(']');
+    }
+
+    static String video(SyntheticContent.Video video) {
+        StringBuilder json = new StringBuilder(128);
+        json.append("{\"name\":");
+        appendString(json, video.name());
+        json.append(",\"segments\":").append(video.segmentCount());
+        json.append(",\"segmentSize\":").append(video.segmentSize());
+        json.append(",\"segmentSeconds\":").append(SyntheticContent.SEGMENT_SECONDS);
+        return json.append('}').toString();
+    }
+
+    /** Encodes an error message as {@code {"error": message}}. */
+    static String error(String message) {
+        StringBuilder json = new StringBuilder(message.length() + 16);
+        json.append("{\"error\":");
+        appendString(json, message);
+        return json.append('}').toString();
+    }
+
+    static void appendMedia(StringBuilder json, Media media, int id) {
+        json.append("{\"id\":").append(id);
+        json.append(",\"type\":").append(media instanceof Series ? "\"series\"" : "\"movie\"");
+        json.append(",\"title\":");
+        appendString(json, media.title);
+        json.append(",\"releaseYear\":").append(media.releaseYear);
+        json.append(",\"rating\":").append(media.rating);
+
+        json.append(",\"categories\":[");
+        String[] categories = media.categories.getNames();
+        for(int i = 0; i < categories.length; i++) {
+            if(i > 0) json.append(',');
+            appendString(json, categories[i]);
+        }
+        json.append(']');
+
+        if(media instanceof Series series) {
+            json.append(",\"isEnded\":").append(series.isEnded);
+            json.append(",\"endYear\":").append(series.endYear);
+            json.append(",\"seasonLengths\":[");
+            for(int i = 0; i < series.seasonLengths.length(); i++) {
+                if(i > 0) json.append(',');
+                json.append(series.seasonLengths.get(i));
+            }
+            json.append(']');
+        }
+
+        json.append(",\"imagePath\":");
+        appendString(json, media.imagePath);
+        json.append('}');
+    }
+
+    /** Appends the string as a JSON string, or {@code null} if it is null. */
+    static void appendString(StringBuilder json, String string) {
+        if(string == null) {
+            json.append("null");
+            return;
+        }
+
+        json.append('"');
+        for(int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch(c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if(c < 0x20) json.append(String.format("\\u%04x", (int) c));
+                    else json.append(c);
+                }
+            }
+        }
+        json.append('"');
+    }
+
+}
@@ -0,0 +1,102 @@
+package service;
+
+/** Counts latencies in buckets that are at most 1/128 of their value wide, in the style of HdrHistogram,
+ * so that any percentile can be read with less than 1% error, however many latencies are recorded.
+ * <p> Values are in nanoseconds, and values above {@link #MAX_VALUE} are counted as that value.
+ * <p> A latency that was recorded by a client that waits for each response before sending the next request
+ * hides the requests that would have been sent meanwhile, which would also have waited. This is called coordinated omission,
+ * and {@link #recordWithExpectedInterval} corrects for it, by also recording the latencies those requests would have had.
+ * <i>Is not thread safe.</i> Use one histogram per thread, and {@link #add} them together.
+ */
+class LatencyHistogram {
+
+    /** The number of bits of each value that are kept. The rest are dropped, which gives the precision. */
+    private static final int PRECISION_BITS = 8;
+    private static final int HALF_BUCKET_COUNT = 1 << (PRECISION_BITS - 1);
+
+    /** The largest value that is counted as itself, which is a little over an hour in nanoseconds. */
+    static final long MAX_VALUE = (1L << 42) - 1;
+
+    private final long[] counts = new long[indexOf(MAX_VALUE) + 1];
+    private long totalCount;
+    private long sum;
+    private long max;
+
+    /** Records a latency.
+     * @param value The latency in nanoseconds. Negative values are recorded as 0.
+     */
+    void record(long value) {
+        value = Math.max(0, Math.min(MAX_VALUE, value));
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /** Records a latency, and the latencies that requests which should have been sent meanwhile would have had.
+     * If the latency is longer than the expected interval between requests, the requests that should have been sent
+     * every interval since would have waited until now, so latencies of one interval less, two intervals less, and so on, are recorded too.
+     * @param value The latency in nanoseconds.
+     * @param expectedInterval The expected time between requests in nanoseconds, or 0 to only record the latency.
+     */
+    void recordWithExpectedInterval(long value, long expectedInterval) {
+        record(value);
+        if(expectedInterval <= 0) return;
+        for(long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval)
+            record(missing);
+    }
+
+    /** Adds all latencies of the other histogram to this one. */
+    void add(LatencyHistogram other) {
+        for(int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+        totalCount += other.totalCount;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long getTotalCount() {
+        return totalCount;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    double getMean() {
+        return totalCount == 0 ? 0 : (double) sum / totalCount;
+    }
+
+    /** Returns the latency that the given percentage of the latencies are at most, rounded up to the end of its bucket.
+     * @param percentile The percentage, between 0 and 100.
+     * @return The latency in nanoseconds, or 0 if nothing has been recorded.
+     */
+    long getValueAtPercentile(double percentile) {
+        if(totalCount == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * totalCount));
+        long cumulative = 0;
+        for(int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if(cumulative >= target)
+                return Math.min(max, highestValueOf(i));
+        }
+        return max;
+    }
+
+    /** Returns the index of the bucket of the value.
+     * Values below {@code 2^PRECISION_BITS} have a bucket each. Above that, every power of two is split into
+     * {@code HALF_BUCKET_COUNT} buckets, by dropping the bits below the highest {@code PRECISION_BITS} bits.
+     */
+    private static int indexOf(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - PRECISION_BITS);
+        return shift * HALF_BUCKET_COUNT + (int) (value >>> shift);
+    }
+
+    /** Returns the highest value that is counted in the bucket. */
+    private static long highestValueOf(int index) {
+        int shift = index < 2 * HALF_BUCKET_COUNT ? 0 : index / HALF_BUCKET_COUNT - 1;
+        long subBucket = index - (long) shift * HALF_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+}
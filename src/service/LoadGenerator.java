@@ -0,0 +1,644 @@
+package service;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import domain.ApplicationData;
+import domain.Media;
+import domain.MediaLibrary;
+import domain.MediaSorting.SortBy;
+import domain.MediaSorting.SortOrder;
+
+/** Puts a realistic load on the application, and measures the latency of each operation, to find how much load a build can take.
+ * The load is put on the {@link ApplicationData} in this process, or on a {@link HttpService}. See {@link LoadTarget}.
+ * <p> The load is a mix of what users do. See {@link Operation}. Searches are for the start of a title in the catalog,
+ * often with a typo, and the favorites that are toggled and the users that log in are those given to the generator.
+ * <p> The load is generated in one of two ways: <ul>
+ * <li> An open loop sends operations at a fixed rate, whether the earlier ones have finished or not, as independent users do.
+ * Latency is measured from when an operation should have been sent, so that waiting for a free thread counts too.
+ * <li> A closed loop has a number of threads that each wait for an operation to finish before sending the next,
+ * at a fixed rate per thread if a rate is given. Latency is corrected for coordinated omission, see {@link LatencyHistogram}. </ul>
+ * <p> The report is JSON, with p50, p99 and p99.9 of the latency and of the time spent in the operations themselves, overall and for each operation.
+ * A sweep runs an open loop at higher and higher rates, until a rate can't be kept up with, and reports the highest rate that could.
+ * <p> Run with {@code --name=value} options, see {@link #main}.
+ */
+public class LoadGenerator {
+
+    /** How the load is generated. */
+    static enum Mode { OPEN, CLOSED }
+
+    /** What users do, and how often, relative to each other. */
+    static enum Operation {
+        /** Searches for the start of a title, often with a typo. */
+        SEARCH(40),
+        /** Sorts the catalog by another property. */
+        SORT(15),
+        /** Shows the details of a media. */
+        DETAIL(25),
+        /** Adds or removes a favorite. */
+        FAVORITE(10),
+        /** Logs in to a new session, and out again. */
+        LOGIN(10);
+
+        private final int weight;
+
+        private Operation(int weight) {
+            this.weight = weight;
+        }
+
+        /** Returns whether the operation needs a user. */
+        boolean needsUser() {
+            return this == FAVORITE || this == LOGIN;
+        }
+    }
+
+    /** How much of the time a search has a typo. */
+    private static final double TYPO_PROBABILITY = 0.3;
+
+    /** The rate of a sweep is multiplied by this after each rate that could be kept up with. */
+    private static final double SWEEP_FACTOR = 1.5;
+    private static final int MAX_SWEEP_STEPS = 16;
+
+    /** How long to wait for the operations that were sent before the end of an open loop. */
+    private static final long DRAIN_TIMEOUT_SECONDS = 60;
+
+    /** How the load is generated.
+     * @param mode Whether the loop is open or closed.
+     * @param rate The number of operations per second in total. For a closed loop, 0 means as fast as possible.
+     * @param concurrency The number of threads that run operations.
+     * @param durationMillis How long the load is measured.
+     * @param warmupMillis How long the load is put on first, without being measured.
+     * @param seed The seed of the random operations, so that runs can be repeated.
+     */
+    static record Config(Mode mode, double rate, int concurrency, long durationMillis, long warmupMillis, long seed) {
+
+        Config {
+            if(concurrency < 1)
+                throw new IllegalArgumentException("The concurrency must be at least 1.");
+            if(rate < 0 || mode == Mode.OPEN && rate == 0)
+                throw new IllegalArgumentException("An open loop needs a positive rate.");
+        }
+
+        Config withRate(double rate) {
+            return new Config(mode, rate, concurrency, durationMillis, warmupMillis, seed);
+        }
+    }
+
+    /** The name and password of a user that the load is put on for. */
+    static record Credentials(String username, String password) {}
+
+    private final LoadTarget target;
+    private final String targetName;
+    private final MediaLibrary.Snapshot catalog;
+    private final List<Media> media;
+    private final List<Credentials> users;
+
+    /** The favorites that have been added, as {@code "username/id"}, so that toggling them alternates between adding and removing. */
+    private final Set<String> favorites = ConcurrentHashMap.newKeySet();
+
+    /** Creates a generator for the given target.
+     * @param target What the load is put on.
+     * @param targetName The name of the target in the report.
+     * @param catalog The media that is searched for and shown. Must be of the catalog of the target, which gives the media their ids.
+     * @param users The users who toggle favorites and log in. If there are none, those operations are left out.
+     */
+    LoadGenerator(LoadTarget target, String targetName, MediaLibrary.Snapshot catalog, List<Credentials> users) {
+        if(catalog.size() == 0)
+            throw new IllegalArgumentException("The catalog is empty.");
+        this.target = target;
+        this.targetName = targetName;
+        this.catalog = catalog;
+        this.media = catalog.getSortedByDefault();
+        this.users = List.copyOf(users);
+    }
+
+    /** Warms up, and then measures the load.
+     * @param config How the load is generated.
+     * @return The report of the measured load.
+     * @throws InterruptedException If interrupted while generating the load.
+     * @throws IllegalStateException If the operations of an open loop didn't stop after it ended.
+     */
+    Report run(Config config) throws InterruptedException {
+        if(config.warmupMillis() > 0)
+            runPhase(config, config.warmupMillis(), ~config.seed());
+        return runPhase(config, config.durationMillis(), config.seed());
+    }
+
+    /** Runs an open loop at higher and higher rates, starting at the rate of the config, until a rate can't be kept up with.
+     * A rate is kept up with if the operations finished nearly as fast as they were sent, at most 1% failed,
+     * and the p99 of the latency is at most the given limit.
+     * @param config How the load is generated. Must be an open loop.
+     * @param maxP99Nanos The highest p99 of the latency that is acceptable.
+     * @return The report of each rate, in order. The rate before the last is the highest rate that could be kept up with.
+     * @throws InterruptedException If interrupted while generating the load.
+     * @throws IllegalStateException If the operations of an open loop didn't stop after it ended.
+     */
+    List<Report> sweep(Config config, long maxP99Nanos) throws InterruptedException {
+        if(config.mode() != Mode.OPEN)
+            throw new IllegalArgumentException("Only an open loop can be swept, since a closed loop sends no faster than it is answered.");
+
+        List<Report> reports = new ArrayList<>();
+        if(config.warmupMillis() > 0)
+            runPhase(config, config.warmupMillis(), ~config.seed());
+        double rate = config.rate();
+        for(int step = 0; step < MAX_SWEEP_STEPS; step++) {
+            Report report = runPhase(config.withRate(rate), config.durationMillis(), config.seed() + step);
+            reports.add(report);
+            if(!report.keptUp(maxP99Nanos)) break;
+            rate *= SWEEP_FACTOR;
+        }
+        return reports;
+    }
+
+    private Report runPhase(Config config, long durationMillis, long seed) throws InterruptedException {
+        return config.mode() == Mode.OPEN
+            ? runOpenLoop(config, durationMillis, seed)
+            : runClosedLoop(config, durationMillis, seed);
+    }
+
+    /** Sends operations at a fixed rate from this thread, to be run by a pool of threads, however long they take. */
+    private Report runOpenLoop(Config config, long durationMillis, long seed) throws InterruptedException {
+        Recorders recorders = new Recorders();
+        ThreadLocal<Recorder> recorder = ThreadLocal.withInitial(recorders::newRecorder);
+        ExecutorService workers = Executors.newFixedThreadPool(config.concurrency(), threadFactory());
+        Workload workload = new Workload(seed);
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        double intervalNanos = 1e9 / config.rate();
+        try {
+            for(long i = 0; ; i++) {
+                // The times are computed from the start, so that delays don't add up.
+                long intended = start + (long) (i * intervalNanos);
+                if(intended >= end) break;
+                parkUntil(intended);
+
+                Call call = workload.next();
+                workers.execute(() -> {
+                    long begin = System.nanoTime();
+                    boolean succeeded = call.run(target);
+                    long done = System.nanoTime();
+                    recorder.get().record(call.operation(), done - intended, done - begin, 0, succeeded);
+                });
+            }
+        } finally {
+            workers.shutdown();
+        }
+        // The recorders are only merged once every operation has stopped recording.
+        // Operations that are still running are then interrupted, and recorded as failed, and the rest aren't sent.
+        if(!workers.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            workers.shutdownNow();
+            if(!workers.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                throw new IllegalStateException("The operations didn't stop, even when interrupted.");
+        }
+        return new Report(targetName, config, durationMillis, System.nanoTime() - start, recorders.merge());
+    }
+
+    /** Runs operations on a number of threads, which each wait for an operation to finish before sending the next. */
+    private Report runClosedLoop(Config config, long durationMillis, long seed) throws InterruptedException {
+        Recorders recorders = new Recorders();
+        long intervalNanos = config.rate() == 0 ? 0 : (long) (config.concurrency() * 1e9 / config.rate());
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+        List<Thread> threads = new ArrayList<>(config.concurrency());
+        for(int t = 0; t < config.concurrency(); t++) {
+            Workload workload = new Workload(seed + t);
+            Recorder recorder = recorders.newRecorder();
+            Thread thread = threadFactory().newThread(() -> {
+                long next = start;
+                while(true) {
+                    if(intervalNanos > 0) parkUntil(next);
+                    long begin = System.nanoTime();
+                    if(begin >= end) break;
+
+                    Call call = workload.next();
+                    boolean succeeded = call.run(target);
+                    long done = System.nanoTime();
+                    recorder.record(call.operation(), done - begin, done - begin, intervalNanos, succeeded);
+
+                    // A thread that falls behind does not hurry to catch up, since the correction accounts for the operations it missed.
+                    next = Math.max(next + intervalNanos, done);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads)
+            thread.join();
+        return new Report(targetName, config, durationMillis, System.nanoTime() - start, recorders.merge());
+    }
+
+    private static ThreadFactory threadFactory() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "Load " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static void parkUntil(long deadline) {
+        long remaining;
+        while((remaining = deadline - System.nanoTime()) > 0)
+            LockSupport.parkNanos(remaining);
+    }
+
+    // Workload
+
+    /** An operation that is ready to be run. */
+    private static record Call(Operation operation, Action action) {
+
+        /** Runs the operation, and returns whether it succeeded. */
+        boolean run(LoadTarget target) {
+            try {
+                action.run(target);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private static interface Action {
+        public void run(LoadTarget target) throws Exception;
+    }
+
+    /** Chooses random operations. Is used by one thread. */
+    private class Workload {
+        private final SplittableRandom random;
+        private final Operation[] operations = Operation.values();
+        private final int[] weights = new int[operations.length];
+        private final int totalWeight;
+
+        private Workload(long seed) {
+            random = new SplittableRandom(seed);
+            int total = 0;
+            for(Operation operation : operations) {
+                weights[operation.ordinal()] = operation.needsUser() && users.isEmpty() ? 0 : operation.weight;
+                total += weights[operation.ordinal()];
+            }
+            totalWeight = total;
+        }
+
+        private Call next() {
+            Operation operation = chooseOperation();
+            return switch(operation) {
+                case SEARCH -> {
+                    String query = searchQuery(randomMedia().title, random);
+                    yield new Call(operation, target -> target.search(query));
+                }
+                case SORT -> {
+                    SortBy sortBy = SortBy.values()[random.nextInt(SortBy.values().length)];
+                    SortOrder sortOrder = SortOrder.values()[random.nextInt(SortOrder.values().length)];
+                    yield new Call(operation, target -> target.sort(sortBy, sortOrder));
+                }
+                case DETAIL -> {
+                    int id = catalog.getId(randomMedia());
+                    yield new Call(operation, target -> target.detail(id));
+                }
+                case FAVORITE -> {
+                    Credentials user = randomUser();
+                    int id = catalog.getId(randomMedia());
+                    yield new Call(operation, target -> {
+                        String favorite = user.username() + "/" + id;
+                        boolean isFavorite = favorites.add(favorite) || !favorites.remove(favorite);
+                        target.setFavorite(user.username(), user.password(), id, isFavorite);
+                    });
+                }
+                case LOGIN -> {
+                    Credentials user = randomUser();
+                    yield new Call(operation, target -> target.login(user.username(), user.password()));
+                }
+            };
+        }
+
+        private Operation chooseOperation() {
+            int choice = random.nextInt(totalWeight);
+            for(Operation operation : operations) {
+                choice -= weights[operation.ordinal()];
+                if(choice < 0) return operation;
+            }
+            throw new AssertionError();
+        }
+
+        private Media randomMedia() {
+            return media.get(random.nextInt(media.size()));
+        }
+
+        private Credentials randomUser() {
+            return users.get(random.nextInt(users.size()));
+        }
+    }
+
+    /** Returns what a user might type to search for the title: the start of it, in lower case, and sometimes with a typo.
+     * A typo is a letter that is left out, doubled, swapped with the next, or replaced by another.
+     * @param title The title that is searched for.
+     * @param random The random numbers to use.
+     * @return The query.
+     */
+    static String searchQuery(String title, SplittableRandom random) {
+        String prefix = title.substring(0, Math.min(title.length(), 3 + random.nextInt(8))).toLowerCase(Locale.ROOT);
+        if(prefix.length() < 3 || random.nextDouble() >= TYPO_PROBABILITY)
+            return prefix;
+
+        int i = 1 + random.nextInt(prefix.length() - 2);
+        StringBuilder query = new StringBuilder(prefix);
+        switch(random.nextInt(4)) {
+            case 0 -> query.deleteCharAt(i);
+            case 1 -> query.insert(i, query.charAt(i));
+            case 2 -> {
+                char c = query.charAt(i);
+                query.setCharAt(i, query.charAt(i + 1));
+                query.setCharAt(i + 1, c);
+            }
+            default -> query.setCharAt(i, (char) ('a' + random.nextInt(26)));
+        }
+        return query.toString();
+    }
+
+    // Measuring
+
+    /** The latencies that one thread has measured. */
+    private static class Recorder {
+        private final EnumMap<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+        private final EnumMap<Operation, LatencyHistogram> serviceTimes = new EnumMap<>(Operation.class);
+        private final long[] errors = new long[Operation.values().length];
+
+        private Recorder() {
+            for(Operation operation : Operation.values()) {
+                latencies.put(operation, new LatencyHistogram());
+                serviceTimes.put(operation, new LatencyHistogram());
+            }
+        }
+
+        /** Records a finished operation.
+         * @param latency The time from when the operation should have been sent until it finished.
+         * @param serviceTime The time the operation itself took.
+         * @param expectedInterval The expected time between operations, to correct the latency with, or 0.
+         * @param succeeded Whether the operation succeeded.
+         */
+        private void record(Operation operation, long latency, long serviceTime, long expectedInterval, boolean succeeded) {
+            latencies.get(operation).recordWithExpectedInterval(latency, expectedInterval);
+            serviceTimes.get(operation).record(serviceTime);
+            if(!succeeded) errors[operation.ordinal()]++;
+        }
+
+        private void add(Recorder other) {
+            for(Operation operation : Operation.values()) {
+                latencies.get(operation).add(other.latencies.get(operation));
+                serviceTimes.get(operation).add(other.serviceTimes.get(operation));
+                errors[operation.ordinal()] += other.errors[operation.ordinal()];
+            }
+        }
+    }
+
+    /** The recorders of all threads in a run. */
+    private static class Recorders {
+        private final ConcurrentLinkedQueue<Recorder> recorders = new ConcurrentLinkedQueue<>();
+
+        private Recorder newRecorder() {
+            Recorder recorder = new Recorder();
+            recorders.add(recorder);
+            return recorder;
+        }
+
+        private Recorder merge() {
+            Recorder merged = new Recorder();
+            recorders.forEach(merged::add);
+            return merged;
+        }
+    }
+
+    /** The measured load of a run. */
+    static class Report {
+        private final String targetName;
+        private final Config config;
+        private final long durationMillis;
+        private final long elapsedNanos;
+        private final Recorder recorder;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram serviceTime = new LatencyHistogram();
+
+        private Report(String targetName, Config config, long durationMillis, long elapsedNanos, Recorder recorder) {
+            this.targetName = targetName;
+            this.config = config;
+            this.durationMillis = durationMillis;
+            this.elapsedNanos = elapsedNanos;
+            this.recorder = recorder;
+            for(Operation operation : Operation.values()) {
+                latency.add(recorder.latencies.get(operation));
+                serviceTime.add(recorder.serviceTimes.get(operation));
+            }
+        }
+
+        Config getConfig() {
+            return config;
+        }
+
+        /** Returns the number of operations that were run. */
+        long getCount() {
+            return serviceTime.getTotalCount();
+        }
+
+        long getErrors() {
+            long errors = 0;
+            for(long count : recorder.errors)
+                errors += count;
+            return errors;
+        }
+
+        /** Returns the number of operations that finished per second. */
+        double getThroughput() {
+            return getCount() * 1e9 / elapsedNanos;
+        }
+
+        /** Returns the latencies of all operations, which are corrected for coordinated omission. */
+        LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        LatencyHistogram getLatency(Operation operation) {
+            return recorder.latencies.get(operation);
+        }
+
+        /** Returns whether the load was kept up with, see {@link LoadGenerator#sweep}. */
+        boolean keptUp(long maxP99Nanos) {
+            // The operations that are still waiting when the run ends are waited for, which lowers the throughput.
+            return getThroughput() >= 0.95 * config.rate()
+                && getErrors() <= 0.01 * getCount()
+                && latency.getValueAtPercentile(99) <= maxP99Nanos;
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder(2048);
+            json.append("{\"target\":");
+            Json.appendString(json, targetName);
+            json.append(",\"mode\":\"").append(config.mode().name().toLowerCase(Locale.ROOT)).append('"');
+            json.append(",\"rate\":").append(config.rate());
+            json.append(",\"concurrency\":").append(config.concurrency());
+            json.append(",\"durationSeconds\":").append(durationMillis / 1000.0);
+            json.append(",\"seed\":").append(config.seed());
+            json.append(",\"operations\":").append(getCount());
+            json.append(",\"errors\":").append(getErrors());
+            json.append(",\"throughput\":").append(round(getThroughput()));
+            appendLatencies(json, latency, serviceTime);
+
+            json.append(",\"byOperation\":{");
+            for(Operation operation : Operation.values()) {
+                if(operation.ordinal() > 0) json.append(',');
+                json.append('"').append(operation.name().toLowerCase(Locale.ROOT)).append("\":{");
+                json.append("\"count\":").append(recorder.serviceTimes.get(operation).getTotalCount());
+                json.append(",\"errors\":").append(recorder.errors[operation.ordinal()]);
+                appendLatencies(json, recorder.latencies.get(operation), recorder.serviceTimes.get(operation));
+                json.append('}');
+            }
+            return json.append("}}").toString();
+        }
+
+        private static void appendLatencies(StringBuilder json, LatencyHistogram latency, LatencyHistogram serviceTime) {
+            json.append(",\"latencyMicros\":");
+            appendPercentiles(json, latency);
+            json.append(",\"serviceTimeMicros\":");
+            appendPercentiles(json, serviceTime);
+        }
+
+        private static void appendPercentiles(StringBuilder json, LatencyHistogram histogram) {
+            json.append("{\"p50\":").append(micros(histogram.getValueAtPercentile(50)));
+            json.append(",\"p99\":").append(micros(histogram.getValueAtPercentile(99)));
+            json.append(",\"p999\":").append(micros(histogram.getValueAtPercentile(99.9)));
+            json.append(",\"max\":").append(micros(histogram.getMax()));
+            json.append(",\"mean\":").append(micros(histogram.getMean()));
+            json.append('}');
+        }
+
+        private static double micros(double nanos) {
+            return round(nanos / 1000);
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 10) / 10.0;
+        }
+    }
+
+    /** Encodes the reports of a sweep as JSON, with the highest rate that could be kept up with, or 0 if none could. */
+    static String sweepToJson(List<Report> reports, long maxP99Nanos) {
+        double saturationRate = 0;
+        for(Report report : reports)
+            if(report.keptUp(maxP99Nanos))
+                saturationRate = report.getConfig().rate();
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"maxP99Micros\":").append(maxP99Nanos / 1000);
+        json.append(",\"saturationRate\":").append(saturationRate);
+        json.append(",\"steps\":[");
+        for(int i = 0; i < reports.size(); i++) {
+            if(i > 0) json.append(',');
+            json.append(reports.get(i).toJson());
+        }
+        return json.append("]}").toString();
+    }
+
+    /** Runs the load generator, and prints the report, or writes it to a file. The options are: <ul>
+     * <li> {@code --target=inprocess|http} What to put the load on. Defaults to {@code inprocess}.
+     * <li> {@code --port=8080} The port of a running service. Without it, a service is started in this process.
+     * Its users must then be given with {@code --credentials=name:password,...}, since users can't be created over HTTP.
+     * <li> {@code --mode=open|closed} Defaults to {@code open}.
+     * <li> {@code --rate=500} Operations per second in total. Defaults to 500 for an open loop, and as fast as possible for a closed loop.
+     * <li> {@code --concurrency=32}, {@code --duration=30} and {@code --warmup=5}, in seconds.
+     * <li> {@code --users=20} The number of users that are created, when the data is in this process.
+     * <li> {@code --seed=1}
+     * <li> {@code --sweep} Runs an open loop at higher and higher rates, from {@code --rate}. See {@link #sweep}.
+     * <li> {@code --max-p99-ms=100} The highest acceptable p99 of a sweep.
+     * <li> {@code --report=path} Writes the report to the file instead of printing it. </ul>
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String targetName = options.getOrDefault("target", "inprocess");
+        Mode mode = Mode.valueOf(options.getOrDefault("mode", "open").toUpperCase(Locale.ROOT));
+        Config config = new Config(mode,
+            Double.parseDouble(options.getOrDefault("rate", mode == Mode.OPEN ? "500" : "0")),
+            Integer.parseInt(options.getOrDefault("concurrency", "32")),
+            (long) (Double.parseDouble(options.getOrDefault("duration", "30")) * 1000),
+            (long) (Double.parseDouble(options.getOrDefault("warmup", "5")) * 1000),
+            Long.parseLong(options.getOrDefault("seed", "1")));
+
+        ApplicationData data = new ApplicationData();
+        data.readMedia();
+        List<Credentials> users = new ArrayList<>();
+        HttpService service = null;
+        LoadTarget target;
+        if(options.containsKey("port")) {
+            if(!targetName.equals("http"))
+                throw new IllegalArgumentException("A port can only be given for the http target.");
+            for(String credentials : options.getOrDefault("credentials", "").split(",")) {
+                int separator = credentials.indexOf(':');
+                if(separator > 0) users.add(new Credentials(credentials.substring(0, separator), credentials.substring(separator + 1)));
+            }
+            target = new LoadTarget.Http(URI.create("http://localhost:" + options.get("port")));
+        } else {
+            int userCount = Integer.parseInt(options.getOrDefault("users", "20"));
+            for(int i = 0; i < userCount; i++) {
+                users.add(new Credentials("LoadUser" + i, "load123"));
+                data.addUser("LoadUser" + i, "load123", null);
+            }
+            switch(targetName) {
+                case "inprocess" -> target = new LoadTarget.InProcess(data);
+                case "http" -> {
+                    service = new HttpService(data, 0, e -> System.err.println(e.getMessage()));
+                    service.start();
+                    target = new LoadTarget.Http(URI.create("http://localhost:" + service.getPort()));
+                }
+                default -> throw new IllegalArgumentException("Unknown target '" + targetName + "'.");
+            }
+        }
+
+        LoadGenerator generator = new LoadGenerator(target, targetName, data.getCatalog(), users);
+        String report;
+        if(options.containsKey("sweep")) {
+            long maxP99Nanos = (long) (Double.parseDouble(options.getOrDefault("max-p99-ms", "100")) * 1_000_000);
+            report = sweepToJson(generator.sweep(config, maxP99Nanos), maxP99Nanos);
+        }
+        else report = generator.run(config).toJson();
+        if(service != null) service.stop(0);
+        data.stopPartitionedSearch();
+
+        if(options.containsKey("report")) Files.writeString(Path.of(options.get("report")), report + "\n", StandardCharsets.UTF_8);
+        else System.out.println(report);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args) {
+            if(!arg.startsWith("--"))
+                throw new IllegalArgumentException("Options must be given as --name=value, not '" + arg + "'.");
+            int separator = arg.indexOf('=');
+            if(separator < 0) options.put(arg.substring(2), "");
+            else options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        return options;
+    }
+
+}
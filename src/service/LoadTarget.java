@@ -0,0 +1,136 @@
+package service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import domain.AdmissionControl.BusyException;
+import domain.ApplicationData;
+import domain.Media;
+import domain.MediaLibrary;
+import domain.MediaSorting.SortBy;
+import domain.MediaSorting.SortOrder;
+import domain.User;
+
+/** What {@link LoadGenerator} puts load on. Each operation is what a user of the application does,
+ * and throws an exception if it fails. Is used by many threads at the same time.
+ */
+interface LoadTarget {
+
+    /** The number of results each search asks for, as a page of results in the application would show. */
+    static final int SEARCH_COUNT = 20;
+
+    void search(String query) throws Exception;
+
+    void sort(SortBy sortBy, SortOrder sortOrder) throws Exception;
+
+    void detail(int mediaId) throws Exception;
+
+    void setFavorite(String username, String password, int mediaId, boolean isFavorite) throws Exception;
+
+    /** Logs the user in to a new session, and out of it again. */
+    void login(String username, String password) throws Exception;
+
+    /** Calls the methods of {@link ApplicationData} directly, in this process. */
+    static class InProcess implements LoadTarget {
+        private final ApplicationData data;
+
+        InProcess(ApplicationData data) {
+            this.data = data;
+        }
+
+        public void search(String query) throws BusyException, InterruptedException {
+            MediaLibrary.Snapshot catalog = data.getCatalog();
+            data.getSearchAdmission().call(() -> data.searchCatalog(catalog, query, SEARCH_COUNT), 1, TimeUnit.SECONDS);
+        }
+
+        public void sort(SortBy sortBy, SortOrder sortOrder) {
+            data.getCatalog().getSortedBy(sortBy, sortOrder);
+        }
+
+        public void detail(int mediaId) {
+            data.getCatalog().getMedia(mediaId).orElseThrow(() -> new IllegalStateException("No media has the id " + mediaId + "."));
+        }
+
+        public void setFavorite(String username, String password, int mediaId, boolean isFavorite) throws Exception {
+            // Is authenticated like a request with basic authentication, so that both targets do the same work.
+            User user = data.getUser(username);
+            if(!user.checkPassword(password))
+                throw new IllegalStateException("Incorrect password.");
+            Media media = data.getCatalog().getMedia(mediaId).orElseThrow();
+            if(isFavorite) user.addFavorite(media);
+            else user.removeFavorite(media);
+        }
+
+        public void login(String username, String password) throws Exception {
+            String token = data.startSession(username, password).orElseThrow(() -> new IllegalStateException("Incorrect password."));
+            data.endSession(token);
+        }
+    }
+
+    /** Sends requests to a {@link HttpService}, and waits for each response. */
+    static class Http implements LoadTarget {
+        private static final Pattern TOKEN = Pattern.compile("\"token\":\"([^\"]+)\"");
+
+        private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        private final URI base;
+
+        /** @param base The address of the service, such as {@code http://localhost:8080}. */
+        Http(URI base) {
+            this.base = base;
+        }
+
+        public void search(String query) throws IOException, InterruptedException {
+            send("GET", "/media/search?count=" + SEARCH_COUNT + "&q=" + URLEncoder.encode(query, StandardCharsets.UTF_8), null, null);
+        }
+
+        public void sort(SortBy sortBy, SortOrder sortOrder) throws IOException, InterruptedException {
+            send("GET", "/media?sort=" + sortBy.name().toLowerCase(Locale.ROOT) + "&order=" + sortOrder.name().toLowerCase(Locale.ROOT), null, null);
+        }
+
+        public void detail(int mediaId) throws IOException, InterruptedException {
+            send("GET", "/media/" + mediaId, null, null);
+        }
+
+        public void setFavorite(String username, String password, int mediaId, boolean isFavorite) throws IOException, InterruptedException {
+            send(isFavorite ? "PUT" : "DELETE", "/favorites/" + mediaId, username, password);
+        }
+
+        public void login(String username, String password) throws IOException, InterruptedException {
+            String body = exchange("POST", "/login", basic(username, password), HttpResponse.BodyHandlers.ofString());
+            Matcher token = TOKEN.matcher(body);
+            if(!token.find())
+                throw new IOException("POST /login responded without a token.");
+            exchange("POST", "/logout", "Bearer " + token.group(1), HttpResponse.BodyHandlers.discarding());
+        }
+
+        private void send(String method, String path, String username, String password) throws IOException, InterruptedException {
+            exchange(method, path, username == null ? null : basic(username, password), HttpResponse.BodyHandlers.discarding());
+        }
+
+        private <T> T exchange(String method, String path, String authorization, HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+            HttpRequest.Builder request = HttpRequest.newBuilder(base.resolve(path)).method(method, HttpRequest.BodyPublishers.noBody());
+            if(authorization != null)
+                request.header("Authorization", authorization);
+            HttpResponse<T> response = client.send(request.build(), bodyHandler);
+            if(response.statusCode() >= 400)
+                throw new IOException(method + " " + path + " responded with " + response.statusCode() + ".");
+            return response.body();
+        }
+
+        private static String basic(String username, String password) {
+            String credentials = username + ":" + password;
+            return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+}
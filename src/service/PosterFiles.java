@@ -0,0 +1,181 @@
+package service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/** Sends poster files for {@link HttpService}, straight from the file to the response.
+ * <p> The files are never read into arrays on the heap. They are sent with {@link FileChannel#transferTo},
+ * so that the bytes are only copied through a small buffer, however large the file is.
+ * <p> Each file has a strong ETag, which is a hash of its content.
+ * The hash is only computed again when the size or the time of last modification of the file changes.
+ * <p> At most {@link #MAX_OPEN_FILES} files are open at the same time. Requests beyond that wait a little for a file to be closed,
+ * and are then told that the service is busy, so that many requests for posters can never run out of file descriptors.
+ * <i>Is thread safe.</i>
+ */
+class PosterFiles {
+
+    /** The maximum number of poster files that are open at the same time. */
+    static final int MAX_OPEN_FILES = 64;
+
+    /** How long a request waits for another file to be closed, before it is told that the service is busy. */
+    private static final long OPEN_TIMEOUT_MILLIS = 2000;
+
+    /** The maximum number of files whose hashes are remembered. All are forgotten when there are more. */
+    private static final int MAX_CACHED_FILES = 4096;
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    /** A poster file, as it was when it was last looked at.
+     * @param path The path of the file.
+     * @param size The size of the file in bytes.
+     * @param lastModified The time the file was last modified, in milliseconds since the epoch.
+     * @param hash The first 128 bits of the SHA-256 hash of the content, in hex.
+     */
+    static record PosterFile(Path path, long size, long lastModified, String hash) {
+
+        /** Returns the strong ETag of the file, including the quotes. */
+        String etag() {
+            return '"' + hash + '"';
+        }
+
+        /** Returns the content type of the file, from its file extension. */
+        String contentType() {
+            String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+            if(name.endsWith(".jpg") || name.endsWith(".jpeg")) return "image/jpeg";
+            if(name.endsWith(".png")) return "image/png";
+            if(name.endsWith(".gif")) return "image/gif";
+            return "application/octet-stream";
+        }
+    }
+
+    /** A poster file that is open, and is ready to be sent. Must be closed to let other requests open files. */
+    class OpenFile implements AutoCloseable {
+        private final FileChannel channel;
+        private boolean isClosed;
+
+        private OpenFile(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /** Sends the given range of the file to the stream, without reading the whole range into memory.
+         * @param range The range of the file to send.
+         * @param out The stream to send it to. Is not closed.
+         * @throws IOException If the file could not be read, or the stream could not be written to.
+         */
+        void transferTo(ByteRange range, OutputStream out) throws IOException {
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = range.start();
+            long end = range.start() + range.length();
+            while(position < end) {
+                long transferred = channel.transferTo(position, end - position, target);
+                // The file has become shorter since it was looked at.
+                if(transferred <= 0) throw new IOException("The file ended unexpectedly.");
+                position += transferred;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(isClosed) return;
+            isClosed = true;
+            try {
+                channel.close();
+            } finally {
+                openFiles.release();
+            }
+        }
+    }
+
+    private final Semaphore openFiles = new Semaphore(MAX_OPEN_FILES);
+
+    /** The files that have been looked at, by path. */
+    private final ConcurrentHashMap<Path, PosterFile> files = new ConcurrentHashMap<>();
+
+    /** Returns the poster file at the given path, with the hash of its current content.
+     * @param path The path of the file.
+     * @return An optional containing the file, which is empty if the file does not exist.
+     * @throws IOException If the file could not be read.
+     * @throws InterruptedException If interrupted while waiting for another file to be closed.
+     */
+    Optional<PosterFile> get(Path path) throws IOException, InterruptedException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+        if(!attributes.isRegularFile()) return Optional.empty();
+
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        PosterFile file = files.get(path);
+        if(file != null && file.size() == size && file.lastModified() == lastModified)
+            return Optional.of(file);
+
+        Optional<String> hash = hash(path);
+        if(hash.isEmpty()) return Optional.empty();
+
+        if(files.size() >= MAX_CACHED_FILES) files.clear();
+        file = new PosterFile(path, size, lastModified, hash.get());
+        files.put(path, file);
+        return Optional.of(file);
+    }
+
+    /** Opens the file, waiting a little if too many files are open already.
+     * @param file The file to open.
+     * @return An optional containing the open file, which is empty if too many files stayed open.
+     * @throws IOException If the file could not be opened.
+     * @throws InterruptedException If interrupted while waiting for another file to be closed.
+     */
+    Optional<OpenFile> open(PosterFile file) throws IOException, InterruptedException {
+        if(!openFiles.tryAcquire(OPEN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) return Optional.empty();
+        try {
+            return Optional.of(new OpenFile(FileChannel.open(file.path(), StandardOpenOption.READ)));
+        } catch (IOException | RuntimeException e) {
+            openFiles.release();
+            throw e;
+        }
+    }
+
+    /** Returns the hash of the content of the file, or an empty optional if the file does not exist.
+     * Waits for as long as it takes for another file to be closed, since the hash is only computed once for each file.
+     */
+    private Optional<String> hash(Path path) throws IOException, InterruptedException {
+        openFiles.acquire();
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+            while(channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+            return Optional.of(HexFormat.of().formatHex(digest.digest(), 0, 16));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new AssertionError(e);
+        } finally {
+            openFiles.release();
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+package service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import domain.Media;
+import domain.MediaLibrary;
+import domain.MediaSorting.SortBy;
+import domain.MediaSorting.SortOrder;
+
+/** Caches the JSON responses of {@link HttpService}, so that the catalog is not encoded again for every request.
+ * <p> Each media is encoded once, into bytes, the first time it is sent. Media never changes,
+ * so the bytes are only encoded again if the catalog gets a different media with the same id.
+ * Lists of media are put together by copying the bytes of each media, instead of encoding the media again.
+ * <p> The whole catalog, in each order, is cached for the current version of the catalog,
+ * and is only put together again when the catalog changes. See {@link MediaLibrary.Snapshot#getVersion()}.
+ * <p> Every cached response has a strong ETag, which is a hash of its bytes,
+ * so that clients can ask whether their copy is still up to date, and be told so without getting the response again.
+ * <i>Is thread safe.</i>
+ */
+class ResponseCache {
+
+    private static final byte[] EMPTY_LIST = {'[', ']'};
+
+    /** A response that has already been encoded.
+     * @param body The bytes of the response.
+     * @param etag The strong ETag of the response, including the quotes.
+     */
+    static record Response(byte[] body, String etag) {
+
+        private static Response of(byte[] body) {
+            return new Response(body, ResponseCache.etag(body));
+        }
+    }
+
+    /** The encoded media, and the media it was encoded from. */
+    private static record EncodedMedia(Media media, Response response) {}
+
+    /** A list of the catalog, and the version of the catalog it was made from. */
+    private static record CachedList(long version, Response response) {}
+
+    /** The encoded media, by id. */
+    private final ConcurrentHashMap<Integer, EncodedMedia> mediaCache = new ConcurrentHashMap<>();
+
+    /** The catalog in each order. Is indexed by {@link #listIndex}. */
+    private final CachedList[] listCache = new CachedList[listCacheLength()];
+
+    /** Returns the encoded media.
+     * @param catalog The catalog, which gives the media its id. Must be a snapshot of the same catalog every time.
+     * @param media The media.
+     * @return The media as JSON.
+     */
+    Response getMedia(MediaLibrary.Snapshot catalog, Media media) {
+        int id = catalog.getId(media);
+        EncodedMedia encoded = mediaCache.get(id);
+        if(encoded == null || encoded.media() != media) {
+            encoded = new EncodedMedia(media, Response.of(Json.media(media, id).getBytes(StandardCharsets.UTF_8)));
+            mediaCache.put(id, encoded);
+        }
+        return encoded.response();
+    }
+
+    /** Returns the whole catalog in the given order, or the default order if sortBy is null.
+     * Is only put together once for each version of the catalog.
+     * @param catalog The current catalog.
+     * @param sortBy The property to sort by. <p><b>May be null.</b>
+     * @param sortOrder The order to sort in.
+     * @return The catalog as a JSON array.
+     */
+    Response getCatalog(MediaLibrary.Snapshot catalog, SortBy sortBy, SortOrder sortOrder) {
+        int index = listIndex(sortBy, sortOrder);
+        CachedList cached;
+        synchronized(listCache) {
+            cached = listCache[index];
+        }
+        if(cached != null && cached.version() == catalog.getVersion())
+            return cached.response();
+
+        List<Media> media = sortBy == null ? catalog.getSortedByDefault() : catalog.getSortedView(sortBy, sortOrder);
+        Response response = Response.of(concatenate(catalog, media));
+        synchronized(listCache) {
+            // Another thread may have cached a newer version meanwhile, which is kept.
+            if(listCache[index] == null || listCache[index].version() < catalog.getVersion())
+                listCache[index] = new CachedList(catalog.getVersion(), response);
+        }
+        removeOldMedia(catalog);
+        return response;
+    }
+
+    /** Puts the given media together into a JSON array, from the encoded bytes of each media.
+     * @param catalog The catalog, which gives the media their ids.
+     * @param mediaList The media.
+     * @return The bytes of the JSON array.
+     */
+    byte[] concatenate(MediaLibrary.Snapshot catalog, List<Media> mediaList) {
+        if(mediaList.isEmpty()) return EMPTY_LIST;
+
+        byte[][] parts = new byte[mediaList.size()][];
+        int length = 1 + mediaList.size();
+        for(int i = 0; i < parts.length; i++) {
+            parts[i] = getMedia(catalog, mediaList.get(i)).body();
+            length += parts[i].length;
+        }
+
+        byte[] json = new byte[length];
+        json[0] = '[';
+        int position = 1;
+        for(int i = 0; i < parts.length; i++) {
+            if(i > 0) json[position++] = ',';
+            System.arraycopy(parts[i], 0, json, position, parts[i].length);
+            position += parts[i].length;
+        }
+        json[position] = ']';
+        return json;
+    }
+
+    /** Forgets the encoded media that isn't in the catalog any more, if there is a lot of it. */
+    private void removeOldMedia(MediaLibrary.Snapshot catalog) {
+        if(mediaCache.size() <= 2 * catalog.size()) return;
+        mediaCache.values().removeIf(encoded -> !catalog.getMedia().contains(encoded.media()));
+    }
+
+    private static int listIndex(SortBy sortBy, SortOrder sortOrder) {
+        if(sortBy == null) return listCacheLength() - 1;
+        return sortBy.ordinal() * SortOrder.values().length + sortOrder.ordinal();
+    }
+
+    private static int listCacheLength() {
+        return SortBy.values().length * SortOrder.values().length + 1;
+    }
+
+    /** Returns whether the given {@code If-None-Match} header matches the ETag.
+     * @param ifNoneMatch The value of the header. <p><b>May be null.</b>
+     * @param etag The ETag of the current response.
+     * @return Whether the client already has the current response.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if(ifNoneMatch == null) return false;
+        for(String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if(tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) return true;
+        }
+        return false;
+    }
+
+    /** Returns a strong ETag of the given bytes, which is the first 128 bits of their SHA-256 hash. */
+    static String etag(byte[] bytes) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+            return '"' + HexFormat.of().formatHex(hash, 0, 16) + '"';
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new AssertionError(e);
+        }
+    }
+
+}
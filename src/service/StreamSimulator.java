@@ -0,0 +1,284 @@
+package service;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import domain.ApplicationData;
+import domain.Media;
+import domain.MediaLibrary;
+import domain.Series;
+import domain.SyntheticContent;
+
+/** Plays many made up videos from {@link HttpService} at the same time, to measure how many streams the service can keep up with.
+ * <p> Each simulated player asks for the description of its video, and then for its segments in order,
+ * each as a few requests for ranges of {@link #RANGE_SIZE} bytes, as real players do.
+ * A player keeps at most {@link #BUFFER_SEGMENTS} segments ahead of what it has played, and plays the video
+ * {@code speed} times faster than real time, so that a short run puts the load of a long one on the service.
+ * If a segment arrives after it should have been played, the player has stalled.
+ * <p> No player has a thread of its own. The requests are sent asynchronously, and the waits are scheduled,
+ * so that thousands of players only need a few threads. See {@link #play}.
+ * <p> Run with {@code [streams] [segments] [speed] [port]}. Without a port, a service is started in this process.
+ * Prints the throughput of each stream, and how fast each stream received its segments, as percentiles over all streams,
+ * and the total throughput.
+ */
+public class StreamSimulator {
+
+    /** The number of bytes asked for in each request for a range of a segment. */
+    static final int RANGE_SIZE = 256 * 1024;
+
+    /** The number of segments a player may have ahead of what it has played. */
+    static final int BUFFER_SEGMENTS = 3;
+
+    private static final Pattern SEGMENT_COUNT = Pattern.compile("\"segments\":(\\d+)");
+    private static final Pattern SEGMENT_SIZE = Pattern.compile("\"segmentSize\":(\\d+)");
+
+    /** The result of playing a video.
+     * @param path The path of the video, such as {@code /streams/12/1/3}.
+     * @param segments The number of segments that were played.
+     * @param bytes The number of bytes that were received.
+     * @param nanos The time from the first request to the last byte.
+     * @param fetchNanos The time spent waiting for segments, without the time spent waiting for room in the buffer.
+     * @param stalls The number of segments that arrived after they should have been played.
+     */
+    public static record Result(String path, int segments, long bytes, long nanos, long fetchNanos, int stalls) {
+
+        /** Returns the throughput of the stream in megabits per second, which is at most the speed it is played at. */
+        public double megabitsPerSecond() {
+            return nanos == 0 ? 0 : bytes * 8 * 1000.0 / nanos;
+        }
+
+        /** Returns how fast the segments were received, in megabits per second, which is how fast the stream could have been played. */
+        public double downloadMegabitsPerSecond() {
+            return fetchNanos == 0 ? 0 : bytes * 8 * 1000.0 / fetchNanos;
+        }
+    }
+
+    private final HttpClient client;
+    private final URI base;
+    private final double speed;
+    private final ScheduledExecutorService scheduler;
+
+    /** Creates a simulator for the service at the given address.
+     * @param base The address of the service, such as {@code http://localhost:8080}.
+     * @param speed How many times faster than real time the videos are played.
+     */
+    public StreamSimulator(URI base, double speed) {
+        this.base = base;
+        this.speed = speed;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Stream simulator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    }
+
+    /** Plays the first segments of a video, without blocking.
+     * @param path The path of the video, such as {@code /streams/12}.
+     * @param maxSegments The maximum number of segments to play.
+     * @return A future that completes with the result when the last segment has arrived,
+     * or completes exceptionally if a request fails.
+     */
+    public CompletableFuture<Result> play(String path, int maxSegments) {
+        long start = System.nanoTime();
+        HttpRequest request = HttpRequest.newBuilder(base.resolve(path)).build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+                     .thenCompose(response -> {
+                         requireStatus(response, 200);
+                         int segmentCount = Math.min(maxSegments, parseInt(SEGMENT_COUNT, response.body()));
+                         int segmentSize = parseInt(SEGMENT_SIZE, response.body());
+                         return new Player(path, segmentCount, segmentSize, start).playSegment(0);
+                     });
+    }
+
+    /** The state of one simulated player. Is only used by one request at a time. */
+    private class Player {
+        private final String path;
+        private final int segmentCount;
+        private final int segmentSize;
+        private final long start;
+        private final long segmentNanos;
+
+        /** When the first segment arrived, and playing started. Is 0 until then. */
+        private long playStart;
+        private long bytes;
+        private long fetchNanos;
+        private int stalls;
+
+        private Player(String path, int segmentCount, int segmentSize, long start) {
+            this.path = path;
+            this.segmentCount = segmentCount;
+            this.segmentSize = segmentSize;
+            this.start = start;
+            this.segmentNanos = (long) (TimeUnit.SECONDS.toNanos(SyntheticContent.SEGMENT_SECONDS) / speed);
+        }
+
+        private CompletableFuture<Result> playSegment(int segment) {
+            if(segment >= segmentCount)
+                return CompletableFuture.completedFuture(new Result(path, segmentCount, bytes, System.nanoTime() - start, fetchNanos, stalls));
+
+            // The player waits until it has played enough that the segment fits in its buffer.
+            long delay = playStart == 0 ? 0 : playStart + (segment - BUFFER_SEGMENTS) * segmentNanos - System.nanoTime();
+            long[] fetchStart = new long[1];
+            return after(delay).thenCompose(ignored -> {
+                                   fetchStart[0] = System.nanoTime();
+                                   return fetchRange(segment, 0);
+                               })
+                               .thenCompose(ignored -> {
+                                   long now = System.nanoTime();
+                                   fetchNanos += now - fetchStart[0];
+                                   if(playStart == 0) playStart = now;
+                                   else if(now > playStart + segment * segmentNanos) stalls++;
+                                   return playSegment(segment + 1);
+                               });
+        }
+
+        private CompletableFuture<Void> fetchRange(int segment, long offset) {
+            if(offset >= segmentSize) return CompletableFuture.completedFuture(null);
+
+            long end = Math.min(segmentSize, offset + RANGE_SIZE) - 1;
+            HttpRequest request = HttpRequest.newBuilder(base.resolve(path + "/segments/" + segment))
+                                             .header("Range", "bytes=" + offset + "-" + end)
+                                             .build();
+            return client.sendAsync(request, HttpResponse.BodyHandlers.fromSubscriber(new CountingSubscriber(), CountingSubscriber::getCount))
+                         .thenCompose(response -> {
+                             requireStatus(response, 206);
+                             bytes += response.body();
+                             return fetchRange(segment, end + 1);
+                         });
+        }
+    }
+
+    /** Counts the bytes of a response, without keeping them. */
+    private static class CountingSubscriber implements Flow.Subscriber<List<ByteBuffer>> {
+        private long count;
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        public void onNext(List<ByteBuffer> buffers) {
+            for(ByteBuffer buffer : buffers)
+                count += buffer.remaining();
+        }
+
+        public void onError(Throwable throwable) {}
+
+        public void onComplete() {}
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    private CompletableFuture<Void> after(long delayNanos) {
+        if(delayNanos <= 0) return CompletableFuture.completedFuture(null);
+        Executor delayed = CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS, scheduler);
+        return CompletableFuture.runAsync(() -> {}, delayed);
+    }
+
+    private static void requireStatus(HttpResponse<?> response, int status) {
+        if(response.statusCode() != status)
+            throw new IllegalStateException(response.request().uri() + " responded with " + response.statusCode() + ".");
+    }
+
+    private static int parseInt(Pattern pattern, String json) {
+        Matcher matcher = pattern.matcher(json);
+        if(!matcher.find())
+            throw new IllegalStateException("The video has no " + pattern + ".");
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    /** Returns the paths of the videos of the given media, one for each stream.
+     * Movies are played from the beginning, and the episodes of each series are played in turn.
+     * @param catalog The media to play, which are played in the default order.
+     * @param streams The number of streams.
+     * @return The paths of the videos.
+     */
+    public static List<String> videoPaths(MediaLibrary.Snapshot catalog, int streams) {
+        List<Media> media = catalog.getSortedByDefault();
+        List<String> paths = new ArrayList<>(streams);
+        for(int i = 0; i < streams; i++) {
+            Media next = media.get(i % media.size());
+            if(next instanceof Series series) {
+                int round = i / media.size();
+                int season = 1 + round % series.seasonLengths.length();
+                int episode = 1 + round / series.seasonLengths.length() % series.getSeasonLength(season);
+                paths.add("/streams/" + catalog.getId(next) + "/" + season + "/" + episode);
+            }
+            else paths.add("/streams/" + catalog.getId(next));
+        }
+        return paths;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int streams = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int segments = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        double speed = args.length > 2 ? Double.parseDouble(args[2]) : 4;
+
+        ApplicationData data = new ApplicationData();
+        data.readMedia();
+        HttpService service = null;
+        int port;
+        if(args.length > 3) port = Integer.parseInt(args[3]);
+        else {
+            service = new HttpService(data, 0, e -> System.err.println(e.getMessage()));
+            service.start();
+            port = service.getPort();
+        }
+
+        StreamSimulator simulator = new StreamSimulator(URI.create("http://localhost:" + port), speed);
+        long start = System.nanoTime();
+        List<CompletableFuture<Result>> futures = new ArrayList<>(streams);
+        for(String path : videoPaths(data.getCatalog(), streams))
+            futures.add(simulator.play(path, segments));
+
+        List<Result> results = new ArrayList<>(streams);
+        int failures = 0;
+        for(CompletableFuture<Result> future : futures) {
+            try {
+                results.add(future.join());
+            } catch (RuntimeException e) {
+                if(failures++ == 0) System.err.println("A stream failed: " + e.getMessage());
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        if(service != null) service.stop(0);
+        data.stopPartitionedSearch();
+
+        double[] throughputs = results.stream().mapToDouble(Result::megabitsPerSecond).sorted().toArray();
+        double[] downloads = results.stream().mapToDouble(Result::downloadMegabitsPerSecond).sorted().toArray();
+        long bytes = results.stream().mapToLong(Result::bytes).sum();
+        int stalls = results.stream().mapToInt(Result::stalls).sum();
+        System.out.printf("%d streams of %d segments at %.1fx speed, %d failed, %d stalled segments, in %.1f s%n",
+                          streams, segments, speed, failures, stalls, nanos / 1e9);
+        printPercentiles("Per stream Mbit/s", throughputs);
+        printPercentiles("Per stream download Mbit/s", downloads);
+        System.out.printf("Total: %.1f MB, %.1f Mbit/s%n", bytes / 1e6, bytes * 8 * 1000.0 / nanos);
+    }
+
+    private static void printPercentiles(String name, double[] sorted) {
+        if(sorted.length == 0) return;
+        System.out.printf("%s: min %.1f, p50 %.1f, p99 %.1f, max %.1f%n", name, sorted[0],
+                          percentile(sorted, 0.5), percentile(sorted, 0.99), sorted[sorted.length - 1]);
+    }
+
+    private static double percentile(double[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+}
@@ -0,0 +1,337 @@
+package service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.*;
+
+import domain.ApplicationData;
+import domain.Media;
+import domain.Movie;
+import domain.Series;
+import domain.SyntheticContent;
+
+@Nested
+public class TestsService {
+
+    private static ApplicationData data;
+    private static HttpService service;
+    private static HttpClient client;
+
+    /** The unexpected exceptions the service has thrown while handling requests. */
+    private static final List<Exception> errors = new CopyOnWriteArrayList<>();
+
+    // The service is started once, on any free port, with the media files and a test user. The users are never saved.
+    @BeforeAll
+    static void startService() throws Exception {
+        data = new ApplicationData();
+        data.readMedia();
+        data.addUser("ServiceTest", "abc123", null);
+
+        service = new HttpService(data, 0, errors::add);
+        service.start();
+        client = HttpClient.newHttpClient();
+    }
+
+    @AfterAll
+    static void stopService() {
+        service.stop(0);
+        data.stopPartitionedSearch();
+        assertEquals(List.of(), errors);
+    }
+
+    static HttpResponse<String> send(String method, String path, String password) throws IOException, InterruptedException {
+        return send(method, path, password, null);
+    }
+
+    static HttpResponse<String> send(String method, String path, String password, String ifNoneMatch) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost:" + service.getPort() + path))
+                                                 .method(method, HttpRequest.BodyPublishers.noBody());
+        if(password != null) {
+            String credentials = "ServiceTest:" + password;
+            request.header("Authorization", "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+        }
+        if(ifNoneMatch != null)
+            request.header("If-None-Match", ifNoneMatch);
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    static HttpResponse<byte[]> getBytes(String path, String... headers) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost:" + service.getPort() + path));
+        if(headers.length > 0)
+            request.headers(headers);
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /** Returns the id of the media in the catalog of the service. */
+    static int id(Media media) {
+        return data.getCatalog().getId(media);
+    }
+
+    @Test
+    void catalog() throws IOException, InterruptedException {
+        HttpResponse<String> list = send("GET", "/media", null);
+        assertEquals(200, list.statusCode());
+        assertEquals(data.getAllMedia().size(), list.body().split("\"id\":").length - 1);
+
+        Media first = data.sortAllMedia(domain.MediaSorting.SortBy.RATING).get(0);
+        HttpResponse<String> sorted = send("GET", "/media?sort=rating", null);
+        assertTrue(sorted.body().startsWith("[{\"id\":" + id(first) + ","));
+
+        assertEquals(400, send("GET", "/media?sort=colour", null).statusCode());
+    }
+
+    @Test
+    void conditionalRequests() throws IOException, InterruptedException {
+        HttpResponse<String> list = send("GET", "/media?sort=title&order=reverse", null);
+        String etag = list.headers().firstValue("ETag").orElseThrow();
+        assertEquals(304, send("GET", "/media?sort=title&order=reverse", null, etag).statusCode());
+        assertEquals(200, send("GET", "/media?sort=title", null, etag).statusCode());
+
+        // The same list is put together from the same bytes, so it has the same ETag.
+        assertEquals(list.body(), send("GET", "/media?sort=title&order=reverse", null).body());
+
+        Media media = data.getAllMedia().get(0);
+        HttpResponse<String> detail = send("GET", "/media/" + id(media), null);
+        String detailEtag = detail.headers().firstValue("ETag").orElseThrow();
+        assertTrue(list.body().contains(detail.body()));
+        assertEquals(304, send("GET", "/media/" + id(media), null, "\"other\", " + detailEtag).statusCode());
+    }
+
+    @Test
+    void searchAndDetail() throws IOException, InterruptedException {
+        Media best = data.searchAllMedia("godfather").get(0);
+        HttpResponse<String> search = send("GET", "/media/search?q=godfather&count=3", null);
+        assertEquals(200, search.statusCode());
+        assertTrue(search.body().startsWith("[{\"id\":" + id(best) + ","));
+        assertEquals(3, search.body().split("\"id\":").length - 1);
+
+        HttpResponse<String> detail = send("GET", "/media/" + id(best), null);
+        assertEquals(200, detail.statusCode());
+        assertTrue(detail.body().contains("\"title\":\"" + best.title + "\""));
+
+        assertEquals(404, send("GET", "/media/999999", null).statusCode());
+        assertEquals(400, send("GET", "/media/search", null).statusCode());
+        assertEquals(405, send("DELETE", "/media", null).statusCode());
+    }
+
+    @Test
+    void loginAndFavorites() throws IOException, InterruptedException {
+        assertEquals(401, send("POST", "/login", "wrong").statusCode());
+        assertEquals(401, send("GET", "/favorites", null).statusCode());
+
+        HttpResponse<String> login = send("POST", "/login", "abc123");
+        assertEquals(200, login.statusCode());
+        assertTrue(login.body().startsWith("{\"username\":\"ServiceTest\""));
+
+        Media media = data.getAllMedia().get(0);
+        assertEquals(204, send("PUT", "/favorites/" + id(media), "abc123").statusCode());
+        assertTrue(send("GET", "/favorites", "abc123").body().contains("\"id\":" + id(media) + ","));
+
+        assertEquals(204, send("DELETE", "/favorites/" + id(media), "abc123").statusCode());
+        assertEquals("[]", send("GET", "/favorites", "abc123").body());
+
+        // Only the session can be logged out of, not the password.
+        assertEquals(401, send("POST", "/logout", "abc123").statusCode());
+        Matcher token = Pattern.compile("\"token\":\"([A-Za-z0-9_-]+)\"").matcher(login.body());
+        assertTrue(token.find());
+        HttpRequest logout = HttpRequest.newBuilder(URI.create("http://localhost:" + service.getPort() + "/logout"))
+                                        .POST(HttpRequest.BodyPublishers.noBody()).header("Authorization", "Bearer " + token.group(1)).build();
+        assertEquals(204, client.send(logout, HttpResponse.BodyHandlers.discarding()).statusCode());
+
+        // Without a session, the favorites are loaded for each request, and saved again after it.
+        assertEquals(204, send("PUT", "/favorites/" + id(media), "abc123").statusCode());
+        assertTrue(send("GET", "/favorites", "abc123").body().contains("\"id\":" + id(media) + ","));
+        assertEquals(204, send("DELETE", "/favorites/" + id(media), "abc123").statusCode());
+        assertEquals("[]", send("GET", "/favorites", "abc123").body());
+    }
+
+    @Test
+    void sessionTokens() throws IOException, InterruptedException {
+        HttpResponse<String> login = send("POST", "/login", "abc123");
+        assertEquals(200, login.statusCode());
+        Matcher token = Pattern.compile("\"token\":\"([A-Za-z0-9_-]+)\"").matcher(login.body());
+        assertTrue(token.find());
+        String bearer = "Bearer " + token.group(1);
+
+        assertEquals(200, getBytes("/favorites", "Authorization", bearer).statusCode());
+        assertEquals(401, getBytes("/favorites", "Authorization", "Bearer unknown").statusCode());
+
+        HttpRequest logout = HttpRequest.newBuilder(URI.create("http://localhost:" + service.getPort() + "/logout"))
+                                        .POST(HttpRequest.BodyPublishers.noBody()).header("Authorization", bearer).build();
+        assertEquals(204, client.send(logout, HttpResponse.BodyHandlers.discarding()).statusCode());
+        assertEquals(401, getBytes("/favorites", "Authorization", bearer).statusCode());
+        // The password still works without a session.
+        assertEquals(200, send("GET", "/favorites", "abc123").statusCode());
+    }
+
+    @Test
+    void ndjson() throws IOException, InterruptedException {
+        String[] lines = send("GET", "/media?sort=rating&format=ndjson", null).body().split("\n");
+        assertEquals(data.getAllMedia().size(), lines.length);
+        assertEquals(send("GET", "/media?sort=rating", null).body(), "[" + String.join(",", lines) + "]");
+
+        // The search is put in order lazily, but in the same order as the whole search.
+        HttpResponse<String> search = send("GET", "/media/search?q=the%20god&count=25&format=ndjson", null);
+        assertEquals("application/x-ndjson; charset=utf-8", search.headers().firstValue("Content-Type").orElseThrow());
+        assertEquals(send("GET", "/media/search?q=the%20god&count=25", null).body(),
+                     "[" + String.join(",", search.body().split("\n")) + "]");
+        assertEquals(400, send("GET", "/media?format=xml", null).statusCode());
+
+        // The client stops after the first media, and the service keeps serving.
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + service.getPort() + "/media/search?q=a"))
+                                         .header("Accept", "application/x-ndjson").build();
+        try(Stream<String> results = client.send(request, HttpResponse.BodyHandlers.ofLines()).body()) {
+            assertTrue(results.findFirst().orElseThrow().startsWith("{\"id\":"));
+        }
+        assertEquals(200, send("GET", "/media/search?q=a&count=1&format=ndjson", null).statusCode());
+    }
+
+    @Test
+    void posters() throws IOException, InterruptedException {
+        Media media = data.getAllMedia().get(0);
+        byte[] file = Files.readAllBytes(Path.of(media.imagePath));
+        String path = "/posters/" + id(media);
+
+        HttpResponse<byte[]> poster = getBytes(path);
+        assertEquals(200, poster.statusCode());
+        assertArrayEquals(file, poster.body());
+        assertEquals("image/jpeg", poster.headers().firstValue("Content-Type").orElseThrow());
+        assertEquals("public, no-cache", poster.headers().firstValue("Cache-Control").orElseThrow());
+
+        // The ETag is a hash of the file, so the poster at that version can be kept.
+        String etag = poster.headers().firstValue("ETag").orElseThrow();
+        HttpResponse<byte[]> versioned = getBytes(path + "?v=" + etag.substring(1, etag.length() - 1));
+        assertTrue(versioned.headers().firstValue("Cache-Control").orElseThrow().contains("immutable"));
+
+        assertEquals(304, getBytes(path, "If-None-Match", etag).statusCode());
+        String lastModified = poster.headers().firstValue("Last-Modified").orElseThrow();
+        assertEquals(304, getBytes(path, "If-Modified-Since", lastModified).statusCode());
+        assertEquals(200, getBytes(path, "If-None-Match", "\"other\"", "If-Modified-Since", lastModified).statusCode());
+
+        HttpResponse<byte[]> range = getBytes(path, "Range", "bytes=10-19");
+        assertEquals(206, range.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(file, 10, 20), range.body());
+        assertEquals("bytes 10-19/" + file.length, range.headers().firstValue("Content-Range").orElseThrow());
+        assertArrayEquals(Arrays.copyOfRange(file, file.length - 5, file.length), getBytes(path, "Range", "bytes=-5").body());
+
+        assertEquals(416, getBytes(path, "Range", "bytes=" + file.length + "-").statusCode());
+        assertEquals(200, getBytes(path, "Range", "bytes=10-19", "If-Range", "\"other\"").statusCode());
+        assertEquals(404, getBytes("/posters/999999").statusCode());
+    }
+
+    @Test
+    void streams() throws IOException, InterruptedException {
+        Movie movie = (Movie) data.getAllMedia().stream().filter(media -> media instanceof Movie).findFirst().orElseThrow();
+        Series series = (Series) data.getAllMedia().stream().filter(media -> media instanceof Series).findFirst().orElseThrow();
+
+        SyntheticContent.Video video = SyntheticContent.movie(movie);
+        HttpResponse<String> manifest = send("GET", "/streams/" + id(movie), null);
+        assertEquals(200, manifest.statusCode());
+        assertTrue(manifest.body().contains("\"segments\":" + video.segmentCount() + ","));
+
+        ByteBuffer expected = ByteBuffer.allocate(video.segmentSize());
+        video.fill(2, 0, expected);
+        HttpResponse<byte[]> segment = getBytes("/streams/" + id(movie) + "/segments/2");
+        assertEquals(200, segment.statusCode());
+        assertArrayEquals(expected.array(), segment.body());
+
+        HttpResponse<byte[]> range = getBytes("/streams/" + id(movie) + "/segments/2", "Range", "bytes=100000-100099");
+        assertEquals(206, range.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(expected.array(), 100_000, 100_100), range.body());
+
+        String episode = "/streams/" + id(series) + "/1/" + series.getSeasonLength(1);
+        assertTrue(send("GET", episode, null).body().contains("\"name\":\"" + series.title + " S1E" + series.getSeasonLength(1) + "\""));
+        assertEquals(404, send("GET", "/streams/" + id(series), null).statusCode());
+        assertEquals(404, send("GET", "/streams/" + id(series) + "/1/" + (series.getSeasonLength(1) + 1), null).statusCode());
+        assertEquals(404, send("GET", "/streams/" + id(movie) + "/segments/" + video.segmentCount(), null).statusCode());
+    }
+
+    @Test
+    void simulatedStreams() {
+        StreamSimulator simulator = new StreamSimulator(URI.create("http://localhost:" + service.getPort()), 1000);
+        List<String> paths = StreamSimulator.videoPaths(data.getCatalog(), 50);
+        List<CompletableFuture<StreamSimulator.Result>> results = paths.stream().map(path -> simulator.play(path, 2)).toList();
+
+        for(CompletableFuture<StreamSimulator.Result> future : results) {
+            StreamSimulator.Result result = future.join();
+            assertEquals(2, result.segments());
+            assertEquals(2L * SyntheticContent.DEFAULT_BITS_PER_SECOND / 8 * SyntheticContent.SEGMENT_SECONDS, result.bytes());
+            assertTrue(result.megabitsPerSecond() > 0);
+        }
+    }
+
+    @Test
+    void latencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(long micros = 1; micros <= 10_000; micros++)
+            histogram.record(micros * 1000);
+        assertEquals(10_000, histogram.getTotalCount());
+        assertEquals(5_000_000, histogram.getValueAtPercentile(50), 5_000_000 / 100.0);
+        assertEquals(9_990_000, histogram.getValueAtPercentile(99.9), 9_990_000 / 100.0);
+        assertEquals(10_000_000, histogram.getMax());
+
+        // A client that waited 100 ms for one response would have sent 9 more requests meanwhile, one every 10 ms.
+        LatencyHistogram corrected = new LatencyHistogram();
+        corrected.recordWithExpectedInterval(100_000_000, 10_000_000);
+        assertEquals(10, corrected.getTotalCount());
+        assertEquals(50_000_000, corrected.getValueAtPercentile(50), 50_000_000 / 100.0);
+    }
+
+    @Test
+    void loadGenerator() throws Exception {
+        List<LoadGenerator.Credentials> users = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            data.addUser("LoadTest" + i, "load123", null);
+            users.add(new LoadGenerator.Credentials("LoadTest" + i, "load123"));
+        }
+
+        LoadGenerator inProcess = new LoadGenerator(new LoadTarget.InProcess(data), "inprocess", data.getCatalog(), users);
+        LoadGenerator.Report open = inProcess.run(new LoadGenerator.Config(LoadGenerator.Mode.OPEN, 400, 4, 500, 0, 1));
+        assertEquals(200, open.getCount());
+        assertEquals(0, open.getErrors());
+        assertTrue(open.getLatency(LoadGenerator.Operation.SEARCH).getTotalCount() > 0);
+        assertTrue(open.toJson().startsWith("{\"target\":\"inprocess\",\"mode\":\"open\""));
+        assertTrue(open.toJson().contains("\"operations\":200,\"errors\":0,"));
+
+        LoadTarget http = new LoadTarget.Http(URI.create("http://localhost:" + service.getPort()));
+        LoadGenerator overHttp = new LoadGenerator(http, "http", data.getCatalog(), users);
+        LoadGenerator.Report closed = overHttp.run(new LoadGenerator.Config(LoadGenerator.Mode.CLOSED, 0, 4, 500, 0, 1));
+        assertTrue(closed.getCount() > 0);
+        assertEquals(0, closed.getErrors());
+        for(LoadGenerator.Operation operation : LoadGenerator.Operation.values())
+            assertTrue(closed.toJson().contains("\"" + operation.name().toLowerCase() + "\":{\"count\":"));
+    }
+
+    @Test
+    void searchQueriesHaveTypos() {
+        SplittableRandom random = new SplittableRandom(1);
+        int typos = 0;
+        for(int i = 0; i < 1000; i++) {
+            String query = LoadGenerator.searchQuery("The Shawshank Redemption", random);
+            assertTrue(query.length() >= 2 && query.length() <= 11);
+            if(!"the shawshank redemption".startsWith(query)) typos++;
+        }
+        assertTrue(typos > 200 && typos < 400);
+    }
+
+}